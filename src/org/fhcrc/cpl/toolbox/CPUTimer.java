@@ -33,9 +33,17 @@ public class CPUTimer
 
 	String _name = null;
 	private long _cumulative = 0;
-	private long _start = 0;
 	private int _calls = 0;
 
+	// start time is per thread, so that one timer can time work running concurrently on several threads
+	private final ThreadLocal<long[]> _start = new ThreadLocal<long[]>()
+		{
+		protected long[] initialValue()
+			{
+			return new long[1];
+			}
+		};
+
 
 	public CPUTimer(String name)
 		{
@@ -51,7 +59,7 @@ public class CPUTimer
 
 	public boolean start()
 		{
-		_start = System.nanoTime();
+		_start.get()[0] = System.nanoTime();
 		return true;
 		}
 
@@ -59,24 +67,28 @@ public class CPUTimer
 	public boolean stop()
 		{
 		long stop = System.nanoTime();
-		if (stop > _start)
+		long[] start = _start.get();
+		synchronized(this)
 			{
-			_cumulative += (stop - _start);
-			_calls++;
+			if (stop > start[0])
+				{
+				_cumulative += (stop - start[0]);
+				_calls++;
+				}
 			}
-		_start = 0;
+		start[0] = 0;
 		return true;
 		}
 
 
-	public boolean clear()
+	public synchronized boolean clear()
 		{
 		_cumulative = 0;
         return true;
         }
 
 
-	public long getTotal()
+	public synchronized long getTotal()
 		{
         return _cumulative;
 		}
@@ -121,12 +133,19 @@ public class CPUTimer
 
     private static void appendString(CPUTimer cpuTimer, StringBuilder sb)
 		{
-        double ms = cpuTimer._cumulative * msFactor;
+		long cumulative;
+		int calls;
+		synchronized(cpuTimer)
+			{
+			cumulative = cpuTimer._cumulative;
+			calls = cpuTimer._calls;
+			}
+        double ms = cumulative * msFactor;
         sb.append(ms);
 		sb.append("\t");
-		format((cpuTimer._calls==0?0:cpuTimer._cumulative/cpuTimer._calls), 12, sb);
+		format((calls==0?0:cumulative/calls), 12, sb);
 		sb.append("\t");
-		format(cpuTimer._calls, 12, sb);
+		format(calls, 12, sb);
 		sb.append("\t");
 		sb.append(cpuTimer._name);
 		}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fhcrc.cpl.toolbox.datastructure;
+
+
+/**
+ * Immutable 2D range index over float coordinates, kept entirely in primitive arrays.
+ * <p/>
+ * Points are identified by their position in the coordinate arrays used to build the index.  The points are
+ * stored twice, sorted by x and sorted by y (ties broken by position), each copy with the other coordinate
+ * alongside, so a query is two binary searches and a sequential scan of two parallel float arrays, with no
+ * objects touched until a point matches.
+ * <p/>
+ * Query semantics are exactly those of Tree2D: the axis with fewer candidates is scanned, its range is
+ * min inclusive/max exclusive, the other axis's range is inclusive at both ends, and points are visited in
+ * order along the scanned axis.  Results, including their order, are the same as Tree2D's always were.
+ * <p/>
+ * Thread safe once built.
+ */
+public class PointIndex2D
+	{
+	/**
+	 * Called for each point in a query range
+	 */
+	public interface PointVisitor
+		{
+		/**
+		 * @param index position of the point in the arrays the index was built from
+		 * @return false to stop the query
+		 */
+		boolean visit(int index);
+		}
+
+	private static final PointVisitor stopAtFirst = new PointVisitor()
+		{
+		public boolean visit(int index)
+			{
+			return false;
+			}
+		};
+
+	private final int size;
+
+	//sorted by x, with each point's y and index alongside
+	private final float[] xByX;
+	private final float[] yByX;
+	private final int[] indexByX;
+
+	//sorted by y, with each point's x and index alongside
+	private final float[] yByY;
+	private final float[] xByY;
+	private final int[] indexByY;
+
+
+	/**
+	 * Index the first n points
+	 */
+	public PointIndex2D(float[] x, float[] y, int n)
+		{
+		this(null, x, y, n);
+		}
+
+
+	/**
+	 * Index the first n points, reusing the sort order of an index over some prefix of them.  Only the new
+	 * points are sorted; they're then merged in
+	 * @param previous index of points [0, previous.size()), or null
+	 */
+	public PointIndex2D(PointIndex2D previous, float[] x, float[] y, int n)
+		{
+		size = n;
+		int[] byX = sortedIndexes(null == previous ? null : previous.indexByX, x, n);
+		int[] byY = sortedIndexes(null == previous ? null : previous.indexByY, y, n);
+
+		xByX = new float[n];
+		yByX = new float[n];
+		yByY = new float[n];
+		xByY = new float[n];
+		for (int k = 0; k < n; k++)
+			{
+			xByX[k] = x[byX[k]];
+			yByX[k] = y[byX[k]];
+			yByY[k] = y[byY[k]];
+			xByY[k] = x[byY[k]];
+			}
+		indexByX = byX;
+		indexByY = byY;
+		}
+
+
+	public int size()
+		{
+		return size;
+		}
+
+
+	/**
+	 * Visit the points in a range, with Tree2D's semantics.  Nothing is allocated
+	 * @return false if the visitor stopped the query
+	 */
+	public boolean forEachPoint(float xMin, float yMin, float xMax, float yMax, PointVisitor visitor)
+		{
+		int xStart = lowerBound(xByX, xMin);
+		int xEnd = lowerBound(xByX, xMax);
+		int yStart = lowerBound(yByY, yMin);
+		int yEnd = lowerBound(yByY, yMax);
+
+		if (xEnd - xStart < yEnd - yStart)
+			{
+			for (int k = xStart; k < xEnd; k++)
+				{
+				float yk = yByX[k];
+				if (yk >= yMin && yk <= yMax && !visitor.visit(indexByX[k]))
+					return false;
+				}
+			}
+		else
+			{
+			for (int k = yStart; k < yEnd; k++)
+				{
+				float xk = xByY[k];
+				if (xk >= xMin && xk <= xMax && !visitor.visit(indexByY[k]))
+					return false;
+				}
+			}
+		return true;
+		}
+
+
+	public boolean containsPoints(float xMin, float yMin, float xMax, float yMax)
+		{
+		return !forEachPoint(xMin, yMin, xMax, yMax, stopAtFirst);
+		}
+
+
+	/**
+	 * @return the first position whose value is not less than v
+	 */
+	private int lowerBound(float[] sorted, float v)
+		{
+		int low = 0;
+		int high = size;
+		while (low < high)
+			{
+			int mid = (low + high) >>> 1;
+			if (sorted[mid] < v)
+				low = mid + 1;
+			else
+				high = mid;
+			}
+		return low;
+		}
+
+
+	/**
+	 * Positions [0, n) sorted by key, ties by position.
+	 * @param prefix positions [0, prefix.length) already sorted, or null
+	 */
+	private static int[] sortedIndexes(int[] prefix, float[] key, int n)
+		{
+		int m = null == prefix ? 0 : prefix.length;
+		int[] result = new int[n];
+		int[] tmp = new int[n];
+		for (int i = m; i < n; i++)
+			result[i] = i;
+		mergeSort(result, tmp, m, n, key);
+		if (m > 0)
+			{
+			//merge the old, sorted prefix with the new points; old points win ties since their positions are lower
+			System.arraycopy(result, m, tmp, m, n - m);
+			int a = 0, b = m, k = 0;
+			while (a < m && b < n)
+				result[k++] = key[tmp[b]] < key[prefix[a]] ? tmp[b++] : prefix[a++];
+			while (a < m)
+				result[k++] = prefix[a++];
+			while (b < n)
+				result[k++] = tmp[b++];
+			}
+		return result;
+		}
+
+
+	/**
+	 * Stable sort of a[from, to) by key
+	 */
+	private static void mergeSort(int[] a, int[] tmp, int from, int to, float[] key)
+		{
+		if (to - from < 16)
+			{
+			for (int i = from + 1; i < to; i++)
+				{
+				int v = a[i];
+				int j = i - 1;
+				while (j >= from && key[v] < key[a[j]])
+					{
+					a[j + 1] = a[j];
+					j--;
+					}
+				a[j + 1] = v;
+				}
+			return;
+			}
+		int mid = (from + to) >>> 1;
+		mergeSort(a, tmp, from, mid, key);
+		mergeSort(a, tmp, mid, to, key);
+		if (!(key[a[mid]] < key[a[mid - 1]]))
+			return;
+		System.arraycopy(a, from, tmp, from, to - from);
+		int i = from, j = mid, k = from;
+		while (i < mid && j < to)
+			a[k++] = key[tmp[j]] < key[tmp[i]] ? tmp[j++] : tmp[i++];
+		while (i < mid)
+			a[k++] = tmp[i++];
+		while (j < to)
+			a[k++] = tmp[j++];
+		}
+	}
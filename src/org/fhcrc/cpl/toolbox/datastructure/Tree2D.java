@@ -23,57 +23,17 @@ import java.util.*;
  * Date: Sep 16, 2004
  * Time: 2:03:20 PM
  * <p/>
- * Dumb implementation of 2D tree, find good open source implementation, or get back to this
+ * 2D range search over objects.  Points are kept in primitive arrays and indexed by a PointIndex2D, which is
+ * rebuilt (by merging in just the new points) the first time it's queried after an add.
  * <p/>
  * Not thead safe
  */
 public class Tree2D
 	{
 	ArrayList entries = new ArrayList();
-	Entry2D[] xArray = null;
-	Entry2D[] yArray = null;
-	TreeSet xTree = new TreeSet(Entry2D.compareX);
-	TreeSet yTree = new TreeSet(Entry2D.compareY);
-
-	static class Entry2D
-		{
-		float x;
-		float y;
-		int i;
-
-		Entry2D(float x, float y, int i)
-			{
-			this.x = x;
-			this.y = y;
-			this.i = i;
-			}
-
-		static Comparator compareX = new Comparator()
-			{
-			public int compare(Object o1, Object o2)
-				{
-				Entry2D e1 = (Entry2D)o1;
-				Entry2D e2 = (Entry2D)o2;
-				return e1.x > e2.x ? 1 : e1.x < e2.x ? -1 :
-				        e1.i > e2.i ? 1 : e1.i < e2.i ? -1 : 0;
-				}
-			};
-		static Comparator compareY = new Comparator()
-			{
-			public int compare(Object o1, Object o2)
-				{
-				Entry2D e1 = (Entry2D)o1;
-				Entry2D e2 = (Entry2D)o2;
-				return e1.y > e2.y ? 1 : e1.y < e2.y ? -1 :
-				        e1.i > e2.i ? 1 : e1.i < e2.i ? -1 : 0;
-				}
-			};
-		}
-
-	static class IndexRange
-		{
-		int start, end;
-		}
+	float[] xs = new float[16];
+	float[] ys = new float[16];
+	PointIndex2D index = null;
 
 
 	public Tree2D()
@@ -85,12 +45,13 @@ public class Tree2D
 		{
 		int i = entries.size();
 		entries.add(o);
-		Entry2D entry = new Entry2D(x, y, i);
-		xTree.add(entry);
-		yTree.add(entry);
-//		bitSet = null;
-		xArray = null;
-		yArray = null;
+		if (i == xs.length)
+			{
+			xs = Arrays.copyOf(xs, 2 * i);
+			ys = Arrays.copyOf(ys, 2 * i);
+			}
+		xs[i] = x;
+		ys[i] = y;
 		}
 
 
@@ -101,84 +62,52 @@ public class Tree2D
 
 
 	/** min inclusive, max exclusive */
-	public ArrayList getPoints(float xMin, float yMin, float xMax, float yMax, ArrayList list)
+	public ArrayList getPoints(float xMin, float yMin, float xMax, float yMax, final ArrayList list)
 		{
 		list.clear();
-		Entry2D[] xEntries = getXEntries();
-		Entry2D[] yEntries = getYEntries();
-
-		IndexRange xRange = find(xEntries, xMin, xMax, Entry2D.compareX);
-		IndexRange yRange = find(yEntries, yMin, yMax, Entry2D.compareY);
-
-		if (xRange.end - xRange.start < yRange.end - yRange.start)
-			{
-			for (int x = xRange.start; x < xRange.end; x++)
-				{
-				Entry2D e = xEntries[x];
-				if (e.y >= yMin && e.y <= yMax)
-					list.add(entries.get(e.i));
-				}
-			}
-		else
+		getIndex().forEachPoint(xMin, yMin, xMax, yMax, new PointIndex2D.PointVisitor()
 			{
-			for (int y = yRange.start; y < yRange.end; y++)
+			public boolean visit(int i)
 				{
-				Entry2D e = yEntries[y];
-				if (e.x >= xMin && e.x <= xMax)
-					list.add(entries.get(e.i));
+				list.add(entries.get(i));
+				return true;
 				}
-			}
+			});
 		return list;
 		}
 
 
-	private IndexRange find(Entry2D[] entries, float min, float max, Comparator c)
+	public boolean containsPoints(float xMin, float yMin, float xMax, float yMax)
 		{
-		IndexRange range = new IndexRange();
-		// it's irritating, but need to provide matching object class here
-		Entry2D finder = new Entry2D(min, min, 0);
-		range.start = Arrays.binarySearch(entries, finder, c);
-		if (range.start < 0)
-			range.start = -(range.start+1);
-
-		finder.x = max; finder.y = max;
-		range.end = Arrays.binarySearch(entries, finder, c);
-		if (range.end < 0)
-			range.end = -(range.end+1);
-        return range;
+		return getIndex().containsPoints(xMin, yMin, xMax, yMax);
 		}
 
 
-	public boolean containsPoints(float xMin, float yMin, float xMax, float yMax)
+	/**
+	 * @return the index of all the points, which callers can query directly to avoid building lists.  Visited
+	 * indexes are positions in order of addition
+	 */
+	public PointIndex2D getIndex()
 		{
-		// optimize
-		ArrayList list = getPoints(xMin, yMin, xMax, yMax);
-		return !list.isEmpty();
+		int n = entries.size();
+		if (null == index || index.size() != n)
+			index = new PointIndex2D(index, xs, ys, n);
+		return index;
 		}
 
 
-	private Entry2D[] getXEntries()
+	/**
+	 * @param i position in order of addition
+	 * @return the object added there
+	 */
+	public Object get(int i)
 		{
-		if (null == xArray)
-			xArray = (Entry2D[])xTree.toArray(new Entry2D[xTree.size()]);
-		return xArray;
+		return entries.get(i);
 		}
 
 
-	private Entry2D[] getYEntries()
+	public int size()
 		{
-		if (null == yArray)
-			yArray = (Entry2D[])yTree.toArray(new Entry2D[yTree.size()]);
-		return yArray;
+		return entries.size();
 		}
-
-
-//	private BitSet getBitSet()
-//		{
-//		if (null == bitSet)
-//			bitSet = new BitSet(entries.size());
-//		else
-//			bitSet.clear();
-//		return bitSet;
-//		}
 	}
@@ -80,6 +80,7 @@ public class TabLoader
     protected String _strDelimiter = null;
     protected boolean _parseQuotes = false;
     protected boolean _throwOnErrors = false;
+    protected boolean _fastParsing = false;
 
     private Transformer _transformer = null;
 
@@ -788,6 +789,83 @@ public class TabLoader
         return _throwOnErrors;
     }
 
+    public boolean isFastParsing()
+    {
+        return _fastParsing;
+    }
+
+    /**
+     * Fast parsing reads the file's bytes with a TabTokenizer rather than reading lines and splitting them.
+     * Plain numbers and booleans are parsed straight from the bytes, and columns with a PropertySetter are
+     * set through it rather than by reflection.  Results are the same as without it; anything the tokenizer
+     * can't parse exactly goes through the column's converter as usual.
+     *
+     * Only applies when loading from a file, without quote parsing, with a tab or comma delimiter, and,
+     * when loading beans, with the default transformer.  Otherwise ignored
+     * @param fastParsing
+     */
+    public void setFastParsing(boolean fastParsing)
+    {
+        _fastParsing = fastParsing;
+    }
+
+    protected boolean canParseFast()
+    {
+        return _fastParsing && null == _reader && null == _stringData && !_parseQuotes &&
+                (_chDelimiter == '\t' || _chDelimiter == ',');
+    }
+
+
+    /**
+     * Sets one bean property without reflection, for fast parsing.  set() takes the value after conversion.
+     * For primitive properties, extend the typed setter instead, which also takes values parsed straight
+     * from the file
+     */
+    public static abstract class PropertySetter
+    {
+        public abstract void set(Object bean, Object value);
+    }
+
+    public static abstract class IntPropertySetter extends PropertySetter
+    {
+        public abstract void setInt(Object bean, int value);
+
+        public void set(Object bean, Object value)
+        {
+            setInt(bean, (Integer) value);
+        }
+    }
+
+    public static abstract class FloatPropertySetter extends PropertySetter
+    {
+        public abstract void setFloat(Object bean, float value);
+
+        public void set(Object bean, Object value)
+        {
+            setFloat(bean, (Float) value);
+        }
+    }
+
+    public static abstract class DoublePropertySetter extends PropertySetter
+    {
+        public abstract void setDouble(Object bean, double value);
+
+        public void set(Object bean, Object value)
+        {
+            setDouble(bean, (Double) value);
+        }
+    }
+
+    public static abstract class BooleanPropertySetter extends PropertySetter
+    {
+        public abstract void setBoolean(Object bean, boolean value);
+
+        public void set(Object bean, Object value)
+        {
+            setBoolean(bean, (Boolean) value);
+        }
+    }
+
     public void setThrowOnErrors(boolean throwOnErrors)
     {
         _throwOnErrors = throwOnErrors;
@@ -821,6 +899,8 @@ public class TabLoader
         public Object errorValues = null;
         public Converter converter = null;
         public Method setter = null;
+        //used instead of setter when fast parsing, if set
+        public PropertySetter propertySetter = null;
     }
 
 
@@ -970,6 +1050,9 @@ public class TabLoader
                 if (null != reader)
                     reader.close();
                 reader = null;
+                if (null != tokenizer)
+                    tokenizer.close();
+                tokenizer = null;
             }
             catch (IOException x)
             {
@@ -982,6 +1065,10 @@ public class TabLoader
         int lineNo = 0;
         boolean returnMaps = true;
 
+        //used instead of reader when fast parsing
+        TabTokenizer tokenizer = null;
+        boolean tokenizerHasLine = false;
+
         protected TabLoaderIterator() throws IOException
         {
             initColNameMap();
@@ -996,11 +1083,17 @@ public class TabLoader
             for (ColumnDescriptor column : _columns)
                 column.converter = ConvertUtils.lookup(column.clazz);
 
-            reader = TabLoader.this.getReader();
+            if (canParseFast() && (returnMaps || _transformer instanceof TabTransformer))
+                tokenizer = new TabTokenizer(new FileInputStream(_file), _chDelimiter);
+            else
+                reader = TabLoader.this.getReader();
             String s;
             for (int skip = 0; skip < _skipLines;)
             {
-                s = reader.readLine();
+                if (null != tokenizer)
+                    s = tokenizer.nextLine() ? tokenizer.getLine() : null;
+                else
+                    s = reader.readLine();
                 if (null == s)
                     break;
                 lineNo++;
@@ -1023,11 +1116,27 @@ public class TabLoader
 
         public boolean hasNext()
         {
-            if (line != null)
+            if (line != null || tokenizerHasLine)
                 return true;    // throw illegalstate?
 
             try
             {
+                if (null != tokenizer)
+                {
+                    do
+                    {
+                        if (!tokenizer.nextLine())
+                        {
+                            close();
+                            return false;
+                        }
+                        lineNo++;
+                    }
+                    while (tokenizer.isBlankLine() || tokenizer.isCommentLine());
+                    tokenizerHasLine = true;
+                    return true;
+                }
+
                 do
                 {
                     line = reader.readLine();
@@ -1052,6 +1161,9 @@ public class TabLoader
 
         public Object next()
         {
+            if (null != tokenizer || tokenizerHasLine)
+                return nextFromTokenizer();
+
             if (line == null)
                 return null;    // consider: throw IllegalState
 
@@ -1111,6 +1223,150 @@ public class TabLoader
         }
 
 
+        /**
+         * next(), for fast parsing.  Beans are populated column by column as the fields are parsed
+         */
+        protected Object nextFromTokenizer()
+        {
+            if (!tokenizerHasLine)
+                return null;    // consider: throw IllegalState
+            tokenizerHasLine = false;
+
+            try
+            {
+                Object bean = returnMaps ? null : _returnElementClass.newInstance();
+                Object[] values = returnMaps ? new Object[_columns.length] : null;
+                for (int i = 0; i < _columns.length; i++)
+                {
+                    ColumnDescriptor column = _columns[i];
+                    if (!column.load)
+                        continue;
+                    if (null != bean && column.isProperty && null != column.propertySetter &&
+                            setPropertyFromTokenizer(bean, column, i))
+                        continue;
+
+                    Object value;
+                    if (tokenizer.isEmpty(i))
+                        value = column.missingValues;
+                    else
+                    {
+                        try
+                        {
+                            value = convertFromTokenizer(column, i);
+                        }
+                        catch (Exception x)
+                        {
+                            if (_throwOnErrors)
+                                throw new ConversionException("Conversion error: line " + lineNo + " column " + (i+ 1) + " (" + column.name + ")", x);
+
+                            value = column.errorValues;
+                        }
+                    }
+
+                    if (null == bean)
+                        values[i] = value;
+                    else if (null != value)
+                        ((TabTransformer) _transformer).setColumnValue(bean, column, value);
+                }
+                if (null != bean)
+                    return bean;
+
+                Map m = new _RowMap(values);
+                if (null == _transformer)
+                    return m;
+                else
+                    return _transformer.transform(m);
+            }
+            catch (Exception e)
+            {
+                if (_throwOnErrors)
+                {
+                    if (e instanceof ConversionException)
+                        throw ((ConversionException) e);
+                    else
+                        throw new RuntimeException(e);
+                }
+
+                _log.error("failed loading file " + _file.getName() + " at line: " + lineNo + " " + e, e);
+            }
+            return null;
+        }
+
+        /**
+         * Set a primitive property straight from the field, if it's a plain value
+         * @return false if the field has to be converted as usual
+         */
+        protected boolean setPropertyFromTokenizer(Object bean, ColumnDescriptor column, int i)
+        {
+            Class clazz = column.clazz;
+            PropertySetter setter = column.propertySetter;
+            if (Integer.TYPE.equals(clazz) && setter instanceof IntPropertySetter)
+            {
+                long value = tokenizer.parseInt(i);
+                if (value == TabTokenizer.NOT_PARSED)
+                    return false;
+                ((IntPropertySetter) setter).setInt(bean, (int) value);
+            }
+            else if (Float.TYPE.equals(clazz) && setter instanceof FloatPropertySetter)
+            {
+                float value = tokenizer.parseFloat(i);
+                if (Float.isNaN(value))
+                    return false;
+                ((FloatPropertySetter) setter).setFloat(bean, value);
+            }
+            else if (Double.TYPE.equals(clazz) && setter instanceof DoublePropertySetter)
+            {
+                double value = tokenizer.parseDouble(i);
+                if (Double.isNaN(value))
+                    return false;
+                ((DoublePropertySetter) setter).setDouble(bean, value);
+            }
+            else if (Boolean.TYPE.equals(clazz) && setter instanceof BooleanPropertySetter)
+            {
+                int value = tokenizer.parseBoolean(i);
+                if (value == TabTokenizer.NOT_PARSED_BOOLEAN)
+                    return false;
+                ((BooleanPropertySetter) setter).setBoolean(bean, value == 1);
+            }
+            else
+                return false;
+            return true;
+        }
+
+        /**
+         * Convert a non-empty field, parsing plain numbers and booleans directly
+         */
+        protected Object convertFromTokenizer(ColumnDescriptor column, int i)
+        {
+            Class clazz = column.clazz;
+            if (Integer.TYPE.equals(clazz) || Integer.class.equals(clazz))
+            {
+                long value = tokenizer.parseInt(i);
+                if (value != TabTokenizer.NOT_PARSED)
+                    return (int) value;
+            }
+            else if (Float.TYPE.equals(clazz) || Float.class.equals(clazz))
+            {
+                float value = tokenizer.parseFloat(i);
+                if (!Float.isNaN(value))
+                    return value;
+            }
+            else if (Double.TYPE.equals(clazz) || Double.class.equals(clazz))
+            {
+                double value = tokenizer.parseDouble(i);
+                if (!Double.isNaN(value))
+                    return value;
+            }
+            else if (Boolean.TYPE.equals(clazz) || Boolean.class.equals(clazz))
+            {
+                int value = tokenizer.parseBoolean(i);
+                if (value != TabTokenizer.NOT_PARSED_BOOLEAN)
+                    return value == 1;
+            }
+            return column.converter.convert(clazz, tokenizer.getString(i));
+        }
+
+
         public void remove()
         {
             throw new UnsupportedOperationException("'remove()' is not defined for TabLoaderIterator");
@@ -1146,44 +1402,53 @@ public class TabLoader
                     if (null == value)
                         continue;
 
-                    if (column.isProperty)
+                    setColumnValue(bean, column, value);
+                }
+                return bean;
+            }
+            catch (Exception x)
+            {
+                throw new RuntimeException(x);
+            }
+        }
+
+        public void setColumnValue(Object bean, ColumnDescriptor column, Object value) throws Exception
+        {
+            if (column.isProperty)
+            {
+                try
+                {
+                    if (null != column.propertySetter && _fastParsing)
                     {
-                        try
-                        {
-                            if (null != column.setter)
-                            {
-                                column.setter.invoke(bean, value);
-                            }
-                            else
-                            {
-                                BeanUtils.setProperty(bean, column.name, value);
-                            }
-                        }
-                        catch (Exception x)
-                        {
-                            if (null != _columns[i].errorValues)
-                            {
-                                BeanUtils.setProperty(bean, _columns[i].name, _columns[i].errorValues);
-                            }
-                        }
+                        column.propertySetter.set(bean, value);
+                    }
+                    else if (null != column.setter)
+                    {
+                        column.setter.invoke(bean, value);
                     }
                     else
                     {
-                        //dhmay correcting this check and making it do something, 7/17/06.
-                        //This was only half-implemented, before.
-                        if (java.util.Map.class.isAssignableFrom(bean.getClass()))
-                        {
-                            //cast is ok here because we're explicitly checking
-                            ((Map) bean).put(column.name, value);
-                        }
-
+                        BeanUtils.setProperty(bean, column.name, value);
+                    }
+                }
+                catch (Exception x)
+                {
+                    if (null != column.errorValues)
+                    {
+                        BeanUtils.setProperty(bean, column.name, column.errorValues);
                     }
                 }
-                return bean;
             }
-            catch (Exception x)
+            else
             {
-                throw new RuntimeException(x);
+                //dhmay correcting this check and making it do something, 7/17/06.
+                //This was only half-implemented, before.
+                if (java.util.Map.class.isAssignableFrom(bean.getClass()))
+                {
+                    //cast is ok here because we're explicitly checking
+                    ((Map) bean).put(column.name, value);
+                }
+
             }
         }
     }
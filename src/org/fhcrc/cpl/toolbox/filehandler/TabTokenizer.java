@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fhcrc.cpl.toolbox.filehandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Splits delimited text into lines and fields straight from a byte buffer, for TabLoader's fast parsing.
+ * Nothing is allocated per line or per field unless a field is asked for as a String.
+ *
+ * Field semantics are those of TabLoader.parseLine() without quote parsing: fields are trimmed of whitespace,
+ * "\N" means empty, and fields past the end of the line are empty.  Lines end at \n, \r or \r\n, as with
+ * BufferedReader.readLine().  Bytes are decoded with the platform charset, like FileReader, which must be
+ * ASCII-compatible.
+ *
+ * Numbers are parsed from the bytes only if they're plain decimals, e.g., "-12.5" or "1.2E-4", and only
+ * when the result is sure to be exactly what Double.parseDouble() or Float.parseFloat() would give.  For
+ * anything else, the parse methods return a NOT_PARSED value and the caller should convert getString()
+ */
+public class TabTokenizer
+{
+    //returned by the parse methods when the field isn't a plain number (or boolean)
+    public static final long NOT_PARSED = Long.MIN_VALUE;
+    public static final int NOT_PARSED_BOOLEAN = -1;
+
+    protected static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    //mantissas up to this are exact as doubles
+    protected static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    protected InputStream in;
+    protected byte delimiter;
+    protected Charset charset = Charset.defaultCharset();
+
+    protected byte[] buf = new byte[64 * 1024];
+    protected int bufEnd = 0;
+    protected int pos = 0;
+    protected boolean eof = false;
+
+    //current line, and its fields' trimmed bounds
+    protected int lineStart = 0;
+    protected int lineEnd = 0;
+    protected int numFields = 0;
+    protected int[] fieldStarts = new int[64];
+    protected int[] fieldEnds = new int[64];
+
+    public TabTokenizer(InputStream in, char delimiter)
+    {
+        if (delimiter > 127)
+            throw new IllegalArgumentException("Delimiter must be ASCII");
+        this.in = in;
+        this.delimiter = (byte) delimiter;
+    }
+
+    /**
+     * Move to the next line, whatever it contains
+     * @return false at the end of the input
+     * @throws IOException
+     */
+    public boolean nextLine() throws IOException
+    {
+        int terminator = -1;
+        while (true)
+        {
+            for (int i = pos; i < bufEnd; i++)
+            {
+                byte b = buf[i];
+                if (b == '\n' || b == '\r')
+                {
+                    terminator = i;
+                    break;
+                }
+            }
+            //a \r at the end of the buffer might be followed by \n
+            if (eof || (terminator >= 0 && (buf[terminator] == '\n' || terminator + 1 < bufEnd)))
+                break;
+            terminator = -1;
+            fill();
+        }
+        if (terminator < 0)
+        {
+            if (pos >= bufEnd)
+                return false;
+            terminator = bufEnd;
+        }
+
+        lineStart = pos;
+        lineEnd = terminator;
+        pos = terminator;
+        if (pos < bufEnd)
+            pos += (buf[pos] == '\r' && pos + 1 < bufEnd && buf[pos + 1] == '\n') ? 2 : 1;
+        splitFields();
+        return true;
+    }
+
+    /**
+     * Keep the unread part of the buffer and read more after it, growing the buffer if it's all unread
+     */
+    protected void fill() throws IOException
+    {
+        if (pos > 0)
+        {
+            System.arraycopy(buf, pos, buf, 0, bufEnd - pos);
+            bufEnd -= pos;
+            pos = 0;
+        }
+        if (bufEnd == buf.length)
+        {
+            byte[] newBuf = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, newBuf, 0, bufEnd);
+            buf = newBuf;
+        }
+        int n = in.read(buf, bufEnd, buf.length - bufEnd);
+        if (n < 0)
+            eof = true;
+        else
+            bufEnd += n;
+    }
+
+    protected void splitFields()
+    {
+        numFields = 0;
+        int start = lineStart;
+        while (true)
+        {
+            int end = start;
+            while (end < lineEnd && buf[end] != delimiter)
+                end++;
+            if (numFields == fieldStarts.length)
+            {
+                int[] newStarts = new int[numFields * 2];
+                int[] newEnds = new int[numFields * 2];
+                System.arraycopy(fieldStarts, 0, newStarts, 0, numFields);
+                System.arraycopy(fieldEnds, 0, newEnds, 0, numFields);
+                fieldStarts = newStarts;
+                fieldEnds = newEnds;
+            }
+            int s = start;
+            int e = end;
+            while (s < e && (buf[s] & 0xff) <= ' ')
+                s++;
+            while (e > s && (buf[e - 1] & 0xff) <= ' ')
+                e--;
+            if (e - s == 2 && buf[s] == '\\' && buf[s + 1] == 'N')
+                e = s;
+            fieldStarts[numFields] = s;
+            fieldEnds[numFields] = e;
+            numFields++;
+            if (end >= lineEnd)
+                break;
+            start = end + 1;
+        }
+    }
+
+    /**
+     * @return true if the line is empty or all whitespace
+     */
+    public boolean isBlankLine()
+    {
+        for (int i = lineStart; i < lineEnd; i++)
+            if ((buf[i] & 0xff) > ' ')
+                return false;
+        return true;
+    }
+
+    public boolean isCommentLine()
+    {
+        return lineEnd > lineStart && buf[lineStart] == '#';
+    }
+
+    /**
+     * @return the whole current line
+     */
+    public String getLine()
+    {
+        return new String(buf, lineStart, lineEnd - lineStart, charset);
+    }
+
+    public int getFieldCount()
+    {
+        return numFields;
+    }
+
+    /**
+     * @param field
+     * @return true if the field is empty, "\N" or past the end of the line
+     */
+    public boolean isEmpty(int field)
+    {
+        return field >= numFields || fieldStarts[field] == fieldEnds[field];
+    }
+
+    /**
+     * @param field
+     * @return the trimmed field, or "" if empty
+     */
+    public String getString(int field)
+    {
+        if (isEmpty(field))
+            return "";
+        return new String(buf, fieldStarts[field], fieldEnds[field] - fieldStarts[field], charset);
+    }
+
+    /**
+     * @param field
+     * @return the field's value, or NOT_PARSED if it's not a plain int ([-]digits)
+     */
+    public long parseInt(int field)
+    {
+        if (isEmpty(field))
+            return NOT_PARSED;
+        int i = fieldStarts[field];
+        int end = fieldEnds[field];
+        boolean negative = buf[i] == '-';
+        if (negative)
+            i++;
+        //up to 9 digits can't overflow
+        if (i == end || end - i > 9)
+            return NOT_PARSED;
+        int value = 0;
+        for (; i < end; i++)
+        {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9)
+                return NOT_PARSED;
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @param field
+     * @return the field's value, or NaN if it's not a plain decimal that can be parsed exactly here
+     */
+    public double parseDouble(int field)
+    {
+        if (isEmpty(field))
+            return Double.NaN;
+        int i = fieldStarts[field];
+        int end = fieldEnds[field];
+        boolean negative = buf[i] == '-';
+        if (negative)
+            i++;
+
+        long mantissa = 0;
+        int exponent = 0;
+        boolean sawDigit = false;
+        boolean sawPoint = false;
+        for (; i < end; i++)
+        {
+            byte b = buf[i];
+            if (b >= '0' && b <= '9')
+            {
+                sawDigit = true;
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa >= MAX_EXACT_MANTISSA)
+                    return Double.NaN;
+                if (sawPoint)
+                    exponent--;
+            }
+            else if (b == '.' && !sawPoint)
+                sawPoint = true;
+            else
+                break;
+        }
+        if (!sawDigit)
+            return Double.NaN;
+        if (i < end)
+        {
+            if (buf[i] != 'e' && buf[i] != 'E')
+                return Double.NaN;
+            i++;
+            boolean negativeExponent = i < end && buf[i] == '-';
+            if (i < end && (buf[i] == '-' || buf[i] == '+'))
+                i++;
+            if (i == end || end - i > 3)
+                return Double.NaN;
+            int explicitExponent = 0;
+            for (; i < end; i++)
+            {
+                int digit = buf[i] - '0';
+                if (digit < 0 || digit > 9)
+                    return Double.NaN;
+                explicitExponent = explicitExponent * 10 + digit;
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+
+        //an exact mantissa and power of ten give a correctly rounded result in one operation
+        double value;
+        if (mantissa == 0)
+            value = 0;
+        else if (exponent >= 0 && exponent < POWERS_OF_TEN.length)
+            value = mantissa * POWERS_OF_TEN[exponent];
+        else if (exponent < 0 && -exponent < POWERS_OF_TEN.length)
+            value = mantissa / POWERS_OF_TEN[-exponent];
+        else
+            return Double.NaN;
+        return negative ? -value : value;
+    }
+
+    /**
+     * @param field
+     * @return the field's value, or NaN if it's not a plain decimal that can be parsed exactly here
+     */
+    public float parseFloat(int field)
+    {
+        double value = parseDouble(field);
+        if (Double.isNaN(value))
+            return Float.NaN;
+        if (value == 0)
+            return (float) value;
+        double magnitude = Math.abs(value);
+        if (magnitude < Float.MIN_NORMAL || magnitude > Float.MAX_VALUE)
+            return Float.NaN;
+        //Rounding the nearest double to a float gives the nearest float, unless the double landed exactly
+        //halfway between two floats: the low 29 of its 52 fraction bits are then 100...0
+        if ((Double.doubleToRawLongBits(value) & ((1L << 29) - 1)) == (1L << 28))
+            return Float.NaN;
+        return (float) value;
+    }
+
+    /**
+     * @param field
+     * @return 1 for "true" (any case) or "1", 0 for "false" or "0", otherwise NOT_PARSED_BOOLEAN
+     */
+    public int parseBoolean(int field)
+    {
+        if (isEmpty(field))
+            return NOT_PARSED_BOOLEAN;
+        int start = fieldStarts[field];
+        int length = fieldEnds[field] - start;
+        if (length == 1)
+            return buf[start] == '1' ? 1 : buf[start] == '0' ? 0 : NOT_PARSED_BOOLEAN;
+        if (matchesIgnoreCase(start, length, "true"))
+            return 1;
+        if (matchesIgnoreCase(start, length, "false"))
+            return 0;
+        return NOT_PARSED_BOOLEAN;
+    }
+
+    protected boolean matchesIgnoreCase(int start, int length, String s)
+    {
+        if (length != s.length())
+            return false;
+        for (int i = 0; i < length; i++)
+        {
+            int b = buf[start + i];
+            if (b >= 'A' && b <= 'Z')
+                b += 'a' - 'A';
+            if (b != s.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    public void close() throws IOException
+    {
+        in.close();
+    }
+}
@@ -22,6 +22,7 @@ import org.fhcrc.cpl.toolbox.datastructure.Pair;
 import org.apache.log4j.Logger;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * _Highly_ generic 2-dimensional clusterer.  Adapted from FeatureGrouper, which was specific
@@ -57,6 +58,9 @@ public class Clusterer2D
     protected boolean _dimension1IsInt = false;
     protected boolean _dimension2IsInt = false;
 
+    //number of threads with which to evaluate bucket sizes in calculateBestBuckets
+    protected int _numThreads = 1;
+
     public Clusterer2D()
     {
     }
@@ -86,6 +90,12 @@ public class Clusterer2D
         double[][] perfectMatches = new double[dimension1Buckets.length][dimension2Buckets.length];
         int bestNumPerfectMatches = -1;
 
+        //with more than one thread, score everything up front.  The loop below then picks the same pair
+        //that it would have picked serially
+        int[][] parallelScores = null;
+        if (_numThreads > 1 && dimension1Buckets.length * dimension2Buckets.length > 1)
+            parallelScores = scoreBucketsParallel(dimension1Buckets, dimension2Buckets);
+
         //evaluate all combinations of mass and hydrophobicity buckets
         for (int iMass = 0; iMass < dimension1Buckets.length; iMass++)
         {
@@ -96,8 +106,13 @@ public class Clusterer2D
                 double dimension1Bucketsize = dimension1Buckets[iMass];
                 if (dimension2Bucketsize <= 0 || dimension1Bucketsize <= 0)
                     continue;
-                split2D(dimension1Bucketsize, dimension2Bucketsize);
-                perfectMatches[iMass][iElution] = rowsWithOneFromEach();
+                if (null != parallelScores)
+                    perfectMatches[iMass][iElution] = parallelScores[iMass][iElution];
+                else
+                {
+                    split2D(dimension1Bucketsize, dimension2Bucketsize);
+                    perfectMatches[iMass][iElution] = rowsWithOneFromEach();
+                }
                 _log.debug("Evaluating bucket size: mass " + dimension1Bucketsize + ", elution " + dimension2Bucketsize);
                 _log.debug("    Bucket score: " + perfectMatches[iMass][iElution]);
                 if (perfectMatches[iMass][iElution] >
@@ -141,6 +156,169 @@ public class Clusterer2D
 
 
 
+    /**
+     * Score every combination of bucket sizes (the number of buckets with exactly one entry from each set),
+     * using _numThreads threads.  Nothing is done to the clustering tree: each mass bucket size splits its own
+     * copy of the dimension-1 tree, and its dimension-2 entries are built and sorted once, then split
+     * separately for every elution bucket size.
+     *
+     * To bound memory, mass bucket sizes are taken _numThreads at a time.
+     * @param dimension1Buckets
+     * @param dimension2Buckets
+     * @return scores, indexed like the bucket arrays.  Combinations with a bucket size <= 0 aren't scored
+     */
+    protected int[][] scoreBucketsParallel(final double[] dimension1Buckets, final double[] dimension2Buckets)
+    {
+        int[][] scores = new int[dimension1Buckets.length][dimension2Buckets.length];
+        final int numSets = _clusterableArrays.size();
+        _log.debug("scoreBucketsParallel: " + dimension1Buckets.length + "x" + dimension2Buckets.length +
+                " bucket sizes, " + _numThreads + " threads");
+
+        ExecutorService executor = Executors.newFixedThreadPool(_numThreads);
+        try
+        {
+            for (int groupStart = 0; groupStart < dimension1Buckets.length; groupStart += _numThreads)
+            {
+                int groupEnd = Math.min(dimension1Buckets.length, groupStart + _numThreads);
+
+                //split in dimension 1 and build the dimension-2 entries for each mass bucket size
+                Map<Integer, Future<List<TreeEntry[]>>> dimension2EntriesFutures =
+                        new HashMap<Integer, Future<List<TreeEntry[]>>>();
+                for (int iMass = groupStart; iMass < groupEnd; iMass++)
+                {
+                    final double dimension1Bucketsize = dimension1Buckets[iMass];
+                    if (dimension1Bucketsize <= 0)
+                        continue;
+                    dimension2EntriesFutures.put(iMass, executor.submit(new Callable<List<TreeEntry[]>>()
+                    {
+                        public List<TreeEntry[]> call()
+                        {
+                            return buildDimension2Entries(dimension1Bucketsize);
+                        }
+                    }));
+                }
+
+                //split in dimension 2 and count, for each elution bucket size
+                Map<Integer, Future<Integer>> scoreFutures = new HashMap<Integer, Future<Integer>>();
+                for (int iMass : dimension2EntriesFutures.keySet())
+                {
+                    final Future<List<TreeEntry[]>> dimension2EntriesFuture = dimension2EntriesFutures.get(iMass);
+                    for (int iElution = 0; iElution < dimension2Buckets.length; iElution++)
+                    {
+                        final double dimension2Bucketsize = dimension2Buckets[iElution];
+                        if (dimension2Bucketsize <= 0)
+                            continue;
+                        //all of this group's dimension-1 tasks were queued first, so they're running or done
+                        //by the time a pool thread waits on one here
+                        scoreFutures.put(iMass * dimension2Buckets.length + iElution,
+                                executor.submit(new Callable<Integer>()
+                                {
+                                    public Integer call() throws Exception
+                                    {
+                                        return countRowsWithOneFromEach(dimension2EntriesFuture.get(),
+                                                dimension2Bucketsize, numSets);
+                                    }
+                                }));
+                    }
+                }
+
+                for (int key : scoreFutures.keySet())
+                    scores[key / dimension2Buckets.length][key % dimension2Buckets.length] =
+                            scoreFutures.get(key).get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while evaluating bucket sizes", e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            while (cause instanceof ExecutionException)
+                cause = cause.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException("Failed to evaluate bucket sizes", cause);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        return scores;
+    }
+
+    /**
+     * Split a copy of the dimension-1 tree, and build and sort the dimension-2 entries for each leaf, just
+     * as split2D() does
+     * @param maxDimension1Bucket
+     * @return sorted dimension-2 entries for each dimension-1 leaf, in leaf order
+     */
+    protected List<TreeEntry[]> buildDimension2Entries(double maxDimension1Bucket)
+    {
+        Node root = new Node(_root.entries, _root.start, _root.length);
+        root.reSplit(maxDimension1Bucket, 1);
+        List<TreeEntry[]> result = new ArrayList<TreeEntry[]>();
+        for (Node node : root.getLeafNodes())
+        {
+            TreeEntry[] hydrophobicityEntries = new TreeEntry[node.length];
+            for (int j = 0; j < node.length; j++)
+            {
+                TreeEntry dimension1TreeEntry = node.entries[node.start + j];
+                TreeEntry hydrophobicityTreeEntry = new TreeEntry();
+                hydrophobicityTreeEntry.parent = dimension1TreeEntry.parent;
+                hydrophobicityTreeEntry.iSet = dimension1TreeEntry.iSet;
+                hydrophobicityTreeEntry.value = dimension1TreeEntry.parent.getDimension2Value();
+
+                hydrophobicityEntries[j] = hydrophobicityTreeEntry;
+            }
+            Arrays.sort(hydrophobicityEntries);
+            result.add(hydrophobicityEntries);
+        }
+        return result;
+    }
+
+    /**
+     * Split each dimension-1 leaf's entries in dimension 2 and count buckets with exactly one entry from
+     * each set, as rowsWithOneFromEach() does.  Doesn't modify the entries, so many threads can count from the
+     * same entries at once
+     * @param dimension2Entries
+     * @param maxDimension2Bucket
+     * @param numSets
+     * @return
+     */
+    protected int countRowsWithOneFromEach(List<TreeEntry[]> dimension2Entries, double maxDimension2Bucket,
+                                           int numSets)
+    {
+        int count = 0;
+        boolean[] setSeen = new boolean[numSets];
+        for (TreeEntry[] entries : dimension2Entries)
+        {
+            Node dimension2 = new Node(entries, 0, entries.length);
+            dimension2.reSplit(maxDimension2Bucket, 2);
+            for (Node leaf : dimension2.getLeafNodes())
+            {
+                if (leaf.length != numSets)
+                    continue;
+                Arrays.fill(setSeen, false);
+                int setCount = 0;
+                for (int i = leaf.start; i < leaf.start + leaf.length; i++)
+                {
+                    if (!setSeen[leaf.entries[i].iSet])
+                    {
+                        setSeen[leaf.entries[i].iSet] = true;
+                        setCount++;
+                    }
+                }
+                if (setCount == numSets)
+                    count++;
+            }
+        }
+        return count;
+    }
+
     /**
      * A single entry in the clustering tree, aware of its value in only one dimension
      */
@@ -709,6 +887,23 @@ public class Clusterer2D
         this._dimension2IsInt = _dimension2IsInt;
     }
 
+    public int getNumThreads()
+    {
+        return _numThreads;
+    }
+
+    /**
+     * Set the number of threads used to evaluate bucket sizes in calculateBestBuckets().  The best bucket
+     * sizes don't depend on this.  The split calculator must be safe for concurrent calls if this is more than 1
+     * @param numThreads
+     */
+    public void setNumThreads(int numThreads)
+    {
+        if (numThreads < 1)
+            throw new IllegalArgumentException("Number of threads must be at least 1");
+        _numThreads = numThreads;
+    }
+
     public List<Clusterable[]> getClusterableArrays()
     {
         return _clusterableArrays;
@@ -26,16 +26,16 @@ import org.fhcrc.cpl.toolbox.gui.chart.PanelWithHistogram;
 import org.fhcrc.cpl.toolbox.gui.chart.PanelWithScatterPlot;
 import org.fhcrc.cpl.toolbox.datastructure.FloatArray;
 import org.fhcrc.cpl.toolbox.datastructure.FloatRange;
-import org.systemsbiology.jrap.stax.Base64;
 import org.systemsbiology.jrap.stax.MSXMLParser;
 import org.systemsbiology.jrap.stax.MZXMLFileInfo;
+import org.systemsbiology.jrap.stax.PeakDecoder;
 import org.systemsbiology.jrap.stax.ScanHeader;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
-import java.lang.ref.SoftReference;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
@@ -43,6 +43,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.TreeMap;
 import java.util.Map;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -69,9 +76,10 @@ public class MSRun implements Serializable
     long _filelength;
     private transient File _file;
 
-    // for retrieving spectrum data
-    transient FileChannel _fileChannel;
-    transient MSXMLParser parser;
+    // for retrieving spectrum data.  The channel is only ever read with positional maps, so it can be shared
+    // by threads reading different scans
+    transient volatile FileChannel _fileChannel;
+    transient volatile MSXMLParser parser;
 
     MSScan[] _scans;
     FloatRange _mzRange;
@@ -82,6 +90,10 @@ public class MSRun implements Serializable
     float[] _scanArray;
     float[] _mzArray;
     float[] _intensityArray;
+    // when loaded from a binary index, the image points stay on disk until they're needed
+    transient File _imagePointsFile = null;
+    transient long _imagePointsOffset = 0;
+    transient int _numImagePoints = 0;
 
     // OK, these are redundant, but it's makes getIndex() easier
     transient int[] _indexMap;
@@ -98,16 +110,55 @@ public class MSRun implements Serializable
     TreeMap<Integer,MSScan> _allScans = null;
 
     private static boolean showIndexBuilderProgress = true;
+    //number of threads used to build the index when a file is first opened
+    private static int indexBuilderThreads = 1;
+    //scans per unit of work for the parallel index builder
+    private static final int INDEX_BUILDER_CHUNK_SIZE = 100;
 
     // used by Scan.getSpectrum()
-    static CPUTimer readTimer = new CPUTimer("scan read");
     static CPUTimer decodeTimer = new CPUTimer("scan decode");
     static CPUTimer toFloatTimer = new CPUTimer("scan toFloat");
-    transient private byte[] encodedData = null;
+    //default byte budget for each run's spectrum cache.  Every open run holds up to this much decoded
+    //spectrum data until it's closed, where scans used to hold theirs with SoftReferences that the GC cleared
+    //under memory pressure.  The findpeptides and flagquant "spectrumcachemb" arguments change it
+    private static long defaultSpectrumCacheBytes = 128L * 1024 * 1024;
+    // decoded spectra, shared by all scans in this run.  Created lazily, since it isn't serialized
+    transient volatile SpectrumCache _spectrumCache = null;
+    // extracted ion chromatogram index over the MS1 scans.  Built lazily, see getXicIndex()
+    transient volatile MSRunXicIndex _xicIndex = null;
+    //should XIC indexes be read from and saved to .xic files beside the mzXML file?
+    private static boolean useXicIndexFiles = false;
+    // tiled, multi-resolution image.  Built lazily, see getImagePyramid()
+    transient volatile MSRunImagePyramid _imagePyramid = null;
+    // highest total ion current of any MS1 scan, for scaling the TIC chart.  See getMaxTotIonCurrent()
+    transient float _maxTotIonCurrent = 0;
+    transient volatile boolean _maxTotIonCurrentCalculated = false;
+    //should image pyramids be read from and saved to .pyramid files beside the mzXML file?
+    private static boolean useImagePyramidFiles = false;
 
 
 
+    /**
+     * For MSRunIndexFile, which populates the fields itself
+     */
+    MSRun()
+    {
+    }
+
+
     private MSRun(String path) throws IOException
+    {
+        this(path, false);
+    }
+
+
+    /**
+     * @param path
+     * @param headersOnly if true, read only the scan headers.  Spectra are read when they're asked for, and
+     * the m/z range and image points are computed the first time they're needed
+     * @throws IOException
+     */
+    private MSRun(String path, boolean headersOnly) throws IOException
     {
         File f = new File(path);
         if (!f.exists())
@@ -129,6 +180,13 @@ public class MSRun implements Serializable
             if (null != ApplicationContext.getFrame())
                 ApplicationContext.getFrame().setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 
+            if ((headersOnly || indexBuilderThreads > 1) &&
+                    _firstPassParallel(path, indexBuilderThreads, headersOnly))
+            {
+                _initMaps();
+                return;
+            }
+
             parser = new MSXMLParser(path, useSequentialParser);
             int count = parser.getScanCount();
             _log.debug("JRAP scan count: " + count);
@@ -207,6 +265,8 @@ public class MSRun implements Serializable
                 int index = list.size();
                 list.add(msScan);
 //   System.err.println("List size: " + index + ", added");
+                if (headersOnly)
+                    continue;
 
                 float[][] spectrum = msScan.getSpectrum();
 //   System.err.println("*4, " + spectrum.length);
@@ -237,11 +297,14 @@ public class MSRun implements Serializable
             _scans = (MSScan[])list.toArray(new MSScan[0]);
             _scans2 = (MSScan[])list2.toArray(new MSScan[0]);
             _scans3 = (MSScan[])list3.toArray(new MSScan[0]);
-            _mzRange = new FloatRange(min, max);
+            if (!headersOnly)
+            {
+                _mzRange = new FloatRange(min, max);
 
-            _scanArray = scanArray.toArray(null);
-            _mzArray = mzArray.toArray(null);
-            _intensityArray = intensityArray.toArray(null);
+                _scanArray = scanArray.toArray(null);
+                _mzArray = mzArray.toArray(null);
+                _intensityArray = intensityArray.toArray(null);
+            }
 
             _initMaps();
         }
@@ -254,6 +317,225 @@ public class MSRun implements Serializable
     }
 
 
+    /**
+     * Everything the first pass learns about one scan.  Image points are stored without their scan index,
+     * which isn't known until all the scans before this one have been seen
+     */
+    private static class FirstPassScan
+    {
+        int key;
+        MSScan scan;
+        boolean hasSpectrum = false;
+        float minMz;
+        float maxMz;
+        float[] imageMzs;
+        float[] imageIntensities;
+    }
+
+
+    /**
+     * Parallel version of the constructor's first pass.  Scans are read by random access, using the offset
+     * index at the end of the file, in chunks spread across worker threads.  The chunks are merged in file
+     * order, so the result is the same as a sequential pass.
+     *
+     * Scans are keyed in _allScans by their 1-based position in the file, as the sequential parser does.
+     * @param path
+     * @param numThreads
+     * @param headersOnly if true, don't read any spectra, and leave the m/z range and image points to be
+     * computed later
+     * @return false if the file has no usable index.  Nothing has been changed, and the caller should do a
+     * sequential pass instead
+     */
+    private boolean _firstPassParallel(String path, int numThreads, final boolean headersOnly) throws IOException
+    {
+        final MSXMLParser randomParser;
+        try
+        {
+            randomParser = new MSXMLParser(path, false);
+        }
+        catch (RuntimeException e)
+        {
+            _log.debug("Failed to read scan index in " + path + ", building index sequentially", e);
+            return false;
+        }
+        Map<Integer,Long> offsets = randomParser.getOffsets();
+        if (null == offsets || offsets.isEmpty())
+        {
+            _log.debug("No scan index in " + path + ", building index sequentially");
+            return false;
+        }
+
+        //scan numbers in file order
+        java.util.List<Map.Entry<Integer,Long>> entries = new ArrayList<Map.Entry<Integer,Long>>(offsets.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Integer,Long>>()
+        {
+            public int compare(Map.Entry<Integer,Long> o1, Map.Entry<Integer,Long> o2)
+            {
+                return o1.getValue().compareTo(o2.getValue());
+            }
+        });
+        final int[] scanNums = new int[entries.size()];
+        for (int i = 0; i < scanNums.length; i++)
+            scanNums[i] = entries.get(i).getKey();
+        _log.debug("Building index with " + numThreads + " threads, " + scanNums.length + " scans");
+
+        parser = randomParser;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        java.util.List<FirstPassScan> results = new ArrayList<FirstPassScan>(scanNums.length);
+        try
+        {
+            java.util.List<Future<FirstPassScan[]>> futures = new ArrayList<Future<FirstPassScan[]>>();
+            for (int chunkStart = 0; chunkStart < scanNums.length; chunkStart += INDEX_BUILDER_CHUNK_SIZE)
+            {
+                final int start = chunkStart;
+                final int end = Math.min(scanNums.length, chunkStart + INDEX_BUILDER_CHUNK_SIZE);
+                futures.add(executor.submit(new Callable<FirstPassScan[]>()
+                {
+                    public FirstPassScan[] call()
+                    {
+                        FirstPassScan[] chunk = new FirstPassScan[end - start];
+                        for (int i = start; i < end; i++)
+                            chunk[i - start] = _firstPassScan(randomParser, scanNums[i], i + 1, headersOnly);
+                        return chunk;
+                    }
+                }));
+            }
+
+            for (int c = 0; c < futures.size(); c++)
+            {
+                results.addAll(Arrays.asList(futures.get(c).get()));
+                if (showIndexBuilderProgress)
+                    ApplicationContext.setMessage("Building index file: " + (results.size() * 100 / scanNums.length) + "%");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException("Interrupted while building index");
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException("Failed to build index: " + cause);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        //merge in file order, exactly as the sequential pass would
+        FloatArray scanArray = new FloatArray();
+        FloatArray mzArray = new FloatArray();
+        FloatArray intensityArray = new FloatArray();
+        float min = Float.MAX_VALUE;
+        float max = 0.0F;
+        int precursorScan = 0;
+        ArrayList<MSScan> list = new ArrayList<MSScan>();
+        ArrayList<MSScan> list2 = new ArrayList<MSScan>();
+        ArrayList<MSScan> list3 = new ArrayList<MSScan>();
+        _allScans = new TreeMap<Integer,MSScan>();
+        for (FirstPassScan result : results)
+        {
+            if (null == result)
+                continue;
+            _allScans.put(result.key, result.scan);
+            ScanHeader scan = result.scan._scan;
+            if ("calibration".equals(scan.getScanType()))
+                continue;
+            if ("zoom".equals(scan.getScanType()))
+                continue;
+            if (scan.getMsLevel() == 1 && scan.getPeaksCount() <= 0)
+                continue;
+            if (scan.getMsLevel() == 1)
+                precursorScan = scan.getNum();
+            else
+            {
+                if (-1 == scan.getPrecursorScanNum())
+                    scan.setPrecursorScanNum(precursorScan);
+                if (scan.getMsLevel() == 2)
+                    list2.add(result.scan);
+                else if (scan.getMsLevel() == 3)
+                    list3.add(result.scan);
+                continue;
+            }
+            int index = list.size();
+            list.add(result.scan);
+
+            if (result.hasSpectrum)
+            {
+                min = Math.min(min, result.minMz);
+                max = Math.max(max, result.maxMz);
+                if (min < 0 || max > 1e5)
+                {
+                    RuntimeException x = new RuntimeException("Suspect mzxml data file, scan=" + result.key + " mz=" + (min < 0 ? min : max));
+                    ApplicationContext.errorMessage(null, x);
+                    throw x;
+                }
+            }
+            for (int i = 0; i < result.imageMzs.length; i++)
+            {
+                scanArray.add(index);
+                mzArray.add(result.imageMzs[i]);
+                intensityArray.add(result.imageIntensities[i]);
+            }
+        }
+
+        _scans = list.toArray(new MSScan[0]);
+        _scans2 = list2.toArray(new MSScan[0]);
+        _scans3 = list3.toArray(new MSScan[0]);
+        if (!headersOnly)
+        {
+            _mzRange = new FloatRange(min, max);
+
+            _scanArray = scanArray.toArray(null);
+            _mzArray = mzArray.toArray(null);
+            _intensityArray = intensityArray.toArray(null);
+        }
+        return true;
+    }
+
+
+    /**
+     * Read one scan header and, for MS1 scans that will be kept, its spectrum.  Called from worker threads
+     * @param randomParser
+     * @param scanNum
+     * @param key position of the scan in the file, 1-based
+     * @param headersOnly if true, don't read the spectrum
+     * @return null if the header can't be read
+     */
+    private FirstPassScan _firstPassScan(MSXMLParser randomParser, int scanNum, int key, boolean headersOnly)
+    {
+        ScanHeader scan = randomParser.rapHeader(scanNum);
+        if (null == scan)
+            return null;
+        FirstPassScan result = new FirstPassScan();
+        result.key = key;
+        result.scan = new MSScan(scan);
+
+        FloatArray scanArray = new FloatArray();
+        FloatArray mzArray = new FloatArray();
+        FloatArray intensityArray = new FloatArray();
+        if (!headersOnly && scan.getMsLevel() == 1 && scan.getPeaksCount() > 0 &&
+                !"calibration".equals(scan.getScanType()) && !"zoom".equals(scan.getScanType()))
+        {
+            float[][] spectrum = result.scan.getSpectrum();
+            if (spectrum[0].length > 0)
+            {
+                result.hasSpectrum = true;
+                result.minMz = spectrum[0][0];
+                result.maxMz = spectrum[0][spectrum[0].length - 1];
+            }
+            _computeImagePoints(0, spectrum, scanArray, mzArray, intensityArray);
+        }
+        result.imageMzs = mzArray.toArray(null);
+        result.imageIntensities = intensityArray.toArray(null);
+        return result;
+    }
+
+
     private void _initMaps()
     {
         _indexMap = new int[_scans.length];
@@ -280,6 +562,48 @@ public class MSRun implements Serializable
         showIndexBuilderProgress = b;
     }
 
+    /**
+     * Turn on or off reading and saving XIC indexes in .xic files beside the mzXML files.  Off by default
+     */
+    public static void setUseXicIndexFiles(boolean b)
+    {
+        useXicIndexFiles = b;
+    }
+
+    public static boolean isUseXicIndexFiles()
+    {
+        return useXicIndexFiles;
+    }
+
+    /**
+     * Turn on or off reading and saving image pyramids in .pyramid files beside the mzXML files.  Off by default
+     */
+    public static void setUseImagePyramidFiles(boolean b)
+    {
+        useImagePyramidFiles = b;
+    }
+
+    public static boolean isUseImagePyramidFiles()
+    {
+        return useImagePyramidFiles;
+    }
+
+    /**
+     * Set the number of threads used to build the index for files being opened for the first time.  With more
+     * than one thread, scans are read by random access, which requires a scan offset index in the file
+     */
+    public static void setIndexBuilderThreads(int numThreads)
+    {
+        if (numThreads < 1)
+            throw new IllegalArgumentException("Index builder thread count must be at least 1");
+        indexBuilderThreads = numThreads;
+    }
+
+    public static int getIndexBuilderThreads()
+    {
+        return indexBuilderThreads;
+    }
+
     public String getFileName()
     {
         return _filename;
@@ -353,6 +677,14 @@ public class MSRun implements Serializable
             _log.debug(".inspect file is older than mzXML file, not using.");
             return null;
         }
+        if (MSRunIndexFile.isBinaryIndex(indexFile))
+        {
+            MSRun run = MSRunIndexFile.read(sourceFile, indexFile);
+            if (null != run)
+                run._initMaps();
+            return run;
+        }
+        // older .inspect files are serialized MSRuns
         FileInputStream in = null;
         try
         {
@@ -445,18 +777,8 @@ public class MSRun implements Serializable
         File f = new File(indexname);
         try
         {
-            // CONSIDER: use Deflater
-            if (f.exists())
-                f.delete();
-            f.createNewFile();
-            FileOutputStream out = new FileOutputStream(indexname);
-            ObjectOutputStream oos = new ObjectOutputStream(out);
-            oos.writeObject(this);
-            out.close();
-        }
-        catch (FileNotFoundException x)
-        {
-            ApplicationContext.infoMessage(TextProvider.getText("WARNING_FAILED_TO_WRITE_AUXILIARY_FILE_FILE", f.getAbsolutePath()));
+            MSRunIndexFile.write(this, f);
+            return true;
         }
         catch (IOException x)
         {
@@ -529,8 +851,33 @@ public class MSRun implements Serializable
         return run;
     }
 
+    /**
+     * Open a run for targeted access to a few scans, e.g., for quantitation.  Only the scan headers are read,
+     * by random access if the file has a scan offset index.  Spectra are read as they're asked for, and the
+     * image points, m/z range and template spectrum aren't computed unless something asks for them.
+     *
+     * An existing .inspect index is used if it's valid, but none is written
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    public static MSRun loadScanHeaders(String filename) throws IOException
+    {
+        if (!(new File(filename).exists()))
+            throw new FileNotFoundException();
 
-    private long _checkIO() throws IOException
+        MSRun run = _loadFromIndex(filename, _indexName(filename));
+        if (null == run)
+        {
+            _log.debug("No valid index file found, reading scan headers from mzXML");
+            run = new MSRun(filename, true);
+            ApplicationContext.setMessage("");
+        }
+        return run;
+    }
+
+
+    private synchronized long _checkIO() throws IOException
     {
         if (null != _fileChannel && _fileChannel.isOpen())
         {
@@ -549,7 +896,31 @@ public class MSRun implements Serializable
     }
 
 
-    private void _initIO()
+    /**
+     * Return the open file channel, opening it if necessary
+     */
+    private synchronized FileChannel _getFileChannel()
+    {
+        if (null == _fileChannel)
+            _initIO();
+        return _fileChannel;
+    }
+
+
+    /**
+     * Return the parser used for reading individual scans, creating a random-access parser if necessary.
+     * MSXMLParser.rap() opens its own stream for every call, so a single parser can serve concurrent readers
+     * @param replace if true, discard the current parser and create a new one
+     */
+    private synchronized MSXMLParser _getScanParser(boolean replace) throws IOException
+    {
+        if (replace || null == parser)
+            parser = new MSXMLParser(_file.getAbsolutePath(), false);
+        return parser;
+    }
+
+
+    private synchronized void _initIO()
     {
         String path = _file.getPath();
         try
@@ -564,7 +935,7 @@ public class MSRun implements Serializable
     }
 
 
-    public void close()
+    public synchronized void close()
     {
         if (null != _fileChannel)
             try
@@ -588,6 +959,164 @@ public class MSRun implements Serializable
         _image = null;
     }
 
+
+    /**
+     * Set the byte budget for the spectrum caches of runs loaded from now on.  128MB by default
+     * @param maxBytes 0 disables caching
+     */
+    public static void setDefaultSpectrumCacheBytes(long maxBytes)
+    {
+        defaultSpectrumCacheBytes = maxBytes;
+    }
+
+    public static long getDefaultSpectrumCacheBytes()
+    {
+        return defaultSpectrumCacheBytes;
+    }
+
+
+    /**
+     * The cache of decoded spectra for this run.  Use it to change the budget or look at hit/miss counts
+     */
+    public synchronized SpectrumCache getSpectrumCache()
+    {
+        if (null == _spectrumCache)
+            _spectrumCache = new SpectrumCache(defaultSpectrumCacheBytes);
+        return _spectrumCache;
+    }
+
+
+    /**
+     * Make sure the image points are in memory.  If this run came from a binary index, they're read from the
+     * index file now; if that fails, they're recomputed from the MS1 spectra.
+     *
+     * Spectra are read without holding the run lock, since spectrum reads take it briefly for file access
+     */
+    void _ensureImagePoints()
+    {
+        synchronized (this)
+        {
+            if (null != _scanArray)
+                return;
+            if (null != _imagePointsFile)
+            {
+                try
+                {
+                    float[][] points = MSRunIndexFile.loadImagePoints(_imagePointsFile, _imagePointsOffset, _numImagePoints);
+                    _scanArray = points[0];
+                    _mzArray = points[1];
+                    _intensityArray = points[2];
+                    return;
+                }
+                catch (IOException x)
+                {
+                    _log.debug("Failed to load image points from " + _imagePointsFile.getAbsolutePath() + ", recomputing");
+                }
+            }
+        }
+        FloatArray scanArray = new FloatArray();
+        FloatArray mzArray = new FloatArray();
+        FloatArray intensityArray = new FloatArray();
+        for (int i = 0; i < _scans.length; i++)
+            _computeImagePoints(i, _scans[i].getSpectrum(), scanArray, mzArray, intensityArray);
+        synchronized (this)
+        {
+            if (null != _scanArray)
+                return;
+            _mzArray = mzArray.toArray(null);
+            _intensityArray = intensityArray.toArray(null);
+            _scanArray = scanArray.toArray(null);
+        }
+    }
+
+    /**
+     * The extracted ion chromatogram index over this run's MS1 scans, for chromatogram queries that don't
+     * read any spectra.  It's built the first time it's asked for, which reads every MS1 spectrum, unless
+     * XIC index files are turned on and a valid one exists.
+     *
+     * As in _ensureImagePoints(), the index is built without holding the run lock
+     */
+    public MSRunXicIndex getXicIndex()
+    {
+        MSRunXicIndex index = _xicIndex;
+        if (null != index)
+            return index;
+
+        File indexFile = MSRunXicIndex.getIndexFile(_file);
+        if (useXicIndexFiles)
+        {
+            index = MSRunXicIndex.read(_file, indexFile);
+            if (null != index && index.getScanCount() != _scans.length)
+                index = null;
+        }
+        if (null == index)
+        {
+            index = MSRunXicIndex.build(this);
+            if (useXicIndexFiles)
+            {
+                try
+                {
+                    index.write(_file, indexFile);
+                }
+                catch (IOException x)
+                {
+                    ApplicationContext.infoMessage(TextProvider.getText("WARNING_FAILED_TO_WRITE_AUXILIARY_FILE_FILE", indexFile.getAbsolutePath()));
+                }
+            }
+        }
+        synchronized (this)
+        {
+            if (null == _xicIndex)
+                _xicIndex = index;
+            return _xicIndex;
+        }
+    }
+
+    /**
+     * The tiled, multi-resolution image of this run, for drawing only what's visible.  It's built the first
+     * time it's asked for, from the image points, unless image pyramid files are turned on and a valid one
+     * exists.
+     *
+     * As in _ensureImagePoints(), the pyramid is built without holding the run lock
+     */
+    public MSRunImagePyramid getImagePyramid()
+    {
+        MSRunImagePyramid pyramid = _imagePyramid;
+        if (null != pyramid)
+            return pyramid;
+
+        File pyramidFile = MSRunImagePyramid.getPyramidFile(_file);
+        if (useImagePyramidFiles)
+        {
+            pyramid = MSRunImagePyramid.read(_file, pyramidFile);
+            if (null != pyramid)
+                pyramid.setRun(this);
+        }
+        if (null == pyramid)
+        {
+            ApplicationContext.setMessage("Building image...");
+            pyramid = MSRunImagePyramid.build(this);
+            if (useImagePyramidFiles)
+            {
+                try
+                {
+                    pyramid.write(_file, pyramidFile);
+                }
+                catch (IOException x)
+                {
+                    ApplicationContext.infoMessage(TextProvider.getText("WARNING_FAILED_TO_WRITE_AUXILIARY_FILE_FILE", pyramidFile.getAbsolutePath()));
+                }
+            }
+            ApplicationContext.setMessage("");
+        }
+        synchronized (this)
+        {
+            if (null == _imagePyramid)
+                _imagePyramid = pyramid;
+            return _imagePyramid;
+        }
+    }
+
     public BufferedImage getImage(String colorScheme)
     {
         if (null == _image)
@@ -595,6 +1124,7 @@ public class MSRun implements Serializable
             try
             {
                 ApplicationContext.setMessage("Building image...");
+                _ensureImagePoints();
                 IntensityPlot plot = new IntensityPlot();
                 float median = Spectrum.MedianSampled(_intensityArray, false);
                 float threshold = median / 2;
@@ -604,29 +1134,8 @@ public class MSRun implements Serializable
 
                 _image = plot.plot(threshold, true, colorScheme);
 
-                float maxTIC = 0.0F;
-                for (int s = 0; s < getScanCount(); s++)
-                {
-                    MSScan scan = getScan(s);
-                    maxTIC = Math.max(maxTIC, scan.getTotIonCurrent());
-                }
-
                 // TIC Chart
-                if (true)
-                {
-                    Graphics g = _image.getGraphics();
-                    g.setColor(Color.BLACK);
-                    int height = _image.getHeight();
-                    int yPrev = 0;
-                    for (int s = 0; s < getScanCount(); s++)
-                    {
-                        MSScan scan = getScan(s);
-                        int y = (int)(99 * scan.getTotIonCurrent() / maxTIC);
-                        if (s > 0)
-                            g.drawLine(s - 1, height - yPrev - 1, s, height - y - 1);
-                        yPrev = y;
-                    }
-                }
+                drawTotalIonChromatogram(_image.getGraphics(), _image.getHeight(), 0, getScanCount() - 1);
 
                 ApplicationContext.setMessage("");
             }
@@ -639,6 +1148,49 @@ public class MSRun implements Serializable
     }
 
 
+    /**
+     * Draw the total ion chromatogram along the bottom 100 rows of the run image, between two scan indexes
+     * @param g
+     * @param height the height of the image
+     * @param firstScanIndex
+     * @param lastScanIndex
+     */
+    public void drawTotalIonChromatogram(Graphics g, int height, int firstScanIndex, int lastScanIndex)
+    {
+        float maxTIC = getMaxTotIonCurrent();
+
+        g.setColor(Color.BLACK);
+        firstScanIndex = Math.max(0, firstScanIndex);
+        lastScanIndex = Math.min(getScanCount() - 1, lastScanIndex);
+        int yPrev = 0;
+        for (int s = firstScanIndex; s <= lastScanIndex; s++)
+        {
+            MSScan scan = getScan(s);
+            int y = (int)(99 * scan.getTotIonCurrent() / maxTIC);
+            if (s > firstScanIndex)
+                g.drawLine(s - 1, height - yPrev - 1, s, height - y - 1);
+            yPrev = y;
+        }
+    }
+
+    /**
+     * The highest total ion current of any MS1 scan.  Calculated the first time it's asked for, since the
+     * TIC chart is redrawn on every repaint
+     * @return
+     */
+    public float getMaxTotIonCurrent()
+    {
+        if (!_maxTotIonCurrentCalculated)
+        {
+            float maxTIC = 0.0F;
+            for (int s = 0; s < getScanCount(); s++)
+                maxTIC = Math.max(maxTIC, getScan(s).getTotIonCurrent());
+            _maxTotIonCurrent = maxTIC;
+            _maxTotIonCurrentCalculated = true;
+        }
+        return _maxTotIonCurrent;
+    }
+
     public int getScanCount()
     {
         return _scans.length;
@@ -692,7 +1244,30 @@ public class MSRun implements Serializable
     // this is the actual range, not the range reported by scan.getLowMz() and scan.getHighMz()
     public FloatRange getMzRange()
     {
-        return _mzRange;
+        synchronized (this)
+        {
+            if (null != _mzRange)
+                return _mzRange;
+        }
+        //only runs loaded with loadScanHeaders() get here.  Spectra are read without holding the run lock,
+        //as in _ensureImagePoints()
+        float min = Float.MAX_VALUE;
+        float max = 0.0F;
+        for (MSScan scan : _scans)
+        {
+            float[][] spectrum = scan.getSpectrum();
+            if (spectrum[0].length > 0)
+            {
+                min = Math.min(min, spectrum[0][0]);
+                max = Math.max(max, spectrum[0][spectrum[0].length - 1]);
+            }
+        }
+        synchronized (this)
+        {
+            if (null == _mzRange)
+                _mzRange = new FloatRange(min, max);
+            return _mzRange;
+        }
     }
 
 
@@ -800,7 +1375,7 @@ public class MSRun implements Serializable
             _scan = s.getHeader();
             float[][] spectrum = convertSpectrumToFloatArray(s.getMassIntensityList());
             if (null != spectrum)
-                _spectrumRef = new SoftReference(spectrum);
+                getSpectrumCache().put(_scan.getNum(), spectrum);
         }
 
 
@@ -835,16 +1410,13 @@ public class MSRun implements Serializable
          */
 
         /**
-         * Return spectrum for this scan. Sychronize on run, so that different threads
-         * can request spectra. Optionally cache spectra for future use.
+         * Return spectrum for this scan. Synchronizes only on this scan, so different threads
+         * can read different scans at the same time. Optionally cache spectra for future use.
          */
         public float[][] getSpectrum()
         {
-            synchronized(MSRun.this)
-            {
-                return _getSpectrumInternal();
-            }
-        }                                    
+            return _getSpectrumInternal();
+        }
 
         /**
          * can return NULL if thread is interrupted
@@ -852,14 +1424,12 @@ public class MSRun implements Serializable
         private synchronized float[][] _getSpectrumInternal()
         {
 //System.err.println("_getSpectrumInternal 1");
-            float[][] spectrum = null == _spectrumRef ? null : (float[][])_spectrumRef.get();
+            SpectrumCache cache = getSpectrumCache();
+            float[][] spectrum = cache.get(_scan.getNum());
             if (null != spectrum)
                 return spectrum;
 //  System.err.println("_getSpectrumInternal 1, null, will read");        `
 
-            if (null == _fileChannel)
-                _initIO();
-
             Throwable throwable = null;
 
             for (int ttry = 0 ; null == spectrum && ttry<2 ; ttry++)
@@ -867,10 +1437,10 @@ public class MSRun implements Serializable
                 try
                 {
 //System.err.println("Calling _getSpectrum()");
-                    //First try without JRAP.  However,
-                    //if it's not an mzXML file (i.e., it's an mzML file) we have to use JRAP, because
-                    //the local code here doesn't know how to handle mzML
-                    spectrum = _getSpectrum(!_filename.toUpperCase().contains(".MZXML"));
+                    //First try without JRAP.  The local code here knows how to read mzXML and mzML;
+                    //anything else has to go through JRAP
+                    String upperFilename = _filename.toUpperCase();
+                    spectrum = _getSpectrum(!upperFilename.contains(".MZXML") && !upperFilename.contains(".MZML"));
                     break;
                 }
                 catch (ClosedByInterruptException x)
@@ -932,7 +1502,7 @@ public class MSRun implements Serializable
                 spectrum = copy;
             }
 
-            _spectrumRef = new SoftReference(spectrum);
+            cache.put(_scan.getNum(), spectrum);
             return spectrum;
         }
 
@@ -954,36 +1524,14 @@ public class MSRun implements Serializable
             if (!jrap && offset > 0)
             {
                 // PERF HACK: avoid XML parser at all costs
-                int count = _scan.getPeaksCount();
-                long len = count * 2 * FLOATBYTES;
-                long lenEnc = len / 3 * 4;
-                lenEnc += 2048; // room for header
-                lenEnc = Math.min(lenEnc, _fileChannel.size() - offset);
-
-                ByteBuffer fileBuf = _fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, lenEnc);
-                fileBuf.position(0);
-                byte[] buf = new byte[2048];
-                fileBuf.get(buf);
-
-                int i;
-                findPeakList:
-                for (i = 0; i < buf.length-6; i++)
-                {
-                    if (buf[i] != '<')
-                        continue;
-                    if (buf[i + 1] != 'p' || buf[i + 2] != 'e' || buf[i + 3] != 'a' || buf[i + 4] != 'k' || buf[i + 5] != 's')
-                        continue;
-                    for (i += 6; i < buf.length; i++)
-                        if (buf[i] == '>')
-                            break findPeakList;
-                }
-                if (i < buf.length)
-                {
-                    fileBuf.position(i + 1);
-                    spectrum = _parseSpectrum(fileBuf, count);
-                    if (null != spectrum)
-                        return spectrum;
-                }
+                FileChannel fileChannel = _getFileChannel();
+                if (null == fileChannel)
+                    throw new ClosedChannelException();
+                spectrum = _filename.toUpperCase().contains(".MZML") ?
+                        MzMLPeakReader.readPeaks(fileChannel, offset, _scan.getPeaksCount()) :
+                        _readPeaks(fileChannel, offset);
+                if (null != spectrum)
+                    return spectrum;
             }
             _log.debug("About to try using JRAP, scan " + _scan.getNum() );
 
@@ -993,16 +1541,14 @@ public class MSRun implements Serializable
                 //dhmay adding 20091028.  This null-check was missing, so would get NPE every time we reopened an
                 //already-indexed file and encountered a scan with spectrum length 2048 (forcing us to hit the parser).
                 //Not sure how this bug lasted this long... possibly introduced recently somehow?
-                if (parser == null)
-                    parser = new MSXMLParser(_file.getAbsolutePath(), false);
-                org.systemsbiology.jrap.stax.Scan tmp = parser.rap(_scan.getNum());
+                org.systemsbiology.jrap.stax.Scan tmp = _getScanParser(false).rap(_scan.getNum());
 
                 if (null != tmp)
                 {
                     spectrum = convertSpectrumToFloatArray(tmp.getMassIntensityList());
                 }
                 else
-                    parser = new MSXMLParser(_file.getAbsolutePath(), false);
+                    _getScanParser(true);
             }
 //System.err.println("end");
             return spectrum;
@@ -1035,8 +1581,6 @@ public class MSRun implements Serializable
 
 
         private ScanHeader _scan;
-        transient SoftReference _spectrumRef = null;
-        transient SoftReference _resampleRef = null;
 
         public int getNum()
         {
@@ -1169,6 +1713,11 @@ public class MSRun implements Serializable
         }
 
 
+        ScanHeader getHeader()
+        {
+            return _scan;
+        }
+
         public boolean isPrecursorMzCorrected()
         {
             return precursorMzCorrected;
@@ -1184,62 +1733,98 @@ public class MSRun implements Serializable
             return "MSScan(" + MSRun.this._filename + "," + getNum() + ")";
         }
 
-        private float[][] _parseSpectrum(ByteBuffer buf, int count)
+        /**
+         * Read the peaks for this scan straight from the file, without the XML parser.  Finds the <peaks> element
+         * after the scan offset, however long the header is, reads its precision, byte order and compression
+         * attributes, and decodes the peak data in place.
+         * @param fileChannel
+         * @param offset scan offset
+         * @return null if anything looks wrong, in which case the caller should use the parser
+         */
+        private float[][] _readPeaks(FileChannel fileChannel, long offset) throws IOException
         {
-            int len = count * 2 * FLOATBYTES;
-            int lenEnc = len / 3 * 4;
-            if (0 != len % 3)
-                lenEnc += 4;
+            long fileSize = fileChannel.size();
+            int count = _scan.getPeaksCount();
+
+            // find the <peaks> start tag, widening the window until we do
+            ByteBuffer headerBuf = null;
+            int tagStart = -1;
+            int tagEnd = -1;
+            for (int window = PEAKS_SEARCH_WINDOW; tagEnd < 0; window *= 4)
+            {
+                int len = (int) Math.min(window, fileSize - offset);
+                if (len <= 0)
+                    return null;
+                headerBuf = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, len);
+                tagStart = _indexOf(headerBuf, PEAKS_START_TAG, 0, len);
+                // don't wander into the next scan if this one has no peaks element
+                int nextScan = _indexOfStartTag(headerBuf, SCAN_START_TAG, 1, tagStart < 0 ? len : tagStart);
+                if (nextScan >= 0)
+                    return null;
+                if (tagStart >= 0)
+                    tagEnd = _indexOf(headerBuf, new byte[] {'>'}, tagStart, len);
+                if (tagEnd < 0 && (len < window || window >= MAX_PEAKS_SEARCH_WINDOW))
+                    return null;
+            }
 
-            // validate buffer size and position
-            if (buf.position() + lenEnc + 1 >= buf.limit())
+            byte[] tagBytes = new byte[tagEnd - tagStart];
+            headerBuf.position(tagStart);
+            headerBuf.get(tagBytes);
+            String tag = new String(tagBytes, "ISO-8859-1");
+
+            int precision = _scan.getPrecision();
+            String precisionString = _getAttribute(tag, "precision");
+            if (null != precisionString)
+                precision = Integer.parseInt(precisionString);
+            if (precision <= 0)
+                precision = 32;
+            if (precision != 32 && precision != 64)
                 return null;
-
-            byte trailingByte = buf.get(buf.position() + lenEnc);
-            // we expect '<' here, if not, then revert to safe parse
-            if ('<' != trailingByte)
+            String compressionType = _getAttribute(tag, "compressionType");
+            if (null == compressionType)
+                compressionType = _scan.getCompressionType();
+            boolean zlib = "zlib".equals(compressionType);
+            if (!zlib && null != compressionType && compressionType.length() > 0 && !"none".equals(compressionType))
                 return null;
+            ByteOrder byteOrder = "little".equals(_getAttribute(tag, "byteOrder")) ?
+                    ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+            // how much encoded data can there be?  For zlib, use compressedLen if we have it, or allow for
+            // incompressible data if we don't
+            int uncompressedLength = count * 2 * (precision / 8);
+            int maxDecodedLength = uncompressedLength;
+            if (zlib)
+            {
+                String compressedLenString = _getAttribute(tag, "compressedLen");
+                int compressedLen = null == compressedLenString ? _scan.getCompressedLen() :
+                        Integer.parseInt(compressedLenString);
+                maxDecodedLength = compressedLen > 0 ? compressedLen :
+                        uncompressedLength + uncompressedLength / 1000 + 64;
+            }
+            int maxEncodedLength = (maxDecodedLength + 2) / 3 * 4 + PEAKS_DATA_SLACK;
 
-            // seems to be faster to get byte[] than use buf
-            assert readTimer.start();
-            if (encodedData == null || encodedData.length < lenEnc)
-                encodedData = new byte[Math.max(lenEnc,encodedData==null?128*1024:encodedData.length+4*1024)];
-            buf.get(encodedData, 0, lenEnc);
-            assert readTimer.stop();
+            long dataStart = offset + tagEnd + 1;
+            int mapLength = (int) Math.min(maxEncodedLength + 1, fileSize - dataStart);
+            if (mapLength <= 0)
+                return null;
+            ByteBuffer dataBuf = fileChannel.map(FileChannel.MapMode.READ_ONLY, dataStart, mapLength);
+            int lenEnc = _indexOf(dataBuf, new byte[] {'<'}, 0, mapLength);
+            if (lenEnc < 0)
+                return null;
 
+            // decoded in the reading thread's scratch space, then written straight into the spectrum
             assert decodeTimer.start();
-            byte[] byteData = encodedData; // HACK, we can use same array for output (decoded data is always shorter)
-            int lenDecode = Base64.decode(encodedData, 0, lenEnc, byteData);
+            dataBuf.position(0);
+            ByteBuffer byteData = PeakDecoder.decode(dataBuf, lenEnc, zlib, uncompressedLength);
             assert decodeTimer.stop();
 
-            if (null == byteData) // IO error or bad encoding
+            // bad encoding, or not the amount of data the header promised
+            if (null == byteData || byteData.remaining() != uncompressedLength)
                 return null;
 
-            if (lenDecode % (FLOATBYTES * 2) != 0)
-                return null;
-
-            if (lenDecode / FLOATBYTES / 2 != count)
-                return null;
             assert toFloatTimer.start();
-
             float[][] peakList = new float[2][count];
-            for (int i = 0, p = 0, intBits = 0; p < count; p++)
-            {
-                intBits =
-                        (((int)byteData[i]) << 24) |
-                                ((((int)byteData[i + 1]) & 0xff) << 16) |
-                                ((((int)byteData[i + 2]) & 0xff) << 8) |
-                                (((int)byteData[i + 3]) & 0xff);
-                i += FLOATBYTES;
-                peakList[0][p] = Float.intBitsToFloat(intBits);
-                intBits =
-                        (((int)byteData[i]) << 24) |
-                                ((((int)byteData[i + 1]) & 0xff) << 16) |
-                                ((((int)byteData[i + 2]) & 0xff) << 8) |
-                                (((int)byteData[i + 3]) & 0xff);
-                i += FLOATBYTES;
-                peakList[1][p] = Float.intBitsToFloat(intBits);
-            }
+            PeakDecoder.readPairs(byteData, precision, byteOrder, peakList[0], peakList[1]);
             assert toFloatTimer.stop();
 
             return peakList;
@@ -1247,6 +1832,77 @@ public class MSRun implements Serializable
     }
 
 
+    private static final int PEAKS_SEARCH_WINDOW = 2048;
+    private static final int MAX_PEAKS_SEARCH_WINDOW = 2048 * 1024;
+    // allows for line breaks within the encoded data
+    private static final int PEAKS_DATA_SLACK = 1024;
+    private static final byte[] PEAKS_START_TAG = {'<', 'p', 'e', 'a', 'k', 's'};
+    private static final byte[] SCAN_START_TAG = {'<', 's', 'c', 'a', 'n'};
+
+
+    /**
+     * Position of pattern within buf, searching from start (inclusive) to end (exclusive).  Doesn't change the
+     * buffer's position
+     * @return -1 if not found
+     */
+    static int _indexOf(ByteBuffer buf, byte[] pattern, int start, int end)
+    {
+        searching:
+        for (int i = start; i <= end - pattern.length; i++)
+        {
+            for (int j = 0; j < pattern.length; j++)
+                if (buf.get(i + j) != pattern[j])
+                    continue searching;
+            return i;
+        }
+        return -1;
+    }
+
+
+    /**
+     * Position of an element's start tag within buf, searching from start (inclusive) to end (exclusive).
+     * The element name must be followed by XML whitespace, so that "<scan" doesn't match "<scanOrigin", but
+     * pretty-printed tags that break the line after the name are found
+     * @param tagStart "<" followed by the element name
+     * @return -1 if not found
+     */
+    static int _indexOfStartTag(ByteBuffer buf, byte[] tagStart, int start, int end)
+    {
+        for (int i = _indexOf(buf, tagStart, start, end); i >= 0; i = _indexOf(buf, tagStart, i + 1, end))
+        {
+            int next = i + tagStart.length;
+            if (next >= end)
+                break;
+            byte b = buf.get(next);
+            if (b == ' ' || b == '\t' || b == '\n' || b == '\r')
+                return i;
+        }
+        return -1;
+    }
+
+
+    /**
+     * Value of an attribute within an element's start tag
+     * @return null if the attribute isn't there
+     */
+    static String _getAttribute(String tag, String name)
+    {
+        int i = tag.indexOf(name + "=");
+        while (i > 0 && !Character.isWhitespace(tag.charAt(i - 1)))
+            i = tag.indexOf(name + "=", i + 1);
+        if (i <= 0)
+            return null;
+        i += name.length() + 1;
+        if (i >= tag.length())
+            return null;
+        char quote = tag.charAt(i);
+        int end = tag.indexOf(quote, i + 1);
+        if (end < 0)
+            return null;
+        return tag.substring(i + 1, end);
+    }
+
+
     public File getFile()
     {
         return _file;
@@ -0,0 +1,558 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fhcrc.cpl.toolbox.proteomics;
+
+import org.apache.log4j.Logger;
+import org.fhcrc.cpl.toolbox.datastructure.FloatRange;
+import org.fhcrc.cpl.toolbox.datastructure.FloatArray;
+import org.fhcrc.cpl.toolbox.proteomics.feature.Spectrum;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Multi-resolution, tiled version of the run image from MSRun.getImage(), so that only the visible part of a
+ * run has to be drawn, at the resolution it's being viewed at.
+ *
+ * Image coordinates are the same as MSRun.getImage(): x is the scan index, and the m/z bin floor(m/z) is drawn
+ * at y = height - 1 - floor(m/z).  Level 0 has one pixel per scan and per Dalton, like that image.  Each
+ * level below 0 halves the resolution in both directions.  Each level above 0 halves the m/z width of a pixel,
+ * down to 1/2^MAX_DETAIL_LEVEL Da, with still one pixel per scan.  A tile always covers
+ * TILE_SIZE * 2^-level scans (or TILE_SIZE pixels, if fewer) by TILE_SIZE pixels of m/z.
+ *
+ * A pixel holds the highest intensity in it, mapped to a darkness from 0 (at or below the threshold, drawn
+ * white) to 255 as in IntensityPlot.plotLog(), so that the color scheme can change without rebuilding
+ * anything.  Tiles are column-major, scan by scan, each column running from low m/z to high.
+ *
+ * Levels 0 and below are built from the run's image points and can be saved beside the mzXML file, with the
+ * extension .pyramid.  Levels above 0 need the spectra themselves, and are computed a tile at a time
+ * when asked for.
+ *
+ * Layout (big-endian):
+ *   int magic, int version
+ *   long source lastModified, long source length
+ *   int width, int height, float threshold, float max intensity, int lowest level
+ *   for each level from the lowest to 0: int #tiles across, int #tiles down, int * #tiles: compressed length
+ *      (0 for a tile with nothing to draw), tiles column by column
+ *   compressed tiles, in the same order
+ */
+public class MSRunImagePyramid
+{
+    private static Logger _log = Logger.getLogger(MSRunImagePyramid.class);
+
+    //"MPYR"
+    public static final int MAGIC = 0x4D505952;
+    //bump this whenever the layout changes.  Files with another version are rebuilt
+    public static final int VERSION = 1;
+
+    public static final String FILE_EXTENSION = ".pyramid";
+
+    public static final int TILE_SIZE = 256;
+    //1/16 Da
+    public static final int MAX_DETAIL_LEVEL = 4;
+
+    protected int width;
+    protected int height;
+    protected float threshold;
+    protected float maxIntensity;
+    protected double intensityScale;
+    protected int minLevel;
+
+    //the coarse levels: per level, the tile grid dimensions, and where each compressed tile starts in tileData
+    protected int[] tilesAcross;
+    protected int[] tilesDown;
+    protected long[][] tileOffsets;
+    protected ByteBuffer tileData;
+
+    //for the detail levels
+    protected transient MSRun run;
+
+    protected MSRunImagePyramid()
+    {
+    }
+
+    /**
+     * Build the coarse levels from the run's image points
+     * @param run
+     * @return
+     */
+    public static MSRunImagePyramid build(MSRun run)
+    {
+        run._ensureImagePoints();
+        float[] scans = run._scanArray;
+        float[] mzs = run._mzArray;
+        float[] intensities = run._intensityArray;
+
+        MSRunImagePyramid result = new MSRunImagePyramid();
+        result.run = run;
+
+        //as in MSRun.getImage() and IntensityPlot.plot()
+        FloatRange rangeX = FloatArray.asFloatArray(scans).getRange();
+        FloatRange rangeY = FloatArray.asFloatArray(mzs).getRange();
+        FloatRange rangeZ = FloatArray.asFloatArray(intensities).getRange();
+        result.width = scans.length == 0 ? 1 : (int) rangeX.max + 1;
+        result.height = mzs.length == 0 ? 1 : (int) rangeY.max + 1;
+        float threshold = intensities.length == 0 ? 1 : Spectrum.MedianSampled(intensities, false) / 2;
+        threshold = Math.max(Math.max(1, threshold), rangeZ.min);
+        result.setIntensityRange(threshold, Math.max(threshold + 1, rangeZ.max));
+
+        int levelSize = Math.max(result.width, result.height);
+        result.minLevel = 0;
+        while (levelSize > TILE_SIZE)
+        {
+            result.minLevel--;
+            levelSize = (levelSize + 1) / 2;
+        }
+
+        //a full grid of darkness values for each level
+        int numLevels = -result.minLevel + 1;
+        byte[][] grids = new byte[numLevels][];
+        int[] gridHeights = new int[numLevels];
+        for (int k = 0; k < numLevels; k++)
+        {
+            gridHeights[k] = ((result.height - 1) >> k) + 1;
+            grids[k] = new byte[(((result.width - 1) >> k) + 1) * gridHeights[k]];
+        }
+        for (int i = 0; i < scans.length; i++)
+        {
+            int darkness = result.getDarkness(intensities[i]);
+            if (darkness == 0)
+                continue;
+            int x = (int) scans[i];
+            int y = (int) mzs[i];
+            if (x < 0 || y < 0)
+                continue;
+            for (int k = 0; k < numLevels; k++)
+            {
+                int index = (x >> k) * gridHeights[k] + (y >> k);
+                if ((grids[k][index] & 0xff) < darkness)
+                    grids[k][index] = (byte) darkness;
+            }
+        }
+
+        //then cut into tiles and compressed
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            result.writeTiles(grids, gridHeights, out);
+            out.close();
+        }
+        catch (IOException e)
+        {
+            //can't happen writing to memory
+            throw new RuntimeException(e);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+        result.readTileTable(buf);
+        _log.debug("Built image pyramid for " + run.getFileName() + ": " + result.width + "x" + result.height +
+                ", levels " + result.minLevel + " to " + MAX_DETAIL_LEVEL);
+        return result;
+    }
+
+    protected void setIntensityRange(float threshold, float maxIntensity)
+    {
+        this.threshold = threshold;
+        this.maxIntensity = maxIntensity;
+        intensityScale = 1.0 / Math.log(1 + maxIntensity - threshold);
+    }
+
+    /**
+     * Darkness of a pixel with this intensity, from 0 to 255, as drawn by IntensityPlot.plotLog()
+     */
+    protected int getDarkness(float intensity)
+    {
+        if (intensity <= threshold)
+            return 0;
+        float gray = (float) (Math.log(1 + intensity - threshold) * intensityScale);
+        gray = gray > 1.0 ? 1.0F : gray < 0.0 ? 0.0F : gray;
+        return 255 - (int) (255 - gray * 255);
+    }
+
+    /**
+     * Write the tile table and compressed tiles for the coarse levels, from the lowest level up
+     */
+    protected void writeTiles(byte[][] grids, int[] gridHeights, DataOutputStream out) throws IOException
+    {
+        ByteArrayOutputStream compressedTiles = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] tile = new byte[TILE_SIZE * TILE_SIZE];
+        byte[] buffer = new byte[TILE_SIZE * TILE_SIZE + 64];
+        for (int level = minLevel; level <= 0; level++)
+        {
+            int k = -level;
+            byte[] grid = grids[k];
+            int gridWidth = grid.length / gridHeights[k];
+            int across = (gridWidth + TILE_SIZE - 1) / TILE_SIZE;
+            int down = (gridHeights[k] + TILE_SIZE - 1) / TILE_SIZE;
+            out.writeInt(across);
+            out.writeInt(down);
+            for (int tx = 0; tx < across; tx++)
+            {
+                for (int ty = 0; ty < down; ty++)
+                {
+                    boolean empty = true;
+                    java.util.Arrays.fill(tile, (byte) 0);
+                    for (int px = 0; px < TILE_SIZE && tx * TILE_SIZE + px < gridWidth; px++)
+                    {
+                        int column = (tx * TILE_SIZE + px) * gridHeights[k];
+                        int length = Math.min(TILE_SIZE, gridHeights[k] - ty * TILE_SIZE);
+                        System.arraycopy(grid, column + ty * TILE_SIZE, tile, px * TILE_SIZE, length);
+                        for (int py = 0; py < length && empty; py++)
+                            empty = tile[px * TILE_SIZE + py] == 0;
+                    }
+                    if (empty)
+                    {
+                        out.writeInt(0);
+                        continue;
+                    }
+                    deflater.reset();
+                    deflater.setInput(tile);
+                    deflater.finish();
+                    int compressedLength = 0;
+                    while (!deflater.finished())
+                    {
+                        int n = deflater.deflate(buffer);
+                        compressedTiles.write(buffer, 0, n);
+                        compressedLength += n;
+                    }
+                    out.writeInt(compressedLength);
+                }
+            }
+        }
+        deflater.end();
+        compressedTiles.writeTo(out);
+    }
+
+    /**
+     * Read the tile table, leaving tileData covering the compressed tiles
+     */
+    protected void readTileTable(ByteBuffer buf)
+    {
+        int numLevels = -minLevel + 1;
+        tilesAcross = new int[numLevels];
+        tilesDown = new int[numLevels];
+        tileOffsets = new long[numLevels][];
+        int[][] lengths = new int[numLevels][];
+        for (int k = numLevels - 1; k >= 0; k--)
+        {
+            tilesAcross[k] = buf.getInt();
+            tilesDown[k] = buf.getInt();
+            lengths[k] = MSRunIndexFile.readInts(buf, tilesAcross[k] * tilesDown[k]);
+        }
+        long offset = 0;
+        for (int k = numLevels - 1; k >= 0; k--)
+        {
+            //one extra, for the end of the last tile
+            tileOffsets[k] = new long[lengths[k].length + 1];
+            for (int i = 0; i < lengths[k].length; i++)
+            {
+                tileOffsets[k][i] = offset;
+                offset += lengths[k][i];
+            }
+            tileOffsets[k][lengths[k].length] = offset;
+        }
+        tileData = buf.slice();
+    }
+
+    /**
+     * Darkness values for one tile, column-major, each column running from low m/z to high
+     * @param level
+     * @param tileX
+     * @param tileY
+     * @return getTilePixelWidth(level) * TILE_SIZE values, or null if there's nothing to draw in the tile
+     */
+    public byte[] getTile(int level, int tileX, int tileY)
+    {
+        if (level < minLevel || level > MAX_DETAIL_LEVEL || tileX < 0 || tileY < 0 ||
+                tileX >= getTilesAcross(level) || tileY >= getTilesDown(level))
+            return null;
+        if (level > 0)
+            return computeDetailTile(level, tileX, tileY);
+
+        int k = -level;
+        int i = tileX * tilesDown[k] + tileY;
+        int start = (int) tileOffsets[k][i];
+        int length = (int) (tileOffsets[k][i + 1] - start);
+        if (length == 0)
+            return null;
+        byte[] compressed = new byte[length];
+        ByteBuffer data = tileData.duplicate();
+        data.position(start);
+        data.get(compressed);
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(compressed);
+            byte[] tile = new byte[TILE_SIZE * TILE_SIZE];
+            inflater.inflate(tile);
+            return tile;
+        }
+        catch (DataFormatException e)
+        {
+            _log.debug("Corrupt image pyramid tile " + level + "/" + tileX + "/" + tileY);
+            return null;
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Detail tiles are built from the spectra of the scans they cover
+     */
+    protected byte[] computeDetailTile(int level, int tileX, int tileY)
+    {
+        if (run == null)
+            return null;
+        int pixelWidth = getTilePixelWidth(level);
+        double mzPerPixel = getMzPerPixel(level);
+        double lowMz = tileY * TILE_SIZE * mzPerPixel;
+        double highMz = (tileY + 1) * TILE_SIZE * mzPerPixel;
+        int firstScan = tileX * pixelWidth;
+        byte[] tile = new byte[pixelWidth * TILE_SIZE];
+        boolean empty = true;
+        for (int px = 0; px < pixelWidth && firstScan + px < run.getScanCount(); px++)
+        {
+            float[][] spectrum = run.getScan(firstScan + px).getSpectrum();
+            float[] mzs = spectrum[0];
+            int low = 0;
+            int high = mzs.length;
+            while (low < high)
+            {
+                int mid = (low + high) >>> 1;
+                if (mzs[mid] < lowMz)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            for (int j = low; j < mzs.length && mzs[j] < highMz; j++)
+            {
+                int darkness = getDarkness(spectrum[1][j]);
+                if (darkness == 0)
+                    continue;
+                int py = (int) (mzs[j] / mzPerPixel) - tileY * TILE_SIZE;
+                if (py < 0 || py >= TILE_SIZE)
+                    continue;
+                int index = px * TILE_SIZE + py;
+                if ((tile[index] & 0xff) < darkness)
+                    tile[index] = (byte) darkness;
+                empty = false;
+            }
+        }
+        return empty ? null : tile;
+    }
+
+    /**
+     * The level whose m/z resolution best matches a zoom factor, in screen pixels per Dalton
+     * @param zoomFactor
+     * @return
+     */
+    public int getLevelForZoom(double zoomFactor)
+    {
+        int level = (int) Math.ceil(Math.log(zoomFactor) / Math.log(2) - 0.01);
+        return Math.max(minLevel, Math.min(MAX_DETAIL_LEVEL, level));
+    }
+
+    /**
+     * @return the number of scans a pixel covers at this level
+     */
+    public static int getScansPerPixel(int level)
+    {
+        return level < 0 ? 1 << -level : 1;
+    }
+
+    /**
+     * @return the m/z width of a pixel at this level
+     */
+    public static double getMzPerPixel(int level)
+    {
+        return Math.pow(2, -level);
+    }
+
+    /**
+     * @return the width of a tile image at this level
+     */
+    public static int getTilePixelWidth(int level)
+    {
+        return level > 0 ? TILE_SIZE >> level : TILE_SIZE;
+    }
+
+    /**
+     * @return the number of scans, and the number of Daltons, a tile covers at this level
+     */
+    public static int getTileSpan(int level)
+    {
+        return level > 0 ? TILE_SIZE >> level : TILE_SIZE << -level;
+    }
+
+    public int getTilesAcross(int level)
+    {
+        if (level <= 0)
+            return tilesAcross[-level];
+        return (width + getTileSpan(level) - 1) / getTileSpan(level);
+    }
+
+    public int getTilesDown(int level)
+    {
+        if (level <= 0)
+            return tilesDown[-level];
+        return (height + getTileSpan(level) - 1) / getTileSpan(level);
+    }
+
+    public int getMinLevel()
+    {
+        return minLevel;
+    }
+
+    /**
+     * @return the width of the level 0 image, as from MSRun.getImage()
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * @return the height of the level 0 image, as from MSRun.getImage()
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public MSRun getRun()
+    {
+        return run;
+    }
+
+    protected void setRun(MSRun run)
+    {
+        this.run = run;
+    }
+
+    /**
+     * @param mzXmlFile
+     * @return where the pyramid for this mzXML file is saved
+     */
+    public static File getPyramidFile(File mzXmlFile)
+    {
+        return new File(mzXmlFile.getPath() + FILE_EXTENSION);
+    }
+
+    /**
+     * Save the coarse levels
+     * @param sourceFile the mzXML file the pyramid was built from
+     * @param pyramidFile
+     * @throws IOException
+     */
+    public void write(File sourceFile, File pyramidFile) throws IOException
+    {
+        if (pyramidFile.exists())
+            pyramidFile.delete();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pyramidFile), 1 << 16));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceFile.lastModified());
+            out.writeLong(sourceFile.length());
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeFloat(threshold);
+            out.writeFloat(maxIntensity);
+            out.writeInt(minLevel);
+            for (int k = -minLevel; k >= 0; k--)
+            {
+                out.writeInt(tilesAcross[k]);
+                out.writeInt(tilesDown[k]);
+                for (int i = 0; i < tilesAcross[k] * tilesDown[k]; i++)
+                    out.writeInt((int) (tileOffsets[k][i + 1] - tileOffsets[k][i]));
+            }
+            ByteBuffer data = tileData.duplicate();
+            data.position(0);
+            byte[] buffer = new byte[1 << 16];
+            while (data.hasRemaining())
+            {
+                int n = Math.min(buffer.length, data.remaining());
+                data.get(buffer, 0, n);
+                out.write(buffer, 0, n);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Load saved coarse levels.  The file is mapped, and tiles are decompressed as they're asked for.  Returns
+     * null if the file is missing, or isn't a valid pyramid for this source file, in which case the caller
+     * should rebuild it
+     * @param sourceFile
+     * @param pyramidFile
+     * @return
+     */
+    public static MSRunImagePyramid read(File sourceFile, File pyramidFile)
+    {
+        if (!pyramidFile.exists())
+            return null;
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(pyramidFile, "r");
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buf.getInt() != MAGIC)
+                return null;
+            int version = buf.getInt();
+            if (version != VERSION)
+            {
+                _log.debug("Unknown image pyramid file version " + version);
+                return null;
+            }
+            if (buf.getLong() != sourceFile.lastModified() || buf.getLong() != sourceFile.length())
+            {
+                _log.debug("Image pyramid file " + pyramidFile.getName() + " is out of date");
+                return null;
+            }
+            MSRunImagePyramid result = new MSRunImagePyramid();
+            result.width = buf.getInt();
+            result.height = buf.getInt();
+            float threshold = buf.getFloat();
+            result.setIntensityRange(threshold, buf.getFloat());
+            result.minLevel = buf.getInt();
+            result.readTileTable(buf);
+            return result;
+        }
+        catch (Exception e)
+        {
+            //anything wrong with the file means we rebuild it
+            _log.debug("Failed to read image pyramid file: " + e.getMessage());
+            return null;
+        }
+        finally
+        {
+            MSRunIndexFile.closeQuietly(raf);
+        }
+    }
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fhcrc.cpl.toolbox.proteomics;
+
+import org.apache.log4j.Logger;
+import org.fhcrc.cpl.toolbox.datastructure.FloatRange;
+import org.systemsbiology.jrap.stax.ScanHeader;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Binary, columnar .inspect index for an MSRun.
+ *
+ * The old .inspect file was a Java-serialized MSRun.  That is slow to write and read for large runs, and
+ * is thrown away whenever a serialVersionUID changes.  This format stores every scan header field as a
+ * primitive column (strings are dictionary-encoded), followed by the image points as three flat float blocks.
+ *
+ * Reading maps the file and bulk-copies the header columns into ScanHeaders.  The image blocks, which are
+ * by far the largest part of the file, are not read until the run's image is actually needed.
+ *
+ * Layout (big-endian):
+ *   int magic, int version
+ *   long source lastModified, long source length
+ *   float mzMin, float mzMax
+ *   int #scans (all levels), int #ms1, int #ms2, int #ms3, int #image points, int #strings
+ *   string table: (int byteLength, UTF-8 bytes) * #strings
+ *   int columns * #scans:   INT_COLUMNS, then STRING_COLUMNS (string table codes, -1 for null), then flags
+ *   float columns * #scans: FLOAT_COLUMNS
+ *   double column * #scans: rt
+ *   long column * #scans:   scan offset
+ *   int * #ms1, #ms2, #ms3: row of each MS1/MS2/MS3 scan in the columns above
+ *   float * #image points, three times: scan, m/z, intensity
+ */
+public class MSRunIndexFile
+{
+    private static Logger _log = Logger.getLogger(MSRunIndexFile.class);
+
+    //"MSIX".  Java serialization streams start with 0xACED, so the two formats can't be confused
+    public static final int MAGIC = 0x4D534958;
+    //bump this whenever the layout changes.  Files with another version are rebuilt
+    public static final int VERSION = 1;
+
+    //column counts, in the order they're stored
+    protected static final int NUM_INT_COLUMNS = 15;
+    protected static final int NUM_STRING_COLUMNS = 9;
+    protected static final int NUM_FLOAT_COLUMNS = 11;
+
+    //bit flags stored per scan
+    protected static final int FLAG_PRECURSOR_MZ_CORRECTED = 1;
+
+    /**
+     * Does this file start with the binary index magic number?  If not, it may be an old-style serialized index
+     * @param indexFile
+     * @return
+     */
+    public static boolean isBinaryIndex(File indexFile)
+    {
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new FileInputStream(indexFile));
+            return in.readInt() == MAGIC;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+        finally
+        {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write the index for a run
+     * @param run
+     * @param indexFile
+     * @throws IOException
+     */
+    public static void write(MSRun run, File indexFile) throws IOException
+    {
+        run._ensureImagePoints();
+
+        //all scans, in _allScans order, and the row for each one
+        List<MSRun.MSScan> allScans = new ArrayList<MSRun.MSScan>(run._allScans.values());
+        List<Integer> keys = new ArrayList<Integer>(run._allScans.keySet());
+        Map<MSRun.MSScan, Integer> rowMap = new IdentityHashMap<MSRun.MSScan, Integer>();
+        for (int i = 0; i < allScans.size(); i++)
+            rowMap.put(allScans.get(i), i);
+
+        //dictionary-encode strings
+        Map<String, Integer> stringCodes = new HashMap<String, Integer>();
+        List<String> strings = new ArrayList<String>();
+        int numScans = allScans.size();
+        int[][] stringColumns = new int[NUM_STRING_COLUMNS][numScans];
+        for (int i = 0; i < numScans; i++)
+        {
+            String[] values = getStringColumnValues(allScans.get(i).getHeader());
+            for (int c = 0; c < NUM_STRING_COLUMNS; c++)
+            {
+                String value = values[c];
+                int code = -1;
+                if (value != null)
+                {
+                    Integer existingCode = stringCodes.get(value);
+                    if (existingCode == null)
+                    {
+                        existingCode = strings.size();
+                        strings.add(value);
+                        stringCodes.put(value, existingCode);
+                    }
+                    code = existingCode;
+                }
+                stringColumns[c][i] = code;
+            }
+        }
+
+        if (indexFile.exists())
+            indexFile.delete();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(run._lastModified);
+            out.writeLong(run._filelength);
+            out.writeFloat(run.getMzRange().min);
+            out.writeFloat(run.getMzRange().max);
+            out.writeInt(numScans);
+            out.writeInt(run._scans.length);
+            out.writeInt(run._scans2.length);
+            out.writeInt(run._scans3.length);
+            out.writeInt(run._scanArray.length);
+            out.writeInt(strings.size());
+
+            for (String s : strings)
+            {
+                byte[] bytes = s.getBytes("UTF-8");
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            for (int c = 0; c < NUM_INT_COLUMNS; c++)
+                for (int i = 0; i < numScans; i++)
+                    out.writeInt(getIntColumnValue(c, keys.get(i), allScans.get(i).getHeader()));
+            for (int c = 0; c < NUM_STRING_COLUMNS; c++)
+                for (int i = 0; i < numScans; i++)
+                    out.writeInt(stringColumns[c][i]);
+            for (MSRun.MSScan scan : allScans)
+                out.writeInt(scan.isPrecursorMzCorrected() ? FLAG_PRECURSOR_MZ_CORRECTED : 0);
+
+            for (int c = 0; c < NUM_FLOAT_COLUMNS; c++)
+                for (int i = 0; i < numScans; i++)
+                    out.writeFloat(getFloatColumnValue(c, allScans.get(i).getHeader()));
+            for (MSRun.MSScan scan : allScans)
+                out.writeDouble(scan.getHeader().getRT());
+            for (MSRun.MSScan scan : allScans)
+                out.writeLong(scan.getHeader().getScanOffset());
+
+            writeRows(out, run._scans, rowMap);
+            writeRows(out, run._scans2, rowMap);
+            writeRows(out, run._scans3, rowMap);
+
+            writeFloats(out, run._scanArray);
+            writeFloats(out, run._mzArray);
+            writeFloats(out, run._intensityArray);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Load a run from a binary index.  Returns null if the index is not a valid binary index for this
+     * source file, in which case the caller should rebuild it
+     * @param sourceFile
+     * @param indexFile
+     * @return
+     */
+    public static MSRun read(File sourceFile, File indexFile)
+    {
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(indexFile, "r");
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buf.getInt() != MAGIC)
+                return null;
+            int version = buf.getInt();
+            if (version != VERSION)
+            {
+                _log.debug("Unknown .inspect file version " + version);
+                return null;
+            }
+            long lastModified = buf.getLong();
+            long fileLength = buf.getLong();
+            if (sourceFile.lastModified() != lastModified)
+            {
+                _log.debug("Incorrect modified date for mzXML file in .inspect file");
+                return null;
+            }
+            if (sourceFile.length() != fileLength)
+            {
+                _log.debug("Bad source file length in .inspect file");
+                return null;
+            }
+            float mzMin = buf.getFloat();
+            float mzMax = buf.getFloat();
+            int numScans = buf.getInt();
+            int numScans1 = buf.getInt();
+            int numScans2 = buf.getInt();
+            int numScans3 = buf.getInt();
+            int numImagePoints = buf.getInt();
+            int numStrings = buf.getInt();
+
+            String[] strings = new String[numStrings];
+            for (int i = 0; i < numStrings; i++)
+            {
+                byte[] bytes = new byte[buf.getInt()];
+                buf.get(bytes);
+                strings[i] = new String(bytes, "UTF-8");
+            }
+
+            int[][] intColumns = new int[NUM_INT_COLUMNS][];
+            for (int c = 0; c < NUM_INT_COLUMNS; c++)
+                intColumns[c] = readInts(buf, numScans);
+            int[][] stringColumns = new int[NUM_STRING_COLUMNS][];
+            for (int c = 0; c < NUM_STRING_COLUMNS; c++)
+                stringColumns[c] = readInts(buf, numScans);
+            int[] flags = readInts(buf, numScans);
+            float[][] floatColumns = new float[NUM_FLOAT_COLUMNS][];
+            for (int c = 0; c < NUM_FLOAT_COLUMNS; c++)
+                floatColumns[c] = readFloats(buf, numScans);
+            double[] rts = new double[numScans];
+            buf.asDoubleBuffer().get(rts);
+            buf.position(buf.position() + numScans * 8);
+            long[] scanOffsets = new long[numScans];
+            buf.asLongBuffer().get(scanOffsets);
+            buf.position(buf.position() + numScans * 8);
+
+            MSRun run = new MSRun();
+            run.setFile(sourceFile);
+            run._filename = sourceFile.getName();
+            run._lastModified = lastModified;
+            run._filelength = fileLength;
+            run._mzRange = new FloatRange(mzMin, mzMax);
+
+            MSRun.MSScan[] allScans = new MSRun.MSScan[numScans];
+            run._allScans = new TreeMap<Integer, MSRun.MSScan>();
+            for (int i = 0; i < numScans; i++)
+            {
+                ScanHeader header = new ScanHeader();
+                for (int c = 1; c < NUM_INT_COLUMNS; c++)
+                    setIntColumnValue(c, header, intColumns[c][i]);
+                for (int c = 0; c < NUM_STRING_COLUMNS; c++)
+                {
+                    int code = stringColumns[c][i];
+                    setStringColumnValue(c, header, code < 0 ? null : strings[code]);
+                }
+                for (int c = 0; c < NUM_FLOAT_COLUMNS; c++)
+                    setFloatColumnValue(c, header, floatColumns[c][i]);
+                header.setRT(rts[i]);
+                header.setScanOffset(scanOffsets[i]);
+
+                allScans[i] = run.new MSScan(header);
+                allScans[i].setPrecursorMzCorrected((flags[i] & FLAG_PRECURSOR_MZ_CORRECTED) != 0);
+                run._allScans.put(intColumns[0][i], allScans[i]);
+            }
+
+            run._scans = readScans(buf, numScans1, allScans);
+            run._scans2 = readScans(buf, numScans2, allScans);
+            run._scans3 = readScans(buf, numScans3, allScans);
+
+            //image points are loaded on demand, see loadImagePoints()
+            run._imagePointsOffset = buf.position();
+            run._numImagePoints = numImagePoints;
+            run._imagePointsFile = indexFile;
+
+            _log.debug("Binary index file loaded successfully");
+            return run;
+        }
+        catch (Exception e)
+        {
+            //anything wrong with the file means we rebuild it
+            _log.debug("Failed to read binary .inspect file: " + e.getMessage());
+            return null;
+        }
+        finally
+        {
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Read the scan, m/z and intensity image blocks from an index file
+     * @param indexFile
+     * @param offset start of the scan block
+     * @param numImagePoints
+     * @return {scans, mzs, intensities}
+     * @throws IOException
+     */
+    public static float[][] loadImagePoints(File indexFile, long offset, int numImagePoints)
+            throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+        try
+        {
+            long length = 3L * numImagePoints * 4;
+            ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+            float[][] result = new float[3][];
+            for (int i = 0; i < 3; i++)
+                result[i] = readFloats(buf, numImagePoints);
+            return result;
+        }
+        finally
+        {
+            closeQuietly(raf);
+        }
+    }
+
+    protected static int getIntColumnValue(int column, int key, ScanHeader h)
+    {
+        switch (column)
+        {
+            case 0: return key;
+            case 1: return h.getNum();
+            case 2: return h.getMsLevel();
+            case 3: return h.getPeaksCount();
+            case 4: return h.getCentroided();
+            case 5: return h.getDeisotoped();
+            case 6: return h.getChargeDeconvoluted();
+            case 7: return h.getPrecursorScanNum();
+            case 8: return h.getPrecursorCharge();
+            case 9: return h.getPrecision();
+            case 10: return h.getCompressedLen();
+            case 11: return h.getMassPrecision();
+            case 12: return h.getMassCompressedLen();
+            case 13: return h.getIntenPrecision();
+            case 14: return h.getIntenCompressedLen();
+            default: throw new IllegalArgumentException("Bad int column " + column);
+        }
+    }
+
+    /**
+     * Column 0 is the _allScans key, which isn't part of the header
+     */
+    protected static void setIntColumnValue(int column, ScanHeader h, int value)
+    {
+        switch (column)
+        {
+            case 1: h.setNum(value); break;
+            case 2: h.setMsLevel(value); break;
+            case 3: h.setPeaksCount(value); break;
+            case 4: h.setCentroided(value); break;
+            case 5: h.setDeisotoped(value); break;
+            case 6: h.setChargeDeconvoluted(value); break;
+            case 7: h.setPrecursorScanNum(value); break;
+            case 8: h.setPrecursorCharge(value); break;
+            case 9: h.setPrecision(value); break;
+            case 10: h.setCompressedLen(value); break;
+            case 11: h.setMassPrecision(value); break;
+            case 12: h.setMassCompressedLen(value); break;
+            case 13: h.setIntenPrecision(value); break;
+            case 14: h.setIntenCompressedLen(value); break;
+            default: throw new IllegalArgumentException("Bad int column " + column);
+        }
+    }
+
+    protected static String[] getStringColumnValues(ScanHeader h)
+    {
+        return new String[] { h.getPolarity(), h.getScanType(), h.getRetentionTime(), h.getFilterLine(),
+                h.getByteOrder(), h.getContentType(), h.getCompressionType(), h.getMassCompressionType(),
+                h.getIntenCompressionType() };
+    }
+
+    protected static void setStringColumnValue(int column, ScanHeader h, String value)
+    {
+        switch (column)
+        {
+            case 0: h.setPolarity(value); break;
+            case 1: h.setScanType(value); break;
+            case 2: h.setRetentionTime(value); break;
+            case 3: h.setFilterLine(value); break;
+            case 4: h.setByteOrder(value); break;
+            case 5: h.setContentType(value); break;
+            case 6: h.setCompressionType(value); break;
+            case 7: h.setMassCompressionType(value); break;
+            case 8: h.setIntenCompressionType(value); break;
+            default: throw new IllegalArgumentException("Bad string column " + column);
+        }
+    }
+
+    protected static float getFloatColumnValue(int column, ScanHeader h)
+    {
+        switch (column)
+        {
+            case 0: return h.getStartMz();
+            case 1: return h.getEndMz();
+            case 2: return h.getLowMz();
+            case 3: return h.getHighMz();
+            case 4: return h.getBasePeakMz();
+            case 5: return h.getBasePeakIntensity();
+            case 6: return h.getTotIonCurrent();
+            case 7: return h.getPrecursorMz();
+            case 8: return h.getPrecursorIntensity();
+            case 9: return h.getCollisionEnergy();
+            case 10: return h.getIonisationEnergy();
+            default: throw new IllegalArgumentException("Bad float column " + column);
+        }
+    }
+
+    protected static void setFloatColumnValue(int column, ScanHeader h, float value)
+    {
+        switch (column)
+        {
+            case 0: h.setStartMz(value); break;
+            case 1: h.setEndMz(value); break;
+            case 2: h.setLowMz(value); break;
+            case 3: h.setHighMz(value); break;
+            case 4: h.setBasePeakMz(value); break;
+            case 5: h.setBasePeakIntensity(value); break;
+            case 6: h.setTotIonCurrent(value); break;
+            case 7: h.setPrecursorMz(value); break;
+            case 8: h.setPrecursorIntensity(value); break;
+            case 9: h.setCollisionEnergy(value); break;
+            case 10: h.setIonisationEnergy(value); break;
+            default: throw new IllegalArgumentException("Bad float column " + column);
+        }
+    }
+
+    protected static void writeRows(DataOutputStream out, MSRun.MSScan[] scans,
+                                    Map<MSRun.MSScan, Integer> rowMap)
+            throws IOException
+    {
+        for (MSRun.MSScan scan : scans)
+        {
+            Integer row = rowMap.get(scan);
+            if (row == null)
+                throw new IOException("Scan " + scan.getNum() + " is missing from the full scan list");
+            out.writeInt(row);
+        }
+    }
+
+    protected static void writeFloats(DataOutputStream out, float[] values) throws IOException
+    {
+        for (float value : values)
+            out.writeFloat(value);
+    }
+
+    protected static MSRun.MSScan[] readScans(ByteBuffer buf, int count, MSRun.MSScan[] allScans)
+    {
+        int[] rows = readInts(buf, count);
+        MSRun.MSScan[] result = new MSRun.MSScan[count];
+        for (int i = 0; i < count; i++)
+            result[i] = allScans[rows[i]];
+        return result;
+    }
+
+    protected static int[] readInts(ByteBuffer buf, int count)
+    {
+        int[] result = new int[count];
+        buf.asIntBuffer().get(result);
+        buf.position(buf.position() + count * 4);
+        return result;
+    }
+
+    protected static float[] readFloats(ByteBuffer buf, int count)
+    {
+        float[] result = new float[count];
+        buf.asFloatBuffer().get(result);
+        buf.position(buf.position() + count * 4);
+        return result;
+    }
+
+    protected static void closeQuietly(Closeable c)
+    {
+        if (c != null)
+            try
+            {
+                c.close();
+            }
+            catch (IOException e)
+            {
+            }
+    }
+}
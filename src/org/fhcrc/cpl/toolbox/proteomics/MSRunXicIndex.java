@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fhcrc.cpl.toolbox.proteomics;
+
+import org.apache.log4j.Logger;
+import org.fhcrc.cpl.toolbox.datastructure.FloatArray;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Extracted ion chromatogram index over the MS1 scans of an MSRun.
+ *
+ * Every peak of every MS1 spectrum is stored once, in fixed-width m/z bins.  Within a bin, peaks are in scan
+ * order, so a chromatogram for an m/z window and a range of scans only has to look at the bins the window
+ * covers, starting from a binary search for the first scan.  No spectra are read at query time.
+ *
+ * Peaks are kept in three parallel primitive arrays (scan index, m/z, intensity), with the start of each bin
+ * in a fourth.  That's 12 bytes per peak, about the size of the decoded spectra themselves.
+ *
+ * Scan indexes are positions in MSRun.getScans(), as used by MSRun.getIndexForScanNum().
+ *
+ * The index can be saved beside the mzXML file, with the extension .xic.  Layout (big-endian):
+ *   int magic, int version
+ *   long source lastModified, long source length
+ *   int #scans, float bin width, float minimum m/z, int #bins, int #peaks
+ *   int * (#bins + 1): start of each bin, and the end of the last
+ *   int * #peaks: scan index
+ *   float * #peaks: m/z
+ *   float * #peaks: intensity
+ */
+public class MSRunXicIndex
+{
+    private static Logger _log = Logger.getLogger(MSRunXicIndex.class);
+
+    //"MXIC"
+    public static final int MAGIC = 0x4D584943;
+    //bump this whenever the layout changes.  Files with another version are rebuilt
+    public static final int VERSION = 1;
+
+    public static final String FILE_EXTENSION = ".xic";
+
+    public static final float DEFAULT_BIN_WIDTH = 0.1f;
+
+    protected int numScans;
+    protected float binWidth;
+    protected float minMz;
+    protected int[] binStarts;
+    protected int[] scanIndexes;
+    protected float[] mzs;
+    protected float[] intensities;
+
+    protected MSRunXicIndex()
+    {
+    }
+
+    /**
+     * Build an index with the default bin width.  Reads every MS1 spectrum in the run
+     * @param run
+     * @return
+     */
+    public static MSRunXicIndex build(MSRun run)
+    {
+        return build(run, DEFAULT_BIN_WIDTH);
+    }
+
+    /**
+     * Build an index.  Reads every MS1 spectrum in the run
+     * @param run
+     * @param binWidth m/z width of each bin.  Queries are exact whatever the width; narrower bins mean fewer
+     * peaks outside the m/z window are looked at, at a cost of 4 bytes per bin
+     * @return
+     */
+    public static MSRunXicIndex build(MSRun run, float binWidth)
+    {
+        if (!(binWidth > 0))
+            throw new IllegalArgumentException("Bin width must be positive");
+
+        //first, all the peaks in scan order, as they come out of the spectra
+        MSRun.MSScan[] scans = run.getScans();
+        int[] scanStarts = new int[scans.length + 1];
+        FloatArray mzArray = new FloatArray();
+        FloatArray intensityArray = new FloatArray();
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (int i = 0; i < scans.length; i++)
+        {
+            float[][] spectrum = scans[i].getSpectrum();
+            for (int j = 0; j < spectrum[0].length; j++)
+            {
+                mzArray.add(spectrum[0][j]);
+                intensityArray.add(spectrum[1][j]);
+                min = Math.min(min, spectrum[0][j]);
+                max = Math.max(max, spectrum[0][j]);
+            }
+            scanStarts[i + 1] = mzArray.size();
+        }
+        float[] scanMajorMzs = mzArray.toArray(null);
+        float[] scanMajorIntensities = intensityArray.toArray(null);
+        int numPeaks = scanMajorMzs.length;
+
+        MSRunXicIndex result = new MSRunXicIndex();
+        result.numScans = scans.length;
+        result.binWidth = binWidth;
+        result.minMz = numPeaks == 0 ? 0 : min;
+        int numBins = numPeaks == 0 ? 0 : (int) ((max - min) / binWidth) + 1;
+
+        //then a counting sort into bins.  Going through the scans in order keeps each bin in scan order
+        result.binStarts = new int[numBins + 1];
+        for (float mz : scanMajorMzs)
+            result.binStarts[result.binForMz(mz, numBins) + 1]++;
+        for (int b = 0; b < numBins; b++)
+            result.binStarts[b + 1] += result.binStarts[b];
+        int[] binCursors = new int[numBins];
+        System.arraycopy(result.binStarts, 0, binCursors, 0, numBins);
+        result.scanIndexes = new int[numPeaks];
+        result.mzs = new float[numPeaks];
+        result.intensities = new float[numPeaks];
+        for (int i = 0; i < scans.length; i++)
+        {
+            for (int p = scanStarts[i]; p < scanStarts[i + 1]; p++)
+            {
+                int position = binCursors[result.binForMz(scanMajorMzs[p], numBins)]++;
+                result.scanIndexes[position] = i;
+                result.mzs[position] = scanMajorMzs[p];
+                result.intensities[position] = scanMajorIntensities[p];
+            }
+        }
+        _log.debug("Built XIC index for " + run.getFileName() + ": " + scans.length + " scans, " +
+                numPeaks + " peaks, " + numBins + " bins");
+        return result;
+    }
+
+    /**
+     * @param mz
+     * @param numBins
+     * @return the bin this m/z falls in, clamped to the bins that exist
+     */
+    protected int binForMz(float mz, int numBins)
+    {
+        int bin = (int) ((mz - minMz) / binWidth);
+        return Math.max(0, Math.min(numBins - 1, bin));
+    }
+
+    /**
+     * The highest intensity within an m/z window in each scan of a range
+     * @param mzLow
+     * @param mzHigh
+     * @param firstScanIndex
+     * @param lastScanIndex
+     * @return one value per scan from firstScanIndex to lastScanIndex, clamped to the scans in the run.  0 for
+     * scans with no peaks in the window
+     */
+    public float[] getMaxIntensities(float mzLow, float mzHigh, int firstScanIndex, int lastScanIndex)
+    {
+        return extract(mzLow, mzHigh, firstScanIndex, lastScanIndex, false);
+    }
+
+    /**
+     * The total intensity within an m/z window in each scan of a range
+     * @param mzLow
+     * @param mzHigh
+     * @param firstScanIndex
+     * @param lastScanIndex
+     * @return one value per scan from firstScanIndex to lastScanIndex, clamped to the scans in the run
+     */
+    public float[] getSummedIntensities(float mzLow, float mzHigh, int firstScanIndex, int lastScanIndex)
+    {
+        return extract(mzLow, mzHigh, firstScanIndex, lastScanIndex, true);
+    }
+
+    protected float[] extract(float mzLow, float mzHigh, int firstScanIndex, int lastScanIndex, boolean sum)
+    {
+        firstScanIndex = Math.max(0, firstScanIndex);
+        lastScanIndex = Math.min(numScans - 1, lastScanIndex);
+        float[] result = new float[Math.max(0, lastScanIndex - firstScanIndex + 1)];
+        int numBins = binStarts.length - 1;
+        if (result.length == 0 || numBins == 0 || mzHigh < mzLow)
+            return result;
+
+        int lastBin = binForMz(mzHigh, numBins);
+        for (int b = binForMz(mzLow, numBins); b <= lastBin; b++)
+        {
+            int end = binStarts[b + 1];
+            for (int p = firstPeakAtOrAfterScan(binStarts[b], end, firstScanIndex);
+                 p < end && scanIndexes[p] <= lastScanIndex; p++)
+            {
+                float mz = mzs[p];
+                if (mz < mzLow || mz > mzHigh)
+                    continue;
+                int i = scanIndexes[p] - firstScanIndex;
+                if (sum)
+                    result[i] += intensities[p];
+                else if (intensities[p] > result[i])
+                    result[i] = intensities[p];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Binary search within one bin
+     * @return the position of the first peak in [start, end) with a scan index of at least scanIndex, or end
+     */
+    protected int firstPeakAtOrAfterScan(int start, int end, int scanIndex)
+    {
+        int low = start;
+        int high = end;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (scanIndexes[mid] < scanIndex)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    public int getScanCount()
+    {
+        return numScans;
+    }
+
+    public int getPeakCount()
+    {
+        return mzs.length;
+    }
+
+    public float getBinWidth()
+    {
+        return binWidth;
+    }
+
+    /**
+     * @param mzXmlFile
+     * @return where the index for this mzXML file is saved
+     */
+    public static File getIndexFile(File mzXmlFile)
+    {
+        return new File(mzXmlFile.getPath() + FILE_EXTENSION);
+    }
+
+    /**
+     * Save the index
+     * @param sourceFile the mzXML file the index was built from
+     * @param indexFile
+     * @throws IOException
+     */
+    public void write(File sourceFile, File indexFile) throws IOException
+    {
+        if (indexFile.exists())
+            indexFile.delete();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceFile.lastModified());
+            out.writeLong(sourceFile.length());
+            out.writeInt(numScans);
+            out.writeFloat(binWidth);
+            out.writeFloat(minMz);
+            out.writeInt(binStarts.length - 1);
+            out.writeInt(mzs.length);
+            for (int value : binStarts)
+                out.writeInt(value);
+            for (int value : scanIndexes)
+                out.writeInt(value);
+            for (float value : mzs)
+                out.writeFloat(value);
+            for (float value : intensities)
+                out.writeFloat(value);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Load a saved index.  Returns null if the file is missing, or isn't a valid index for this source file,
+     * in which case the caller should rebuild it
+     * @param sourceFile
+     * @param indexFile
+     * @return
+     */
+    public static MSRunXicIndex read(File sourceFile, File indexFile)
+    {
+        if (!indexFile.exists())
+            return null;
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(indexFile, "r");
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buf.getInt() != MAGIC)
+                return null;
+            int version = buf.getInt();
+            if (version != VERSION)
+            {
+                _log.debug("Unknown XIC index file version " + version);
+                return null;
+            }
+            if (buf.getLong() != sourceFile.lastModified() || buf.getLong() != sourceFile.length())
+            {
+                _log.debug("XIC index file " + indexFile.getName() + " is out of date");
+                return null;
+            }
+            MSRunXicIndex result = new MSRunXicIndex();
+            result.numScans = buf.getInt();
+            result.binWidth = buf.getFloat();
+            result.minMz = buf.getFloat();
+            int numBins = buf.getInt();
+            int numPeaks = buf.getInt();
+            result.binStarts = MSRunIndexFile.readInts(buf, numBins + 1);
+            result.scanIndexes = MSRunIndexFile.readInts(buf, numPeaks);
+            result.mzs = MSRunIndexFile.readFloats(buf, numPeaks);
+            result.intensities = MSRunIndexFile.readFloats(buf, numPeaks);
+            return result;
+        }
+        catch (Exception e)
+        {
+            //anything wrong with the file means we rebuild it
+            _log.debug("Failed to read XIC index file: " + e.getMessage());
+            return null;
+        }
+        finally
+        {
+            MSRunIndexFile.closeQuietly(raf);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fhcrc.cpl.toolbox.proteomics;
+
+import org.apache.log4j.Logger;
+import org.systemsbiology.jrap.stax.PeakDecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads the peaks of one mzML spectrum straight from a memory-mapped file, given the spectrum's offset from
+ * the file's index.  This is the mzML equivalent of the direct mzXML read in MSRun.MSScan: no stream or StAX
+ * parser is created per scan.  The binaryDataArray elements are found by hand, their cvParams are checked
+ * for array type, precision and compression, and the binary data is decoded in place by PeakDecoder.
+ *
+ * Anything unexpected (numpress compression, arrays described by referenceableParamGroups, lengths that
+ * don't match defaultArrayLength) results in null, and the caller should fall back to JRAP.
+ */
+public class MzMLPeakReader
+{
+    private static Logger _log = Logger.getLogger(MzMLPeakReader.class);
+
+    //cvParam accessions
+    protected static final String MZ_ARRAY = "MS:1000514";
+    protected static final String INTENSITY_ARRAY = "MS:1000515";
+    protected static final String FLOAT_32 = "MS:1000521";
+    protected static final String FLOAT_64 = "MS:1000523";
+    protected static final String ZLIB = "MS:1000574";
+    protected static final String NO_COMPRESSION = "MS:1000576";
+    //compression types we can't decode: numpress, numpress followed by zlib, and truncation/prediction schemes
+    protected static final Set<String> UNSUPPORTED_COMPRESSIONS = new HashSet<String>(Arrays.asList(
+            "MS:1002312", "MS:1002313", "MS:1002314",
+            "MS:1002746", "MS:1002747", "MS:1002748",
+            "MS:1003088", "MS:1003089", "MS:1003090", "MS:1003091", "MS:1003092"));
+
+    protected static final int SEARCH_WINDOW = 4096;
+    protected static final int MAX_SEARCH_WINDOW = 4096 * 1024;
+    //room for binaryDataArray start tags and cvParams around the two binary elements
+    protected static final int ARRAY_LIST_SLACK = 16 * 1024;
+
+    protected static final byte[] SPECTRUM_TAG = bytes("<spectrum ");
+    protected static final byte[] ARRAY_LIST_TAG = bytes("<binaryDataArrayList");
+    protected static final byte[] ARRAY_LIST_END_TAG = bytes("</binaryDataArrayList>");
+    protected static final byte[] ARRAY_TAG = bytes("<binaryDataArray ");
+    protected static final byte[] BINARY_TAG = bytes("<binary>");
+    protected static final byte[] CV_PARAM_TAG = bytes("<cvParam");
+
+    /**
+     * Read the m/z and intensity arrays of the spectrum at this offset
+     * @param fileChannel
+     * @param offset offset of the spectrum element
+     * @param count number of peaks, from defaultArrayLength
+     * @return {mzs, intensities}, or null if the spectrum can't be read this way
+     * @throws IOException
+     */
+    public static float[][] readPeaks(FileChannel fileChannel, long offset, int count) throws IOException
+    {
+        long fileSize = fileChannel.size();
+
+        //find the binaryDataArrayList, widening the window until we do
+        long listStart = -1;
+        for (int window = SEARCH_WINDOW; listStart < 0; window *= 4)
+        {
+            int len = (int) Math.min(window, fileSize - offset);
+            if (len <= 0)
+                return null;
+            ByteBuffer headerBuf = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, len);
+            int listIndex = MSRun._indexOf(headerBuf, ARRAY_LIST_TAG, 0, len);
+            //don't wander into the next spectrum
+            int spectrumIndex = MSRun._indexOf(headerBuf, SPECTRUM_TAG, 0, listIndex < 0 ? len : listIndex);
+            int nextSpectrumIndex = MSRun._indexOf(headerBuf, SPECTRUM_TAG, spectrumIndex + 1,
+                    listIndex < 0 ? len : listIndex);
+            if (nextSpectrumIndex >= 0)
+                return null;
+            if (listIndex >= 0)
+                listStart = offset + listIndex;
+            else if (len < window || window >= MAX_SEARCH_WINDOW)
+                return null;
+        }
+
+        //worst case for each array: 64-bit values that didn't compress at all
+        long maxEncodedArrayLength = ((long) count * 8 + count * 8 / 1000 + 64 + 2) / 3 * 4;
+        int len = (int) Math.min(2 * maxEncodedArrayLength + ARRAY_LIST_SLACK, fileSize - listStart);
+        ByteBuffer buf = fileChannel.map(FileChannel.MapMode.READ_ONLY, listStart, len);
+        int listEnd = MSRun._indexOf(buf, ARRAY_LIST_END_TAG, 0, len);
+        if (listEnd < 0)
+            return null;
+
+        float[] mzs = null;
+        float[] intensities = null;
+        int arrayStart = MSRun._indexOf(buf, ARRAY_TAG, 0, listEnd);
+        while (arrayStart >= 0)
+        {
+            int binaryStart = MSRun._indexOf(buf, BINARY_TAG, arrayStart, listEnd);
+            if (binaryStart < 0)
+                return null;
+            int dataStart = binaryStart + BINARY_TAG.length;
+            int dataEnd = MSRun._indexOf(buf, new byte[] {'<'}, dataStart, listEnd + 1);
+            if (dataEnd < 0)
+                return null;
+
+            //array type, precision and compression, from the cvParams before the binary element
+            boolean isMz = false;
+            boolean isIntensity = false;
+            int precision = -1;
+            boolean zlib = false;
+            int paramStart = MSRun._indexOf(buf, CV_PARAM_TAG, arrayStart, binaryStart);
+            while (paramStart >= 0)
+            {
+                int paramEnd = MSRun._indexOf(buf, new byte[] {'>'}, paramStart, binaryStart);
+                if (paramEnd < 0)
+                    return null;
+                String param = string(buf, paramStart, paramEnd);
+                String accession = MSRun._getAttribute(param, "accession");
+                if (MZ_ARRAY.equals(accession))
+                    isMz = true;
+                else if (INTENSITY_ARRAY.equals(accession))
+                    isIntensity = true;
+                else if (FLOAT_32.equals(accession))
+                    precision = 32;
+                else if (FLOAT_64.equals(accession))
+                    precision = 64;
+                else if (ZLIB.equals(accession))
+                    zlib = true;
+                else if (isUnsupportedCompression(accession, MSRun._getAttribute(param, "name")))
+                {
+                    _log.debug("Unsupported binary data compression " + accession);
+                    return null;
+                }
+                paramStart = MSRun._indexOf(buf, CV_PARAM_TAG, paramEnd, binaryStart);
+            }
+
+            if (isMz || isIntensity)
+            {
+                if (precision < 0)
+                    return null;
+                buf.position(dataStart);
+                ByteBuffer data = PeakDecoder.decode(buf, dataEnd - dataStart, zlib, count * (precision / 8));
+                if (null == data || data.remaining() != count * (precision / 8))
+                    return null;
+                float[] values = new float[count];
+                PeakDecoder.readValues(data, precision, ByteOrder.LITTLE_ENDIAN, values);
+                if (isMz)
+                    mzs = values;
+                else
+                    intensities = values;
+            }
+            arrayStart = MSRun._indexOf(buf, ARRAY_TAG, dataEnd, listEnd);
+        }
+
+        if (null == mzs || null == intensities)
+            return null;
+        return new float[][] { mzs, intensities };
+    }
+
+    /**
+     * Is this cvParam a compression type other than zlib or none?  Besides the compression types we know about,
+     * anything whose name says it's a compression is taken to be one we can't decode
+     * @param accession
+     * @param name the cvParam's name attribute, may be null
+     * @return
+     */
+    protected static boolean isUnsupportedCompression(String accession, String name)
+    {
+        if (null == accession)
+            return false;
+        if (UNSUPPORTED_COMPRESSIONS.contains(accession))
+            return true;
+        return null != name && name.toLowerCase().contains("compression") &&
+                !ZLIB.equals(accession) && !NO_COMPRESSION.equals(accession);
+    }
+
+    protected static String string(ByteBuffer buf, int start, int end)
+    {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buf.get(start + i);
+        try
+        {
+            return new String(bytes, "ISO-8859-1");
+        }
+        catch (java.io.UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected static byte[] bytes(String s)
+    {
+        byte[] result = new byte[s.length()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = (byte) s.charAt(i);
+        return result;
+    }
+}
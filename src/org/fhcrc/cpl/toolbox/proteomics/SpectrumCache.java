@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fhcrc.cpl.toolbox.proteomics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least-recently-used cache of decoded spectra for one MSRun, keyed by scan number, with a fixed byte budget.
+ *
+ * This replaces per-scan SoftReferences, which the GC clears all at once under memory pressure and which
+ * otherwise let spectra pile up without limit.  With an explicit budget, memory use is predictable even with
+ * several runs open.
+ *
+ * All methods are synchronized; they're all short.
+ */
+public class SpectrumCache
+{
+    //approximate per-entry cost beyond the float data: the float[][] and two float[] headers, plus map entry
+    protected static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    protected long maxBytes;
+    protected long currentBytes = 0;
+
+    protected long hitCount = 0;
+    protected long missCount = 0;
+    protected long evictionCount = 0;
+
+    //access-ordered, so iteration starts with the least recently used entry
+    protected LinkedHashMap<Integer, float[][]> spectra =
+            new LinkedHashMap<Integer, float[][]>(256, 0.75f, true);
+
+    /**
+     * @param maxBytes byte budget.  0 disables caching
+     */
+    public SpectrumCache(long maxBytes)
+    {
+        setMaxBytes(maxBytes);
+    }
+
+    /**
+     * @param scanNum
+     * @return the cached spectrum, or null
+     */
+    public synchronized float[][] get(int scanNum)
+    {
+        float[][] spectrum = spectra.get(scanNum);
+        if (null == spectrum)
+            missCount++;
+        else
+            hitCount++;
+        return spectrum;
+    }
+
+    /**
+     * Add a spectrum, evicting least recently used spectra until it fits.  Spectra bigger than the whole budget
+     * are not cached
+     * @param scanNum
+     * @param spectrum
+     */
+    public synchronized void put(int scanNum, float[][] spectrum)
+    {
+        long size = sizeOf(spectrum);
+        float[][] previous = spectra.remove(scanNum);
+        if (null != previous)
+            currentBytes -= sizeOf(previous);
+        if (size > maxBytes)
+            return;
+        spectra.put(scanNum, spectrum);
+        currentBytes += size;
+        evict();
+    }
+
+    public synchronized void remove(int scanNum)
+    {
+        float[][] previous = spectra.remove(scanNum);
+        if (null != previous)
+            currentBytes -= sizeOf(previous);
+    }
+
+    public synchronized void clear()
+    {
+        spectra.clear();
+        currentBytes = 0;
+    }
+
+    /**
+     * Drop least recently used entries until we're within budget
+     */
+    protected void evict()
+    {
+        Iterator<Map.Entry<Integer, float[][]>> iterator = spectra.entrySet().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext())
+        {
+            currentBytes -= sizeOf(iterator.next().getValue());
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Approximate heap size of a spectrum
+     * @param spectrum
+     * @return
+     */
+    public static long sizeOf(float[][] spectrum)
+    {
+        long size = ENTRY_OVERHEAD_BYTES;
+        for (float[] row : spectrum)
+            size += 4L * row.length;
+        return size;
+    }
+
+    public synchronized long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * Change the byte budget, evicting immediately if necessary
+     * @param maxBytes
+     */
+    public synchronized void setMaxBytes(long maxBytes)
+    {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("Spectrum cache size must be non-negative");
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    public synchronized long getCurrentBytes()
+    {
+        return currentBytes;
+    }
+
+    public synchronized int size()
+    {
+        return spectra.size();
+    }
+
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    public synchronized void resetCounts()
+    {
+        hitCount = 0;
+        missCount = 0;
+        evictionCount = 0;
+    }
+
+    public synchronized String toString()
+    {
+        return "SpectrumCache: " + spectra.size() + " spectra, " + currentBytes + " of " + maxBytes +
+                " bytes, hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount;
+    }
+}
@@ -76,14 +76,16 @@ public class FeatureClusterer extends Clusterer2D
     }
 
     /**
-     * Add a featureset to be clustered
+     * Add a featureset to be clustered.  A column-backed set is clustered from its columns, and its Feature
+     * objects are only created for the features that are asked for
      * @param featureSet
      */
     public void addSet(FeatureSet featureSet)
     {
         _featureSets.add(featureSet);
 
-            FeatureClusterable[] featureClusterables =
+            FeatureClusterable[] featureClusterables = featureSet.isStoredAsColumns() ?
+                    createClusterablesForColumns(featureSet.getColumns()) :
                     createClusterablesForFeatures(featureSet.getFeatures());
             super.addSet(featureClusterables);
     }
@@ -103,33 +105,57 @@ public class FeatureClusterer extends Clusterer2D
     {
         FeatureClusterable[] result = new FeatureClusterable[features.length];
         for (int i = 0; i < features.length; i++)
+            result[i] = createClusterable(features[i], null, -1);
+        return result;
+    }
+
+    /**
+     * Like createClusterablesForFeatures(), for every row of column storage
+     * @param columns
+     * @return
+     */
+    public FeatureClusterable[] createClusterablesForColumns(FeatureColumns columns)
+    {
+        columns.syncViews();
+        FeatureClusterable[] result = new FeatureClusterable[columns.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = createClusterable(null, columns, i);
+        return result;
+    }
+
+    /**
+     * A Clusterable of the appropriate type for the mass/mz and elution mode, for either a feature or a row
+     */
+    protected FeatureClusterable createClusterable(Feature feature, FeatureColumns columns, int row)
+    {
+        FeatureClusterable result = null;
+        switch (_massMzMode)
         {
-            switch (_massMzMode)
-            {
-                case MASS_MZ_MODE_MASS:
-                    switch (_elutionMode)
-                    {
-                        case ELUTION_MODE_TIME:
-                            result[i] = new FeatureMassTimeClusterable(features[i]);
-                            break;
-                        case ELUTION_MODE_SCAN:
-                            result[i] = new FeatureMassScanClusterable(features[i]);
-                            break;
-                    }
-                    break;
-                case MASS_MZ_MODE_MZ:
-                    switch (_elutionMode)
-                    {
-                        case ELUTION_MODE_TIME:
-                            result[i] = new FeatureMzTimeClusterable(features[i]);
-                            break;
-                        case ELUTION_MODE_SCAN:
-                            result[i] = new FeatureMzScanClusterable(features[i]);
-                            break;
-                    }
-                    break;
-            }
+            case MASS_MZ_MODE_MASS:
+                switch (_elutionMode)
+                {
+                    case ELUTION_MODE_TIME:
+                        result = new FeatureMassTimeClusterable(feature);
+                        break;
+                    case ELUTION_MODE_SCAN:
+                        result = new FeatureMassScanClusterable(feature);
+                        break;
+                }
+                break;
+            case MASS_MZ_MODE_MZ:
+                switch (_elutionMode)
+                {
+                    case ELUTION_MODE_TIME:
+                        result = new FeatureMzTimeClusterable(feature);
+                        break;
+                    case ELUTION_MODE_SCAN:
+                        result = new FeatureMzScanClusterable(feature);
+                        break;
+                }
+                break;
         }
+        if (null != result && null != columns)
+            result.setParentRow(columns, row);
         return result;
     }
 
@@ -165,10 +191,15 @@ public class FeatureClusterer extends Clusterer2D
 
     /**
      * Pragmatic abstract class to help you cluster sets of features.
+     *
+     * The parent may instead be a row of column storage, in which case the dimension values are read from the
+     * columns, and the Feature is only created if getParentFeature() is called
      */
     public abstract static class FeatureClusterable implements Clusterer2D.Clusterable
     {
         public Feature parentFeature;
+        protected FeatureColumns parentColumns;
+        protected int parentRow;
 
         public FeatureClusterable(Feature feature)
         {
@@ -178,12 +209,42 @@ public class FeatureClusterer extends Clusterer2D
         public void setParentFeature(Feature feature)
         {
             parentFeature = feature;
+            parentColumns = null;
+        }
+
+        public void setParentRow(FeatureColumns columns, int row)
+        {
+            parentFeature = null;
+            parentColumns = columns;
+            parentRow = row;
         }
 
         public Feature getParentFeature()
         {
+            if (null == parentFeature && null != parentColumns)
+                parentFeature = parentColumns.getFeature(parentRow);
             return parentFeature;
         }
+
+        protected float getParentMass()
+        {
+            return null == parentFeature ? parentColumns.getMass(parentRow) : parentFeature.mass;
+        }
+
+        protected float getParentMz()
+        {
+            return null == parentFeature ? parentColumns.getMz(parentRow) : parentFeature.mz;
+        }
+
+        protected int getParentScan()
+        {
+            return null == parentFeature ? parentColumns.getScan(parentRow) : parentFeature.getScan();
+        }
+
+        protected float getParentTime()
+        {
+            return null == parentFeature ? parentColumns.getTime(parentRow) : parentFeature.getTime();
+        }
     }
 
     /**
@@ -200,11 +261,11 @@ public class FeatureClusterer extends Clusterer2D
 
         public double getDimension1Value()
         {
-            return parentFeature.mass;
+            return getParentMass();
         }
         public double getDimension2Value()
         {
-            return parentFeature.getScan();
+            return getParentScan();
         }
     }
 
@@ -221,11 +282,11 @@ public class FeatureClusterer extends Clusterer2D
 
         public double getDimension1Value()
         {
-            return parentFeature.mass;
+            return getParentMass();
         }
         public double getDimension2Value()
         {
-            return parentFeature.getTime();
+            return getParentTime();
         }
     }
 
@@ -242,11 +303,11 @@ public class FeatureClusterer extends Clusterer2D
 
         public double getDimension1Value()
         {
-            return parentFeature.mz;
+            return getParentMz();
         }
         public double getDimension2Value()
         {
-            return parentFeature.getScan();
+            return getParentScan();
         }
     }
 
@@ -263,11 +324,11 @@ public class FeatureClusterer extends Clusterer2D
 
         public double getDimension1Value()
         {
-            return parentFeature.mz;
+            return getParentMz();
         }
         public double getDimension2Value()
         {
-            return parentFeature.getTime();
+            return getParentTime();
         }
     }
 
@@ -0,0 +1,940 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fhcrc.cpl.toolbox.proteomics.feature;
+
+import org.fhcrc.cpl.toolbox.proteomics.MassCalibrationUtilities;
+import org.fhcrc.cpl.toolbox.proteomics.feature.extraInfo.AmtExtraInfoDef;
+import org.fhcrc.cpl.toolbox.proteomics.feature.extraInfo.FeatureExtraInformationDef;
+import org.fhcrc.cpl.toolbox.proteomics.feature.extraInfo.MS2ExtraInfoDef;
+
+import java.util.*;
+
+/**
+ * Compact, column-oriented storage for a large number of features.
+ *
+ * Each regular Feature field is held in a primitive array, one entry per feature.  Extra information
+ * (Feature properties, e.g., MS2ExtraInfoDef peptides and peptideprophet scores) is held in one column per
+ * property name, dictionary-encoded: each row holds an int code into a per-property list of distinct values.
+ * Strings, numbers and booleans are shared between rows with equal values; other objects (lists, for
+ * instance) are not, since they may be mutable.  Comprised peaks and intensity windows are only stored if some
+ * feature has them.
+ *
+ * A million features cost on the order of 100 bytes each here, plus their distinct property values, rather
+ * than several hundred bytes plus a HashMap per feature.
+ *
+ * Features are materialized on demand by getFeature(), as the class the stored features were (FeatureAsMap for
+ * features loaded from a file, for instance).  Only Feature fields and properties are stored, so fields that a
+ * subclass adds are not kept.  A row's Feature object is kept once it's been created, so asking for the row
+ * again gives the same object, and changes made to it aren't lost: they're copied back into the columns by
+ * syncViews(), which selection, sorting and the column copies call first.  Only the rows that have been asked for
+ * cost a Feature.  Selection and sorting work directly on the columns and return row indexes, so callers can
+ * materialize only the rows they need.
+ *
+ * Not thread safe, since reads can create Feature objects.  The column copies can be shared between threads
+ */
+public class FeatureColumns
+{
+    //marks an unset property in a property column
+    protected static final int NO_VALUE = -1;
+
+    protected int size = 0;
+
+    //regular Feature fields
+    protected float[] mz;
+    protected float[] mass;
+    protected float[] time;
+    protected float[] intensity;
+    protected float[] totalIntensity;
+    protected float[] kl;
+    protected float[] dist;
+    protected float[] background;
+    protected float[] median;
+    protected float[] mzPeak0;
+    protected int[] scan;
+    protected int[] scanFirst;
+    protected int[] scanLast;
+    protected int[] scanCount;
+    protected int[] charge;
+    protected int[] peaks;
+    protected int[] chargeStates;
+    protected BitSet accurateMZ = new BitSet();
+    protected BitSet skippedPeaks = new BitSet();
+    protected int[] descriptionCodes;
+    protected ValueDictionary descriptions = new ValueDictionary();
+
+    //sparse columns, only allocated if some feature has a value
+    protected Spectrum.Peak[][] comprised = null;
+    protected float[][] intensityWindow = null;
+    protected int[] intensityLeadingPeaks = null;
+    protected int[] intensityTrailingPeaks = null;
+
+    //property name -> codes, and property name -> distinct values
+    protected Map<String, int[]> propertyCodes = new LinkedHashMap<String, int[]>();
+    protected Map<String, ValueDictionary> propertyValues = new HashMap<String, ValueDictionary>();
+
+    //Feature objects handed out, by row, and the rows that have one.  Not allocated until the first is
+    protected Feature[] views = null;
+    protected int[] viewRows = null;
+    protected int numViews = 0;
+
+    //class of the Feature objects to create, e.g., FeatureAsMap if that's what the features came from.  The
+    //most specific class all stored features share
+    protected Class<? extends Feature> featureClass = null;
+
+    /**
+     * Distinct values of one column.  Immutable values are shared between rows; anything else gets its own entry.
+     * Entries are reference counted, so a value that no row holds any more is let go and its code reused
+     */
+    protected static class ValueDictionary
+    {
+        protected List<Object> values = new ArrayList<Object>();
+        protected Map<Object, Integer> codes = new HashMap<Object, Integer>();
+        //number of rows holding each code
+        protected int[] counts = new int[16];
+        //codes whose values have been let go
+        protected int[] freeCodes = new int[16];
+        protected int numFreeCodes = 0;
+
+        /**
+         * Code for a value, counting one more row as holding it
+         */
+        public int encode(Object value)
+        {
+            if (null == value)
+                return NO_VALUE;
+            boolean shareable = isShareable(value);
+            if (shareable)
+            {
+                Integer code = codes.get(value);
+                if (null != code)
+                {
+                    counts[code]++;
+                    return code;
+                }
+            }
+            int code;
+            if (numFreeCodes > 0)
+            {
+                code = freeCodes[--numFreeCodes];
+                values.set(code, value);
+            }
+            else
+            {
+                code = values.size();
+                values.add(value);
+                if (code == counts.length)
+                    counts = Arrays.copyOf(counts, 2 * code);
+            }
+            counts[code] = 1;
+            if (shareable)
+                codes.put(value, code);
+            return code;
+        }
+
+        public Object decode(int code)
+        {
+            return NO_VALUE == code ? null : values.get(code);
+        }
+
+        /**
+         * A row no longer holds this code.  If it was the last one, let go of the value
+         */
+        public void release(int code)
+        {
+            if (NO_VALUE == code || --counts[code] > 0)
+                return;
+            Object value = values.set(code, null);
+            if (isShareable(value))
+                codes.remove(value);
+            if (numFreeCodes == freeCodes.length)
+                freeCodes = Arrays.copyOf(freeCodes, 2 * numFreeCodes);
+            freeCodes[numFreeCodes++] = code;
+        }
+
+        /**
+         * Code for a value that's replacing the one with the given code.  If it's the same value, keep the code
+         * rather than adding another entry for an unshareable value.  Otherwise the old value is released
+         */
+        public int reencode(int code, Object value)
+        {
+            if (NO_VALUE != code && null != value)
+            {
+                Object current = values.get(code);
+                if (current == value || (isShareable(value) && value.equals(current)))
+                    return code;
+            }
+            int result = encode(value);
+            release(code);
+            return result;
+        }
+
+        /**
+         * Re-encode a column's codes for some of its rows into a new dictionary holding only their values
+         * @param sourceCodes
+         * @param rows
+         * @param resultCodes the new codes, one per row
+         * @return
+         */
+        public ValueDictionary copy(int[] sourceCodes, int[] rows, int[] resultCodes)
+        {
+            ValueDictionary result = new ValueDictionary();
+            //old code -> new code, for values already copied
+            int[] newCodes = new int[values.size()];
+            Arrays.fill(newCodes, NO_VALUE);
+            for (int j = 0; j < rows.length; j++)
+            {
+                int code = sourceCodes[rows[j]];
+                if (NO_VALUE == code)
+                    resultCodes[j] = NO_VALUE;
+                else if (NO_VALUE != newCodes[code] && isShareable(values.get(code)))
+                {
+                    resultCodes[j] = newCodes[code];
+                    result.counts[newCodes[code]]++;
+                }
+                else
+                {
+                    resultCodes[j] = result.encode(values.get(code));
+                    newCodes[code] = resultCodes[j];
+                }
+            }
+            return result;
+        }
+
+        protected static boolean isShareable(Object value)
+        {
+            return value instanceof String || value instanceof Number ||
+                    value instanceof Boolean || value instanceof Character || value instanceof Enum;
+        }
+
+        /**
+         * @return number of values held
+         */
+        public int size()
+        {
+            return values.size() - numFreeCodes;
+        }
+    }
+
+    public FeatureColumns()
+    {
+        this(16);
+    }
+
+    /**
+     * @param capacity number of features to make room for up front
+     */
+    public FeatureColumns(int capacity)
+    {
+        allocate(Math.max(1, capacity));
+    }
+
+    /**
+     * Store these features
+     * @param features
+     */
+    public FeatureColumns(Feature[] features)
+    {
+        this(features.length);
+        for (Feature feature : features)
+            add(feature);
+    }
+
+    protected void allocate(int capacity)
+    {
+        mz = resize(mz, capacity);
+        mass = resize(mass, capacity);
+        time = resize(time, capacity);
+        intensity = resize(intensity, capacity);
+        totalIntensity = resize(totalIntensity, capacity);
+        kl = resize(kl, capacity);
+        dist = resize(dist, capacity);
+        background = resize(background, capacity);
+        median = resize(median, capacity);
+        mzPeak0 = resize(mzPeak0, capacity);
+        scan = resize(scan, capacity);
+        scanFirst = resize(scanFirst, capacity);
+        scanLast = resize(scanLast, capacity);
+        scanCount = resize(scanCount, capacity);
+        charge = resize(charge, capacity);
+        peaks = resize(peaks, capacity);
+        chargeStates = resize(chargeStates, capacity);
+        descriptionCodes = resizeCodes(null == descriptionCodes ? new int[0] : descriptionCodes, capacity);
+        if (null != comprised)
+            comprised = Arrays.copyOf(comprised, capacity);
+        if (null != intensityWindow)
+        {
+            intensityWindow = Arrays.copyOf(intensityWindow, capacity);
+            intensityLeadingPeaks = resize(intensityLeadingPeaks, capacity);
+            intensityTrailingPeaks = resize(intensityTrailingPeaks, capacity);
+        }
+        for (Map.Entry<String, int[]> entry : propertyCodes.entrySet())
+            entry.setValue(resizeCodes(entry.getValue(), capacity));
+        if (null != views)
+            views = Arrays.copyOf(views, capacity);
+    }
+
+    protected static float[] resize(float[] array, int capacity)
+    {
+        return null == array ? new float[capacity] : Arrays.copyOf(array, capacity);
+    }
+
+    protected static int[] resize(int[] array, int capacity)
+    {
+        return null == array ? new int[capacity] : Arrays.copyOf(array, capacity);
+    }
+
+    protected static int[] resizeCodes(int[] codes, int capacity)
+    {
+        int oldLength = codes.length;
+        int[] result = Arrays.copyOf(codes, capacity);
+        if (capacity > oldLength)
+            Arrays.fill(result, oldLength, capacity, NO_VALUE);
+        return result;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Append a feature
+     * @param feature
+     * @return its row index
+     */
+    public int add(Feature feature)
+    {
+        if (size == mz.length)
+            allocate(2 * size);
+        int i = size++;
+        setFeature(i, feature);
+        return i;
+    }
+
+    /**
+     * Store a feature's values in a row, replacing what was there.  If the row's Feature object had been handed
+     * out, that object no longer belongs to the row
+     * @param i
+     * @param feature
+     */
+    public void setFeature(int i, Feature feature)
+    {
+        if (i >= size)
+            throw new IndexOutOfBoundsException("Row " + i + ", size " + size);
+        if (null != views && null != views[i] && views[i] != feature)
+            views[i] = null;
+        storeValues(i, feature);
+    }
+
+    /**
+     * Copy a feature's values into a row
+     */
+    protected void storeValues(int i, Feature feature)
+    {
+        Class<? extends Feature> storedClass = feature.getClass();
+        if (null == featureClass)
+            featureClass = storedClass;
+        else
+        {
+            while (!featureClass.isAssignableFrom(storedClass))
+                featureClass = featureClass.getSuperclass().asSubclass(Feature.class);
+        }
+        mz[i] = feature.mz;
+        mass[i] = feature.mass;
+        time[i] = feature.time;
+        intensity[i] = feature.intensity;
+        totalIntensity[i] = feature.totalIntensity;
+        kl[i] = feature.kl;
+        dist[i] = feature.dist;
+        background[i] = feature.background;
+        median[i] = feature.median;
+        mzPeak0[i] = feature.mzPeak0;
+        scan[i] = feature.scan;
+        scanFirst[i] = feature.scanFirst;
+        scanLast[i] = feature.scanLast;
+        scanCount[i] = feature.scanCount;
+        charge[i] = feature.charge;
+        peaks[i] = feature.peaks;
+        chargeStates[i] = feature.chargeStates;
+        accurateMZ.set(i, feature.isAccurateMZ());
+        skippedPeaks.set(i, feature.skippedPeaks);
+        descriptionCodes[i] = descriptions.reencode(descriptionCodes[i], feature.getDescription());
+
+        if (null != feature.comprised && null == comprised)
+            comprised = new Spectrum.Peak[mz.length][];
+        if (null != comprised)
+            comprised[i] = feature.comprised;
+        if (null != feature.intensityWindow && null == intensityWindow)
+        {
+            intensityWindow = new float[mz.length][];
+            intensityLeadingPeaks = new int[mz.length];
+            intensityTrailingPeaks = new int[mz.length];
+        }
+        if (null != intensityWindow)
+        {
+            intensityWindow[i] = feature.intensityWindow;
+            intensityLeadingPeaks[i] = feature.intensityLeadingPeaks;
+            intensityTrailingPeaks[i] = feature.intensityTrailingPeaks;
+        }
+
+        //update the properties we have columns for, including clearing ones this feature doesn't have, then add
+        //any new ones
+        Map<String, Object> featureProperties = feature._propertyMap;
+        for (Map.Entry<String, int[]> entry : propertyCodes.entrySet())
+        {
+            Object value = null == featureProperties ? null : featureProperties.get(entry.getKey());
+            int[] codes = entry.getValue();
+            codes[i] = propertyValues.get(entry.getKey()).reencode(codes[i], value);
+        }
+        if (null != featureProperties)
+        {
+            for (Map.Entry<String, Object> property : featureProperties.entrySet())
+            {
+                if (!propertyCodes.containsKey(property.getKey()))
+                    setProperty(i, property.getKey(), property.getValue());
+            }
+        }
+    }
+
+    /**
+     * Materialize a feature
+     * @param i
+     * @return the row's Feature object, created with the row's values the first time it's asked for
+     */
+    public Feature getFeature(int i)
+    {
+        if (i >= size)
+            throw new IndexOutOfBoundsException("Row " + i + ", size " + size);
+        if (null != views && null != views[i])
+            return views[i];
+        Feature feature = createFeature(i);
+        addView(i, feature);
+        return feature;
+    }
+
+    protected void addView(int i, Feature feature)
+    {
+        if (null == views)
+        {
+            views = new Feature[mz.length];
+            viewRows = new int[16];
+        }
+        views[i] = feature;
+        if (numViews == viewRows.length)
+            viewRows = Arrays.copyOf(viewRows, 2 * numViews);
+        viewRows[numViews++] = i;
+    }
+
+    /**
+     * Copy any changes made to the Feature objects that have been handed out back into the columns
+     */
+    public void syncViews()
+    {
+        if (null == views)
+            return;
+        int kept = 0;
+        for (int j = 0; j < numViews; j++)
+        {
+            int i = viewRows[j];
+            //rows whose objects were replaced by setFeature() are dropped
+            if (null == views[i])
+                continue;
+            storeValues(i, views[i]);
+            viewRows[kept++] = i;
+        }
+        numViews = kept;
+    }
+
+    protected Feature createFeature(int i)
+    {
+        Feature feature;
+        try
+        {
+            feature = null == featureClass ? new Feature() : featureClass.newInstance();
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException("Failed to create a " + featureClass.getName(), e);
+        }
+        feature.mz = mz[i];
+        feature.mass = mass[i];
+        feature.time = time[i];
+        feature.intensity = intensity[i];
+        feature.totalIntensity = totalIntensity[i];
+        feature.kl = kl[i];
+        feature.dist = dist[i];
+        feature.background = background[i];
+        feature.median = median[i];
+        feature.mzPeak0 = mzPeak0[i];
+        feature.scan = scan[i];
+        feature.scanFirst = scanFirst[i];
+        feature.scanLast = scanLast[i];
+        feature.scanCount = scanCount[i];
+        feature.charge = charge[i];
+        feature.peaks = peaks[i];
+        feature.chargeStates = chargeStates[i];
+        feature.setAccurateMZ(accurateMZ.get(i));
+        feature.skippedPeaks = skippedPeaks.get(i);
+        feature.setDescription((String) descriptions.decode(descriptionCodes[i]));
+        if (null != comprised)
+            feature.comprised = comprised[i];
+        if (null != intensityWindow)
+        {
+            feature.intensityWindow = intensityWindow[i];
+            feature.intensityLeadingPeaks = intensityLeadingPeaks[i];
+            feature.intensityTrailingPeaks = intensityTrailingPeaks[i];
+        }
+        for (Map.Entry<String, int[]> entry : propertyCodes.entrySet())
+        {
+            int code = entry.getValue()[i];
+            if (NO_VALUE != code)
+                feature.setProperty(entry.getKey(), propertyValues.get(entry.getKey()).decode(code));
+        }
+        return feature;
+    }
+
+    /**
+     * Materialize features
+     * @param rows row indexes
+     * @return
+     */
+    public Feature[] getFeatures(int[] rows)
+    {
+        Feature[] result = new Feature[rows.length];
+        for (int j = 0; j < rows.length; j++)
+            result[j] = getFeature(rows[j]);
+        return result;
+    }
+
+    /**
+     * Materialize all features
+     * @return
+     */
+    public Feature[] getFeatures()
+    {
+        Feature[] result = new Feature[size];
+        for (int i = 0; i < size; i++)
+            result[i] = getFeature(i);
+        return result;
+    }
+
+    //column access.  These read the columns as of the last syncViews()
+
+    public float getMz(int i)
+    {
+        return mz[i];
+    }
+
+    public float getMass(int i)
+    {
+        return mass[i];
+    }
+
+    public float getTime(int i)
+    {
+        return time[i];
+    }
+
+    public float getIntensity(int i)
+    {
+        return intensity[i];
+    }
+
+    public float getTotalIntensity(int i)
+    {
+        return totalIntensity[i];
+    }
+
+    public float getKl(int i)
+    {
+        return kl[i];
+    }
+
+    public int getScan(int i)
+    {
+        return scan[i];
+    }
+
+    public int getScanFirst(int i)
+    {
+        return scanFirst[i];
+    }
+
+    public int getScanLast(int i)
+    {
+        return scanLast[i];
+    }
+
+    public int getCharge(int i)
+    {
+        return charge[i];
+    }
+
+    public int getPeaks(int i)
+    {
+        return peaks[i];
+    }
+
+    /**
+     * Copy of the m/z column, one entry per row
+     * @return
+     */
+    public float[] getMzColumn()
+    {
+        syncViews();
+        return Arrays.copyOf(mz, size);
+    }
+
+    /**
+     * Copy of the mass column, one entry per row
+     * @return
+     */
+    public float[] getMassColumn()
+    {
+        syncViews();
+        return Arrays.copyOf(mass, size);
+    }
+
+    /**
+     * Copy of the time column, one entry per row
+     * @return
+     */
+    public float[] getTimeColumn()
+    {
+        syncViews();
+        return Arrays.copyOf(time, size);
+    }
+
+    /**
+     * Copy of the scan column, one entry per row
+     * @return
+     */
+    public int[] getScanColumn()
+    {
+        syncViews();
+        return Arrays.copyOf(scan, size);
+    }
+
+    //extra information
+
+    /**
+     * @return names of all the properties that any row has ever had
+     */
+    public Set<String> getPropertyNames()
+    {
+        return Collections.unmodifiableSet(propertyCodes.keySet());
+    }
+
+    public Object getProperty(int i, String propertyName)
+    {
+        int[] codes = propertyCodes.get(propertyName);
+        if (null == codes)
+            return null;
+        return propertyValues.get(propertyName).decode(codes[i]);
+    }
+
+    /**
+     * Set a property value for a row.  null unsets it
+     * @param i
+     * @param propertyName
+     * @param value
+     */
+    public void setProperty(int i, String propertyName, Object value)
+    {
+        int[] codes = propertyCodes.get(propertyName);
+        if (null == codes)
+        {
+            if (null == value)
+                return;
+            codes = new int[mz.length];
+            Arrays.fill(codes, NO_VALUE);
+            propertyCodes.put(propertyName, codes);
+            propertyValues.put(propertyName, new ValueDictionary());
+        }
+        codes[i] = propertyValues.get(propertyName).reencode(codes[i], value);
+    }
+
+    /**
+     * A property's value as a double, converted the same way Feature.getDoubleProperty() does
+     * @param i
+     * @param propertyName
+     * @param defaultValue
+     * @return
+     */
+    public double getDoubleProperty(int i, String propertyName, double defaultValue)
+    {
+        Object value = getProperty(i, propertyName);
+        if (null == value)
+            return defaultValue;
+        if (value instanceof Float)
+            return ((Float) value).doubleValue();
+        return (Double) value;
+    }
+
+    /**
+     * The extra information types of all rows, as FeatureSet.inferExtraInformationTypesFromFeatures() would
+     * find them
+     * @return
+     */
+    public FeatureExtraInformationDef[] determineExtraInformationTypes()
+    {
+        Set<FeatureExtraInformationDef> extraInfoSet = new LinkedHashSet<FeatureExtraInformationDef>();
+        for (Map.Entry<String, int[]> entry : propertyCodes.entrySet())
+        {
+            FeatureExtraInformationDef extraInfoDef =
+                    FeatureExtraInformationDef.getInfoTypeForColumn(entry.getKey());
+            if (null == extraInfoDef || extraInfoSet.contains(extraInfoDef))
+                continue;
+            int[] codes = entry.getValue();
+            for (int i = 0; i < size; i++)
+            {
+                if (NO_VALUE != codes[i])
+                {
+                    extraInfoSet.add(extraInfoDef);
+                    break;
+                }
+            }
+        }
+        return extraInfoSet.toArray(new FeatureExtraInformationDef[extraInfoSet.size()]);
+    }
+
+    //selection and sorting
+
+    /**
+     * Rows that pass the selector, in row order.  Same criteria as FeatureSet.selectFeatures()
+     * @param sel
+     * @return row indexes
+     */
+    public int[] select(FeatureSet.FeatureSelector sel)
+    {
+        syncViews();
+        int[] result = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++)
+        {
+            if (intensity[i] >= sel.getMinIntensity() &&
+                    charge[i] <= sel.getMaxCharge() && charge[i] >= sel.getMinCharge() &&
+                    mz[i] >= sel.getMinMz() && mz[i] <= sel.getMaxMz() &&
+                    mass[i] >= sel.getMinMass() && mass[i] <= sel.getMaxMass() &&
+                    peaks[i] >= sel.getMinPeaks() && peaks[i] <= sel.getMaxPeaks() &&
+                    scan[i] >= sel.getScanFirst() && scan[i] <= sel.getScanLast() &&
+                    kl[i] <= sel.getMaxKL() && scanCount[i] >= sel.getMinScans() &&
+                    totalIntensity[i] >= sel.getMinTotalIntensity() &&
+                    time[i] >= sel.getMinTime() && time[i] <= sel.getMaxTime() &&
+                    getDoubleProperty(i, "peptideprophet", MS2ExtraInfoDef.defaultPeptideProphet) >=
+                            sel.getMinPProphet() &&
+                    (sel.getMaxAMTFDR() == 1 || hasMatchFDRBelow(i, sel.getMaxAMTFDR())) &&
+                    (sel.getMaxMassDeviationPPM() == Integer.MAX_VALUE ||
+                            Math.abs(MassCalibrationUtilities.calculateMassDefectDeviationPPM(mass[i],
+                                    MassCalibrationUtilities.DEFAULT_THEORETICAL_MASS_WAVELENGTH)) <=
+                                    sel.getMaxMassDeviationPPM()) &&
+                    dist[i] <= sel.getMaxSumSquaresDist() &&
+                    (!sel.isAccurateMzOnly() || accurateMZ.get(i)))
+            {
+                result[count++] = i;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    protected boolean hasMatchFDRBelow(int i, double maxFDR)
+    {
+        double matchFDR = getDoubleProperty(i, "match_fdr", AmtExtraInfoDef.NO_MATCH_FDR);
+        return matchFDR != AmtExtraInfoDef.NO_MATCH_FDR && matchFDR < maxFDR;
+    }
+
+    /**
+     * Row indexes ordered as Feature.MzScanAscComparator would order the features
+     * @return
+     */
+    public int[] getRowsByMzScan()
+    {
+        return sortRows(mz, scan, false);
+    }
+
+    /**
+     * Row indexes ordered as Feature.MassAscComparator would order the features
+     * @return
+     */
+    public int[] getRowsByMass()
+    {
+        return sortRows(mass, null, false);
+    }
+
+    /**
+     * Row indexes ordered as Feature.IntensityDescComparator would order the features
+     * @return
+     */
+    public int[] getRowsByIntensityDesc()
+    {
+        return sortRows(intensity, null, true);
+    }
+
+    /**
+     * Stable sort of all rows by a float column, then optionally by an int column.  Ties keep row order, as
+     * Arrays.sort() on features in row order would
+     * @param primary
+     * @param secondary may be null
+     * @param descending applies to the primary column only
+     * @return
+     */
+    protected int[] sortRows(float[] primary, int[] secondary, boolean descending)
+    {
+        syncViews();
+        int[] rows = new int[size];
+        for (int i = 0; i < size; i++)
+            rows[i] = i;
+        mergeSort(rows, new int[size], 0, size, primary, secondary, descending);
+        return rows;
+    }
+
+    protected static boolean before(int a, int b, float[] primary, int[] secondary, boolean descending)
+    {
+        float pa = primary[a];
+        float pb = primary[b];
+        if (pa != pb)
+            return descending ? pa > pb : pa < pb;
+        return null != secondary && secondary[a] < secondary[b];
+    }
+
+    protected static void mergeSort(int[] rows, int[] tmp, int from, int to, float[] primary, int[] secondary,
+                                    boolean descending)
+    {
+        if (to - from < 16)
+        {
+            for (int i = from + 1; i < to; i++)
+            {
+                int v = rows[i];
+                int j = i - 1;
+                while (j >= from && before(v, rows[j], primary, secondary, descending))
+                {
+                    rows[j + 1] = rows[j];
+                    j--;
+                }
+                rows[j + 1] = v;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(rows, tmp, from, mid, primary, secondary, descending);
+        mergeSort(rows, tmp, mid, to, primary, secondary, descending);
+        System.arraycopy(rows, from, tmp, from, to - from);
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to)
+            rows[k++] = before(tmp[j], tmp[i], primary, secondary, descending) ? tmp[j++] : tmp[i++];
+        while (i < mid)
+            rows[k++] = tmp[i++];
+        while (j < to)
+            rows[k++] = tmp[j++];
+    }
+
+    /**
+     * A new FeatureColumns holding these rows, in this order.  Feature objects already handed out for the rows
+     * carry over, so the same features are shared, as FeatureSet.selectFeatures() shares them between arrays.
+     * Property values are shared too, but each FeatureColumns has its own dictionaries, holding only its rows'
+     * values
+     * @param rows
+     * @return
+     */
+    public FeatureColumns subset(int[] rows)
+    {
+        syncViews();
+        FeatureColumns result = new FeatureColumns(rows.length);
+        int n = rows.length;
+        result.size = n;
+        for (int j = 0; j < n; j++)
+        {
+            int i = rows[j];
+            result.mz[j] = mz[i];
+            result.mass[j] = mass[i];
+            result.time[j] = time[i];
+            result.intensity[j] = intensity[i];
+            result.totalIntensity[j] = totalIntensity[i];
+            result.kl[j] = kl[i];
+            result.dist[j] = dist[i];
+            result.background[j] = background[i];
+            result.median[j] = median[i];
+            result.mzPeak0[j] = mzPeak0[i];
+            result.scan[j] = scan[i];
+            result.scanFirst[j] = scanFirst[i];
+            result.scanLast[j] = scanLast[i];
+            result.scanCount[j] = scanCount[i];
+            result.charge[j] = charge[i];
+            result.peaks[j] = peaks[i];
+            result.chargeStates[j] = chargeStates[i];
+            result.accurateMZ.set(j, accurateMZ.get(i));
+            result.skippedPeaks.set(j, skippedPeaks.get(i));
+        }
+        result.descriptions = descriptions.copy(descriptionCodes, rows, result.descriptionCodes);
+        result.featureClass = featureClass;
+
+        if (null != comprised)
+        {
+            result.comprised = new Spectrum.Peak[result.mz.length][];
+            for (int j = 0; j < n; j++)
+                result.comprised[j] = comprised[rows[j]];
+        }
+        if (null != intensityWindow)
+        {
+            result.intensityWindow = new float[result.mz.length][];
+            result.intensityLeadingPeaks = new int[result.mz.length];
+            result.intensityTrailingPeaks = new int[result.mz.length];
+            for (int j = 0; j < n; j++)
+            {
+                result.intensityWindow[j] = intensityWindow[rows[j]];
+                result.intensityLeadingPeaks[j] = intensityLeadingPeaks[rows[j]];
+                result.intensityTrailingPeaks[j] = intensityTrailingPeaks[rows[j]];
+            }
+        }
+
+        for (Map.Entry<String, int[]> entry : propertyCodes.entrySet())
+        {
+            int[] resultCodes = resizeCodes(new int[0], result.mz.length);
+            result.propertyValues.put(entry.getKey(),
+                    propertyValues.get(entry.getKey()).copy(entry.getValue(), rows, resultCodes));
+            result.propertyCodes.put(entry.getKey(), resultCodes);
+        }
+
+        if (null != views)
+        {
+            for (int j = 0; j < n; j++)
+            {
+                Feature view = views[rows[j]];
+                if (null != view)
+                    result.addView(j, view);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Approximate heap used by the columns, not counting the property values themselves or comprised peaks
+     * @return
+     */
+    public long estimateColumnBytes()
+    {
+        long capacity = mz.length;
+        long bytes = capacity * (10 * 4 + 8 * 4) + capacity / 4;
+        if (null != views)
+            bytes += capacity * 8;
+        bytes += capacity * 4 * propertyCodes.size();
+        if (null != comprised)
+            bytes += capacity * 4;
+        if (null != intensityWindow)
+            bytes += capacity * 12;
+        return bytes;
+    }
+}
@@ -102,7 +102,10 @@ public class FeatureGrouper
                                                     FeatureClusterer.MASS_MZ_MODE_MZ,
                                      FeatureClusterer.ELUTION_MODE_TIME);
         if (_featureClusterer != null)
+        {
             clusterer.setMassType(_featureClusterer.getMassType());
+            clusterer.setNumThreads(_featureClusterer.getNumThreads());
+        }
         return clusterer;
     }
 
@@ -1012,7 +1015,11 @@ public class FeatureGrouper
      */
     public void addSet(FeatureSet fs)
     {
-        if (_shouldGroupByCharge)
+        if (_shouldGroupByCharge && fs.isStoredAsColumns())
+        {
+            addSetByChargeFromColumns(fs);
+        }
+        else if (_shouldGroupByCharge)
         {
 
             Map<Integer,List<Feature>> chargeFeatureMap = new HashMap<Integer,List<Feature>>();
@@ -1057,11 +1064,77 @@ public class FeatureGrouper
         _featureSets.add(fs);
     }
 
+    /**
+     * Separate a column-backed featureset's rows by charge, without creating Feature objects, and add a
+     * column-backed featureset for each charge to the featureclusterer for that charge
+     * @param fs
+     */
+    protected void addSetByChargeFromColumns(FeatureSet fs)
+    {
+        FeatureColumns columns = fs.getColumns();
+        columns.syncViews();
+
+        Map<Integer,int[]> chargeRowsMap = new HashMap<Integer,int[]>();
+        Map<Integer,Integer> chargeRowCountMap = new HashMap<Integer,Integer>();
+        for (int i = 0; i < columns.size(); i++)
+        {
+            int charge = columns.getCharge(i);
+            if (charge == 0)
+                continue;
+            int[] rowsThisCharge = chargeRowsMap.get(charge);
+            int count = 0;
+            if (rowsThisCharge == null)
+            {
+                rowsThisCharge = new int[16];
+                _allObservedCharges.add(charge);
+            }
+            else
+            {
+                count = chargeRowCountMap.get(charge);
+                if (count == rowsThisCharge.length)
+                    rowsThisCharge = Arrays.copyOf(rowsThisCharge, 2 * count);
+            }
+            rowsThisCharge[count] = i;
+            chargeRowsMap.put(charge, rowsThisCharge);
+            chargeRowCountMap.put(charge, count + 1);
+        }
+
+        for (int charge : chargeRowsMap.keySet())
+        {
+            FeatureSet fsThisCharge = (FeatureSet) fs.clone();
+            fsThisCharge.setColumns(columns.subset(
+                    Arrays.copyOf(chargeRowsMap.get(charge), chargeRowCountMap.get(charge))));
+
+            FeatureClusterer featureClustererThisCharge = _chargeClustererMap.get(charge);
+            if (featureClustererThisCharge == null)
+            {
+                featureClustererThisCharge = createFeatureClusterer();
+                _chargeClustererMap.put(charge, featureClustererThisCharge);
+            }
+            featureClustererThisCharge.addSet(fsThisCharge);
+        }
+    }
+
     public FeatureSet getSet(int i)
     {
         return _featureClusterer.getSet(i);
     }
 
+    public int getNumThreads()
+    {
+        return _featureClusterer.getNumThreads();
+    }
+
+    /**
+     * Set the number of threads used to evaluate bucket sizes in calculateBestBuckets(), in
+     * BUCKET_EVALUATION_MODE_ONE_FROM_EACH.  Doesn't change the result
+     * @param numThreads
+     */
+    public void setNumThreads(int numThreads)
+    {
+        _featureClusterer.setNumThreads(numThreads);
+    }
+
     public int getConflictResolver()
     {
         return _conflictResolver;
@@ -57,6 +57,8 @@ public class FeatureSet implements Cloneable
     protected String _loadStatusMessage = null;
 
     protected Feature[] _features;
+    //compact storage, used instead of _features until someone asks for Feature objects
+    protected FeatureColumns _columns;
     private Map<String, Object> _properties = new HashMap<String, Object>();
 
     private String _tag; // optional tag for this feature set
@@ -104,6 +106,17 @@ public class FeatureSet implements Cloneable
     }
 
     public FeatureSet(File file, Color color)
+    {
+        this(file, color, false);
+    }
+
+    /**
+     * @param file
+     * @param color
+     * @param storeAsColumns load the features into column storage rather than Feature objects.  For very large
+     * files that will mostly be filtered or matched
+     */
+    public FeatureSet(File file, Color color, boolean storeAsColumns)
     {
         //initialize loading status values
         setLoadStatus(FEATURESET_LOAD_NOT_LOADED);
@@ -121,11 +134,14 @@ public class FeatureSet implements Cloneable
         {
             _sourceFile = file;
 //          ApplicationContext.setMessage("Loading file " + file);
-            loadFeatureFile(file);
+            loadFeatureFile(file, storeAsColumns);
             //check for load success before continuing
             if (getLoadStatus() == FEATURESET_LOAD_SUCCESS)
             {
-                Arrays.sort(_features, new Feature.MzScanAscComparator());
+                if (null != _columns)
+                    _columns = _columns.subset(_columns.getRowsByMzScan());
+                else
+                    Arrays.sort(_features, new Feature.MzScanAscComparator());
                 _color = color;
             }
         }
@@ -153,6 +169,17 @@ public class FeatureSet implements Cloneable
         inferExtraInformationTypesFromFeatures();
     }
 
+    /**
+     * A FeatureSet backed by column storage.  Selection works on the columns directly; Feature objects are
+     * only created if getFeatures() is called, at which point they replace the columns
+     * @param columns
+     */
+    public FeatureSet(FeatureColumns columns)
+    {
+        _columns = columns;
+        inferExtraInformationTypesFromFeatures();
+    }
+
     /**
      * For each feature, determine its set of extra information types,
      * using the property names set on the feature.
@@ -166,12 +193,17 @@ public class FeatureSet implements Cloneable
     {
         Set<FeatureExtraInformationDef> extraInfoSet =
                 new HashSet<FeatureExtraInformationDef>();
-        for (Feature feature : _features)
+        if (null == _features && null != _columns)
+            extraInfoSet.addAll(Arrays.asList(_columns.determineExtraInformationTypes()));
+        else
         {
-            for (FeatureExtraInformationDef featureInfoDef :
-                    feature.determineExtraInformationTypes())
+            for (Feature feature : _features)
             {
-                extraInfoSet.add(featureInfoDef);
+                for (FeatureExtraInformationDef featureInfoDef :
+                        feature.determineExtraInformationTypes())
+                {
+                    extraInfoSet.add(featureInfoDef);
+                }
             }
         }
         removeAllExtraInformationTypes();
@@ -407,22 +439,98 @@ public class FeatureSet implements Cloneable
         return ranges;
     }
 
+    /**
+     * If this set is backed by columns, selection runs over the columns, and Feature objects are created only
+     * for the selected rows.  They're the same objects getFeatures() will return later, so changes made to them
+     * are kept
+     * @param sel
+     * @return
+     */
     public Feature[] getFeatures(FeatureSelector sel)
     {
         if (null == _features)
+        {
+            if (null != _columns)
+                return _columns.getFeatures(_columns.select(sel));
             return null;
+        }
 
         return selectFeatures(_features, sel);
     }
 
+    /**
+     * If this set is backed by columns, this creates the Feature objects, and from then on they, not the
+     * columns, hold this set's features.  Any Feature objects already handed out for rows are reused
+     * @return
+     */
     public Feature[] getFeatures()
     {
+        if (null == _features && null != _columns)
+        {
+            _features = _columns.getFeatures();
+            _columns = null;
+        }
         return _features;
     }
 
+    /**
+     * Number of features, without creating Feature objects for a column-backed set
+     * @return
+     */
+    public int getFeatureCount()
+    {
+        if (null != _features)
+            return _features.length;
+        return null == _columns ? 0 : _columns.size();
+    }
+
+    /**
+     * @return true if this set's features are in column storage rather than Feature objects
+     */
+    public boolean isStoredAsColumns()
+    {
+        return null == _features && null != _columns;
+    }
+
     public void setFeatures(Feature[] features)
     {
         _features = features;
+        _columns = null;
+    }
+
+    /**
+     * Back this set with column storage, replacing its Feature objects
+     * @param columns
+     */
+    public void setColumns(FeatureColumns columns)
+    {
+        _columns = columns;
+        _features = null;
+    }
+
+    /**
+     * Column storage for this set's features.  If the set is backed by Feature objects, this is a new copy of
+     * them, which won't see later changes to the features
+     * @return
+     */
+    public FeatureColumns getColumns()
+    {
+        if (null != _columns)
+            return _columns;
+        return null == _features ? null : new FeatureColumns(_features);
+    }
+
+    /**
+     * Move this set's features into column storage and let go of the Feature objects.  For very large sets
+     * that are only selected from, matched or written out
+     */
+    public void storeAsColumns()
+    {
+        if (null != _features)
+        {
+            _columns = new FeatureColumns(_features);
+            _features = null;
+        }
     }
 
     public String getTag()
@@ -435,11 +543,22 @@ public class FeatureSet implements Cloneable
         _tag = tag;
     }
 
+    /**
+     * A new FeatureSet with the features that pass the selector.  A column-backed set's filtered set is also
+     * column-backed, and selection runs over the columns
+     * @param sel
+     * @return
+     */
     public FeatureSet filter(FeatureSelector sel)
     {
         FeatureSet fs = (FeatureSet)this.clone();
-        Feature[] features = getFeatures(sel);
-        fs.setFeatures(features);
+        if (isStoredAsColumns())
+        {
+            fs._features = null;
+            fs._columns = _columns.subset(_columns.select(sel));
+        }
+        else
+            fs.setFeatures(getFeatures(sel));
         fs.setColor(this.getColor());
         Map<String,Object> properties = new HashMap<String,Object>();
         properties.putAll(this.getProperties());
@@ -458,8 +577,9 @@ public class FeatureSet implements Cloneable
 
     public int findNearestFeatureIndex(int scan, float mz, int maxScanDistance, float maxMzDistance)
     {
+        Feature[] features = getFeatures();
         Feature feature = new Feature(scan, mz, 1);
-        int index = Arrays.binarySearch(_features, feature, new Feature.MzScanAscComparator());
+        int index = Arrays.binarySearch(features, feature, new Feature.MzScanAscComparator());
         double minDistance = Float.MAX_VALUE;
         int nearestFeature = -1;
 
@@ -471,7 +591,7 @@ public class FeatureSet implements Cloneable
         //Didn't find an exact match. Search for nearest feature in 2 dimensions
         for (int i = pos - 1; i >= 0; i--)
         {
-            Feature f = _features[i];
+            Feature f = features[i];
             float mzDist = Math.abs(mz - f.mz);
             if (mzDist > maxMzDistance || mzDist > minDistance)
                 break;
@@ -488,9 +608,9 @@ public class FeatureSet implements Cloneable
             }
         }
 
-        for (int i = pos; i < _features.length; i++)
+        for (int i = pos; i < features.length; i++)
         {
-            Feature f = _features[i];
+            Feature f = features[i];
             float mzDist = Math.abs(mz - f.mz);
             if (mzDist > minDistance || mzDist > maxMzDistance) //Not going to get any closer since sorted by Mz
                 return nearestFeature;
@@ -513,7 +633,7 @@ public class FeatureSet implements Cloneable
     public Feature findNearestFeature(int scan, float mz, int maxScanDistance, float maxMzDistance)
     {
         int index = findNearestFeatureIndex(scan, mz, maxScanDistance, maxMzDistance);
-        return index < 0 ? null : _features[index];
+        return index < 0 ? null : getFeatures()[index];
     }
 
     public Object clone()
@@ -540,9 +660,10 @@ public class FeatureSet implements Cloneable
      */
     public FeatureSet deepCopy()
     {
-        Feature[] features = new Feature[_features.length];
-        for (int i = 0; i < _features.length; i++)
-            features[i] = (Feature) _features[i].clone();
+        Feature[] oldFeatures = getFeatures();
+        Feature[] features = new Feature[oldFeatures.length];
+        for (int i = 0; i < oldFeatures.length; i++)
+            features[i] = (Feature) oldFeatures[i].clone();
 
         FeatureSet fs = new FeatureSet(features, _color);
         fs.setDisplayed(_displayed);
@@ -974,6 +1095,16 @@ public class FeatureSet implements Cloneable
     * @param	file	the file containing features to load
     */
     public void loadFeatureFile(File file) throws Exception
+    {
+        loadFeatureFile(file, false);
+    }
+
+    /*
+    * @param	file	the file containing features to load
+    * @param	storeAsColumns	load into column storage.  msInspect .tsv files are loaded into the columns row by
+    *                       row; other formats are loaded as Feature objects first
+    */
+    public void loadFeatureFile(File file, boolean storeAsColumns) throws Exception
     {
         //first check if the file exists
         if (file == null || !file.exists())
@@ -1016,12 +1147,21 @@ public class FeatureSet implements Cloneable
 
         try
         {
-            FeatureSet loadedFeatureSet = fileHandler.loadFeatureSet(file);
+            FeatureSet loadedFeatureSet;
+            if (storeAsColumns && fileHandler instanceof NativeTSVFeatureFileHandler)
+                loadedFeatureSet = ((NativeTSVFeatureFileHandler) fileHandler).loadFeatureSetAsColumns(file);
+            else
+            {
+                loadedFeatureSet = fileHandler.loadFeatureSet(file);
+                if (storeAsColumns)
+                    loadedFeatureSet.storeAsColumns();
+            }
 
             //This is a bit cumbersome: load up the file in the handler, then take
             //the resulting FeatureSet and copy all the important stuff here.
-            _features = loadedFeatureSet.getFeatures();
-            _log.debug("Loaded " + _features.length + " features from file");
+            _features = loadedFeatureSet._features;
+            _columns = loadedFeatureSet._columns;
+            _log.debug("Loaded " + getFeatureCount() + " features from file");
             setProperties(loadedFeatureSet._properties);
             for(FeatureExtraInformationDef infoType : loadedFeatureSet.getExtraInformationTypes())
                 addExtraInformationType(infoType);
@@ -1030,7 +1170,7 @@ public class FeatureSet implements Cloneable
 
             //if we got here, load was successful
             setLoadStatus(FeatureSet.FEATURESET_LOAD_SUCCESS);
-            setLoadStatusMessage(_features.length + " Features loaded successfully");
+            setLoadStatusMessage(getFeatureCount() + " Features loaded successfully");
         }
         catch (IOException e)
         {
@@ -1047,7 +1187,7 @@ public class FeatureSet implements Cloneable
 
         //"success" case
         //if no features found, report
-        if (_features == null || _features.length == 0)
+        if (getFeatureCount() == 0)
         {
             _log.info("User attempted to load file with no features");
             setLoadStatus(FEATURESET_LOAD_ERROR_NO_FEATURES_FOUND);
@@ -311,11 +311,23 @@ public class Spectrum
     static CPUTimer timerResample = new CPUTimer("Spectrum.Resample()");
 
     public static float[] Resample(float[][] spectrum, FloatRange r, int resolution)
+    {
+        return Resample(spectrum, r, resolution, null, null);
+    }
+
+
+    /**
+     * Resample into caller-supplied arrays, to avoid allocating for every spectrum
+     * @param out if not null, must have length ResampleLength(r, resolution)
+     * @param weights scratch space.  If not null, must have length ResampleLength(r, resolution)
+     * @return out, or a new array if out was null
+     */
+    public static float[] Resample(float[][] spectrum, FloatRange r, int resolution, float[] out, float[] weights)
     {
         try
         {
             assert timerResample.start();
-            return Resample2(spectrum, r, resolution);
+            return Resample2(spectrum, r, resolution, out, weights);
         }
         finally
         {
@@ -379,7 +391,16 @@ public class Spectrum
     }
 
 
-    private static float[] Resample2(float[][] spectrum, FloatRange r, int resolution)
+    /**
+     * Length of the result of Resample()
+     */
+    public static int ResampleLength(FloatRange r, int resolution)
+    {
+        return resolution * ((int) r.max - (int) r.min) + 1;
+    }
+
+
+    private static float[] Resample2(float[][] spectrum, FloatRange r, int resolution, float[] out, float[] weights)
     {
         if (spectrum.length != 2)
             throw new IllegalArgumentException();
@@ -392,8 +413,17 @@ public class Spectrum
         //  b) it only affects small noise and edge of peaks
         // I don't think it actually affects results
 
-        float[] out = new float[resolution * ((int) r.max - (int) r.min) + 1];
-        float[] weights = new float[out.length];
+        int length = ResampleLength(r, resolution);
+        if (null == out)
+            out = new float[length];
+        else
+            Arrays.fill(out, 0F);
+        if (null == weights)
+            weights = new float[length];
+        else
+            Arrays.fill(weights, 0F);
+        if (out.length != length || weights.length != length)
+            throw new IllegalArgumentException("Resampling buffers must have length " + length);
 
         int start = Arrays.binarySearch(spectrum[0], r.min-1F/resolution);
         start = start < 0 ? -(start+1) : start;
@@ -16,6 +16,7 @@
 package org.fhcrc.cpl.toolbox.proteomics.feature.filehandler;
 
 import org.fhcrc.cpl.toolbox.proteomics.feature.FeatureSet;
+import org.fhcrc.cpl.toolbox.proteomics.feature.FeatureColumns;
 import org.fhcrc.cpl.toolbox.proteomics.feature.FeatureAsMap;
 import org.fhcrc.cpl.toolbox.proteomics.feature.Feature;
 import org.fhcrc.cpl.toolbox.proteomics.feature.extraInfo.FeatureExtraInformationDef;
@@ -29,6 +30,7 @@ import java.io.FileOutputStream;
 import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Arrays;
 
 /**
@@ -44,6 +46,168 @@ public class NativeTSVFeatureFileHandler extends BaseFeatureSetFileHandler
 
     protected static NativeTSVFeatureFileHandler singletonInstance = null;
 
+    //Setters for the standard columns, by property name, so that loading doesn't call them by reflection
+    protected static final Map<String, TabLoader.PropertySetter> featurePropertySetters =
+            new HashMap<String, TabLoader.PropertySetter>();
+    static
+    {
+        featurePropertySetters.put("scan", new TabLoader.IntPropertySetter()
+        {
+            public void setInt(Object feature, int value)
+            {
+                ((Feature) feature).setScan(value);
+            }
+        });
+        featurePropertySetters.put("time", new TabLoader.FloatPropertySetter()
+        {
+            public void setFloat(Object feature, float value)
+            {
+                ((Feature) feature).setTime(value);
+            }
+        });
+        featurePropertySetters.put("mz", new TabLoader.FloatPropertySetter()
+        {
+            public void setFloat(Object feature, float value)
+            {
+                ((Feature) feature).setMz(value);
+            }
+        });
+        featurePropertySetters.put("accurateMZ", new TabLoader.BooleanPropertySetter()
+        {
+            public void setBoolean(Object feature, boolean value)
+            {
+                ((Feature) feature).setAccurateMZ(value);
+            }
+        });
+        featurePropertySetters.put("mass", new TabLoader.FloatPropertySetter()
+        {
+            public void setFloat(Object feature, float value)
+            {
+                ((Feature) feature).setMass(value);
+            }
+        });
+        featurePropertySetters.put("intensity", new TabLoader.FloatPropertySetter()
+        {
+            public void setFloat(Object feature, float value)
+            {
+                ((Feature) feature).setIntensity(value);
+            }
+        });
+        featurePropertySetters.put("charge", new TabLoader.IntPropertySetter()
+        {
+            public void setInt(Object feature, int value)
+            {
+                ((Feature) feature).setCharge(value);
+            }
+        });
+        featurePropertySetters.put("chargeStates", new TabLoader.IntPropertySetter()
+        {
+            public void setInt(Object feature, int value)
+            {
+                ((Feature) feature).setChargeStates(value);
+            }
+        });
+        featurePropertySetters.put("kl", new TabLoader.FloatPropertySetter()
+        {
+            public void setFloat(Object feature, float value)
+            {
+                ((Feature) feature).setKl(value);
+            }
+        });
+        featurePropertySetters.put("background", new TabLoader.FloatPropertySetter()
+        {
+            public void setFloat(Object feature, float value)
+            {
+                ((Feature) feature).setBackground(value);
+            }
+        });
+        featurePropertySetters.put("median", new TabLoader.FloatPropertySetter()
+        {
+            public void setFloat(Object feature, float value)
+            {
+                ((Feature) feature).setMedian(value);
+            }
+        });
+        featurePropertySetters.put("peaks", new TabLoader.IntPropertySetter()
+        {
+            public void setInt(Object feature, int value)
+            {
+                ((Feature) feature).setPeaks(value);
+            }
+        });
+        featurePropertySetters.put("scanFirst", new TabLoader.IntPropertySetter()
+        {
+            public void setInt(Object feature, int value)
+            {
+                ((Feature) feature).setScanFirst(value);
+            }
+        });
+        featurePropertySetters.put("scanLast", new TabLoader.IntPropertySetter()
+        {
+            public void setInt(Object feature, int value)
+            {
+                ((Feature) feature).setScanLast(value);
+            }
+        });
+        featurePropertySetters.put("scanCount", new TabLoader.IntPropertySetter()
+        {
+            public void setInt(Object feature, int value)
+            {
+                ((Feature) feature).setScanCount(value);
+            }
+        });
+        featurePropertySetters.put("totalIntensity", new TabLoader.FloatPropertySetter()
+        {
+            public void setFloat(Object feature, float value)
+            {
+                ((Feature) feature).setTotalIntensity(value);
+            }
+        });
+        featurePropertySetters.put("sumSquaresDist", new TabLoader.FloatPropertySetter()
+        {
+            public void setFloat(Object feature, float value)
+            {
+                ((Feature) feature).setSumSquaresDist(value);
+            }
+        });
+        featurePropertySetters.put("description", new TabLoader.PropertySetter()
+        {
+            public void set(Object feature, Object value)
+            {
+                ((Feature) feature).setDescription((String) value);
+            }
+        });
+    }
+
+    /**
+     * Turn on fast parsing for a loader of Features (or subclasses), and bind the standard columns to their
+     * setters
+     * @param loader
+     * @throws IOException
+     */
+    public static void setUpFastParsing(TabLoader loader)
+            throws IOException
+    {
+        loader.setFastParsing(true);
+        for (TabLoader.ColumnDescriptor col : loader.getColumns())
+        {
+            if (col.isProperty)
+                col.propertySetter = featurePropertySetters.get(col.name);
+        }
+    }
+
+    /**
+     * Load a renamed column as the int property it's now named for, as TabLoader would have if the file
+     * had used that name
+     * @param col
+     */
+    protected static void setIntPropertyColumn(TabLoader.ColumnDescriptor col)
+    {
+        col.isProperty = true;
+        col.clazz = Integer.TYPE;
+        col.missingValues = 0;
+    }
+
     public static NativeTSVFeatureFileHandler getSingletonInstance()
     {
         if (singletonInstance == null)
@@ -59,6 +223,25 @@ public class NativeTSVFeatureFileHandler extends BaseFeatureSetFileHandler
      */
     public FeatureSet loadFeatureSet(File file)
             throws IOException
+    {
+        return loadFeatureSet(file, false);
+    }
+
+    /**
+     * Load a FeatureSet into column storage.  Each row goes into the columns as it's read, so the whole file is
+     * never held as Feature objects
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public FeatureSet loadFeatureSetAsColumns(File file)
+            throws IOException
+    {
+        return loadFeatureSet(file, true);
+    }
+
+    protected FeatureSet loadFeatureSet(File file, boolean asColumns)
+            throws IOException
     {
         FeatureSet result = new FeatureSet();
         TabLoader loader = new TabLoader(file, FeatureAsMap.class);
@@ -76,11 +259,13 @@ public class NativeTSVFeatureFileHandler extends BaseFeatureSetFileHandler
             {
                 col.name = "scanFirst";
                 col.load = true;
+                setIntPropertyColumn(col);
             }
             else if (col.name.equals("end"))
             {
                 col.name = "scanLast";
                 col.load = true;
+                setIntPropertyColumn(col);
             }
             //if this column indicates a known extra info type, register it
             FeatureExtraInformationDef infoDef =
@@ -93,12 +278,37 @@ public class NativeTSVFeatureFileHandler extends BaseFeatureSetFileHandler
                 }
             }
         }
+        //after the renaming, so that the renamed columns get setters too
+        setUpFastParsing(loader);
+
         if (cols.length > 0)
         {
-            features = (Feature[]) loader.load();
-            for (Feature feature : features)
-                feature.afterPopulate();
-            result.setFeatures(features);
+            if (asColumns)
+            {
+                FeatureColumns columns = new FeatureColumns();
+                TabLoader.TabLoaderIterator rows = loader.iterator();
+                try
+                {
+                    while (rows.hasNext())
+                    {
+                        Feature feature = (Feature) rows.next();
+                        feature.afterPopulate();
+                        columns.add(feature);
+                    }
+                }
+                finally
+                {
+                    rows.close();
+                }
+                result.setColumns(columns);
+            }
+            else
+            {
+                features = (Feature[]) loader.load();
+                for (Feature feature : features)
+                    feature.afterPopulate();
+                result.setFeatures(features);
+            }
         }
 
         for (FeatureExtraInformationDef infoType : result.getExtraInformationTypes())
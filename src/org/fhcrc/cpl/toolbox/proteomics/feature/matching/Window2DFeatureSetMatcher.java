@@ -17,6 +17,7 @@ package org.fhcrc.cpl.toolbox.proteomics.feature.matching;
 
 import org.fhcrc.cpl.toolbox.proteomics.feature.Feature;
 import org.fhcrc.cpl.toolbox.proteomics.feature.FeatureSet;
+import org.fhcrc.cpl.toolbox.proteomics.feature.FeatureColumns;
 import org.fhcrc.cpl.toolbox.proteomics.feature.matching.FeatureSetMatcher;
 import org.fhcrc.cpl.toolbox.proteomics.feature.extraInfo.AmtExtraInfoDef;
 import org.fhcrc.cpl.toolbox.proteomics.MassUtilities;
@@ -26,6 +27,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Attempts to match one feature set against another using a window of minimum and maximum
@@ -63,6 +69,12 @@ public class Window2DFeatureSetMatcher
     //match features only if they have the same charge?
     protected boolean matchWithinChargeOnly = false;
 
+    //Match over mass-sorted primitive arrays, sliding a window along the slave features as we move up
+    //through the master features in mass order, rather than searching Feature arrays.  Results are identical
+    protected boolean sortedArrayMatching = false;
+    //number of threads to split the master features across, in sorted-array mode
+    protected int numThreads = 1;
+
 
     public Window2DFeatureSetMatcher()
     {
@@ -100,6 +112,9 @@ public class Window2DFeatureSetMatcher
     public FeatureSetMatcher.FeatureMatchingResult matchFeatures(FeatureSet masterFeatures,
                                                FeatureSet slaveFeatures)
     {
+        if (sortedArrayMatching)
+            return matchFeaturesSorted(masterFeatures, slaveFeatures);
+
         FeatureSetMatcher.FeatureMatchingResult result =
                 new FeatureSetMatcher.FeatureMatchingResult();
 
@@ -227,6 +242,304 @@ public class Window2DFeatureSetMatcher
         return result;
     }
 
+    /**
+     * Sorted-array version of matchFeatures().  Both sets are put in mass order; mass, elution and charge
+     * are copied into primitive arrays; and each thread takes a contiguous stretch of the mass-ordered master
+     * features, keeping the bounds of the slave mass window as it goes rather than searching for them.
+     *
+     * The result is the same as matchFeatures()'s, including the order of each master feature's matches.
+     *
+     * Sets stored as columns are matched from their columns, and Feature objects are created only for the
+     * features that match
+     * @param masterFeatures
+     * @param slaveFeatures
+     * @return
+     */
+    public FeatureSetMatcher.FeatureMatchingResult matchFeaturesSorted(FeatureSet masterFeatures,
+                                                                      FeatureSet slaveFeatures)
+    {
+        Feature[] masterFeatureArray = null;
+        FeatureColumns masterColumns = null;
+        final FeatureArrays masterArrays;
+        if (masterFeatures.isStoredAsColumns())
+        {
+            masterColumns = masterFeatures.getColumns();
+            masterArrays = new FeatureArrays(masterColumns, null);
+        }
+        else
+        {
+            masterFeatureArray = masterFeatures.getFeatures();
+            masterArrays = new FeatureArrays(masterFeatureArray);
+        }
+
+        //slaves in mass order
+        Feature[] slaveFeatureArray = null;
+        FeatureColumns slaveColumns = null;
+        int[] slaveRows = null;
+        final FeatureArrays slaveArrays;
+        if (slaveFeatures.isStoredAsColumns())
+        {
+            slaveColumns = slaveFeatures.getColumns();
+            slaveRows = slaveColumns.getRowsByMass();
+            slaveArrays = new FeatureArrays(slaveColumns, slaveRows);
+        }
+        else
+        {
+            slaveFeatureArray = slaveFeatures.getFeatures().clone();
+            Arrays.sort(slaveFeatureArray, new Feature.MassAscComparator());
+            slaveArrays = new FeatureArrays(slaveFeatureArray);
+        }
+        final int[] masterOrder = masterArrays.getMassOrder();
+        int numMasters = masterOrder.length;
+
+        //matched slave indexes, per master feature
+        final int[][] matches = new int[numMasters][];
+
+        int threads = Math.max(1, Math.min(numThreads, masterOrder.length / 1000));
+        if (threads == 1)
+            matchRange(masterArrays, slaveArrays, masterOrder, 0, masterOrder.length, matches);
+        else
+        {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try
+            {
+                List<Future<Object>> futures = new ArrayList<Future<Object>>();
+                for (int t = 0; t < threads; t++)
+                {
+                    final int from = (int) ((long) masterOrder.length * t / threads);
+                    final int to = (int) ((long) masterOrder.length * (t + 1) / threads);
+                    futures.add(executor.submit(new Callable<Object>()
+                    {
+                        public Object call()
+                        {
+                            matchRange(masterArrays, slaveArrays, masterOrder, from, to, matches);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Object> future : futures)
+                    future.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while matching features", e);
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new RuntimeException("Failure while matching features", e.getCause());
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+
+        //add results in the original master order, as matchFeatures() does
+        FeatureSetMatcher.FeatureMatchingResult result =
+                new FeatureSetMatcher.FeatureMatchingResult();
+        for (int i = 0; i < numMasters; i++)
+        {
+            if (null == matches[i])
+                continue;
+            List<Feature> matchedSlaveFeatures = new ArrayList<Feature>(matches[i].length);
+            for (int slaveIndex : matches[i])
+                matchedSlaveFeatures.add(null == slaveColumns ? slaveFeatureArray[slaveIndex] :
+                        slaveColumns.getFeature(slaveRows[slaveIndex]));
+            result.put(null == masterColumns ? masterFeatureArray[i] : masterColumns.getFeature(i),
+                    matchedSlaveFeatures);
+        }
+        return result;
+    }
+
+    /**
+     * Match master features [from, to) in mass order.  Slaves [windowStart, windowEnd) are those whose
+     * mass difference isn't above the max (below the master's mass) or below the min (above it)
+     */
+    protected void matchRange(FeatureArrays masters, FeatureArrays slaves, int[] masterOrder,
+                              int from, int to, int[][] matches)
+    {
+        float[] slaveMasses = slaves.masses;
+        int numSlaves = slaveMasses.length;
+        int[] buffer = new int[16];
+        int windowStart = -1;
+        int windowEnd = -1;
+        for (int j = from; j < to; j++)
+        {
+            int masterIndex = masterOrder[j];
+            float masterMass = masters.masses[masterIndex];
+            float absoluteMinMassDiff =
+                    MassUtilities.calculateAbsoluteDeltaMass(masterMass, minMassDiff, massDiffType);
+            float absoluteMaxMassDiff =
+                    MassUtilities.calculateAbsoluteDeltaMass(masterMass, maxMassDiff, massDiffType);
+
+            //same starting point as findMatchingFeatures()
+            int centerPos = Arrays.binarySearch(slaveMasses, masterMass);
+            if (centerPos < 0)
+                centerPos = -centerPos - 1;
+            if (windowStart < 0)
+                windowStart = windowEnd = centerPos;
+
+            //mass difference never increases with slave index, so the window bounds only move a little from
+            //one master to the next
+            while (windowStart < numSlaves && masterMass - slaveMasses[windowStart] > absoluteMaxMassDiff)
+                windowStart++;
+            while (windowStart > 0 && masterMass - slaveMasses[windowStart - 1] <= absoluteMaxMassDiff)
+                windowStart--;
+            while (windowEnd < numSlaves && masterMass - slaveMasses[windowEnd] >= absoluteMinMassDiff)
+                windowEnd++;
+            while (windowEnd > 0 && masterMass - slaveMasses[windowEnd - 1] < absoluteMinMassDiff)
+                windowEnd--;
+            int downStart = Math.min(windowStart, centerPos);
+            int upEnd = Math.max(windowEnd, centerPos);
+
+            //alternate up and down from the center, the order findMatchingFeatures() adds them in
+            int numMatches = 0;
+            for (int offset = 0; centerPos + offset < upEnd || centerPos - offset - 1 >= downStart; offset++)
+            {
+                int up = centerPos + offset;
+                if (up < upEnd && isElutionAndChargeMatch(masters, masterIndex, slaves, up))
+                    buffer = addMatch(buffer, numMatches++, up);
+                int down = centerPos - offset - 1;
+                if (down >= downStart && isElutionAndChargeMatch(masters, masterIndex, slaves, down))
+                    buffer = addMatch(buffer, numMatches++, down);
+            }
+            if (numMatches > 0)
+                matches[masterIndex] = Arrays.copyOf(buffer, numMatches);
+        }
+    }
+
+    protected static int[] addMatch(int[] buffer, int position, int slaveIndex)
+    {
+        if (position == buffer.length)
+            buffer = Arrays.copyOf(buffer, 2 * position);
+        buffer[position] = slaveIndex;
+        return buffer;
+    }
+
+    protected boolean isElutionAndChargeMatch(FeatureArrays masters, int masterIndex,
+                                              FeatureArrays slaves, int slaveIndex)
+    {
+        float elutionDiff;
+        switch (elutionRangeMode)
+        {
+            case ELUTION_RANGE_MODE_POINT:
+                elutionDiff = (float) (masters.pointElutions[masterIndex] - slaves.pointElutions[slaveIndex]);
+                break;
+            case ELUTION_RANGE_MODE_RANGE:
+                float f1Min = masters.minElutions[masterIndex];
+                float f1Max = masters.maxElutions[masterIndex];
+                float f2Min = slaves.minElutions[slaveIndex];
+                float f2Max = slaves.maxElutions[slaveIndex];
+                if (f1Min > f2Min)
+                    elutionDiff = Math.max(0, f1Min - f2Max);
+                else if (f2Max > f1Max)
+                    elutionDiff = Math.max(0, f2Min - f1Max);
+                else
+                    elutionDiff = 0;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown elution range mode");
+        }
+        return elutionDiff >= minElutionDiff && elutionDiff <= maxElutionDiff &&
+                (!matchWithinChargeOnly || masters.charges[masterIndex] == slaves.charges[slaveIndex]);
+    }
+
+    /**
+     * The values matching looks at, copied out of the features once, in the features' order
+     */
+    protected class FeatureArrays
+    {
+        protected float[] masses;
+        protected int[] charges;
+        protected double[] pointElutions;
+        protected float[] minElutions;
+        protected float[] maxElutions;
+
+        public FeatureArrays(Feature[] features)
+        {
+            int n = features.length;
+            masses = new float[n];
+            charges = new int[n];
+            if (elutionRangeMode == ELUTION_RANGE_MODE_RANGE)
+            {
+                minElutions = new float[n];
+                maxElutions = new float[n];
+            }
+            else
+                pointElutions = new double[n];
+            for (int i = 0; i < n; i++)
+            {
+                Feature feature = features[i];
+                masses[i] = feature.mass;
+                charges[i] = feature.getCharge();
+                if (elutionRangeMode == ELUTION_RANGE_MODE_RANGE)
+                {
+                    minElutions[i] = (float) getMinElutionRangeValue(feature);
+                    maxElutions[i] = (float) getMaxElutionRangeValue(feature);
+                }
+                else
+                    pointElutions[i] = getPointElutionValue(feature);
+            }
+        }
+
+        /**
+         * Copy the values out of column storage
+         * @param columns
+         * @param rows the rows, in the order to copy them.  null for all rows in row order
+         */
+        public FeatureArrays(FeatureColumns columns, int[] rows)
+        {
+            columns.syncViews();
+            int n = null == rows ? columns.size() : rows.length;
+            masses = new float[n];
+            charges = new int[n];
+            if (elutionRangeMode == ELUTION_RANGE_MODE_RANGE)
+            {
+                minElutions = new float[n];
+                maxElutions = new float[n];
+            }
+            else
+                pointElutions = new double[n];
+            for (int j = 0; j < n; j++)
+            {
+                int i = null == rows ? j : rows[j];
+                masses[j] = columns.getMass(i);
+                charges[j] = columns.getCharge(i);
+                if (elutionRangeMode == ELUTION_RANGE_MODE_RANGE)
+                {
+                    minElutions[j] = (float) getMinElutionRangeValue(columns, i);
+                    maxElutions[j] = (float) getMaxElutionRangeValue(columns, i);
+                }
+                else
+                    pointElutions[j] = getPointElutionValue(columns, i);
+            }
+        }
+
+        /**
+         * @return indexes in ascending mass order, ties in index order
+         */
+        public int[] getMassOrder()
+        {
+            //sort (mass, index) pairs packed into longs.  The mass bits are flipped for negative values so
+            //that they order as integers the way the floats do
+            long[] keys = new long[masses.length];
+            for (int i = 0; i < masses.length; i++)
+            {
+                int bits = Float.floatToIntBits(masses[i]);
+                bits ^= (bits >> 31) & 0x7fffffff;
+                keys[i] = ((long) bits << 32) | i;
+            }
+            Arrays.sort(keys);
+            int[] order = new int[keys.length];
+            for (int i = 0; i < keys.length; i++)
+                order[i] = (int) keys[i];
+            return order;
+        }
+    }
+
     protected float calcElutionDiff(Feature feature1, Feature feature2)
     {
         switch (elutionRangeMode)
@@ -270,6 +583,22 @@ public class Window2DFeatureSetMatcher
         }
     }
 
+    /**
+     * Column storage version of getMinElutionRangeValue(Feature)
+     */
+    protected double getMinElutionRangeValue(FeatureColumns columns, int row)
+    {
+        switch (elutionMode)
+        {
+            case ELUTION_MODE_TIME:
+                return columns.getTime(row);
+            case ELUTION_MODE_SCAN:
+                return columns.getScanFirst(row);
+            default:
+                return getObservedHydrophobicity(columns, row);
+        }
+    }
+
     /**
      * switch on elutionMode to return the appropriate elution value for this feature
      * @param feature
@@ -291,6 +620,22 @@ public class Window2DFeatureSetMatcher
     }
 
 
+    /**
+     * Column storage version of getMaxElutionRangeValue(Feature)
+     */
+    protected double getMaxElutionRangeValue(FeatureColumns columns, int row)
+    {
+        switch (elutionMode)
+        {
+            case ELUTION_MODE_TIME:
+                return columns.getTime(row);
+            case ELUTION_MODE_SCAN:
+                return columns.getScanLast(row);
+            default:
+                return getObservedHydrophobicity(columns, row);
+        }
+    }
+
     /**
      * switch on elutionMode to return the appropriate elution value for this feature
      * @param feature
@@ -311,6 +656,28 @@ public class Window2DFeatureSetMatcher
         }
     }
 
+    /**
+     * Column storage version of getPointElutionValue(Feature)
+     */
+    protected double getPointElutionValue(FeatureColumns columns, int row)
+    {
+        switch (elutionMode)
+        {
+            case ELUTION_MODE_TIME:
+                return columns.getTime(row);
+            case ELUTION_MODE_SCAN:
+                return columns.getScan(row);
+            default:
+                return getObservedHydrophobicity(columns, row);
+        }
+    }
+
+    protected static double getObservedHydrophobicity(FeatureColumns columns, int row)
+    {
+        return columns.getDoubleProperty(row, "observedhydrophobicity",
+                AmtExtraInfoDef.NO_OBSERVED_HYDROPHOBICITY);
+    }
+
     public float getMinMassDiff()
     {
         return minMassDiff;
@@ -394,4 +761,24 @@ public class Window2DFeatureSetMatcher
     {
         this.matchWithinChargeOnly = matchWithinChargeOnly;
     }
+
+    public boolean isSortedArrayMatching()
+    {
+        return sortedArrayMatching;
+    }
+
+    public void setSortedArrayMatching(boolean sortedArrayMatching)
+    {
+        this.sortedArrayMatching = sortedArrayMatching;
+    }
+
+    public int getNumThreads()
+    {
+        return numThreads;
+    }
+
+    public void setNumThreads(int numThreads)
+    {
+        this.numThreads = numThreads;
+    }
 }
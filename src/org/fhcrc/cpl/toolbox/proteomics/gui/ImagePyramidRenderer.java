@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fhcrc.cpl.toolbox.proteomics.gui;
+
+import org.apache.log4j.Logger;
+import org.fhcrc.cpl.toolbox.proteomics.MSRunImagePyramid;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Draws an MSRunImagePyramid in a color scheme, a visible tile at a time.
+ *
+ * draw() picks the level that matches the zoom factor and draws the tiles of that level that are ready.  For
+ * tiles that aren't, it draws the best coarser tile that is, and asks the background thread for them.  Only the
+ * tiles needed by the latest draw() are rendered; older requests are dropped.  Each time a tile is ready, the
+ * listener is told (on the render thread), so it can repaint.
+ *
+ * Rendered tiles are kept in a least-recently-used cache.
+ */
+public class ImagePyramidRenderer
+{
+    private static Logger _log = Logger.getLogger(ImagePyramidRenderer.class);
+
+    protected static final int MAX_CACHED_TILES = 128;
+
+    protected MSRunImagePyramid pyramid;
+    protected String colorScheme;
+    protected Runnable tileReadyListener;
+
+    //rendered tiles.  Tiles with nothing to draw are cached as blankTile
+    protected final Map<TileKey, BufferedImage> tileCache =
+            new LinkedHashMap<TileKey, BufferedImage>(16, 0.75f, true)
+            {
+                protected boolean removeEldestEntry(Map.Entry<TileKey, BufferedImage> eldest)
+                {
+                    return size() > MAX_CACHED_TILES;
+                }
+            };
+    protected BufferedImage blankTile;
+
+    //tiles waiting to be rendered, most wanted first.  Guarded by tileCache
+    protected LinkedList<TileKey> pendingTiles = new LinkedList<TileKey>();
+    protected Thread renderThread = null;
+    protected volatile boolean disposed = false;
+
+    public ImagePyramidRenderer(MSRunImagePyramid pyramid, String colorScheme, Runnable tileReadyListener)
+    {
+        this.pyramid = pyramid;
+        this.colorScheme = colorScheme;
+        this.tileReadyListener = tileReadyListener;
+        blankTile = renderTile(null, MSRunImagePyramid.TILE_SIZE);
+    }
+
+    /**
+     * Draw the part of the pyramid within a rectangle, in image coordinates
+     * @param g graphics in image coordinates, scaled by the zoom factor
+     * @param clip the area to draw, in image coordinates
+     * @param zoomFactor
+     */
+    public void draw(Graphics2D g, Rectangle clip, double zoomFactor)
+    {
+        int level = pyramid.getLevelForZoom(zoomFactor);
+        int span = MSRunImagePyramid.getTileSpan(level);
+        int height = pyramid.getHeight();
+        clip = clip.intersection(new Rectangle(0, 0, pyramid.getWidth(), height));
+        if (clip.isEmpty())
+            return;
+
+        Shape oldClip = g.getClip();
+        g.clip(clip);
+        int firstTileX = clip.x / span;
+        int lastTileX = Math.min(pyramid.getTilesAcross(level) - 1, (clip.x + clip.width - 1) / span);
+        //image y runs down from the highest m/z
+        int firstTileY = Math.max(0, (height - (clip.y + clip.height)) / span);
+        int lastTileY = Math.min(pyramid.getTilesDown(level) - 1, (height - 1 - clip.y) / span);
+
+        List<TileKey> missing = new ArrayList<TileKey>();
+        for (int tx = firstTileX; tx <= lastTileX; tx++)
+        {
+            for (int ty = firstTileY; ty <= lastTileY; ty++)
+            {
+                TileKey key = new TileKey(level, tx, ty);
+                BufferedImage tile = getCachedTile(key);
+                if (tile != null)
+                {
+                    drawTile(g, key, tile);
+                    continue;
+                }
+                missing.add(key);
+                drawPlaceholder(g, key);
+            }
+        }
+        g.setClip(oldClip);
+        requestTiles(missing);
+    }
+
+    /**
+     * Draw the part of a coarser tile that covers this one, if there is one ready
+     */
+    protected void drawPlaceholder(Graphics2D g, TileKey key)
+    {
+        for (int level = key.level - 1; level >= pyramid.getMinLevel(); level--)
+        {
+            int shift = key.level - level;
+            TileKey coarser = new TileKey(level, key.tileX >> shift, key.tileY >> shift);
+            BufferedImage tile = getCachedTile(coarser);
+            if (tile == null)
+                continue;
+            //the source rectangle within the coarser tile, which is drawn at (x, y) and 2^shift times larger
+            int coarserWidth = tile.getWidth();
+            int fraction = 1 << shift;
+            int sx = (key.tileX & (fraction - 1)) * coarserWidth / fraction;
+            int sw = Math.max(1, coarserWidth / fraction);
+            int sh = Math.max(1, MSRunImagePyramid.TILE_SIZE / fraction);
+            int sy = MSRunImagePyramid.TILE_SIZE - ((key.tileY & (fraction - 1)) + 1) * sh;
+            Rectangle dest = getTileBounds(key);
+            g.drawImage(tile, dest.x, dest.y, dest.x + dest.width, dest.y + dest.height,
+                    sx, sy, sx + sw, sy + sh, null);
+            return;
+        }
+    }
+
+    protected void drawTile(Graphics2D g, TileKey key, BufferedImage tile)
+    {
+        Rectangle dest = getTileBounds(key);
+        g.drawImage(tile, dest.x, dest.y, dest.x + dest.width, dest.y + dest.height,
+                0, 0, tile.getWidth(), tile.getHeight(), null);
+    }
+
+    /**
+     * @return where a tile goes, in image coordinates
+     */
+    protected Rectangle getTileBounds(TileKey key)
+    {
+        int span = MSRunImagePyramid.getTileSpan(key.level);
+        return new Rectangle(key.tileX * span, pyramid.getHeight() - (key.tileY + 1) * span, span, span);
+    }
+
+    protected BufferedImage getCachedTile(TileKey key)
+    {
+        synchronized (tileCache)
+        {
+            return tileCache.get(key);
+        }
+    }
+
+    /**
+     * Replace the tiles waiting to be rendered.  The coarsest level is always wanted, since it's what's drawn
+     * while everything else is rendered
+     */
+    protected void requestTiles(List<TileKey> tiles)
+    {
+        if (disposed)
+            return;
+        synchronized (tileCache)
+        {
+            pendingTiles.clear();
+            int minLevel = pyramid.getMinLevel();
+            if (!tileCache.containsKey(new TileKey(minLevel, 0, 0)))
+                pendingTiles.add(new TileKey(minLevel, 0, 0));
+            pendingTiles.addAll(tiles);
+            if (pendingTiles.isEmpty())
+                return;
+            if (renderThread == null)
+            {
+                renderThread = new Thread(new TileRenderer(), "Image tile renderer");
+                renderThread.setDaemon(true);
+                renderThread.setPriority(3);
+                renderThread.start();
+            }
+            tileCache.notifyAll();
+        }
+    }
+
+    /**
+     * Stop rendering.  Call when the pyramid is no longer displayed
+     */
+    public void dispose()
+    {
+        disposed = true;
+        synchronized (tileCache)
+        {
+            pendingTiles.clear();
+            tileCache.clear();
+            tileCache.notifyAll();
+        }
+    }
+
+    protected class TileRenderer implements Runnable
+    {
+        public void run()
+        {
+            while (!disposed)
+            {
+                TileKey key;
+                synchronized (tileCache)
+                {
+                    while (pendingTiles.isEmpty() && !disposed)
+                    {
+                        try
+                        {
+                            tileCache.wait();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            return;
+                        }
+                    }
+                    if (disposed)
+                        return;
+                    key = pendingTiles.removeFirst();
+                    if (tileCache.containsKey(key))
+                        continue;
+                }
+                BufferedImage tile;
+                try
+                {
+                    byte[] darkness = pyramid.getTile(key.level, key.tileX, key.tileY);
+                    tile = darkness == null ? blankTile :
+                            renderTile(darkness, MSRunImagePyramid.getTilePixelWidth(key.level));
+                }
+                catch (RuntimeException e)
+                {
+                    _log.debug("Failed to render image tile " + key, e);
+                    tile = blankTile;
+                }
+                synchronized (tileCache)
+                {
+                    if (disposed)
+                        return;
+                    tileCache.put(key, tile);
+                }
+                if (tileReadyListener != null)
+                    tileReadyListener.run();
+            }
+        }
+    }
+
+    /**
+     * Color a tile, a column at a time, as IntensityPlot.plotLog() does
+     * @param darkness null for a tile with nothing to draw
+     * @param width
+     * @return
+     */
+    protected BufferedImage renderTile(byte[] darkness, int width)
+    {
+        int size = MSRunImagePyramid.TILE_SIZE;
+        BufferedImage image = new BufferedImage(width, size, BufferedImage.TYPE_INT_RGB);
+        Graphics gfx = image.getGraphics();
+        gfx.setColor(Color.WHITE);
+        gfx.fillRect(0, 0, width, size);
+        gfx.dispose();
+
+        int maxColor = (1 << 8) - 1;
+        IntensityPlot.ColorMap colorMap = IntensityPlot.mapForScheme(colorScheme);
+        WritableRaster r = image.getRaster();
+        int bands = r.getNumBands();
+        float[] samples = new float[size];
+        for (int x = 0; x < width; x++)
+        {
+            for (int py = 0; py < size; py++)
+                samples[size - 1 - py] = maxColor - (darkness == null ? 0 : darkness[x * size + py] & 0xff);
+            float[][] colors = colorMap.remap(samples, maxColor);
+            for (int i = 0; i < bands && i < colors.length; i++)
+                r.setSamples(x, 0, 1, size, i, colors[i]);
+        }
+        return image;
+    }
+
+    protected static class TileKey
+    {
+        final int level;
+        final int tileX;
+        final int tileY;
+
+        TileKey(int level, int tileX, int tileY)
+        {
+            this.level = level;
+            this.tileX = tileX;
+            this.tileY = tileY;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof TileKey))
+                return false;
+            TileKey other = (TileKey) o;
+            return level == other.level && tileX == other.tileX && tileY == other.tileY;
+        }
+
+        public int hashCode()
+        {
+            return (level * 31 + tileX) * 31 + tileY;
+        }
+
+        public String toString()
+        {
+            return level + "/" + tileX + "/" + tileY;
+        }
+    }
+}
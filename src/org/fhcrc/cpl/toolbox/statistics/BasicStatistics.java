@@ -298,6 +298,26 @@ public class BasicStatistics
     }
     
 
+    /**
+     * Quantile as calculated by R's quantile() by default (type 7): linear interpolation between
+     * order statistics, with the minimum at p=0 and the maximum at p=1.  Unlike percentile(), which
+     * is type 6
+     * @param values
+     * @param p between 0 and 1
+     * @return
+     */
+    public static double quantile(double[] values, double p)
+    {
+        if (values.length == 0)
+            return Double.NaN;
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        double h = (sorted.length - 1) * p;
+        int low = (int) Math.floor(h);
+        int high = Math.min(low + 1, sorted.length - 1);
+        return sorted[low] + (h - low) * (sorted[high] - sorted[low]);
+    }
+
     /**
      * calculate percentile p of values in list
      * @param values
@@ -768,4 +788,69 @@ public class BasicStatistics
     {
         return calcStandardNormalCumDensity((x - mu) / sigma);
     }
+
+    /**
+     * Two-sample Kolmogorov-Smirnov test, with the asymptotic p-value, as R's ks.test() calculates it for
+     * large samples
+     * @param sample1
+     * @param sample2
+     * @return p-value
+     */
+    public static double kolmogorovSmirnovPValue(double[] sample1, double[] sample2)
+    {
+        double[] sorted1 = sample1.clone();
+        double[] sorted2 = sample2.clone();
+        Arrays.sort(sorted1);
+        Arrays.sort(sorted2);
+        int n1 = sorted1.length;
+        int n2 = sorted2.length;
+
+        //largest difference between the empirical CDFs, evaluated after each distinct value
+        double maxDiff = 0;
+        int i1 = 0;
+        int i2 = 0;
+        while (i1 < n1 && i2 < n2)
+        {
+            double value = Math.min(sorted1[i1], sorted2[i2]);
+            while (i1 < n1 && sorted1[i1] == value)
+                i1++;
+            while (i2 < n2 && sorted2[i2] == value)
+                i2++;
+            maxDiff = Math.max(maxDiff, Math.abs((double) i1 / n1 - (double) i2 / n2));
+        }
+        return 1 - kolmogorovCumDensity(Math.sqrt((double) n1 * n2 / (n1 + n2)) * maxDiff);
+    }
+
+    /**
+     * Cumulative density of the Kolmogorov distribution, as in R's pkstwo()
+     * @param x
+     * @return
+     */
+    public static double kolmogorovCumDensity(double x)
+    {
+        final double tolerance = 1e-6;
+        if (x <= 0)
+            return 0;
+        if (x < 1)
+        {
+            int maxK = (int) Math.sqrt(2 - Math.log(tolerance));
+            double z = -(Math.PI * Math.PI / 8) / (x * x);
+            double w = Math.log(x);
+            double sum = 0;
+            for (int k = 1; k < maxK; k += 2)
+                sum += Math.exp(k * k * z - w);
+            return sum * Math.sqrt(2 * Math.PI);
+        }
+        double z = -2 * x * x;
+        double sign = -1;
+        double previous = 0;
+        double result = 1;
+        for (int k = 1; Math.abs(previous - result) > tolerance; k++)
+        {
+            previous = result;
+            result += 2 * sign * Math.exp(z * k * k);
+            sign = -sign;
+        }
+        return result;
+    }
 }
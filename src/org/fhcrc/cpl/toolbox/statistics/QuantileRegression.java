@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fhcrc.cpl.toolbox.statistics;
+
+import Jama.Matrix;
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * In-process polynomial quantile regression, and the modal regression built on it, for use instead of
+ * RegressionUtilities.modalRegression(), which runs modal_regression.R (and the quantreg package) in a new
+ * R process for every call.
+ *
+ * Quantile regression minimizes the sum of check-function losses by iteratively reweighted least squares,
+ * then tries the exact fit through the points with the smallest residuals, since the true minimum always
+ * interpolates degree+1 points.  The polynomial is fit in x scaled to [-1,1], so that high degrees stay
+ * well-conditioned, and the coefficients are converted back to powers of the original x.
+ *
+ * Modal regression follows modal_regression.R exactly: starting from the median, the quantile is moved by
+ * 0.01 at a time until the mode of the residual density (Gaussian kernel, bw.nrd0 bandwidth, 512 points)
+ * is within 0.01 of zero, for at most 20 fits.
+ */
+public class QuantileRegression
+{
+    private static Logger _log = Logger.getLogger(QuantileRegression.class);
+
+    protected static final int MAX_IRLS_ITERATIONS = 500;
+    protected static final double IRLS_TOLERANCE = 1e-10;
+
+    //as in modal_regression.R
+    protected static final double MODAL_START_QUANTILE = 0.5;
+    protected static final double MODAL_QUANTILE_STEP = 0.01;
+    protected static final double MODAL_MAX_MODE = 0.01;
+    protected static final int MODAL_MAX_FITS = 20;
+
+    //as in R's density()
+    protected static final int DENSITY_POINTS = 512;
+    protected static final double DENSITY_CUT = 3;
+    //kernel contributions further than this many bandwidths away are negligible
+    protected static final double KERNEL_REACH = 8;
+
+    /**
+     * Modal regression of y on a polynomial in x
+     * @param x
+     * @param y
+     * @param degree The degree of the polynomial.  Minimum 1
+     * @return coefficients, lowest power first, for use with RegressionUtilities.mapValueUsingCoefficients()
+     */
+    public static double[] modalRegression(double[] x, double[] y, int degree)
+    {
+        if (degree < 1)
+            throw new RuntimeException("Expected degree parameter >=1");
+
+        double quantile = MODAL_START_QUANTILE;
+        double[] coefficients = null;
+        for (int i = 0; i < MODAL_MAX_FITS; i++)
+        {
+            coefficients = quantileRegression(x, y, degree, quantile);
+            double[] residuals = new double[x.length];
+            for (int j = 0; j < x.length; j++)
+                residuals[j] = y[j] - RegressionUtilities.mapValueUsingCoefficients(coefficients, x[j]);
+            double mode = densityMode(residuals);
+            _log.debug("modalRegression: quantile " + quantile + ", residual mode " + mode);
+            if (mode > MODAL_MAX_MODE)
+                quantile += MODAL_QUANTILE_STEP;
+            else if (mode < -MODAL_MAX_MODE)
+                quantile -= MODAL_QUANTILE_STEP;
+            else
+                break;
+        }
+        return coefficients;
+    }
+
+    /**
+     * Regression of quantile tau of y on a polynomial in x
+     * @param x
+     * @param y
+     * @param degree
+     * @param tau quantile, between 0 and 1
+     * @return coefficients, lowest power first
+     */
+    public static double[] quantileRegression(double[] x, double[] y, int degree, double tau)
+    {
+        int n = x.length;
+        int p = degree + 1;
+        if (y.length != n)
+            throw new IllegalArgumentException("x and y must have the same length");
+        if (n < p)
+            throw new IllegalArgumentException("Need at least " + p + " points for degree " + degree +
+                    ", got " + n);
+
+        //scale x to [-1,1]
+        double xMin = BasicStatistics.min(x);
+        double xMax = BasicStatistics.max(x);
+        double center = (xMax + xMin) / 2;
+        double scale = xMax > xMin ? (xMax - xMin) / 2 : 1;
+        double[][] design = new double[n][p];
+        for (int i = 0; i < n; i++)
+        {
+            double u = (x[i] - center) / scale;
+            design[i][0] = 1;
+            for (int j = 1; j < p; j++)
+                design[i][j] = design[i][j - 1] * u;
+        }
+
+        //residuals smaller than this are treated as this, to keep the weights finite
+        double yMedian = BasicStatistics.median(y);
+        double ySpread = 0;
+        for (double yi : y)
+            ySpread = Math.max(ySpread, Math.abs(yi - yMedian));
+        double minResidual = 1e-10 * (ySpread > 0 ? ySpread : 1);
+
+        double[] weights = new double[n];
+        Arrays.fill(weights, 1);
+        double[] beta = weightedLeastSquares(design, y, weights);
+        if (null == beta)
+            throw new IllegalArgumentException("Quantile regression failed: singular design");
+        double objective = checkLoss(design, y, beta, tau);
+        double[] currentBeta = beta;
+        double currentObjective = objective;
+        for (int iteration = 0; iteration < MAX_IRLS_ITERATIONS; iteration++)
+        {
+            for (int i = 0; i < n; i++)
+            {
+                double r = y[i] - dot(design[i], currentBeta);
+                weights[i] = (r >= 0 ? tau : 1 - tau) / Math.max(Math.abs(r), minResidual);
+            }
+            double[] newBeta = weightedLeastSquares(design, y, weights);
+            if (null == newBeta)
+                break;
+            double newObjective = checkLoss(design, y, newBeta, tau);
+            if (newObjective < objective)
+            {
+                beta = newBeta;
+                objective = newObjective;
+            }
+            if (Math.abs(currentObjective - newObjective) <= IRLS_TOLERANCE * Math.abs(currentObjective))
+                break;
+            currentBeta = newBeta;
+            currentObjective = newObjective;
+        }
+
+        //the exact minimum passes through p points; try the ones closest to the approximate fit
+        Integer[] byResidual = new Integer[n];
+        final double[] absResiduals = new double[n];
+        for (int i = 0; i < n; i++)
+        {
+            byResidual[i] = i;
+            absResiduals[i] = Math.abs(y[i] - dot(design[i], beta));
+        }
+        Arrays.sort(byResidual, new Comparator<Integer>()
+        {
+            public int compare(Integer o1, Integer o2)
+            {
+                return Double.compare(absResiduals[o1], absResiduals[o2]);
+            }
+        });
+        double[][] basisRows = new double[p][];
+        double[] basisY = new double[p];
+        for (int j = 0; j < p; j++)
+        {
+            basisRows[j] = design[byResidual[j]];
+            basisY[j] = y[byResidual[j]];
+        }
+        try
+        {
+            double[] exactBeta = new Matrix(basisRows).solve(new Matrix(basisY, p)).getColumnPackedCopy();
+            if (checkLoss(design, y, exactBeta, tau) <= objective)
+                beta = exactBeta;
+        }
+        catch (RuntimeException e)
+        {
+            //singular; keep the approximate fit
+        }
+
+        //back to powers of the original x: sum_j beta_j ((x - center) / scale)^j
+        double[] result = new double[p];
+        for (int j = 0; j < p; j++)
+        {
+            double binomial = 1;
+            for (int k = 0; k <= j; k++)
+            {
+                result[k] += beta[j] * binomial * Math.pow(-center, j - k) / Math.pow(scale, j);
+                binomial = binomial * (j - k) / (k + 1);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the solution, or null if the system is singular
+     */
+    protected static double[] weightedLeastSquares(double[][] design, double[] y, double[] weights)
+    {
+        int p = design[0].length;
+        double[][] xtwx = new double[p][p];
+        double[] xtwy = new double[p];
+        for (int i = 0; i < design.length; i++)
+        {
+            double[] row = design[i];
+            double w = weights[i];
+            for (int j = 0; j < p; j++)
+            {
+                double wxj = w * row[j];
+                xtwy[j] += wxj * y[i];
+                for (int k = j; k < p; k++)
+                    xtwx[j][k] += wxj * row[k];
+            }
+        }
+        for (int j = 0; j < p; j++)
+            for (int k = 0; k < j; k++)
+                xtwx[j][k] = xtwx[k][j];
+        try
+        {
+            return new Matrix(xtwx).solve(new Matrix(xtwy, p)).getColumnPackedCopy();
+        }
+        catch (RuntimeException e)
+        {
+            return null;
+        }
+    }
+
+    protected static double checkLoss(double[][] design, double[] y, double[] beta, double tau)
+    {
+        double result = 0;
+        for (int i = 0; i < design.length; i++)
+        {
+            double r = y[i] - dot(design[i], beta);
+            result += r >= 0 ? tau * r : (tau - 1) * r;
+        }
+        return result;
+    }
+
+    protected static double dot(double[] a, double[] b)
+    {
+        double result = 0;
+        for (int i = 0; i < a.length; i++)
+            result += a[i] * b[i];
+        return result;
+    }
+
+    /**
+     * The x value of the highest point of a Gaussian kernel density estimate, evaluated on R's density() grid
+     * @param values
+     * @return
+     */
+    public static double densityMode(double[] values)
+    {
+        int n = values.length;
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+
+        //bw.nrd0
+        double sd = BasicStatistics.standardDeviation(sorted);
+        double low = Math.min(sd, (BasicStatistics.quantile(sorted, 0.75) -
+                BasicStatistics.quantile(sorted, 0.25)) / 1.34);
+        if (!(low > 0))
+            low = sd > 0 ? sd : (Math.abs(sorted[0]) > 0 ? Math.abs(sorted[0]) : 1);
+        double bandwidth = 0.9 * low * Math.pow(n, -0.2);
+
+        double from = sorted[0] - DENSITY_CUT * bandwidth;
+        double to = sorted[n - 1] + DENSITY_CUT * bandwidth;
+        double reach = KERNEL_REACH * bandwidth;
+        double bestX = from;
+        double bestDensity = -1;
+        int windowStart = 0;
+        int windowEnd = 0;
+        for (int g = 0; g < DENSITY_POINTS; g++)
+        {
+            double gridX = from + g * (to - from) / (DENSITY_POINTS - 1);
+            while (windowStart < n && sorted[windowStart] < gridX - reach)
+                windowStart++;
+            while (windowEnd < n && sorted[windowEnd] <= gridX + reach)
+                windowEnd++;
+            double density = 0;
+            for (int i = windowStart; i < windowEnd; i++)
+            {
+                double z = (gridX - sorted[i]) / bandwidth;
+                density += Math.exp(-0.5 * z * z);
+            }
+            if (density > bestDensity)
+            {
+                bestDensity = density;
+                bestX = gridX;
+            }
+        }
+        return bestX;
+    }
+}
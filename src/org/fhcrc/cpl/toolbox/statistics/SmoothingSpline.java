@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fhcrc.cpl.toolbox.statistics;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Weighted cubic smoothing spline, fit in-process the way R's smooth.spline() fits one with the df argument.
+ *
+ * As in R: x values within 1e-6 * IQR(x) of each other are collapsed, with their weights summed and their y
+ * values averaged; x is scaled to [0,1]; the basis is cubic B-splines on a subset of the unique x values chosen
+ * by R's .nknots.smspl() rule; and the smoothing parameter is chosen by searching spar in [-1.5, 1.5] for the
+ * fit whose trace (sum of leverages) matches the requested degrees of freedom.  All of the linear algebra is
+ * on banded matrices, so a fit is linear in the number of points.
+ *
+ * Predictions outside the range of the data are linear extrapolations from the ends of the fit, as with
+ * predict.smooth.spline().
+ */
+public class SmoothingSpline
+{
+    //spar search range and number of bisection steps
+    protected static final double MIN_SPAR = -1.5;
+    protected static final double MAX_SPAR = 1.5;
+    protected static final int SPAR_SEARCH_STEPS = 50;
+
+    //cubic
+    protected static final int ORDER = 4;
+
+    protected double xMin;
+    protected double xRange;
+    protected double[] knots;
+    protected int numBasisFunctions;
+    protected double[] coefficients;
+
+    protected double lambda;
+    protected double degreesOfFreedom;
+
+    protected SmoothingSpline()
+    {
+    }
+
+    /**
+     * Fit a smoothing spline with equal weights
+     * @param x
+     * @param y
+     * @param df
+     * @return
+     */
+    public static SmoothingSpline fit(double[] x, double[] y, double df)
+    {
+        double[] w = new double[x.length];
+        Arrays.fill(w, 1);
+        return fit(x, y, w, df);
+    }
+
+    /**
+     * Fit a weighted smoothing spline with (approximately) the requested degrees of freedom
+     * @param x
+     * @param y
+     * @param w weights, non-negative, not all zero
+     * @param df
+     * @return
+     */
+    public static SmoothingSpline fit(double[] x, double[] y, double[] w, double df)
+    {
+        int n = x.length;
+        if (y.length != n || w.length != n)
+            throw new IllegalArgumentException("x, y and w must have the same length");
+        double weightSum = 0;
+        int numPositiveWeights = 0;
+        for (double weight : w)
+        {
+            if (weight < 0)
+                throw new IllegalArgumentException("Weights must be non-negative");
+            weightSum += weight;
+            if (weight > 0)
+                numPositiveWeights++;
+        }
+        if (weightSum == 0)
+            throw new IllegalArgumentException("At least one weight must be positive");
+
+        //collapse x values that are within tolerance of each other
+        final double[] xCopy = x.clone();
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            public int compare(Integer o1, Integer o2)
+            {
+                return Double.compare(xCopy[o1], xCopy[o2]);
+            }
+        });
+        double tolerance = 1e-6 *
+                (BasicStatistics.quantile(xCopy, 0.75) - BasicStatistics.quantile(xCopy, 0.25));
+        if (!(tolerance > 0))
+            tolerance = 1e-6 * Math.max(Math.abs(xCopy[order[n - 1]] - xCopy[order[0]]), 1e-6);
+        double xMean = BasicStatistics.mean(xCopy);
+
+        double[] ux = new double[n];
+        double[] wbar = new double[n];
+        double[] ybar = new double[n];
+        int nx = 0;
+        long previousKey = 0;
+        for (int k = 0; k < n; k++)
+        {
+            int i = order[k];
+            double weight = w[i] * numPositiveWeights / weightSum;
+            long key = Math.round((xCopy[i] - xMean) / tolerance);
+            if (nx == 0 || key != previousKey)
+            {
+                ux[nx] = xCopy[i];
+                nx++;
+                previousKey = key;
+            }
+            wbar[nx - 1] += weight;
+            ybar[nx - 1] += weight * y[i];
+        }
+        if (nx < 4)
+            throw new IllegalArgumentException("Need at least four unique x values, got " + nx);
+        for (int i = 0; i < nx; i++)
+            ybar[i] = wbar[i] > 0 ? ybar[i] / wbar[i] : 0;
+
+        SmoothingSpline result = new SmoothingSpline();
+        result.xMin = ux[0];
+        result.xRange = ux[nx - 1] - ux[0];
+        double[] xbar = new double[nx];
+        for (int i = 0; i < nx; i++)
+            xbar[i] = (ux[i] - result.xMin) / result.xRange;
+        result.setUpKnots(xbar, nx);
+        result.fitScaled(xbar, ybar, wbar, nx, df);
+        return result;
+    }
+
+    /**
+     * Knots at a subset of the unique x values, with the boundary knots repeated, as in R
+     */
+    protected void setUpKnots(double[] xbar, int nx)
+    {
+        int numKnots = (int) numKnots(nx);
+        knots = new double[numKnots + 2 * (ORDER - 1)];
+        double by = (double) (nx - 1) / (numKnots - 1);
+        for (int k = 0; k < numKnots; k++)
+        {
+            int index = k == numKnots - 1 ? nx - 1 : (int) (1 + k * by) - 1;
+            knots[ORDER - 1 + k] = xbar[index];
+        }
+        for (int k = 0; k < ORDER - 1; k++)
+        {
+            knots[k] = xbar[0];
+            knots[knots.length - 1 - k] = xbar[nx - 1];
+        }
+        numBasisFunctions = numKnots + 2;
+    }
+
+    /**
+     * R's .nknots.smspl(): all points up to 49, then slowly growing
+     */
+    protected static double numKnots(int n)
+    {
+        if (n < 50)
+            return n;
+        double a1 = log2(50), a2 = log2(100), a3 = log2(140), a4 = log2(200);
+        if (n < 200)
+            return Math.pow(2, a1 + (a2 - a1) * (n - 50) / 150);
+        if (n < 800)
+            return Math.pow(2, a2 + (a3 - a2) * (n - 200) / 600);
+        if (n < 3200)
+            return Math.pow(2, a3 + (a4 - a3) * (n - 800) / 2400);
+        return 200 + Math.pow(n - 3200, 0.2);
+    }
+
+    protected static double log2(double x)
+    {
+        return Math.log(x) / Math.log(2);
+    }
+
+    /**
+     * Build the banded normal equations and penalty, then search for the smoothing parameter
+     */
+    protected void fitScaled(double[] xbar, double[] ybar, double[] wbar, int nx, double df)
+    {
+        int nk = numBasisFunctions;
+
+        //basis values at each point; the nonzero ones start at firstBasis
+        int[] firstBasis = new int[nx];
+        double[][] basisValues = new double[nx][];
+        double[][] gram = new double[nk][ORDER];
+        double[] rhs = new double[nk];
+        int interval = ORDER - 1;
+        for (int i = 0; i < nx; i++)
+        {
+            while (interval < nk - 1 && knots[interval + 1] <= xbar[i])
+                interval++;
+            firstBasis[i] = interval - (ORDER - 1);
+            double[] b = basisValues[i] = basis(interval, xbar[i], 0);
+            for (int p = 0; p < ORDER; p++)
+            {
+                rhs[firstBasis[i] + p] += wbar[i] * b[p] * ybar[i];
+                for (int q = p; q < ORDER; q++)
+                    gram[firstBasis[i] + p][q - p] += wbar[i] * b[p] * b[q];
+            }
+        }
+
+        //integrated squared second derivative.  Second derivatives are linear on each interval
+        double[][] penalty = new double[nk][ORDER];
+        for (int l = ORDER - 1; l < nk; l++)
+        {
+            double h = knots[l + 1] - knots[l];
+            if (h <= 0)
+                continue;
+            double[] left = basis(l, knots[l], 2);
+            double[] right = basis(l, knots[l + 1], 2);
+            for (int p = 0; p < ORDER; p++)
+                for (int q = p; q < ORDER; q++)
+                    penalty[l - (ORDER - 1) + p][q - p] += h / 6 *
+                            (2 * left[p] * left[q] + left[p] * right[q] + right[p] * left[q] +
+                             2 * right[p] * right[q]);
+        }
+
+        //lambda = ratio * 256^(3*spar - 1), with R's ratio of traces
+        double gramTrace = 0;
+        double penaltyTrace = 0;
+        for (int i = 2; i < nk - 3; i++)
+        {
+            gramTrace += gram[i][0];
+            penaltyTrace += penalty[i][0];
+        }
+        double ratio = gramTrace / penaltyTrace;
+
+        //df decreases with spar
+        double low = MIN_SPAR;
+        double high = MAX_SPAR;
+        double spar;
+        if (solve(gram, penalty, rhs, ratio, low, firstBasis, basisValues, wbar, nx) <= df)
+            spar = low;
+        else if (solve(gram, penalty, rhs, ratio, high, firstBasis, basisValues, wbar, nx) >= df)
+            spar = high;
+        else
+        {
+            for (int step = 0; step < SPAR_SEARCH_STEPS; step++)
+            {
+                double mid = (low + high) / 2;
+                if (solve(gram, penalty, rhs, ratio, mid, firstBasis, basisValues, wbar, nx) > df)
+                    low = mid;
+                else
+                    high = mid;
+            }
+            spar = (low + high) / 2;
+        }
+        solve(gram, penalty, rhs, ratio, spar, firstBasis, basisValues, wbar, nx);
+    }
+
+    /**
+     * Solve for the coefficients at this spar, leaving them in coefficients
+     * @return the degrees of freedom of the fit
+     */
+    protected double solve(double[][] gram, double[][] penalty, double[] rhs, double ratio, double spar,
+                           int[] firstBasis, double[][] basisValues, double[] wbar, int nx)
+    {
+        int nk = numBasisFunctions;
+        lambda = ratio * Math.pow(256, 3 * spar - 1);
+
+        //banded Cholesky, A = R'R, with R upper triangular and stored by diagonal
+        double[][] r = new double[nk][ORDER];
+        for (int i = 0; i < nk; i++)
+        {
+            for (int d = 0; d < ORDER && i + d < nk; d++)
+            {
+                int j = i + d;
+                double sum = gram[i][d] + lambda * penalty[i][d];
+                for (int k = Math.max(0, j - (ORDER - 1)); k < i; k++)
+                    sum -= r[k][i - k] * r[k][j - k];
+                if (d == 0)
+                    r[i][0] = Math.sqrt(Math.max(sum, Double.MIN_NORMAL));
+                else
+                    r[i][d] = sum / r[i][0];
+            }
+        }
+
+        double[] z = new double[nk];
+        for (int i = 0; i < nk; i++)
+        {
+            double sum = rhs[i];
+            for (int k = Math.max(0, i - (ORDER - 1)); k < i; k++)
+                sum -= r[k][i - k] * z[k];
+            z[i] = sum / r[i][0];
+        }
+        coefficients = new double[nk];
+        for (int i = nk - 1; i >= 0; i--)
+        {
+            double sum = z[i];
+            for (int d = 1; d < ORDER && i + d < nk; d++)
+                sum -= r[i][d] * coefficients[i + d];
+            coefficients[i] = sum / r[i][0];
+        }
+
+        //band of the inverse, from R S = R'^-1
+        double[][] inverse = new double[nk][ORDER];
+        for (int i = nk - 1; i >= 0; i--)
+        {
+            for (int j = Math.min(i + ORDER - 1, nk - 1); j >= i; j--)
+            {
+                double sum = i == j ? 1 / r[i][0] : 0;
+                for (int k = i + 1; k <= Math.min(i + ORDER - 1, nk - 1); k++)
+                    sum -= r[i][k - i] * (k <= j ? inverse[k][j - k] : inverse[j][k - j]);
+                inverse[i][j - i] = sum / r[i][0];
+            }
+        }
+
+        double df = 0;
+        for (int i = 0; i < nx; i++)
+        {
+            double[] b = basisValues[i];
+            int first = firstBasis[i];
+            double leverage = 0;
+            for (int p = 0; p < ORDER; p++)
+            {
+                leverage += b[p] * b[p] * inverse[first + p][0];
+                for (int q = p + 1; q < ORDER; q++)
+                    leverage += 2 * b[p] * b[q] * inverse[first + p][q - p];
+            }
+            df += wbar[i] * leverage;
+        }
+        degreesOfFreedom = df;
+        return df;
+    }
+
+    /**
+     * Values, or derivatives, of the cubic B-splines that are nonzero on [knots[l], knots[l+1])
+     * @param l knot interval
+     * @param x
+     * @param derivative 0, 1 or 2
+     * @return values for basis functions l-3 through l
+     */
+    protected double[] basis(int l, double x, int derivative)
+    {
+        double[] values = { 1 };
+        for (int k = 2; k <= ORDER - derivative; k++)
+        {
+            double[] next = new double[k];
+            for (int m = 0; m < k; m++)
+            {
+                int j = l - k + 1 + m;
+                double vj = m > 0 ? values[m - 1] : 0;
+                double vj1 = m < k - 1 ? values[m] : 0;
+                double leftSpan = knots[j + k - 1] - knots[j];
+                double rightSpan = knots[j + k] - knots[j + 1];
+                if (leftSpan > 0)
+                    next[m] += (x - knots[j]) / leftSpan * vj;
+                if (rightSpan > 0)
+                    next[m] += (knots[j + k] - x) / rightSpan * vj1;
+            }
+            values = next;
+        }
+        for (int k = ORDER - derivative + 1; k <= ORDER; k++)
+        {
+            double[] next = new double[k];
+            for (int m = 0; m < k; m++)
+            {
+                int j = l - k + 1 + m;
+                double vj = m > 0 ? values[m - 1] : 0;
+                double vj1 = m < k - 1 ? values[m] : 0;
+                double leftSpan = knots[j + k - 1] - knots[j];
+                double rightSpan = knots[j + k] - knots[j + 1];
+                if (leftSpan > 0)
+                    next[m] += (k - 1) * vj / leftSpan;
+                if (rightSpan > 0)
+                    next[m] -= (k - 1) * vj1 / rightSpan;
+            }
+            values = next;
+        }
+        return values;
+    }
+
+    /**
+     * Value or derivative of the fit, in scaled x, within [0,1]
+     */
+    protected double evaluateScaled(double xs, int derivative)
+    {
+        int l = ORDER - 1;
+        while (l < numBasisFunctions - 1 && knots[l + 1] <= xs)
+            l++;
+        double[] b = basis(l, xs, derivative);
+        double result = 0;
+        for (int p = 0; p < ORDER; p++)
+            result += coefficients[l - (ORDER - 1) + p] * b[p];
+        return result;
+    }
+
+    public double predict(double x)
+    {
+        double xs = (x - xMin) / xRange;
+        if (xs < 0)
+            return evaluateScaled(0, 0) + evaluateScaled(0, 1) * xs;
+        if (xs > 1)
+            return evaluateScaled(1, 0) + evaluateScaled(1, 1) * (xs - 1);
+        return evaluateScaled(xs, 0);
+    }
+
+    public double[] predict(double[] x)
+    {
+        double[] result = new double[x.length];
+        for (int i = 0; i < x.length; i++)
+            result[i] = predict(x[i]);
+        return result;
+    }
+
+    /**
+     * @return the smoothing parameter of the fit, on the scale of R's lambda
+     */
+    public double getLambda()
+    {
+        return lambda;
+    }
+
+    /**
+     * @return the degrees of freedom actually achieved
+     */
+    public double getDegreesOfFreedom()
+    {
+        return degreesOfFreedom;
+    }
+}
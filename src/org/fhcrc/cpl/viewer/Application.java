@@ -466,6 +466,31 @@ public class Application implements ApplicationContext.ApplicationContextProvide
             }
         }
 
+        //Special handling for the "imagefiles" argument.  This turns on reading and saving image pyramids in
+        //.pyramid files beside the mzXML files, so that a run's image is only built the first time it's opened
+        for (int i=0; i<args.length; i++)
+        {
+            String thisArg = args[i];
+            if (thisArg.startsWith("--"))
+                thisArg = thisArg.substring(2);
+
+            if ("imagefiles".equalsIgnoreCase(thisArg))
+            {
+                //reshuffle arguments, get rid of imagefiles arg
+                String[] newArgs = new String[args.length-1];
+                int newIndex = 0;
+                for (int j=0; j<args.length; j++)
+                {
+                    if (j != i)
+                       newArgs[newIndex++] = args[j];
+                }
+                args = newArgs;
+
+                MSRun.setUseImagePyramidFiles(true);
+                break;
+            }
+        }
+
         //Special handling for the "log" argument.  This enables global logging to a file
         //both ApplicationContext.infoMessage/setMessage/errorMessage messages and log4j messages
         for (int i=0; i<args.length && !enableLog; i++)
@@ -109,6 +109,10 @@ public abstract class Aligner
 
     protected int alignmentOrderMode = ALIGNMENT_ORDER_MODE_DEFAULT;
 
+    //Fit the warping in-process rather than by running R.  Faster, especially for many runs, with results that
+    //match R's within numerical tolerance
+    protected boolean useInProcessRegression = false;
+
     public Aligner()
     {
     }
@@ -669,15 +673,30 @@ public abstract class Aligner
     }
 
     /**
-     * Selecte pairs of features based on peptide agreement
+     * Selecte pairs of features based on peptide agreement, and optionally mass tolerance.
+     *
+     * Destination features are indexed by peptide, so each source feature is paired with one lookup.
+     * The index is kept between calls and reused while the destination features are the same: as they are for
+     * every set in ALIGNTOFIRST mode, and with features only added at the end in CUMULATIVE mode, when just the new
+     * ones are indexed.  In DAISYCHAIN mode each destination set is new, so each is indexed once
      */
     public static class PeptideFeaturePairSelector implements FeaturePairSelector
     {
-        public Pair<Feature,Feature>[] selectPairs(FeatureSet sourceFeatureSet,
-                                                   FeatureSet destFeatureSet)
+        //no mass filtering by default
+        protected float massTolerance = Float.MAX_VALUE;
+
+        //destination features in the index, in order, and the index
+        protected Feature[] indexedDestFeatures = null;
+        protected Map<String, List<Feature>> destPeptideFeaturesMap = null;
+
+        public synchronized Pair<Feature,Feature>[] selectPairs(FeatureSet sourceFeatureSet,
+                                                                FeatureSet destFeatureSet)
         {
+            updateDestIndex(destFeatureSet.getFeatures());
+
             List<Pair<Feature,Feature>> resultList =
                 new ArrayList<Pair<Feature,Feature>>();
+            int numOutOfTolerance = 0;
 
             for (Feature sourceFeature : sourceFeatureSet.getFeatures())
             {
@@ -685,62 +704,92 @@ public abstract class Aligner
                 if (sourcePeptide == null)
                     continue;
 
-                for (Feature destFeature : destFeatureSet.getFeatures())
+                List<Feature> destFeatures = destPeptideFeaturesMap.get(sourcePeptide);
+                if (destFeatures == null)
+                    continue;
+                for (Feature destFeature : destFeatures)
                 {
-                    String destPeptide = MS2ExtraInfoDef.getFirstPeptide(destFeature);
-                    if (destPeptide != null && destPeptide.equals(sourcePeptide))
-                       resultList.add(new Pair<Feature,Feature>(sourceFeature, destFeature));
+                    if (Math.abs(sourceFeature.getMass() - destFeature.getMass()) > massTolerance)
+                        numOutOfTolerance++;
+                    else
+                        resultList.add(new Pair<Feature,Feature>(sourceFeature, destFeature));
                 }
             }
+            if (numOutOfTolerance > 0)
+                _log.debug("Removed " + numOutOfTolerance + " pairs out of mass tolerance");
 
             //have to cast, because Java is not good
             return (Pair<Feature,Feature>[]) resultList.toArray(new Pair[0]);
         }
-    }
-
-
-    /**
-     * Select pairs of features based on peptide agreement, and also mass tolerance
-     */
-    public static class HybridFeaturePairSelector implements FeaturePairSelector
-    {
-        float massTolerance = 0.1f;
 
-        public Pair<Feature,Feature>[] selectPairs(FeatureSet sourceFeatureSet,
-                                                   FeatureSet destFeatureSet)
+        /**
+         * Index the destination features by peptide, unless they're the ones already indexed.  If they start
+         * with the ones already indexed, index only the rest
+         * @param destFeatures
+         */
+        protected void updateDestIndex(Feature[] destFeatures)
         {
-            List<Pair<Feature,Feature>> resultList =
-                new ArrayList<Pair<Feature,Feature>>();
+            int numAlreadyIndexed = 0;
+            if (indexedDestFeatures != null && destFeatures.length >= indexedDestFeatures.length)
+            {
+                numAlreadyIndexed = indexedDestFeatures.length;
+                for (int i=0; i<indexedDestFeatures.length; i++)
+                {
+                    if (destFeatures[i] != indexedDestFeatures[i])
+                    {
+                        numAlreadyIndexed = 0;
+                        break;
+                    }
+                }
+            }
+            if (numAlreadyIndexed == 0)
+                destPeptideFeaturesMap = new HashMap<String, List<Feature>>();
+            if (numAlreadyIndexed == destFeatures.length && indexedDestFeatures != null)
+                return;
 
-            for (Feature sourceFeature : sourceFeatureSet.getFeatures())
+            for (int i=numAlreadyIndexed; i<destFeatures.length; i++)
             {
-                String sourcePeptide = MS2ExtraInfoDef.getFirstPeptide(sourceFeature);
-                if (sourcePeptide == null)
+                String destPeptide = MS2ExtraInfoDef.getFirstPeptide(destFeatures[i]);
+                if (destPeptide == null)
                     continue;
-
-                for (Feature destFeature : destFeatureSet.getFeatures())
+                List<Feature> featuresThisPeptide = destPeptideFeaturesMap.get(destPeptide);
+                if (featuresThisPeptide == null)
                 {
-                    String destPeptide = MS2ExtraInfoDef.getFirstPeptide(destFeature);
-                    if (destPeptide != null && destPeptide.equals(sourcePeptide))
-                       resultList.add(new Pair<Feature,Feature>(sourceFeature, destFeature));
+                    featuresThisPeptide = new ArrayList<Feature>(1);
+                    destPeptideFeaturesMap.put(destPeptide, featuresThisPeptide);
                 }
+                featuresThisPeptide.add(destFeatures[i]);
             }
+            _log.debug("PeptideFeaturePairSelector: indexed " + (destFeatures.length - numAlreadyIndexed) +
+                    " destination features, " + destPeptideFeaturesMap.size() + " peptides");
+            indexedDestFeatures = destFeatures.clone();
+        }
 
-            List<Pair<Feature,Feature>> forRemoval =
-                    new ArrayList<Pair<Feature,Feature>>();
+        /**
+         * @return maximum absolute mass difference between paired features
+         */
+        public float getMassTolerance()
+        {
+            return massTolerance;
+        }
 
-            for (Pair<Feature,Feature> resultPair : resultList)
-            {
-                if (Math.abs(resultPair.first.getMass() -
-                             resultPair.second.getMass()) > massTolerance)
-                    forRemoval.add(resultPair);
-            }
-            for (Pair<Feature,Feature> pairToRemove: forRemoval)
-                resultList.remove(pairToRemove);
-            _log.debug("Removed " + forRemoval.size() + " pairs out of mass tolerance");
+        public void setMassTolerance(float massTolerance)
+        {
+            this.massTolerance = massTolerance;
+        }
+    }
 
-            //have to cast, because Java is not good
-            return (Pair<Feature,Feature>[]) resultList.toArray(new Pair[0]);
+
+    /**
+     * Select pairs of features based on peptide agreement, and also mass tolerance
+     */
+    public static class HybridFeaturePairSelector extends PeptideFeaturePairSelector
+    {
+        public static final float DEFAULT_MASS_TOLERANCE = 0.1f;
+
+        public HybridFeaturePairSelector()
+        {
+            setMassTolerance(DEFAULT_MASS_TOLERANCE);
         }
     }
 
@@ -1089,4 +1138,14 @@ public abstract class Aligner
     {
         this.alignmentDatasource = alignmentDatasource;
     }
+
+    public boolean isUseInProcessRegression()
+    {
+        return useInProcessRegression;
+    }
+
+    public void setUseInProcessRegression(boolean useInProcessRegression)
+    {
+        this.useInProcessRegression = useInProcessRegression;
+    }
 }
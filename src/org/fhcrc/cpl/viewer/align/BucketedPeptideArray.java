@@ -101,6 +101,9 @@ public class BucketedPeptideArray implements Runnable
     protected double _deconvoluteMassWindow = DEFAULT_DECONVOLUTE_MASS_WINDOW;
     protected boolean _shouldDeconvolute = false;
 
+    //number of threads with which to evaluate bucket sizes when optimizing
+    protected int _numThreads = 1;
+
 
     //should we optimize based on the distribution of mass and rt error?
     public static final int OPTIMIZE_MODE_ERRORDIST = 0;
@@ -191,11 +194,11 @@ public class BucketedPeptideArray implements Runnable
             {
                 FeatureSet fs;
                 if (_sets.get(i) instanceof File)
-                    fs = new FeatureSet((File) _sets.get(i), Color.RED);
+                    fs = new FeatureSet((File) _sets.get(i), Color.RED, true);
                 else if (_sets.get(i) instanceof FeatureSet)
                     fs = (FeatureSet) _sets.get(i);
                 else if (_sets.get(i) instanceof String)
-                    fs = new FeatureSet(new File((String) _sets.get(i)), Color.RED);
+                    fs = new FeatureSet(new File((String) _sets.get(i)), Color.RED, true);
                 else
                 {
                     ApplicationContext.errorMessage("Couldn't load feature set due to bad object: " + _sets.get(i).toString(), null);
@@ -212,8 +215,8 @@ public class BucketedPeptideArray implements Runnable
             for (int i = 0; i < sourceFeatureSets.size(); i++)
             {
                 FeatureSet fs = (sourceFeatureSets.get(i)).filter(_sel);
-                _log.debug("\tbefore: " + sourceFeatureSets.get(i).getFeatures().length + ", after: " +
-                        fs.getFeatures().length);                
+                _log.debug("\tbefore: " + sourceFeatureSets.get(i).getFeatureCount() + ", after: " +
+                        fs.getFeatureCount());                
                 featureSets.add(fs);
             }
 
@@ -234,8 +237,8 @@ public class BucketedPeptideArray implements Runnable
                     FeatureSet origSet = featureSets.get(i);
                     FeatureSet deconvolutedSet = origSet.deconvolute(_deconvoluteScanWindow, _deconvoluteMassWindow,
                                                                      true);
-                    ApplicationContext.setMessage("\tCollapsed " + origSet.getFeatures().length + " features into " +
-                            deconvolutedSet.getFeatures().length);
+                    ApplicationContext.setMessage("\tCollapsed " + origSet.getFeatureCount() + " features into " +
+                            deconvolutedSet.getFeatureCount());
                     featureSets.set(i, deconvolutedSet);
                 }
             }
@@ -366,6 +369,7 @@ public class BucketedPeptideArray implements Runnable
         optimizeFeatureGrouper.setGroupByMass(true);
         optimizeFeatureGrouper.setMassType(_featureGrouper.getMassType());
         optimizeFeatureGrouper.setConflictResolver(_conflictResolver);
+        optimizeFeatureGrouper.setNumThreads(_numThreads);
         for (FeatureSet featureSet : featureSets)
         {
             optimizeFeatureGrouper.addSet(featureSet);
@@ -614,11 +618,11 @@ rts[i] = bucketFeatures[i].time;
             {
                 FeatureSet fs;
                 if (_sets.get(i) instanceof File)
-                    fs = new FeatureSet((File) _sets.get(i), Color.RED);
+                    fs = new FeatureSet((File) _sets.get(i), Color.RED, true);
                 else if (_sets.get(i) instanceof FeatureSet)
                     fs = (FeatureSet) _sets.get(i);
                 else if (_sets.get(i) instanceof String)
-                    fs = new FeatureSet(new File((String) _sets.get(i)), Color.RED);
+                    fs = new FeatureSet(new File((String) _sets.get(i)), Color.RED, true);
                 else
                 {
                     ApplicationContext.errorMessage("Couldn't load feature set due to bad object: " + _sets.get(i).toString(), null);
@@ -911,6 +915,20 @@ rts[i] = bucketFeatures[i].time;
         this.optimizationMode = optimizationMode;
     }
 
+    public int getNumThreads()
+    {
+        return _numThreads;
+    }
+
+    /**
+     * Set the number of threads used to evaluate bucket sizes when optimizing for perfect buckets
+     * @param numThreads
+     */
+    public void setNumThreads(int numThreads)
+    {
+        _numThreads = numThreads;
+    }
+
     /**
      * Also sets the wide mass tolerance for EM dist optimization to a default.  So if you're overriding, call this,
      * then call setOptimizationMassWideTolerance
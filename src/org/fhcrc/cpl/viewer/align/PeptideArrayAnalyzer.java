@@ -20,6 +20,7 @@ import org.fhcrc.cpl.toolbox.proteomics.feature.Feature;
 import org.fhcrc.cpl.toolbox.proteomics.feature.FeatureSet;
 import org.fhcrc.cpl.toolbox.proteomics.feature.FeatureAsMap;
 import org.fhcrc.cpl.toolbox.proteomics.feature.extraInfo.MS2ExtraInfoDef;
+import org.fhcrc.cpl.toolbox.proteomics.feature.filehandler.NativeTSVFeatureFileHandler;
 import org.fhcrc.cpl.toolbox.ApplicationContext;
 import org.fhcrc.cpl.toolbox.statistics.BasicStatistics;
 import org.fhcrc.cpl.toolbox.statistics.RInterface;
@@ -121,6 +122,7 @@ public class PeptideArrayAnalyzer
     {
         TabLoader tabLoader = new TabLoader(arrayFile);
         tabLoader.setReturnElementClass(HashMap.class);
+        tabLoader.setFastParsing(true);
         Object[] rows = tabLoader.load();
 
         runNames = new ArrayList<String>();
@@ -231,6 +233,7 @@ public class PeptideArrayAnalyzer
         _log.debug("Loading details, file=" + detailsFile.getAbsolutePath());        
         TabLoader tabLoader = new TabLoader(detailsFile);
         tabLoader.setReturnElementClass(HashMap.class);
+        tabLoader.setFastParsing(true);
         Object[] rows = tabLoader.load();
 
         runNames = new ArrayList<String>();
@@ -511,6 +514,7 @@ public class PeptideArrayAnalyzer
     {
         TabLoader detailsTabLoader = new TabLoader(detailsFile);
         detailsTabLoader.setReturnElementClass(HashMap.class);
+        detailsTabLoader.setFastParsing(true);
         Object[] detailRows = detailsTabLoader.load();
         Map<String, Object>[] detailsRowMaps = (Map<String, Object>[]) detailRows;
         Map<Integer, Map<String, List<Feature>>> result = new HashMap<Integer, Map<String, List<Feature>>>();
@@ -564,6 +568,7 @@ public class PeptideArrayAnalyzer
         this.detailsFile = detailsFile;
         TabLoader detailsTabLoader = new TabLoader(detailsFile);
         detailsTabLoader.setReturnElementClass(HashMap.class);
+        detailsTabLoader.setFastParsing(true);
         Object[] detailRows = detailsTabLoader.load();
         Map<String, Object>[] detailsRowMaps = (Map<String, Object>[]) detailRows;
 
@@ -1099,6 +1104,7 @@ public class PeptideArrayAnalyzer
         try
         {
             TabLoader loader = new TabLoader(detailsFile, FeatureAsMapWithIdAndFile.class);
+            NativeTSVFeatureFileHandler.setUpFastParsing(loader);
 
             Iterator it = loader.iterator();
             List<Map<String, List<Feature>>> result = new ArrayList<Map<String, List<Feature>>>();
@@ -18,6 +18,7 @@ package org.fhcrc.cpl.viewer.align;
 import org.apache.log4j.Logger;
 import org.fhcrc.cpl.toolbox.ApplicationContext;
 import org.fhcrc.cpl.toolbox.datastructure.Pair;
+import org.fhcrc.cpl.toolbox.statistics.QuantileRegression;
 import org.fhcrc.cpl.toolbox.statistics.RegressionUtilities;
 import org.fhcrc.cpl.viewer.amt.AmtDatabaseMatcher;
 
@@ -83,8 +84,12 @@ public class QuantileRegressionAligner extends Aligner
             }
             try
             {
-                modalRegressionCoefficients = RegressionUtilities.modalRegression(baseTimes,
-                        toAlignTimes, nonlinearMappingPolynomialDegree);
+                if (useInProcessRegression)
+                    modalRegressionCoefficients = QuantileRegression.modalRegression(baseTimes,
+                            toAlignTimes, nonlinearMappingPolynomialDegree);
+                else
+                    modalRegressionCoefficients = RegressionUtilities.modalRegression(baseTimes,
+                            toAlignTimes, nonlinearMappingPolynomialDegree);
                 _log.debug("Regression complete");
 
                 result = new double[(int) (maxValueToWarp+1)];
@@ -18,10 +18,14 @@ package org.fhcrc.cpl.viewer.align;
 import org.apache.log4j.Logger;
 import org.fhcrc.cpl.toolbox.ApplicationContext;
 import org.fhcrc.cpl.toolbox.datastructure.Pair;
+import org.fhcrc.cpl.toolbox.statistics.BasicStatistics;
 import org.fhcrc.cpl.toolbox.statistics.RInterface;
+import org.fhcrc.cpl.toolbox.statistics.SmoothingSpline;
 import org.fhcrc.cpl.toolbox.filehandler.TempFileManager;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Spline-based alignment algorithm
@@ -43,6 +47,16 @@ public class SplineAligner extends Aligner
 
     protected boolean copiedRCode = false;
 
+    //parameters of align_pair() in warp_scans.R, for in-process alignment
+    protected static final double LINEAR_ALIGN_SIGMA = 100;
+    protected static final int LINEAR_ALIGN_REPS = 3;
+    protected static final int LINEAR_ALIGN_GRID_SIZE = 200;
+    protected static final double LINEAR_ALIGN_MAX_SHIFT = 1000;
+    protected static final double LINEAR_ALIGN_MAX_LOG_SCALE = 2;
+    protected static final double ROBUST_SMOOTH_SIGMA = 20;
+    protected static final double ROBUST_SMOOTH_TAU = 20;
+    protected static final int ROBUST_SMOOTH_ITERATIONS = 10;
+
 
     public SplineAligner()
     {
@@ -78,6 +92,18 @@ public class SplineAligner extends Aligner
         if (pairs.length < 4)
             throw new RuntimeException("SplineAligner.alignPairs: at least 4 pairs are necessary for alignment, only " +
                     pairs.length + " were provided");
+        if (useInProcessRegression)
+        {
+            try
+            {
+                return alignPairsInProcess(pairs, maxValueToWarp);
+            }
+            catch (Exception x)
+            {
+                ApplicationContext.errorMessage("Failed alignment: " + x.getMessage(), x);
+                return null;
+            }
+        }
         File pairsFile = null;
         try
         {
@@ -127,6 +153,162 @@ public class SplineAligner extends Aligner
         return result;
     }
 
+    /**
+     * The warping that warp_scans.R's map_file_scans_onto_file() produces, computed in-process: a coarse
+     * robust linear alignment, then a robust smoothing spline through what's left over
+     * @param pairs
+     * @param maxValueToWarp
+     * @return warped values for 1 through maxValueToWarp.  Index 0 is left at 0, as when parsing R's map
+     */
+    protected double[] alignPairsInProcess(Pair<Double,Double>[] pairs, double maxValueToWarp)
+    {
+        int numPairs = pairs.length;
+        double[] source = new double[numPairs];
+        double[] dest = new double[numPairs];
+        for (int i=0; i<numPairs; i++)
+        {
+            source[i] = pairs[i].first;
+            dest[i] = pairs[i].second;
+        }
+
+        double[] linearCoefficients = linearAlign(source, dest);
+        double[] sourceTransformed = new double[numPairs];
+        double[] remainingDiffs = new double[numPairs];
+        for (int i=0; i<numPairs; i++)
+        {
+            sourceTransformed[i] = linearCoefficients[0] + linearCoefficients[1] * source[i];
+            remainingDiffs[i] = dest[i] - sourceTransformed[i];
+        }
+        SmoothingSpline spline = robustSmooth(sourceTransformed, remainingDiffs);
+
+        double[] result = new double[(int) maxValueToWarp + 1];
+        for (int i=1; i<result.length; i++)
+        {
+            double transformed = linearCoefficients[0] + linearCoefficients[1] * i;
+            result[i] = spline.predict(transformed) + transformed;
+        }
+        return result;
+    }
+
+    /**
+     * linear_align() from warp_scans.R: a linear transform of source from the medians of the differences
+     * on either side of the median, then refined by grid searches over shift and scale that minimize
+     * sum(min((residual/sigma)^2, 1))
+     * @param source
+     * @param dest
+     * @return intercept and slope
+     */
+    protected double[] linearAlign(double[] source, double[] dest)
+    {
+        int n = source.length;
+        double sourceMedian = BasicStatistics.median(source);
+        List<Double> leftDiffs = new ArrayList<Double>();
+        List<Double> rightDiffs = new ArrayList<Double>();
+        for (int i=0; i<n; i++)
+        {
+            if (source[i] < sourceMedian)
+                leftDiffs.add(dest[i] - source[i]);
+            else if (source[i] > sourceMedian)
+                rightDiffs.add(dest[i] - source[i]);
+        }
+        double leftMedian = BasicStatistics.median(leftDiffs);
+        double rightMedian = BasicStatistics.median(rightDiffs);
+        double q1 = BasicStatistics.quantile(source, .25);
+        double q3 = BasicStatistics.quantile(source, .75);
+        double stretch = (rightMedian - leftMedian) / (q3 - q1);
+
+        //transformed = intercept + slope * source, tracked both ways
+        double intercept = leftMedian - q1 * stretch;
+        double slope = 1 + stretch;
+        double[] transformed = new double[n];
+        for (int i=0; i<n; i++)
+            transformed[i] = (source[i] - q1) * stretch + leftMedian + source[i];
+
+        double[] candidate = new double[n];
+        for (int rep=0; rep<LINEAR_ALIGN_REPS; rep++)
+        {
+            double bestShift = 0;
+            double bestScore = Double.POSITIVE_INFINITY;
+            for (int j=0; j<LINEAR_ALIGN_GRID_SIZE; j++)
+            {
+                double shift = -LINEAR_ALIGN_MAX_SHIFT +
+                        j * 2 * LINEAR_ALIGN_MAX_SHIFT / (LINEAR_ALIGN_GRID_SIZE - 1);
+                for (int i=0; i<n; i++)
+                    candidate[i] = transformed[i] + shift;
+                double score = boundedLoss(dest, candidate);
+                if (score < bestScore)
+                {
+                    bestScore = score;
+                    bestShift = shift;
+                }
+            }
+            for (int i=0; i<n; i++)
+                transformed[i] += bestShift;
+            intercept += bestShift;
+
+            double center = BasicStatistics.median(transformed);
+            double bestScale = 1;
+            bestScore = Double.POSITIVE_INFINITY;
+            for (int j=0; j<LINEAR_ALIGN_GRID_SIZE; j++)
+            {
+                double scale = Math.exp(-LINEAR_ALIGN_MAX_LOG_SCALE +
+                        j * 2 * LINEAR_ALIGN_MAX_LOG_SCALE / (LINEAR_ALIGN_GRID_SIZE - 1));
+                for (int i=0; i<n; i++)
+                    candidate[i] = scale * (transformed[i] - center) + center;
+                double score = boundedLoss(dest, candidate);
+                if (score < bestScore)
+                {
+                    bestScore = score;
+                    bestScale = scale;
+                }
+            }
+            for (int i=0; i<n; i++)
+                transformed[i] = bestScale * (transformed[i] - center) + center;
+            intercept = bestScale * (intercept - center) + center;
+            slope *= bestScale;
+        }
+        return new double[] { intercept, slope };
+    }
+
+    protected double boundedLoss(double[] dest, double[] predicted)
+    {
+        double result = 0;
+        for (int i=0; i<dest.length; i++)
+        {
+            double scaledResidual = (dest[i] - predicted[i]) / LINEAR_ALIGN_SIGMA;
+            result += Math.min(scaledResidual * scaledResidual, 1);
+        }
+        return result;
+    }
+
+    /**
+     * msmooth() from warp_scans.R, with a bounded loss: iteratively reweighted smoothing splines, with weights
+     * that fall off with a half-life of tau beyond residuals of sigma
+     * @param x
+     * @param y
+     * @return
+     */
+    protected SmoothingSpline robustSmooth(double[] x, double[] y)
+    {
+        int n = x.length;
+        double[] residuals = y.clone();
+        double[] weights = new double[n];
+        SmoothingSpline spline = null;
+        for (int iteration=0; iteration<ROBUST_SMOOTH_ITERATIONS; iteration++)
+        {
+            for (int i=0; i<n; i++)
+            {
+                double absResidual = Math.abs(residuals[i]);
+                weights[i] = Math.min(1, ROBUST_SMOOTH_SIGMA *
+                        Math.pow(2, -(absResidual - ROBUST_SMOOTH_SIGMA) / ROBUST_SMOOTH_TAU) / absResidual);
+            }
+            spline = SmoothingSpline.fit(x, y, weights, degreesOfFreedom);
+            for (int i=0; i<n; i++)
+                residuals[i] = y[i] - spline.predict(x[i]);
+        }
+        return spline;
+    }
+
     /**
      * copy warp_scans.R to the temp directory
      * @throws IOException
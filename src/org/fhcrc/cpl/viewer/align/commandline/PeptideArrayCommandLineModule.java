@@ -69,6 +69,8 @@ public class PeptideArrayCommandLineModule extends FeatureSelectionParamsCommand
     protected boolean align = true;
     protected boolean optimize = false;
     protected int optimizationMode = BucketedPeptideArray.DEFAULT_OPTIMIZATION_MODE;
+
+    protected int numThreads = 1;
     protected boolean optimizeOnPeptideIds = false;
     protected File[] featureFiles = null;
 
@@ -102,6 +104,8 @@ public class PeptideArrayCommandLineModule extends FeatureSelectionParamsCommand
     //Align by scan? If not, align by RT
     protected boolean alignByScan = false;
 
+    protected boolean inProcessRegression = false;
+
     protected static final int ALIGNMENT_MODE_SPLINE = 0;
     protected static final int ALIGNMENT_MODE_QUANTILE = 1;
 
@@ -173,6 +177,9 @@ public class PeptideArrayCommandLineModule extends FeatureSelectionParamsCommand
             new BooleanArgumentDefinition("optimize", false,
                     "Should we optimize the size of the mass and scan buckets based on the number of 'perfect buckets'?",
                     optimize),
+            new IntegerArgumentDefinition("numthreads", false,
+                    "Number of threads with which to evaluate bucket sizes when optimizing.  Results are " +
+                    "identical to single-threaded optimization", numThreads),
             new EnumeratedValuesArgumentDefinition("intensitytype", false,
                     "What type of intensity should we include in the array when there are conflicts?  " +
                     "A sum of all matching features in the bucket, or the intensity of the feature with lowest kl," +
@@ -222,6 +229,9 @@ public class PeptideArrayCommandLineModule extends FeatureSelectionParamsCommand
                     shouldDeconvolute),
             new BooleanArgumentDefinition("alignbyscan", false,
                     "Align by scan? (If not, align by retention time)", alignByScan),
+            new BooleanArgumentDefinition("inprocessregression", false,
+                    "Fit alignments in-process, rather than by running R for each pair of runs.  Much faster " +
+                    "for many runs.  Results match R's within numerical tolerance", inProcessRegression),
             new DecimalArgumentDefinition("maxoptimizematchfdr", false, "For EM optimization.  Max FDR " +
                     "that every match within the bounding box of tolerances is a good match",
                     BucketedPeptideArray.DEFAULT_MAX_MATCH_FDR_EM_OPT),
@@ -343,6 +353,9 @@ public class PeptideArrayCommandLineModule extends FeatureSelectionParamsCommand
         normalize = getBooleanArgumentValue("normalize");
         align = getBooleanArgumentValue("align");
         optimize = getBooleanArgumentValue("optimize");
+        numThreads = getIntegerArgumentValue("numthreads");
+        if (numThreads < 1)
+            throw new ArgumentValidationException("numthreads must be at least 1");
         optimizeOnPeptideIds = getBooleanArgumentValue("optimizeonpeptideids");
         maxOptimizeMatchFDR = getFloatArgumentValue("maxoptimizematchfdr");
         peptideMatchScore = getIntegerArgumentValue("peptidematchscore");
@@ -359,6 +372,7 @@ public class PeptideArrayCommandLineModule extends FeatureSelectionParamsCommand
         alignmentMaxLeverageNumerator = getDoubleArgumentValue("maxleverage");
 
         alignByScan = getBooleanArgumentValue("alignbyscan");
+        inProcessRegression = getBooleanArgumentValue("inprocessregression");
 
         alignByTags = getStringArgumentValue("alignByTags");
         if (!"none".equals(alignByTags) && null == tagFile)
@@ -491,6 +505,7 @@ public class PeptideArrayCommandLineModule extends FeatureSelectionParamsCommand
             arr.setFeaturePairSelector(featurePairSelector);
             arr.setShouldDeconvolute(shouldDeconvolute);
             arr.setOptimizationMode(optimizationMode);
+            arr.setNumThreads(numThreads);
             arr.setMaxMatchFDRForToleranceBoxCalc(maxOptimizeMatchFDR);
 
 
@@ -520,6 +535,7 @@ public class PeptideArrayCommandLineModule extends FeatureSelectionParamsCommand
             aligner.setMaxLeverageNumerator(alignmentMaxLeverageNumerator);
             aligner.setMaxStudRes(alignmentMaxStudRes);
             aligner.setBuildCharts(showCharts);
+            aligner.setUseInProcessRegression(inProcessRegression);
 
             aligner.setAlignmentOrderMode(alignmentOrderMode);
 
@@ -0,0 +1,811 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fhcrc.cpl.viewer.amt;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import org.apache.log4j.Logger;
+import org.fhcrc.cpl.toolbox.proteomics.MS2Modification;
+import org.fhcrc.cpl.toolbox.proteomics.PeptideGenerator;
+
+/**
+ * A read-only AMT database in a compact binary file, memory-mapped rather than loaded.
+ *
+ * Peptide entries are sorted by unmodified monoisotopic mass, and everything about them is kept in primitive
+ * columns: one array per field, for entries, modification states, modification instances and observations,
+ * with each level pointing to a range of the next.  Peptide and modified sequences are stored once each in
+ * a shared byte pool; an unmodified state's sequence is its peptide's.  Runs and modifications, of which
+ * there are few, are in a header at the start of the file.
+ *
+ * Entries in a mass range are found by binary search on the mass column, and only those are turned into
+ * AmtPeptideEntry objects (or features, see AmtDatabaseFeatureSetGenerator).  The file is mapped read-only,
+ * so several processes matching against the same database share one copy of it in the page cache.
+ *
+ * Write a database with write(); the result holds the same information as an amtxml file.
+ */
+public class AmtBinaryDatabase
+{
+    static Logger _log = Logger.getLogger(AmtBinaryDatabase.class);
+
+    //"AMTB"
+    public static final int MAGIC = 0x414D5442;
+    public static final int FORMAT_VERSION = 1;
+
+    protected static final Charset CHARSET = Charset.forName("UTF-8");
+    //marks a missing string or date in the header
+    protected static final int NULL_STRING_LENGTH = -1;
+    protected static final long NULL_DATE = Long.MIN_VALUE;
+
+    protected File mSourceFile = null;
+
+    //header
+    protected String mHydrophobicityAlgorithmName = null;
+    protected double mHydrophobicityAlgorithmVersion = 0;
+    protected MS2Modification[] mModifications = null;
+    protected RunHeader[] mRunHeaders = null;
+    protected int mNumEntries = 0;
+    protected int mMaxSequenceLength = 0;
+
+    //entry columns
+    protected DoubleBuffer mEntryMass = null;
+    protected DoubleBuffer mEntryPredictedHydrophobicity = null;
+    protected DoubleBuffer mEntryMedianObservedHydrophobicity = null;
+    protected DoubleBuffer mEntryMedianPeptideProphet = null;
+    protected FloatBuffer mEntryIDProbability = null;
+    protected IntBuffer mEntrySequenceOffset = null;
+    protected IntBuffer mEntrySequenceLength = null;
+    //numEntries + 1 long, so entry i's states are [first[i], first[i+1])
+    protected IntBuffer mEntryFirstModState = null;
+
+    //modification state columns
+    protected DoubleBuffer mModStateMass = null;
+    protected IntBuffer mModStateSequenceOffset = null;
+    protected IntBuffer mModStateSequenceLength = null;
+    protected IntBuffer mModStateFirstModInstance = null;
+    protected IntBuffer mModStateFirstObservation = null;
+
+    //modification instance columns
+    protected IntBuffer mModInstancePosition = null;
+    protected IntBuffer mModInstanceModificationId = null;
+
+    //observation columns
+    protected DoubleBuffer mObservationHydrophobicity = null;
+    protected DoubleBuffer mObservationPeptideProphet = null;
+    protected DoubleBuffer mObservationTimeInRun = null;
+    protected IntBuffer mObservationRunId = null;
+    protected IntBuffer mObservationSpectralCount = null;
+
+    protected ByteBuffer mSequencePool = null;
+
+    /**
+     * Map a binary AMT database file
+     * @param file
+     * @throws IOException if the file isn't a binary AMT database
+     */
+    public AmtBinaryDatabase(File file) throws IOException
+    {
+        mSourceFile = file;
+        ByteBuffer buffer;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Binary AMT database " + file.getAbsolutePath() + " is too large to map");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+
+        if (buffer.limit() < 8 || buffer.getInt() != MAGIC)
+            throw new IOException("File " + file.getAbsolutePath() + " is not a binary AMT database");
+        int version = buffer.getInt();
+        if (version != FORMAT_VERSION)
+            throw new IOException("Unsupported binary AMT database version " + version + " in file " +
+                    file.getAbsolutePath());
+        readHeader(buffer);
+        mapColumns(buffer);
+        _log.debug("Mapped binary AMT database " + file.getName() + ": " + mNumEntries + " entries, " +
+                mRunHeaders.length + " runs");
+    }
+
+    /**
+     * @param file
+     * @return true if the file starts like a binary AMT database
+     */
+    public static boolean isBinaryAmtDatabase(File file)
+    {
+        try
+        {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try
+            {
+                return in.readInt() == MAGIC;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    protected void readHeader(ByteBuffer buffer)
+    {
+        mHydrophobicityAlgorithmName = readString(buffer);
+        mHydrophobicityAlgorithmVersion = buffer.getDouble();
+
+        mModifications = new MS2Modification[buffer.getInt()];
+        for (int i=0; i<mModifications.length; i++)
+        {
+            MS2Modification mod = new MS2Modification();
+            mod.setAminoAcid(readString(buffer));
+            mod.setMassDiff(buffer.getFloat());
+            mod.setVariable(buffer.get() != 0);
+            mModifications[i] = mod;
+        }
+
+        mRunHeaders = new RunHeader[buffer.getInt()];
+        for (int i=0; i<mRunHeaders.length; i++)
+        {
+            RunHeader run = new RunHeader();
+            run.timeHydMapCoefficients = new double[buffer.getInt()];
+            for (int j=0; j<run.timeHydMapCoefficients.length; j++)
+                run.timeHydMapCoefficients[j] = buffer.getDouble();
+            run.modificationIds = new int[buffer.getInt()];
+            for (int j=0; j<run.modificationIds.length; j++)
+                run.modificationIds[j] = buffer.getInt();
+            run.timeAdded = buffer.getLong();
+            run.timeAnalyzed = buffer.getLong();
+            run.minPeptideProphet = buffer.getDouble();
+            run.mzXmlFilename = readString(buffer);
+            run.pepXmlFilename = readString(buffer);
+            run.lsid = readString(buffer);
+            mRunHeaders[i] = run;
+        }
+
+        mNumEntries = buffer.getInt();
+        mMaxSequenceLength = buffer.getInt();
+    }
+
+    /**
+     * Set up views of each column.  Column sizes are in the header just before them
+     */
+    protected void mapColumns(ByteBuffer buffer)
+    {
+        int numModStates = buffer.getInt();
+        int numModInstances = buffer.getInt();
+        int numObservations = buffer.getInt();
+        int sequencePoolSize = buffer.getInt();
+        int position = align(buffer.position());
+
+        mEntryMass = slice(buffer, position, mNumEntries * 8).asDoubleBuffer();
+        position += mNumEntries * 8;
+        mEntryPredictedHydrophobicity = slice(buffer, position, mNumEntries * 8).asDoubleBuffer();
+        position += mNumEntries * 8;
+        mEntryMedianObservedHydrophobicity = slice(buffer, position, mNumEntries * 8).asDoubleBuffer();
+        position += mNumEntries * 8;
+        mEntryMedianPeptideProphet = slice(buffer, position, mNumEntries * 8).asDoubleBuffer();
+        position += mNumEntries * 8;
+        mModStateMass = slice(buffer, position, numModStates * 8).asDoubleBuffer();
+        position += numModStates * 8;
+        mObservationHydrophobicity = slice(buffer, position, numObservations * 8).asDoubleBuffer();
+        position += numObservations * 8;
+        mObservationPeptideProphet = slice(buffer, position, numObservations * 8).asDoubleBuffer();
+        position += numObservations * 8;
+        mObservationTimeInRun = slice(buffer, position, numObservations * 8).asDoubleBuffer();
+        position += numObservations * 8;
+
+        mEntryIDProbability = slice(buffer, position, mNumEntries * 4).asFloatBuffer();
+        position += mNumEntries * 4;
+        mEntrySequenceOffset = slice(buffer, position, mNumEntries * 4).asIntBuffer();
+        position += mNumEntries * 4;
+        mEntrySequenceLength = slice(buffer, position, mNumEntries * 4).asIntBuffer();
+        position += mNumEntries * 4;
+        mEntryFirstModState = slice(buffer, position, (mNumEntries + 1) * 4).asIntBuffer();
+        position += (mNumEntries + 1) * 4;
+        mModStateSequenceOffset = slice(buffer, position, numModStates * 4).asIntBuffer();
+        position += numModStates * 4;
+        mModStateSequenceLength = slice(buffer, position, numModStates * 4).asIntBuffer();
+        position += numModStates * 4;
+        mModStateFirstModInstance = slice(buffer, position, (numModStates + 1) * 4).asIntBuffer();
+        position += (numModStates + 1) * 4;
+        mModStateFirstObservation = slice(buffer, position, (numModStates + 1) * 4).asIntBuffer();
+        position += (numModStates + 1) * 4;
+        mModInstancePosition = slice(buffer, position, numModInstances * 4).asIntBuffer();
+        position += numModInstances * 4;
+        mModInstanceModificationId = slice(buffer, position, numModInstances * 4).asIntBuffer();
+        position += numModInstances * 4;
+        mObservationRunId = slice(buffer, position, numObservations * 4).asIntBuffer();
+        position += numObservations * 4;
+        mObservationSpectralCount = slice(buffer, position, numObservations * 4).asIntBuffer();
+        position += numObservations * 4;
+
+        mSequencePool = slice(buffer, position, sequencePoolSize);
+    }
+
+    protected static ByteBuffer slice(ByteBuffer buffer, int position, int length)
+    {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.limit(position + length);
+        duplicate.position(position);
+        return duplicate.slice();
+    }
+
+    /**
+     * Columns start on 8-byte boundaries
+     */
+    protected static int align(int position)
+    {
+        return (position + 7) & ~7;
+    }
+
+    protected static String readString(ByteBuffer buffer)
+    {
+        int length = buffer.getInt();
+        if (length == NULL_STRING_LENGTH)
+            return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    /**
+     * @return the string at [offset, offset+length) in the sequence pool
+     */
+    protected String getPooledString(int offset, int length)
+    {
+        byte[] bytes = new byte[length];
+        for (int i=0; i<length; i++)
+            bytes[i] = mSequencePool.get(offset + i);
+        return new String(bytes, CHARSET);
+    }
+
+    public int numEntries()
+    {
+        return mNumEntries;
+    }
+
+    public int numRuns()
+    {
+        return mRunHeaders.length;
+    }
+
+    public int getMaxSequenceLength()
+    {
+        return mMaxSequenceLength;
+    }
+
+    /**
+     * @param index
+     * @return unmodified monoisotopic mass of entry index.  Entries are sorted by this
+     */
+    public double getMass(int index)
+    {
+        return mEntryMass.get(index);
+    }
+
+    public String getPeptideSequence(int index)
+    {
+        return getPooledString(mEntrySequenceOffset.get(index), mEntrySequenceLength.get(index));
+    }
+
+    public double getPredictedHydrophobicity(int index)
+    {
+        return mEntryPredictedHydrophobicity.get(index);
+    }
+
+    public double getMedianObservedHydrophobicity(int index)
+    {
+        return mEntryMedianObservedHydrophobicity.get(index);
+    }
+
+    public double getMedianPeptideProphet(int index)
+    {
+        return mEntryMedianPeptideProphet.get(index);
+    }
+
+    /**
+     * @param index
+     * @return AmtPeptideEntry.calculateIDProbability() for entry index
+     */
+    public float getIDProbability(int index)
+    {
+        return mEntryIDProbability.get(index);
+    }
+
+    public int getNumObservations(int index)
+    {
+        return mModStateFirstObservation.get(mEntryFirstModState.get(index + 1)) -
+                mModStateFirstObservation.get(mEntryFirstModState.get(index));
+    }
+
+    /**
+     * @param mass
+     * @return the index of the first entry with unmodified mass >= mass, or numEntries() if none
+     */
+    public int findFirstEntryAtOrAboveMass(double mass)
+    {
+        int low = 0;
+        int high = mNumEntries;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (mEntryMass.get(mid) < mass)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * The range of unmodified masses that entries must have in order for any of their features, with the
+     * given modifications applied as by AmtDatabaseFeatureSetGenerator, to fall in [minMass, maxMass]
+     * @param minMass
+     * @param maxMass
+     * @param modifications
+     * @param maxSequenceLength
+     * @return {min, max}
+     */
+    public static double[] calculateUnmodifiedMassRange(double minMass, double maxMass,
+                                                        MS2Modification[] modifications,
+                                                        int maxSequenceLength)
+    {
+        //biggest total positive and negative shifts for any one residue, if all its mods are applied
+        Map<String, Double> residuePositiveShifts = new HashMap<String, Double>();
+        Map<String, Double> residueNegativeShifts = new HashMap<String, Double>();
+        if (modifications != null)
+        {
+            for (MS2Modification mod : modifications)
+            {
+                Map<String, Double> shifts = mod.getMassDiff() > 0 ? residuePositiveShifts : residueNegativeShifts;
+                Double shift = shifts.get(mod.getAminoAcid());
+                shifts.put(mod.getAminoAcid(), (shift == null ? 0 : shift) + mod.getMassDiff());
+            }
+        }
+        double maxPositiveShift = 0;
+        for (double shift : residuePositiveShifts.values())
+            maxPositiveShift = Math.max(maxPositiveShift, shift);
+        double maxNegativeShift = 0;
+        for (double shift : residueNegativeShifts.values())
+            maxNegativeShift = Math.min(maxNegativeShift, shift);
+
+        return new double[] { minMass - maxSequenceLength * maxPositiveShift,
+                              maxMass - maxSequenceLength * maxNegativeShift };
+    }
+
+    /**
+     * @return new copies of all the database's modifications
+     */
+    public MS2Modification[] getModifications()
+    {
+        MS2Modification[] result = new MS2Modification[mModifications.length];
+        for (int i=0; i<result.length; i++)
+        {
+            result[i] = new MS2Modification();
+            result[i].setAminoAcid(mModifications[i].getAminoAcid());
+            result[i].setMassDiff(mModifications[i].getMassDiff());
+            result[i].setVariable(mModifications[i].getVariable());
+        }
+        return result;
+    }
+
+    /**
+     * Load the whole database
+     * @return
+     */
+    public AmtDatabase createAmtDatabase()
+    {
+        return createAmtDatabase(0, mNumEntries);
+    }
+
+    /**
+     * Load all runs and modifications, and the entries with unmodified masses in [minMass, maxMass]
+     * @param minMass
+     * @param maxMass
+     * @return
+     */
+    public AmtDatabase createAmtDatabase(double minMass, double maxMass)
+    {
+        int start = findFirstEntryAtOrAboveMass(minMass);
+        int end = start;
+        while (end < mNumEntries && mEntryMass.get(end) <= maxMass)
+            end++;
+        return createAmtDatabase(start, end);
+    }
+
+    /**
+     * Load all runs and modifications, and entries [start, end)
+     */
+    protected AmtDatabase createAmtDatabase(int start, int end)
+    {
+        AmtDatabase amtDatabase = new AmtDatabase();
+        amtDatabase.setAmtDBSourceFile(mSourceFile);
+        amtDatabase.setHydrophobicityAlgorithmName(mHydrophobicityAlgorithmName);
+        amtDatabase.setHydrophobicityAlgorithmVersion(mHydrophobicityAlgorithmVersion);
+
+        for (MS2Modification mod : getModifications())
+            amtDatabase.addAminoacidModification(mod);
+
+        for (RunHeader runHeader : mRunHeaders)
+        {
+            List<MS2Modification> ms2ModList = new ArrayList<MS2Modification>();
+            for (int modId : runHeader.modificationIds)
+                ms2ModList.add(amtDatabase.getAminoacidModificationBySequence(modId));
+            AmtRunEntry runEntry = new AmtRunEntry(runHeader.timeHydMapCoefficients.clone(),
+                    ms2ModList.toArray(new MS2Modification[0]), new Date(runHeader.timeAdded));
+            amtDatabase.addRunEntry(runEntry);
+            if (runHeader.mzXmlFilename != null)
+                runEntry.setMzXmlFilename(runHeader.mzXmlFilename);
+            if (runHeader.pepXmlFilename != null)
+                runEntry.setPepXmlFilename(runHeader.pepXmlFilename);
+            if (runHeader.lsid != null)
+                runEntry.setLSID(runHeader.lsid);
+            runEntry.setMinPeptideProphet(runHeader.minPeptideProphet);
+            if (runHeader.timeAnalyzed != NULL_DATE)
+                runEntry.setTimeAnalyzed(new Date(runHeader.timeAnalyzed));
+        }
+
+        for (int i=start; i<end; i++)
+            amtDatabase.addObservationsFromEntry(createEntry(i, amtDatabase));
+        return amtDatabase;
+    }
+
+    /**
+     * Build the AmtPeptideEntry for entry index, as AmtXmlReader would
+     * @param index
+     * @param amtDatabase database with this database's runs and modifications
+     * @return
+     */
+    protected AmtPeptideEntry createEntry(int index, AmtDatabase amtDatabase)
+    {
+        AmtPeptideEntry entry = new AmtPeptideEntry();
+        String peptideSequence = getPeptideSequence(index);
+        entry.setPeptideSequence(peptideSequence);
+        entry.setPredictedHydrophobicity(mEntryPredictedHydrophobicity.get(index));
+
+        for (int state = mEntryFirstModState.get(index); state < mEntryFirstModState.get(index + 1); state++)
+        {
+            List<MS2Modification>[] ms2Modifications = null;
+            int firstModInstance = mModStateFirstModInstance.get(state);
+            int endModInstance = mModStateFirstModInstance.get(state + 1);
+            if (endModInstance > firstModInstance)
+            {
+                ms2Modifications = AmtPeptideEntry.createModificationsArray(peptideSequence.length());
+                for (int instance = firstModInstance; instance < endModInstance; instance++)
+                {
+                    int position = mModInstancePosition.get(instance);
+                    if (ms2Modifications[position] == null)
+                        ms2Modifications[position] = new ArrayList<MS2Modification>();
+                    ms2Modifications[position].add(amtDatabase.getAminoacidModificationBySequence(
+                            mModInstanceModificationId.get(instance)));
+                }
+            }
+
+            AmtPeptideEntry.AmtPeptideModificationStateEntry modState =
+                    entry.addModificationStateEntry(
+                            getPooledString(mModStateSequenceOffset.get(state),
+                                    mModStateSequenceLength.get(state)),
+                            mModStateMass.get(state),
+                            ms2Modifications);
+            for (int obs = mModStateFirstObservation.get(state); obs < mModStateFirstObservation.get(state + 1);
+                 obs++)
+            {
+                AmtPeptideEntry.AmtPeptideObservation observation =
+                        AmtPeptideEntry.AmtPeptideObservation.createObservation(
+                                mObservationHydrophobicity.get(obs),
+                                mObservationPeptideProphet.get(obs),
+                                amtDatabase.getRunBySequence(mObservationRunId.get(obs)),
+                                mObservationTimeInRun.get(obs));
+                observation.setSpectralCount(mObservationSpectralCount.get(obs));
+                modState.addObservationNoRecalc(observation);
+            }
+            modState.recalculateStats();
+        }
+        entry.recalculateStats();
+        return entry;
+    }
+
+    public File getSourceFile()
+    {
+        return mSourceFile;
+    }
+
+    public String getHydrophobicityAlgorithmName()
+    {
+        return mHydrophobicityAlgorithmName;
+    }
+
+    public double getHydrophobicityAlgorithmVersion()
+    {
+        return mHydrophobicityAlgorithmVersion;
+    }
+
+    public String toString()
+    {
+        return "AmtBinaryDatabase: " + mNumEntries + " entries, " + mRunHeaders.length + " runs, " +
+               mModifications.length + " modifications";
+    }
+
+    /**
+     * Write a database in the binary format
+     * @param amtDatabase
+     * @param file
+     * @throws IOException
+     */
+    public static void write(AmtDatabase amtDatabase, File file) throws IOException
+    {
+        AmtPeptideEntry[] entries = amtDatabase.getEntries();
+        final double[] masses = new double[entries.length];
+        final String[] sequences = new String[entries.length];
+        Integer[] order = new Integer[entries.length];
+        for (int i=0; i<entries.length; i++)
+        {
+            sequences[i] = entries[i].getPeptideSequence();
+            byte[] sequenceBytes = sequences[i].getBytes(CHARSET);
+            masses[i] = PeptideGenerator.computeMass(sequenceBytes, 0, sequenceBytes.length,
+                    PeptideGenerator.AMINO_ACID_MONOISOTOPIC_MASSES);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            public int compare(Integer o1, Integer o2)
+            {
+                int result = Double.compare(masses[o1], masses[o2]);
+                return result != 0 ? result : sequences[o1].compareTo(sequences[o2]);
+            }
+        });
+
+        //flatten the entries into columns
+        int numEntries = entries.length;
+        double[] entryPredictedH = new double[numEntries];
+        double[] entryMedianH = new double[numEntries];
+        double[] entryMedianPeptideProphet = new double[numEntries];
+        float[] entryIDProbability = new float[numEntries];
+        int[] entrySequenceOffset = new int[numEntries];
+        int[] entrySequenceLength = new int[numEntries];
+        int[] entryFirstModState = new int[numEntries + 1];
+        double[] sortedMasses = new double[numEntries];
+
+        List<Double> modStateMass = new ArrayList<Double>();
+        List<Integer> modStateSequenceOffset = new ArrayList<Integer>();
+        List<Integer> modStateSequenceLength = new ArrayList<Integer>();
+        List<Integer> modStateFirstModInstance = new ArrayList<Integer>();
+        List<Integer> modStateFirstObservation = new ArrayList<Integer>();
+        List<Integer> modInstancePosition = new ArrayList<Integer>();
+        List<Integer> modInstanceModificationId = new ArrayList<Integer>();
+        List<Double> observationH = new ArrayList<Double>();
+        List<Double> observationPeptideProphet = new ArrayList<Double>();
+        List<Double> observationTimeInRun = new ArrayList<Double>();
+        List<Integer> observationRunId = new ArrayList<Integer>();
+        List<Integer> observationSpectralCount = new ArrayList<Integer>();
+
+        ByteArrayOutputStream sequencePool = new ByteArrayOutputStream();
+        Map<String, Integer> pooledSequenceOffsets = new HashMap<String, Integer>();
+        int maxSequenceLength = 0;
+
+        for (int i=0; i<numEntries; i++)
+        {
+            AmtPeptideEntry entry = entries[order[i]];
+            String sequence = sequences[order[i]];
+            sortedMasses[i] = masses[order[i]];
+            entryPredictedH[i] = entry.getPredictedHydrophobicity();
+            entryMedianH[i] = entry.getMedianObservedHydrophobicity();
+            entryMedianPeptideProphet[i] = entry.getMedianPeptideProphet();
+            entryIDProbability[i] = entry.calculateIDProbability();
+            byte[] sequenceBytes = sequence.getBytes(CHARSET);
+            entrySequenceOffset[i] = poolString(sequenceBytes, sequence, sequencePool, pooledSequenceOffsets);
+            entrySequenceLength[i] = sequenceBytes.length;
+            maxSequenceLength = Math.max(maxSequenceLength, sequence.length());
+            entryFirstModState[i] = modStateMass.size();
+
+            for (AmtPeptideEntry.AmtPeptideModificationStateEntry modState : entry.getModificationStateEntries())
+            {
+                String modifiedSequence = modState.getModifiedSequence();
+                byte[] modifiedSequenceBytes = modifiedSequence.getBytes(CHARSET);
+                modStateMass.add(modState.getModifiedMass());
+                modStateSequenceOffset.add(poolString(modifiedSequenceBytes, modifiedSequence,
+                        sequencePool, pooledSequenceOffsets));
+                modStateSequenceLength.add(modifiedSequenceBytes.length);
+                modStateFirstModInstance.add(modInstancePosition.size());
+                modStateFirstObservation.add(observationH.size());
+
+                List<MS2Modification>[] modifications = modState.getModifications();
+                if (modifications != null)
+                {
+                    for (int position=0; position<modifications.length; position++)
+                    {
+                        if (modifications[position] == null)
+                            continue;
+                        for (MS2Modification modification : modifications[position])
+                        {
+                            modInstancePosition.add(position);
+                            modInstanceModificationId.add(
+                                    amtDatabase.getSequenceForAminoacidModification(modification));
+                        }
+                    }
+                }
+
+                for (AmtPeptideEntry.AmtPeptideObservation observation : modState.getObservations())
+                {
+                    observationH.add(observation.getObservedHydrophobicity());
+                    observationPeptideProphet.add(observation.getPeptideProphet());
+                    observationTimeInRun.add(observation.getTimeInRun());
+                    observationRunId.add(amtDatabase.getSequenceForRun(observation.getRunEntry()));
+                    observationSpectralCount.add(observation.getSpectralCount());
+                }
+            }
+        }
+        entryFirstModState[numEntries] = modStateMass.size();
+        modStateFirstModInstance.add(modInstancePosition.size());
+        modStateFirstObservation.add(observationH.size());
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            writeString(out, amtDatabase.getHydrophobicityAlgorithmName());
+            out.writeDouble(amtDatabase.getHydrophobicityAlgorithmVersion());
+
+            MS2Modification[] modifications = amtDatabase.getAminoacidModifications();
+            out.writeInt(modifications.length);
+            for (MS2Modification mod : modifications)
+            {
+                writeString(out, mod.getAminoAcid());
+                out.writeFloat(mod.getMassDiff());
+                out.writeByte(mod.getVariable() ? 1 : 0);
+            }
+
+            AmtRunEntry[] runs = amtDatabase.getRuns();
+            out.writeInt(runs.length);
+            for (AmtRunEntry run : runs)
+            {
+                double[] coeffs = run.getTimeHydMapCoefficients();
+                out.writeInt(coeffs.length);
+                for (double coeff : coeffs)
+                    out.writeDouble(coeff);
+                MS2Modification[] runMods = run.getModifications();
+                if (runMods == null)
+                    runMods = new MS2Modification[0];
+                out.writeInt(runMods.length);
+                for (MS2Modification mod : runMods)
+                    out.writeInt(amtDatabase.getSequenceForAminoacidModification(mod));
+                out.writeLong(run.getTimeAdded().getTime());
+                out.writeLong(run.getTimeAnalyzed() == null ? NULL_DATE : run.getTimeAnalyzed().getTime());
+                out.writeDouble(run.getMinPeptideProphet());
+                writeString(out, run.getMzXmlFilename());
+                writeString(out, run.getPepXmlFilename());
+                writeString(out, run.getLSID());
+            }
+
+            out.writeInt(numEntries);
+            out.writeInt(maxSequenceLength);
+            out.writeInt(modStateMass.size());
+            out.writeInt(modInstancePosition.size());
+            out.writeInt(observationH.size());
+            out.writeInt(sequencePool.size());
+            while (out.size() != align(out.size()))
+                out.writeByte(0);
+
+            //doubles, then 4-byte columns, then the pool, so every column is aligned
+            for (double value : sortedMasses)
+                out.writeDouble(value);
+            for (double value : entryPredictedH)
+                out.writeDouble(value);
+            for (double value : entryMedianH)
+                out.writeDouble(value);
+            for (double value : entryMedianPeptideProphet)
+                out.writeDouble(value);
+            writeDoubles(out, modStateMass);
+            writeDoubles(out, observationH);
+            writeDoubles(out, observationPeptideProphet);
+            writeDoubles(out, observationTimeInRun);
+
+            for (float value : entryIDProbability)
+                out.writeFloat(value);
+            for (int value : entrySequenceOffset)
+                out.writeInt(value);
+            for (int value : entrySequenceLength)
+                out.writeInt(value);
+            for (int value : entryFirstModState)
+                out.writeInt(value);
+            writeInts(out, modStateSequenceOffset);
+            writeInts(out, modStateSequenceLength);
+            writeInts(out, modStateFirstModInstance);
+            writeInts(out, modStateFirstObservation);
+            writeInts(out, modInstancePosition);
+            writeInts(out, modInstanceModificationId);
+            writeInts(out, observationRunId);
+            writeInts(out, observationSpectralCount);
+
+            sequencePool.writeTo(out);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Add a string to the pool, unless it's there already
+     * @return its offset in the pool
+     */
+    protected static int poolString(byte[] bytes, String string, ByteArrayOutputStream pool,
+                                    Map<String, Integer> pooledOffsets)
+    {
+        Integer offset = pooledOffsets.get(string);
+        if (offset == null)
+        {
+            offset = pool.size();
+            pool.write(bytes, 0, bytes.length);
+            pooledOffsets.put(string, offset);
+        }
+        return offset;
+    }
+
+    protected static void writeString(DataOutputStream out, String string) throws IOException
+    {
+        if (string == null)
+        {
+            out.writeInt(NULL_STRING_LENGTH);
+            return;
+        }
+        byte[] bytes = string.getBytes(CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    protected static void writeDoubles(DataOutputStream out, List<Double> values) throws IOException
+    {
+        for (double value : values)
+            out.writeDouble(value);
+    }
+
+    protected static void writeInts(DataOutputStream out, List<Integer> values) throws IOException
+    {
+        for (int value : values)
+            out.writeInt(value);
+    }
+
+    /**
+     * Everything about a run that's in the header
+     */
+    protected static class RunHeader
+    {
+        protected double[] timeHydMapCoefficients;
+        protected int[] modificationIds;
+        protected long timeAdded;
+        protected long timeAnalyzed;
+        protected double minPeptideProphet;
+        protected String mzXmlFilename;
+        protected String pepXmlFilename;
+        protected String lsid;
+    }
+}
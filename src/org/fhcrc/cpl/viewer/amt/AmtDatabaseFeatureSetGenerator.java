@@ -31,18 +31,31 @@ import org.fhcrc.cpl.toolbox.proteomics.ModifiedAminoAcid;
 /**
  * This class Generates FeatureSets based on AMT Database entries.  These featuresets
  * are what's actually used in matching.
+ *
+ * Entries come from either an AmtDatabase or an AmtBinaryDatabase.  With a binary database,
+ * features can be created for a mass range without loading the entries outside it.
  */
 public class AmtDatabaseFeatureSetGenerator
 {
     static Logger _log = Logger.getLogger(AmtDatabaseFeatureSetGenerator.class);
 
     protected AmtDatabase amtDatabase;
+    protected AmtBinaryDatabase amtBinaryDatabase;
 
     public AmtDatabaseFeatureSetGenerator(AmtDatabase amtDatabase)
     {
         this.amtDatabase = amtDatabase;
     }
 
+    /**
+     * Generate features from a binary database.  createFeatureSetForRun() isn't available
+     * @param amtBinaryDatabase
+     */
+    public AmtDatabaseFeatureSetGenerator(AmtBinaryDatabase amtBinaryDatabase)
+    {
+        this.amtBinaryDatabase = amtBinaryDatabase;
+    }
+
     /**
      * Create a feature set based on this AMT database, accounting for expected
      * modifications.
@@ -55,6 +68,21 @@ public class AmtDatabaseFeatureSetGenerator
      * @return
      */
     public Feature[] createFeaturesForModifications(MS2Modification[] modifications)
+    {
+        return createFeaturesForModifications(modifications, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Create features as createFeaturesForModifications(modifications) does, keeping only the ones
+     * with (modified) mass in [minMass, maxMass].  With a binary database, only the entries that could
+     * produce such features are read
+     * @param modifications
+     * @param minMass
+     * @param maxMass
+     * @return
+     */
+    public Feature[] createFeaturesForModifications(MS2Modification[] modifications,
+                                                    double minMass, double maxMass)
     {
         List<MS2Modification> varModList = new ArrayList<MS2Modification>();
         List<MS2Modification> staticModList = new ArrayList<MS2Modification>();
@@ -71,19 +99,32 @@ public class AmtDatabaseFeatureSetGenerator
 
         List<Feature> resultList = new ArrayList<Feature>();
 
-
-        for (AmtPeptideEntry peptideEntry : amtDatabase.getEntries())
+        //This call is a bit confusing.  We start off the recursive call declaring that all the static
+        //mods should be applied, and supplying the variable mod list as the list of mods to potentially
+        //apply.  Later recursive calls will or will not add variable mods to this list, one by one.
+        if (amtBinaryDatabase != null)
         {
-            //This call is a bit confusing.  We start off the recursive call declaring that all the static
-            //mods should be applied, and supplying the variable mod list as the list of mods to potentially
-            //apply.  Later recursive calls will or will not add variable mods to this list, one by one.
-            List<Feature> featuresForThisPeptide =
-                    generateModFeaturesForPeptide(peptideEntry,
-                                                  peptideEntry.getMedianObservedHydrophobicity(),
-                                                  staticModList, varModList);
-
-            resultList.addAll(featuresForThisPeptide);
-            
+            double[] unmodifiedMassRange =
+                    AmtBinaryDatabase.calculateUnmodifiedMassRange(minMass, maxMass, modifications,
+                            amtBinaryDatabase.getMaxSequenceLength());
+            for (int i = amtBinaryDatabase.findFirstEntryAtOrAboveMass(unmodifiedMassRange[0]);
+                 i < amtBinaryDatabase.numEntries() && amtBinaryDatabase.getMass(i) <= unmodifiedMassRange[1];
+                 i++)
+            {
+                addFeaturesInMassRange(generateModFeaturesForPeptide(amtBinaryDatabase.getPeptideSequence(i),
+                        amtBinaryDatabase.getIDProbability(i),
+                        amtBinaryDatabase.getMedianObservedHydrophobicity(i),
+                        staticModList, varModList), minMass, maxMass, resultList);
+            }
+        }
+        else
+        {
+            for (AmtPeptideEntry peptideEntry : amtDatabase.getEntries())
+            {
+                addFeaturesInMassRange(generateModFeaturesForPeptide(peptideEntry,
+                        peptideEntry.getMedianObservedHydrophobicity(),
+                        staticModList, varModList), minMass, maxMass, resultList);
+            }
         }
 
         return resultList.toArray(new Feature[resultList.size()]);
@@ -91,6 +132,16 @@ public class AmtDatabaseFeatureSetGenerator
 
 
 
+    protected static void addFeaturesInMassRange(List<Feature> features, double minMass, double maxMass,
+                                                 List<Feature> resultList)
+    {
+        for (Feature feature : features)
+        {
+            if (feature.getMass() >= minMass && feature.getMass() <= maxMass)
+                resultList.add(feature);
+        }
+    }
+
     /**
      * Note: Assumes that a variable modification is either fully applied, to all
      * residues in the peptide, or not applied at all. So, e.g., ELVISMMM either has all
@@ -106,7 +157,25 @@ public class AmtDatabaseFeatureSetGenerator
                                                       List<MS2Modification> staticMods,
                                                       List<MS2Modification> varMods)
     {
-        String peptideSequence = peptideEntry.getPeptideSequence();
+        return generateModFeaturesForPeptide(peptideEntry.getPeptideSequence(),
+                peptideEntry.calculateIDProbability(), observedHydrophobicity, staticMods, varMods);
+    }
+
+    /**
+     * As above, for a peptide that's not (or not yet) an AmtPeptideEntry
+     * @param peptideSequence
+     * @param idProbability
+     * @param observedHydrophobicity
+     * @param staticMods
+     * @param varMods
+     * @return
+     */
+    public static List<Feature>generateModFeaturesForPeptide(String peptideSequence,
+                                                      float idProbability,
+                                                      double observedHydrophobicity,
+                                                      List<MS2Modification> staticMods,
+                                                      List<MS2Modification> varMods)
+    {
 
         List<MS2Modification> staticModsThisFeature =
                 new ArrayList<MS2Modification>();
@@ -125,7 +194,7 @@ public class AmtDatabaseFeatureSetGenerator
         }
 
 //System.err.println(peptideSequence + ", static: " + staticModsThisFeature + ", var: " + varModsThisFeature);        
-        return recursivelyAddFeaturesForMods(peptideEntry,
+        return recursivelyAddFeaturesForMods(peptideSequence, idProbability,
                 observedHydrophobicity, staticModsThisFeature, varModsThisFeature);
     }
 
@@ -133,14 +202,16 @@ public class AmtDatabaseFeatureSetGenerator
      * Recursively generate features for all possible masses, given the list of
      * /variable/ modifications known to exist in this peptide and the list of modifications
      * already applied
-     * @param peptideEntry
+     * @param peptideSequence
+     * @param idProbability
      * @param observedHydrophobicity
      * @param appliedMods already-applied modifications.  This will include all static mods and a growing
      * list of variable mods
      * @param varModsRemaining  variable mods remaining.  None of these mods should ever be static
      * @return
      */
-    protected static List<Feature> recursivelyAddFeaturesForMods(AmtPeptideEntry peptideEntry,
+    protected static List<Feature> recursivelyAddFeaturesForMods(String peptideSequence,
+                                                          float idProbability,
                                                           double observedHydrophobicity,
                                                           List<MS2Modification> appliedMods,
                                                           List<MS2Modification> varModsRemaining)
@@ -148,7 +219,7 @@ public class AmtDatabaseFeatureSetGenerator
         List<Feature> result = new ArrayList<Feature>();
         if (varModsRemaining.size() == 0)
         {
-            Feature feature = createFeatureForPeptideWithMods(peptideEntry,
+            Feature feature = createFeatureForPeptideWithMods(peptideSequence, idProbability,
                     observedHydrophobicity, appliedMods);
             result.add(feature);
             return result;
@@ -170,10 +241,10 @@ public class AmtDatabaseFeatureSetGenerator
         MS2Modification mod = varModsRemaining.get(0);
         modsRemainingCopy.remove(mod);
 
-        result.addAll(recursivelyAddFeaturesForMods(peptideEntry, observedHydrophobicity,
+        result.addAll(recursivelyAddFeaturesForMods(peptideSequence, idProbability, observedHydrophobicity,
                                                     appliedMods, varModsRemaining));
         appliedMods.add(mod);
-        result.addAll(recursivelyAddFeaturesForMods(peptideEntry, observedHydrophobicity,
+        result.addAll(recursivelyAddFeaturesForMods(peptideSequence, idProbability, observedHydrophobicity,
                                                     appliedMods,
                                                     varModsRemaining));
         return result;
@@ -182,21 +253,20 @@ public class AmtDatabaseFeatureSetGenerator
     /**
      * Modifications are applied all-or-nothing.  If we modify one residue, we modify all
      * of that residue
-     * @param peptideEntry
+     * @param peptideSequence
+     * @param idProbability
      * @param observedHydrophobicity
      * @param modifications
      * @return
      */
-    protected static Feature createFeatureForPeptideWithMods(AmtPeptideEntry peptideEntry,
+    protected static Feature createFeatureForPeptideWithMods(String peptideSequence,
+                                                    float idProbability,
                                                     double observedHydrophobicity,
                                                     List<MS2Modification> modifications)
     {
-        String peptideSequence = peptideEntry.getPeptideSequence();
-
-
         Feature feature = new Feature();
         MS2ExtraInfoDef.addPeptide(feature, peptideSequence);
-        MS2ExtraInfoDef.setPeptideProphet(feature, peptideEntry.calculateIDProbability());
+        MS2ExtraInfoDef.setPeptideProphet(feature, idProbability);
         feature.setPeaks(1);
         feature.setScanCount(1);
 
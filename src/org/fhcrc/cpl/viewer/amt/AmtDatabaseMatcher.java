@@ -34,6 +34,7 @@ import org.fhcrc.cpl.toolbox.proteomics.ProteomicsRegressionUtilities;
 import org.fhcrc.cpl.toolbox.*;
 import org.fhcrc.cpl.toolbox.statistics.BasicStatistics;
 import org.fhcrc.cpl.toolbox.statistics.RegressionUtilities;
+import org.fhcrc.cpl.toolbox.statistics.QuantileRegression;
 import org.fhcrc.cpl.toolbox.filehandler.TempFileManager;
 import org.fhcrc.cpl.toolbox.datastructure.Pair;
 import org.fhcrc.cpl.toolbox.gui.chart.*;
@@ -80,6 +81,9 @@ public class AmtDatabaseMatcher
 
     protected int nonlinearMappingPolynomialDegree = DEFAULT_NONLINEAR_MAPPING_DEGREE;
 
+    //Map T to H with in-process modal regression, rather than by running R
+    protected boolean useInProcessRegression = false;
+
     //what's a 'significant' difference in hydrophobicity, in terms of figuring
     //out whether a single-observation peptide should be used for matching?        feat
     public static final float DEFAULT_SIGNIFICANT_HYDRO_DIFFERENCE = .4f;
@@ -100,6 +104,9 @@ public class AmtDatabaseMatcher
 
     protected int maxRProbAssignmentMillis = AmtMatchProbabilityAssigner.DEFAULT_MAX_EM_ITERATIONS;
 
+    //Fit the match probability model in-process, rather than by running R
+    protected boolean useInProcessEM = false;
+
 
     //Should we use MS1 times for alignment?  This requires mass-and-time matching between MS1 and MS2
     public static final boolean DEFAULT_USE_MS1_TIMES_FOR_ALIGNMENT = true;
@@ -701,6 +708,7 @@ public class AmtDatabaseMatcher
         probabilityAssigner.setMinEMIterations(minEMIterations);
         probabilityAssigner.setMaxEMIterations(maxEMIterations);
         probabilityAssigner.setMaxRProbAssignmentMillis(maxRProbAssignmentMillis);
+        probabilityAssigner.setUseInProcessEM(useInProcessEM);
         
 
         List<Feature> matchedMS1Features = probabilityAssigner.assignMatchesAndProbabilities(
@@ -1014,9 +1022,14 @@ public class AmtDatabaseMatcher
 
         try
         {
-            resultCoefficients = RegressionUtilities.modalRegression(ms1TimesForRegression,
-                    hydrophobicitiesForRegression,
-                    degree);
+            if (useInProcessRegression)
+                resultCoefficients = QuantileRegression.modalRegression(ms1TimesForRegression,
+                        hydrophobicitiesForRegression,
+                        degree);
+            else
+                resultCoefficients = RegressionUtilities.modalRegression(ms1TimesForRegression,
+                        hydrophobicitiesForRegression,
+                        degree);
         }
         catch (IOException e)
         {
@@ -1149,6 +1162,7 @@ public class AmtDatabaseMatcher
                 lowMassTolerance, highMassTolerance,
                 lowHTolerance, highHTolerance,
                 FeatureSetMatcher.DELTA_MASS_TYPE_PPM);
+        window2DFeatureSetMatcher.setSortedArrayMatching(true);
         return window2DFeatureSetMatcher.matchFeatures(ms1FeatureSet, amtFeatureSet);
     }
 
@@ -1922,6 +1936,16 @@ public class AmtDatabaseMatcher
         this.nonlinearMappingPolynomialDegree = nonlinearMappingPolynomialDegree;
     }
 
+    public boolean isUseInProcessRegression()
+    {
+        return useInProcessRegression;
+    }
+
+    public void setUseInProcessRegression(boolean useInProcessRegression)
+    {
+        this.useInProcessRegression = useInProcessRegression;
+    }
+
     public float getMaxMatchFDRToKeep()
     {
         return maxMatchFDRToKeep;
@@ -1939,4 +1963,14 @@ public class AmtDatabaseMatcher
     public void setMaxRProbAssignmentMillis(int maxRProbAssignmentMillis) {
         this.maxRProbAssignmentMillis = maxRProbAssignmentMillis;
     }
+
+    public boolean isUseInProcessEM()
+    {
+        return useInProcessEM;
+    }
+
+    public void setUseInProcessEM(boolean useInProcessEM)
+    {
+        this.useInProcessEM = useInProcessEM;
+    }
 }
@@ -164,6 +164,14 @@ public class AmtMatchProbabilityAssigner
 
     protected float proportion = 0f;
 
+    //Fit the EM model in-process, rather than by running R
+    protected boolean useInProcessEM = false;
+
+    //for checking the fitted distribution against the data, as assign_amt_probabilities_em.R does
+    protected static final int EM_FIT_CHECK_SAMPLE_SIZE = 10000;
+    protected static final long EM_FIT_CHECK_SEED = 100;
+    protected static final int EM_FIT_CHECK_NUM_QUANTILES = 1001;
+
 
 
     /**
@@ -557,68 +565,16 @@ public class AmtMatchProbabilityAssigner
         }
 
 
-        Map<String,Object> rScalarVarMap = new HashMap<String,Object>();
-        Map<String,double[]> rVectorVarMap = new HashMap<String,double[]>();
-
-
-
-        rVectorVarMap.put("targetx",targetHErrorData);
-        rVectorVarMap.put("targety",targetMassErrorData);
-
-
-        rScalarVarMap.put("proportion",(double) proportionTrue);
         double area = (maxDeltaMass - minDeltaMass) * (maxDeltaElution - minDeltaElution);
-        rScalarVarMap.put("area",area);
-        rScalarVarMap.put("miniterations",(double) minEMIterations);
-        rScalarVarMap.put("maxiterations",(double) maxEMIterations);
-        rScalarVarMap.put("max_deltap_proportion_for_stable",(double) DEFAULT_EM_MAX_DELTA_P_FOR_STABLE);
-        rScalarVarMap.put("max_deltap_proportion",(double) DEFAULT_EM_MAX_DELTA_P_FOR_STABLE + 0.001);
-
-        rScalarVarMap.put("iters_stable_for_converg",(double) DEFAULT_EM_MAX_ITERATIONS_STABLE_FOR_CONVERGENCE);
-
-        rScalarVarMap.put("showcharts",showCharts ? "TRUE" : "FALSE");
-        File outChartFile = null;
-        File normTestOutChartFile = null;
-
-        if (showCharts)
-        {
-            outChartFile = TempFileManager.createTempFile("em_plots.jpg", this);
-            normTestOutChartFile = TempFileManager.createTempFile("em_normtest_plots.jpg", this);
-
-            rScalarVarMap.put("chart_out_file", "'" + RInterface.generateRFriendlyPath(outChartFile) + "'");
-            rScalarVarMap.put("normtest_chart_out_file", "'" +
-                    RInterface.generateRFriendlyPath(normTestOutChartFile) + "'");
-
-        }
-
-        String calculateProbabilitiesCommand =
-          RInterface.readResourceFile("/org/fhcrc/cpl/viewer/amt/assign_amt_probabilities_em.R");
 
-        //this timeout is arbitrary and dangerous.  Woo hoo!
-        int timeoutMilliseconds=maxRProbAssignmentMillis;
-        String rResult = RInterface.evaluateRExpression(calculateProbabilitiesCommand,
-                rScalarVarMap, rVectorVarMap, null, null, timeoutMilliseconds);
-
-        Map<String, String> varResultStringMap =
-                RInterface.extractVariableStringsFromListOutput(rResult);
-        float[] probabilities = new float[numPoints];
-
-        int probsIndex = 0;
-        String[] probChunks = varResultStringMap.get("probs").split("\\s");
-        for (String probChunk : probChunks)
-        {
-            if (!probChunk.contains("[") && probChunk.length() > 0)
-            {
-                probabilities[probsIndex++] = Float.parseFloat(probChunk);
-            }
-        }
-        if (probsIndex != numPoints)
-            throw new IOException("FAILED to read probabilities correctly back from R!");
+        float[] probabilities;
+        if (useInProcessEM)
+            probabilities = calculateProbabilitiesEMInProcess(targetHErrorData, targetMassErrorData,
+                    proportionTrue, area, showCharts);
+        else
+            probabilities = calculateProbabilitiesEMWithR(targetHErrorData, targetMassErrorData,
+                    proportionTrue, area, showCharts);
 
-        converged = varResultStringMap.get("converged").contains("TRUE");
-        String numIterString = varResultStringMap.get("num_iterations");
-        numIterString = numIterString.substring(numIterString.indexOf("]") + 1).trim();
-        num_iterations = Integer.parseInt(numIterString);
         if (converged)
         {
 
@@ -631,24 +587,6 @@ public class AmtMatchProbabilityAssigner
                     num_iterations + " iterations");
         }
 
-        String[] ksChunks = varResultStringMap.get("ksresults").split("\\s");
-        ks_score_x = Float.parseFloat(ksChunks[2]);
-        ks_score_y = Float.parseFloat(ksChunks[3]);
-
-        //todo: move parsing of vector results into RInterface
-        String[] distParamValues = varResultStringMap.get("dist_params").split("\\s");
-        List<Float> paramVals = new ArrayList<Float>();
-        for (String paramVal : distParamValues)
-            if (paramVal != null && paramVal.length() > 1 && !paramVal.contains("["))
-                paramVals.add(Float.parseFloat(paramVal));
-
-        mu_x = paramVals.get(0);
-        mu_y = paramVals.get(1);
-        sigma_x = paramVals.get(2);
-        sigma_y = paramVals.get(3);
-        proportion = paramVals.get(4);
-
-
         _log.debug("Distribution params: mu_x=" + mu_x + ", mu_y=" + mu_y +
                    ", sigma_x=" + sigma_x + ", sigma_y=" + sigma_y + ", proportion=" + proportion);
 
@@ -666,41 +604,8 @@ public class AmtMatchProbabilityAssigner
             ApplicationContext.setMessage("KS normality test passed.  KS values: x = " + ks_score_x + ", y = " + ks_score_y);
         }
 
-        String[] corrChunks = varResultStringMap.get("corresults").split("\\s");
-        quantileCorrX = Float.parseFloat(corrChunks[2]);
-        quantileCorrY = Float.parseFloat(corrChunks[3]);
-
-        String[] qBetaChunks = varResultStringMap.get("qbetas").split("\\s");
-        quantileBetaX = Float.parseFloat(qBetaChunks[2]);
-        quantileBetaY = Float.parseFloat(qBetaChunks[3]);        
-
         if (showCharts)
         {
-            try
-            {
-                PanelWithBlindImageChart pwbic =
-                        new PanelWithBlindImageChart(outChartFile,"EM Parameters");
-                pwbic.displayInTab();
-
-            }
-            catch (Exception e)
-            {
-                ApplicationContext.errorMessage("Error displaying error cutoff chart images, file: "
-                              + outChartFile.getAbsolutePath(),e);
-            }
-            try
-            {
-                PanelWithBlindImageChart pwbic =
-                        new PanelWithBlindImageChart(normTestOutChartFile,"EM dist analysis");
-                pwbic.displayInTab();
-            }
-            catch (Exception e)
-            {
-                ApplicationContext.infoMessage("Error displaying error cutoff chart images, file: "
-                              + normTestOutChartFile.getAbsolutePath() + ", error: " + e.getMessage());
-            }
-
-
             //perspective plot, with distributions indicated
             try
             {
@@ -833,6 +738,330 @@ public class AmtMatchProbabilityAssigner
     }
 
 
+    /**
+     * Fit the same mixture model as assign_amt_probabilities_em.R, in-process: a bivariate normal (independent
+     * dimensions) for true matches over a uniform density for false ones, fit by EM with the same starting
+     * values, minimum and maximum iterations and convergence criterion.  The goodness-of-fit diagnostics are
+     * calculated the same way too, by comparing the data to a seeded sample from the fitted mixture.
+     *
+     * Everything is on primitive arrays and in local variables until the end, so separate instances can
+     * run in parallel
+     * @param x H errors
+     * @param y mass errors
+     * @param proportionTrue initial proportion of true matches
+     * @param area area over which false matches are uniformly distributed
+     * @param showCharts
+     * @return probability of each match
+     */
+    protected float[] calculateProbabilitiesEMInProcess(double[] x, double[] y, float proportionTrue,
+                                                        double area, boolean showCharts)
+    {
+        int numPoints = x.length;
+        double muX = BasicStatistics.mean(x);
+        double muY = BasicStatistics.mean(y);
+        double sigmaX = BasicStatistics.standardDeviation(x);
+        double sigmaY = BasicStatistics.standardDeviation(y);
+        double proportionNow = proportionTrue;
+
+        double[] z = new double[numPoints];
+        double[] zNew = new double[numPoints];
+        List<Double> iterationProportions = new ArrayList<Double>();
+        List<Double> iterationMaxProbDiffs = new ArrayList<Double>();
+        iterationProportions.add(proportionNow);
+
+        boolean convergedNow = false;
+        int numIterationsStable = 0;
+        for (int i=1; i<=maxEMIterations; i++)
+        {
+            //e step
+            double trueScale = proportionNow / (2 * Math.PI * sigmaX * sigmaY);
+            double falseDensity = (1 - proportionNow) / area;
+            double maxProbDiff = 0;
+            double maxOldProb = .000001;
+            for (int j=0; j<numPoints; j++)
+            {
+                double dx = (x[j] - muX) / sigmaX;
+                double dy = (y[j] - muY) / sigmaY;
+                double trueDensity = trueScale * Math.exp(-0.5 * (dx * dx + dy * dy));
+                zNew[j] = trueDensity / (trueDensity + falseDensity);
+                maxProbDiff = Math.max(maxProbDiff, Math.abs(zNew[j] - z[j]));
+                maxOldProb = Math.max(maxOldProb, z[j]);
+            }
+
+            //on the first iteration, there's nothing to compare to
+            double maxDeltaPProportion = i == 1 ? DEFAULT_EM_MAX_DELTA_P_FOR_STABLE + 0.001 :
+                    maxProbDiff / maxOldProb;
+            iterationMaxProbDiffs.add(maxDeltaPProportion);
+
+            double[] swap = z;
+            z = zNew;
+            zNew = swap;
+
+            if (maxDeltaPProportion <= DEFAULT_EM_MAX_DELTA_P_FOR_STABLE)
+                numIterationsStable++;
+            else
+                numIterationsStable = 0;
+            if (numIterationsStable >= DEFAULT_EM_MAX_ITERATIONS_STABLE_FOR_CONVERGENCE && i >= minEMIterations)
+            {
+                convergedNow = true;
+                break;
+            }
+
+            //m step
+            double sumZ = 0, sumZX = 0, sumZXX = 0, sumZY = 0, sumZYY = 0;
+            for (int j=0; j<numPoints; j++)
+            {
+                double zx = z[j] * x[j];
+                double zy = z[j] * y[j];
+                sumZ += z[j];
+                sumZX += zx;
+                sumZXX += zx * x[j];
+                sumZY += zy;
+                sumZYY += zy * y[j];
+            }
+            muX = sumZX / sumZ;
+            sigmaX = Math.sqrt(sumZXX / sumZ - muX * muX);
+            muY = sumZY / sumZ;
+            sigmaY = Math.sqrt(sumZYY / sumZ - muY * muY);
+            proportionNow = sumZ / numPoints;
+            iterationProportions.add(proportionNow);
+        }
+
+        converged = convergedNow;
+        num_iterations = iterationProportions.size();
+        mu_x = (float) muX;
+        mu_y = (float) muY;
+        sigma_x = (float) sigmaX;
+        sigma_y = (float) sigmaY;
+        proportion = (float) proportionNow;
+
+        //goodness of fit
+        double[] sampleX = sampleFittedDistribution(muX, sigmaX, proportionNow,
+                BasicStatistics.min(x), BasicStatistics.max(x));
+        double[] sampleY = sampleFittedDistribution(muY, sigmaY, proportionNow,
+                BasicStatistics.min(y), BasicStatistics.max(y));
+        ks_score_x = (float) BasicStatistics.kolmogorovSmirnovPValue(x, sampleX);
+        ks_score_y = (float) BasicStatistics.kolmogorovSmirnovPValue(y, sampleY);
+        double[] quantilesX = quantilesForFitCheck(x);
+        double[] quantilesY = quantilesForFitCheck(y);
+        double[] sampleQuantilesX = quantilesForFitCheck(sampleX);
+        double[] sampleQuantilesY = quantilesForFitCheck(sampleY);
+        quantileCorrX = (float) BasicStatistics.correlationCoefficient(quantilesX, sampleQuantilesX);
+        quantileCorrY = (float) BasicStatistics.correlationCoefficient(quantilesY, sampleQuantilesY);
+        quantileBetaX = (float) slopeThroughOrigin(sampleQuantilesX, quantilesX);
+        quantileBetaY = (float) slopeThroughOrigin(sampleQuantilesY, quantilesY);
+
+        if (showCharts)
+        {
+            PanelWithLineChart pwlc = new PanelWithLineChart();
+            pwlc.setName("EM Parameters");
+            double[] iterations = new double[iterationMaxProbDiffs.size()];
+            double[] proportions = new double[iterations.length];
+            double[] maxProbDiffs = new double[iterations.length];
+            for (int i=0; i<iterations.length; i++)
+            {
+                iterations[i] = i + 1;
+                proportions[i] = iterationProportions.get(Math.min(i, iterationProportions.size() - 1));
+                maxProbDiffs[i] = iterationMaxProbDiffs.get(i);
+            }
+            pwlc.addData(iterations, proportions, "Proportion True");
+            pwlc.addData(iterations, maxProbDiffs, "Max % Probability Change");
+            pwlc.setAxisLabels("Iteration", "Value");
+            pwlc.displayInTab();
+        }
+
+        float[] probabilities = new float[numPoints];
+        for (int j=0; j<numPoints; j++)
+            probabilities[j] = (float) z[j];
+        return probabilities;
+    }
+
+    /**
+     * A sample from one dimension of the fitted mixture, made as assign_amt_probabilities_em.R makes it, from
+     * a fixed seed
+     */
+    protected double[] sampleFittedDistribution(double mu, double sigma, double proportionTrue,
+                                                double min, double max)
+    {
+        Random random = new Random(EM_FIT_CHECK_SEED);
+        int numTrue = (int) (proportionTrue * EM_FIT_CHECK_SAMPLE_SIZE);
+        int numFalse = (int) ((1 - proportionTrue) * EM_FIT_CHECK_SAMPLE_SIZE);
+        double[] result = new double[numTrue + numFalse];
+        for (int i=0; i<numTrue; i++)
+            result[i] = mu + sigma * random.nextGaussian();
+        for (int i=numTrue; i<result.length; i++)
+            result[i] = min + (max - min) * random.nextDouble();
+        return result;
+    }
+
+    /**
+     * Quantiles at 0, .001, ..., 1
+     */
+    protected double[] quantilesForFitCheck(double[] values)
+    {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        double[] result = new double[EM_FIT_CHECK_NUM_QUANTILES];
+        for (int i=0; i<result.length; i++)
+        {
+            double h = (sorted.length - 1) * ((double) i / (result.length - 1));
+            int low = (int) Math.floor(h);
+            int high = Math.min(low + 1, sorted.length - 1);
+            result[i] = sorted[low] + (h - low) * (sorted[high] - sorted[low]);
+        }
+        return result;
+    }
+
+    /**
+     * Least-squares slope of y on x with no intercept
+     */
+    protected static double slopeThroughOrigin(double[] x, double[] y)
+    {
+        double sumXY = 0;
+        double sumXX = 0;
+        for (int i=0; i<x.length; i++)
+        {
+            sumXY += x[i] * y[i];
+            sumXX += x[i] * x[i];
+        }
+        return sumXY / sumXX;
+    }
+
+    /**
+     * Fit the mixture model by running assign_amt_probabilities_em.R.  Sets the distribution parameters and
+     * diagnostics, and displays R's charts if asked
+     * @param targetHErrorData
+     * @param targetMassErrorData
+     * @param proportionTrue
+     * @param area
+     * @param showCharts
+     * @return
+     * @throws IOException
+     */
+    protected float[] calculateProbabilitiesEMWithR(double[] targetHErrorData, double[] targetMassErrorData,
+                                                    float proportionTrue, double area, boolean showCharts)
+            throws IOException
+    {
+        int numPoints = targetHErrorData.length;
+
+        Map<String,Object> rScalarVarMap = new HashMap<String,Object>();
+        Map<String,double[]> rVectorVarMap = new HashMap<String,double[]>();
+
+
+
+        rVectorVarMap.put("targetx",targetHErrorData);
+        rVectorVarMap.put("targety",targetMassErrorData);
+
+
+        rScalarVarMap.put("proportion",(double) proportionTrue);
+        rScalarVarMap.put("area",area);
+        rScalarVarMap.put("miniterations",(double) minEMIterations);
+        rScalarVarMap.put("maxiterations",(double) maxEMIterations);
+        rScalarVarMap.put("max_deltap_proportion_for_stable",(double) DEFAULT_EM_MAX_DELTA_P_FOR_STABLE);
+        rScalarVarMap.put("max_deltap_proportion",(double) DEFAULT_EM_MAX_DELTA_P_FOR_STABLE + 0.001);
+
+        rScalarVarMap.put("iters_stable_for_converg",(double) DEFAULT_EM_MAX_ITERATIONS_STABLE_FOR_CONVERGENCE);
+
+        rScalarVarMap.put("showcharts",showCharts ? "TRUE" : "FALSE");
+        File outChartFile = null;
+        File normTestOutChartFile = null;
+
+        if (showCharts)
+        {
+            outChartFile = TempFileManager.createTempFile("em_plots.jpg", this);
+            normTestOutChartFile = TempFileManager.createTempFile("em_normtest_plots.jpg", this);
+
+            rScalarVarMap.put("chart_out_file", "'" + RInterface.generateRFriendlyPath(outChartFile) + "'");
+            rScalarVarMap.put("normtest_chart_out_file", "'" +
+                    RInterface.generateRFriendlyPath(normTestOutChartFile) + "'");
+
+        }
+
+        String calculateProbabilitiesCommand =
+          RInterface.readResourceFile("/org/fhcrc/cpl/viewer/amt/assign_amt_probabilities_em.R");
+
+        //this timeout is arbitrary and dangerous.  Woo hoo!
+        int timeoutMilliseconds=maxRProbAssignmentMillis;
+        String rResult = RInterface.evaluateRExpression(calculateProbabilitiesCommand,
+                rScalarVarMap, rVectorVarMap, null, null, timeoutMilliseconds);
+
+        Map<String, String> varResultStringMap =
+                RInterface.extractVariableStringsFromListOutput(rResult);
+        float[] probabilities = new float[numPoints];
+
+        int probsIndex = 0;
+        String[] probChunks = varResultStringMap.get("probs").split("\\s");
+        for (String probChunk : probChunks)
+        {
+            if (!probChunk.contains("[") && probChunk.length() > 0)
+            {
+                probabilities[probsIndex++] = Float.parseFloat(probChunk);
+            }
+        }
+        if (probsIndex != numPoints)
+            throw new IOException("FAILED to read probabilities correctly back from R!");
+
+        converged = varResultStringMap.get("converged").contains("TRUE");
+        String numIterString = varResultStringMap.get("num_iterations");
+        numIterString = numIterString.substring(numIterString.indexOf("]") + 1).trim();
+        num_iterations = Integer.parseInt(numIterString);
+
+        String[] ksChunks = varResultStringMap.get("ksresults").split("\\s");
+        ks_score_x = Float.parseFloat(ksChunks[2]);
+        ks_score_y = Float.parseFloat(ksChunks[3]);
+
+        //todo: move parsing of vector results into RInterface
+        String[] distParamValues = varResultStringMap.get("dist_params").split("\\s");
+        List<Float> paramVals = new ArrayList<Float>();
+        for (String paramVal : distParamValues)
+            if (paramVal != null && paramVal.length() > 1 && !paramVal.contains("["))
+                paramVals.add(Float.parseFloat(paramVal));
+
+        mu_x = paramVals.get(0);
+        mu_y = paramVals.get(1);
+        sigma_x = paramVals.get(2);
+        sigma_y = paramVals.get(3);
+        proportion = paramVals.get(4);
+
+
+        String[] corrChunks = varResultStringMap.get("corresults").split("\\s");
+        quantileCorrX = Float.parseFloat(corrChunks[2]);
+        quantileCorrY = Float.parseFloat(corrChunks[3]);
+
+        String[] qBetaChunks = varResultStringMap.get("qbetas").split("\\s");
+        quantileBetaX = Float.parseFloat(qBetaChunks[2]);
+        quantileBetaY = Float.parseFloat(qBetaChunks[3]);
+
+        if (showCharts)
+        {
+            try
+            {
+                PanelWithBlindImageChart pwbic =
+                        new PanelWithBlindImageChart(outChartFile,"EM Parameters");
+                pwbic.displayInTab();
+
+            }
+            catch (Exception e)
+            {
+                ApplicationContext.errorMessage("Error displaying error cutoff chart images, file: "
+                              + outChartFile.getAbsolutePath(),e);
+            }
+            try
+            {
+                PanelWithBlindImageChart pwbic =
+                        new PanelWithBlindImageChart(normTestOutChartFile,"EM dist analysis");
+                pwbic.displayInTab();
+            }
+            catch (Exception e)
+            {
+                ApplicationContext.infoMessage("Error displaying error cutoff chart images, file: "
+                              + normTestOutChartFile.getAbsolutePath() + ", error: " + e.getMessage());
+            }
+        }
+
+        return probabilities;
+    }
+
     /**
      * Use the normal CDF to calculate the density of a small area of the distribution
      * @param xpos
@@ -913,6 +1142,16 @@ public class AmtMatchProbabilityAssigner
         this.maxRProbAssignmentMillis = maxRProbAssignmentMillis;
     }
 
+    public boolean isUseInProcessEM()
+    {
+        return useInProcessEM;
+    }
+
+    public void setUseInProcessEM(boolean useInProcessEM)
+    {
+        this.useInProcessEM = useInProcessEM;
+    }
+
 
     public float getMuX()
     {
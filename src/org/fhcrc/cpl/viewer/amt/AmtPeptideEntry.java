@@ -106,6 +106,16 @@ public class AmtPeptideEntry
     }
 
 
+    /**
+     * An empty array of per-position modification lists, as modification state entries take them
+     * @param length
+     * @return
+     */
+    public static List<MS2Modification>[] createModificationsArray(int length)
+    {
+        return (List<MS2Modification>[]) new List[length];
+    }
+
     /**
      * Round to the nearest multiple of modificationMassRoundingFactor.
      * Do it by dividing by the factor, rounding to nearest 1, then multiplying
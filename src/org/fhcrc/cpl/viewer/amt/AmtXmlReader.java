@@ -21,14 +21,23 @@ import java.util.ArrayList;
 
 import org.w3c.dom.Node;
 import org.apache.log4j.Logger;
+import org.apache.xmlbeans.impl.util.XsTypeConverter;
 import org.fhcrc.cpl.toolbox.filehandler.Stax2DomBuilder;
+import org.fhcrc.cpl.toolbox.filehandler.SimpleXMLStreamReader;
 import org.fhcrc.cpl.toolbox.proteomics.MS2Modification;
 import org.fhcrc.proteomics.schemaRevision.amtXml10.*;
 
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 
 /**
-* A restrictive wrapper for reading AmtXml files.  The method is a compromise between
+* A restrictive wrapper for reading AmtXml files.
+ *
+ * By default the file is read in a single pass with a plain stax parser, filling in the AmtDatabase,
+ * AmtRunEntry and AmtPeptideEntry objects straight from element attributes.  That requires modifications
+ * to come before the runs and peptide entries that use them, and runs before peptide entries, which is how
+ * AmtXmlWriter writes them.  Files in any other order (e.g., the schema's) are read the old way, in three
+ * passes:  that method is a compromise between
  * the elegance of DOM/XmlBeans and the efficiency of stax.  We use Stax2DomBuilder to pull DOM subtrees
  * out of the pepxml file for bits that we care about, namely modifications and features
  */
@@ -50,11 +59,44 @@ public class AmtXmlReader
         read(file);
     }
 
-    /** 
-     * Read in a file, extract modifications and features
+    /**
+     * Read in a amtxml file
+     * @param file
+     * @param singlePass if false, always use the three-pass DOM/XmlBeans reader
+     * @throws FileNotFoundException
+     * @throws XMLStreamException
+     */
+    public AmtXmlReader(File file, boolean singlePass) throws FileNotFoundException, XMLStreamException
+    {
+        if (singlePass)
+            read(file);
+        else
+            readMultiPass(file);
+    }
+
+    /**
+     * Read in a file, extract modifications and features.  Read in a single pass if the elements are in
+     * the order we write them, otherwise in three
      * @param file
      */
     public void read(File file) throws FileNotFoundException, XMLStreamException
+    {
+        if (readSinglePass(file))
+            return;
+        _log.debug("Elements out of order for single-pass reading, reading in three passes");
+        //the three-pass reader doesn't read the amt_database attributes, so keep the ones we got
+        AmtDatabase partialDatabase = mAmtDatabase;
+        mAmtDatabase = null;
+        readMultiPass(file);
+        mAmtDatabase.setHydrophobicityAlgorithmName(partialDatabase.getHydrophobicityAlgorithmName());
+        mAmtDatabase.setHydrophobicityAlgorithmVersion(partialDatabase.getHydrophobicityAlgorithmVersion());
+    }
+
+    /**
+     * Read in a file in three passes with Stax2DomBuilder and XmlBeans
+     * @param file
+     */
+    public void readMultiPass(File file) throws FileNotFoundException, XMLStreamException
     {
         //this is not the most efficient way to do it.  If performance is bad, reimplement.
         //On the other hand, it's simple, and it doesn't waste any memory to speak of
@@ -228,7 +270,7 @@ public class AmtXmlReader
                 if (xmlBeansModifications != null && xmlBeansModifications.length > 0)
                 {
                     ms2Modifications =
-                            (List<MS2Modification>[]) new List[xmlBeansPeptideEntry.getPeptideSequence().length()];
+                            AmtPeptideEntry.createModificationsArray(xmlBeansPeptideEntry.getPeptideSequence().length());
 
                     //remember, position = index + 1
                     for (AmtDatabaseDocument.AmtDatabase.PeptideEntry.ModificationStateEntry.AminoacidModInstance xmlBeansModification :
@@ -275,6 +317,232 @@ public class AmtXmlReader
         }
     }
 
+    /**
+     * Read the whole file with one stax parser.  Stops early if a run or peptide entry refers to a
+     * modification or run that hasn't been read yet
+     * @param inputFile
+     * @return false if the elements were out of order, in which case the database is incomplete
+     * @throws FileNotFoundException
+     * @throws XMLStreamException
+     */
+    protected boolean readSinglePass(File inputFile) throws FileNotFoundException, XMLStreamException
+    {
+        mAmtDatabase = new AmtDatabase();
+        mAmtDatabase.setAmtDBSourceFile(inputFile);
+
+        InputStream in = new BufferedInputStream(new FileInputStream(inputFile));
+        SimpleXMLStreamReader parser = null;
+        try
+        {
+            parser = new SimpleXMLStreamReader(in);
+            while (parser.hasNext())
+            {
+                if (parser.next() != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                String elementName = parser.getLocalName();
+                if ("peptide_entry".equals(elementName))
+                {
+                    if (!readEntry(parser))
+                        return false;
+                }
+                else if ("run".equals(elementName))
+                {
+                    if (!readRun(parser))
+                        return false;
+                }
+                else if ("aminoacid_modification".equals(elementName))
+                    readModification(parser);
+                else if ("amt_database".equals(elementName))
+                {
+                    String algorithmName = parser.getAttributeValue(null, "hydrophobicity_algorithm");
+                    if (algorithmName != null)
+                        mAmtDatabase.setHydrophobicityAlgorithmName(algorithmName);
+                    String algorithmVersion = parser.getAttributeValue(null, "hydrophobicity_alg_version");
+                    if (algorithmVersion != null)
+                        mAmtDatabase.setHydrophobicityAlgorithmVersion(
+                                XsTypeConverter.lexDouble(algorithmVersion));
+                }
+            }
+            return true;
+        }
+        finally
+        {
+            if (parser != null)
+                parser.close();
+            try
+            {
+                in.close();
+            }
+            catch (IOException e)
+            {
+                _log.debug("Failed to close " + inputFile.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * Read an aminoacid_modification element.  The parser is on its start tag
+     */
+    protected void readModification(SimpleXMLStreamReader parser)
+    {
+        MS2Modification dbMod = new MS2Modification();
+        dbMod.setAminoAcid(parser.getAttributeValue(null, "residue"));
+        dbMod.setVariable(XsTypeConverter.lexBoolean(parser.getAttributeValue(null, "variable_flag")));
+        dbMod.setMassDiff(Float.parseFloat(parser.getAttributeValue(null, "mass_difference")));
+        mAmtDatabase.addAminoacidModification(dbMod);
+    }
+
+    /**
+     * Read a run element and its children.  The parser is on its start tag, and is left on its end tag
+     * @return false if the run uses a modification that hasn't been read yet
+     */
+    protected boolean readRun(SimpleXMLStreamReader parser) throws XMLStreamException
+    {
+        float runId = XsTypeConverter.lexFloat(parser.getAttributeValue(null, "run_id"));
+        String timeAdded = parser.getAttributeValue(null, "time_added");
+        String mzXmlFilename = parser.getAttributeValue(null, "mzxml_filename");
+        String pepXmlFilename = parser.getAttributeValue(null, "pepxml_filename");
+        String lsid = parser.getAttributeValue(null, "LSID");
+        String minPeptideProphet = parser.getAttributeValue(null, "min_peptide_prophet");
+        String timeAnalyzed = parser.getAttributeValue(null, "time_analyzed");
+
+        List<Integer> coeffDegrees = new ArrayList<Integer>();
+        List<Double> coeffValues = new ArrayList<Double>();
+        List<MS2Modification> ms2ModList = new ArrayList<MS2Modification>();
+        while (parser.hasNext())
+        {
+            int event = parser.next();
+            if (event == XMLStreamConstants.END_ELEMENT && "run".equals(parser.getLocalName()))
+                break;
+            if (event != XMLStreamConstants.START_ELEMENT)
+                continue;
+            if ("time_hydro_mapping_coeff".equals(parser.getLocalName()))
+            {
+                coeffDegrees.add(Integer.parseInt(parser.getAttributeValue(null, "degree").trim()));
+                coeffValues.add(Double.parseDouble(parser.getAttributeValue(null, "value")));
+            }
+            else if ("aminoacid_mod_usage".equals(parser.getLocalName()))
+            {
+                MS2Modification mod = mAmtDatabase.getAminoacidModificationBySequence(
+                        Integer.parseInt(parser.getAttributeValue(null, "modification_id").trim()));
+                if (mod == null)
+                    return false;
+                ms2ModList.add(mod);
+            }
+        }
+
+        double[] coeffs = new double[coeffDegrees.size()];
+        for (int i=0; i<coeffs.length; i++)
+            coeffs[coeffDegrees.get(i)] = coeffValues.get(i);
+        AmtRunEntry runEntry =
+                new AmtRunEntry(coeffs,
+                        ms2ModList.toArray(new MS2Modification[0]),
+                        XsTypeConverter.lexDateTime(timeAdded).getTime());
+
+        mAmtDatabase.addRunEntry(runEntry);
+
+        //check that the sequence worked out ok
+        assert(mAmtDatabase.getSequenceForRun(runEntry) == runId);
+
+        if (mzXmlFilename != null && !("".equals(mzXmlFilename)))
+            runEntry.setMzXmlFilename(mzXmlFilename);
+        if (pepXmlFilename != null && !("".equals(pepXmlFilename)))
+            runEntry.setPepXmlFilename(pepXmlFilename);
+        if (lsid != null && !("".equals(lsid)))
+            runEntry.setLSID(lsid);
+        if (minPeptideProphet != null)
+            runEntry.setMinPeptideProphet(Double.parseDouble(minPeptideProphet));
+        if (timeAnalyzed != null)
+            runEntry.setTimeAnalyzed(XsTypeConverter.lexDateTime(timeAnalyzed).getTime());
+        return true;
+    }
+
+    /**
+     * Read a peptide_entry element and its children, and add its observations to the database.
+     * The parser is on its start tag, and is left on its end tag
+     * @return false if the entry refers to a run or modification that hasn't been read yet
+     */
+    protected boolean readEntry(SimpleXMLStreamReader parser) throws XMLStreamException
+    {
+        AmtPeptideEntry entry = new AmtPeptideEntry();
+        String peptideSequence = parser.getAttributeValue(null, "peptide_sequence");
+        entry.setPeptideSequence(peptideSequence);
+        entry.setPredictedHydrophobicity(
+                Double.parseDouble(parser.getAttributeValue(null, "calculated_hydrophobicity")));
+
+        //observations come before the modifications in a modification_state_entry, but the state
+        //can't be created without its modifications, so hold onto them until the end tag
+        String modifiedSequence = null;
+        double modifiedMass = 0;
+        List<MS2Modification>[] ms2Modifications = null;
+        List<AmtPeptideEntry.AmtPeptideObservation> observations =
+                new ArrayList<AmtPeptideEntry.AmtPeptideObservation>();
+        while (parser.hasNext())
+        {
+            int event = parser.next();
+            if (event == XMLStreamConstants.END_ELEMENT)
+            {
+                String elementName = parser.getLocalName();
+                if ("peptide_entry".equals(elementName))
+                    break;
+                if ("modification_state_entry".equals(elementName))
+                {
+                    AmtPeptideEntry.AmtPeptideModificationStateEntry modState =
+                            entry.addModificationStateEntry(modifiedSequence, modifiedMass, ms2Modifications);
+                    for (AmtPeptideEntry.AmtPeptideObservation observation : observations)
+                        modState.addObservationNoRecalc(observation);
+                    modState.recalculateStats();
+                }
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT)
+                continue;
+
+            String elementName = parser.getLocalName();
+            if ("modification_state_entry".equals(elementName))
+            {
+                modifiedSequence = parser.getAttributeValue(null, "modified_sequence");
+                modifiedMass = Double.parseDouble(parser.getAttributeValue(null, "modified_mass"));
+                ms2Modifications = null;
+                observations.clear();
+            }
+            else if ("observation".equals(elementName))
+            {
+                AmtRunEntry run = mAmtDatabase.getRunBySequence(
+                        Integer.parseInt(parser.getAttributeValue(null, "run_id").trim()));
+                if (run == null)
+                    return false;
+                AmtPeptideEntry.AmtPeptideObservation observation =
+                        AmtPeptideEntry.AmtPeptideObservation.createObservation(
+                            Double.parseDouble(parser.getAttributeValue(null, "observed_hydrophobicity")),
+                            Double.parseDouble(parser.getAttributeValue(null, "peptide_prophet")),
+                            run,
+                            Double.parseDouble(parser.getAttributeValue(null, "time_in_run")));
+                String spectralCount = parser.getAttributeValue(null, "spectral_count");
+                if (spectralCount != null)
+                    observation.setSpectralCount(Integer.parseInt(spectralCount.trim()));
+                observations.add(observation);
+            }
+            else if ("aminoacid_mod_instance".equals(elementName))
+            {
+                MS2Modification mod = mAmtDatabase.getAminoacidModificationBySequence(
+                        Integer.parseInt(parser.getAttributeValue(null, "modification_id").trim()));
+                if (mod == null)
+                    return false;
+                if (ms2Modifications == null)
+                    ms2Modifications = AmtPeptideEntry.createModificationsArray(peptideSequence.length());
+                //remember, position = index + 1
+                int position = Integer.parseInt(parser.getAttributeValue(null, "position").trim());
+                if (ms2Modifications[position] == null)
+                    ms2Modifications[position] = new ArrayList<MS2Modification>();
+                ms2Modifications[position].add(mod);
+            }
+        }
+        entry.recalculateStats();
+        mAmtDatabase.addObservationsFromEntry(entry);
+        return true;
+    }
+
     /**
      * Accessor for loaded database
      * @return
@@ -26,13 +26,21 @@ import org.fhcrc.proteomics.schemaRevision.amtXml10.*;
 import org.fhcrc.cpl.toolbox.proteomics.MS2Modification;
 import org.w3c.dom.Node;
 import org.apache.xmlbeans.XmlOptions;
+import org.apache.xmlbeans.impl.util.XsTypeConverter;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 /**
  * A restrictive wrapper for writing AmtXml files.  We take advantage of XmlBeans to build
  * the structure of the amtxmlxml file, and to build individual peptide_entries,
  * but we stitch the XmlBeans XML output for features together by
  * hand, writing out to a file as we go, so that we don't have to hold the whole structure
- * in memory
+ * in memory.
+ *
+ * In streaming mode, XmlBeans isn't used at all: every element is written straight to a stax
+ * XMLStreamWriter, with values formatted the way XmlBeans formats them
  */
 public class AmtXmlWriter
 {
@@ -52,6 +60,9 @@ public class AmtXmlWriter
     //encapsulates printing options for all fragments
     protected XmlOptions _optionsForPrinting = null;
 
+    //write with an XMLStreamWriter rather than XmlBeans
+    protected boolean mStreaming = false;
+
 
     /**
      * Constructor creates the XmlBeans representing the shell of a AmtXml document, and
@@ -305,6 +316,19 @@ public class AmtXmlWriter
     }
 
 
+    public boolean isStreaming()
+    {
+        return mStreaming;
+    }
+
+    /**
+     * @param streaming if true, write with an XMLStreamWriter rather than building XmlBeans for each element
+     */
+    public void setStreaming(boolean streaming)
+    {
+        mStreaming = streaming;
+    }
+
     /**
      * Write out the full document, with all modifications and features, to a file
      * @param file
@@ -312,6 +336,11 @@ public class AmtXmlWriter
      */
     public void write(File file) throws IOException
     {
+        if (mStreaming)
+        {
+            writeStreaming(file);
+            return;
+        }
         PrintWriter pw = new PrintWriter(file);
         pw.print(_documentPrefix);
         writeModifications(pw);
@@ -322,4 +351,201 @@ public class AmtXmlWriter
         pw.print(_documentPostscript);
         pw.flush();
     }
+
+    /**
+     * Write out the full document with an XMLStreamWriter.  Elements are in the same order as in write(),
+     * modifications, then runs, then peptide entries
+     * @param file
+     * @throws IOException
+     */
+    protected void writeStreaming(File file) throws IOException
+    {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try
+        {
+            XMLStreamWriter xmlWriter = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+            String namespace = AmtDatabaseDocument.type.getDocumentElementName().getNamespaceURI();
+
+            xmlWriter.writeStartDocument("UTF-8", "1.0");
+            xmlWriter.writeCharacters("\n");
+            xmlWriter.setPrefix("amt", namespace);
+            xmlWriter.writeStartElement(namespace, "amt_database");
+            if (mAmtDatabase.getHydrophobicityAlgorithmName() != null)
+                xmlWriter.writeAttribute("hydrophobicity_algorithm", mAmtDatabase.getHydrophobicityAlgorithmName());
+            xmlWriter.writeAttribute("hydrophobicity_alg_version",
+                    XsTypeConverter.printDouble(mAmtDatabase.getHydrophobicityAlgorithmVersion()));
+            xmlWriter.writeNamespace("amt", namespace);
+
+            for (MS2Modification mod : mAmtDatabase.getAminoacidModifications())
+            {
+                startElement(xmlWriter, "aminoacid_modification", 1, true);
+                xmlWriter.writeAttribute("residue", mod.getAminoAcid());
+                xmlWriter.writeAttribute("mass_difference", printDecimal(mod.getMassDiff()));
+                xmlWriter.writeAttribute("variable_flag", XsTypeConverter.printBoolean(mod.getVariable()));
+                xmlWriter.writeAttribute("modification_id",
+                        String.valueOf(mAmtDatabase.getSequenceForAminoacidModification(mod)));
+            }
+
+            for (AmtRunEntry run : mAmtDatabase.getRuns())
+                writeRunStreaming(run, xmlWriter);
+
+            AmtPeptideEntry[] entries = mAmtDatabase.getEntries();
+            for (int i=0; i<entries.length; i++)
+                writeEntryStreaming(entries[i], xmlWriter);
+
+            xmlWriter.writeCharacters("\n");
+            xmlWriter.writeEndElement();
+            xmlWriter.writeEndDocument();
+            xmlWriter.close();
+        }
+        catch (XMLStreamException e)
+        {
+            IOException ioException = new IOException("Failed to write AMT database to " + file.getAbsolutePath());
+            ioException.initCause(e);
+            throw ioException;
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Write a single run and its children
+     */
+    protected void writeRunStreaming(AmtRunEntry run, XMLStreamWriter xmlWriter) throws XMLStreamException
+    {
+        startElement(xmlWriter, "run", 1, false);
+        xmlWriter.writeAttribute("run_id", XsTypeConverter.printFloat(mAmtDatabase.getSequenceForRun(run)));
+        Calendar timeAddedCalendar = Calendar.getInstance();
+        timeAddedCalendar.setTime(run.getTimeAdded());
+        xmlWriter.writeAttribute("time_added", XsTypeConverter.printDateTime(timeAddedCalendar));
+        if (run.getMzXmlFilename() != null)
+            xmlWriter.writeAttribute("mzxml_filename", run.getMzXmlFilename());
+        if (run.getPepXmlFilename() != null)
+            xmlWriter.writeAttribute("pepxml_filename", run.getPepXmlFilename());
+        if (run.getLSID() != null)
+            xmlWriter.writeAttribute("LSID", run.getLSID());
+        if (run.getMinPeptideProphet() > 0.0)
+            xmlWriter.writeAttribute("min_peptide_prophet", printDecimal(run.getMinPeptideProphet()));
+        if (run.getTimeAnalyzed() != null)
+        {
+            Calendar timeAnalyzedCalendar = Calendar.getInstance();
+            timeAnalyzedCalendar.setTime(run.getTimeAnalyzed());
+            xmlWriter.writeAttribute("time_analyzed", XsTypeConverter.printDateTime(timeAnalyzedCalendar));
+        }
+
+        double[] coeffs = run.getTimeHydMapCoefficients();
+        for (int i=0; i<coeffs.length; i++)
+        {
+            startElement(xmlWriter, "time_hydro_mapping_coeff", 2, true);
+            xmlWriter.writeAttribute("degree", String.valueOf(i));
+            xmlWriter.writeAttribute("value", printDecimal(coeffs[i]));
+        }
+
+        MS2Modification[] modifications = run.getModifications();
+        if (modifications != null)
+        {
+            for (MS2Modification mod : modifications)
+            {
+                startElement(xmlWriter, "aminoacid_mod_usage", 2, true);
+                xmlWriter.writeAttribute("modification_id",
+                        String.valueOf(mAmtDatabase.getSequenceForAminoacidModification(mod)));
+            }
+        }
+        endElement(xmlWriter, 1);
+    }
+
+    /**
+     * Write a single peptide entry and its children
+     */
+    protected void writeEntryStreaming(AmtPeptideEntry entry, XMLStreamWriter xmlWriter)
+            throws XMLStreamException
+    {
+        startElement(xmlWriter, "peptide_entry", 1, false);
+        xmlWriter.writeAttribute("peptide_sequence", entry.getPeptideSequence());
+        xmlWriter.writeAttribute("calculated_hydrophobicity", printDecimal(entry.getPredictedHydrophobicity()));
+        xmlWriter.writeAttribute("median_observed_hydrophobicity",
+                printDecimal(entry.getMedianObservedHydrophobicity()));
+        xmlWriter.writeAttribute("median_peptide_prophet", printDecimal(entry.getMedianPeptideProphet()));
+
+        for (AmtPeptideEntry.AmtPeptideModificationStateEntry modState :
+                entry.getModificationStateEntries())
+        {
+            startElement(xmlWriter, "modification_state_entry", 2, false);
+            xmlWriter.writeAttribute("modified_sequence", modState.getModifiedSequence());
+            xmlWriter.writeAttribute("modified_mass", printDecimal(modState.getModifiedMass()));
+            xmlWriter.writeAttribute("median_observed_hydrophobicity",
+                    printDecimal(modState.getMedianObservedHydrophobicity()));
+            xmlWriter.writeAttribute("median_peptide_prophet", printDecimal(modState.getMedianPeptideProphet()));
+
+            for (AmtPeptideEntry.AmtPeptideObservation observation :
+                    modState.getObservations())
+            {
+                startElement(xmlWriter, "observation", 3, true);
+                xmlWriter.writeAttribute("observed_hydrophobicity",
+                        printDecimal(observation.getObservedHydrophobicity()));
+                xmlWriter.writeAttribute("peptide_prophet", printDecimal(observation.getPeptideProphet()));
+                xmlWriter.writeAttribute("run_id",
+                        String.valueOf(mAmtDatabase.getSequenceForRun(observation.getRunEntry())));
+                xmlWriter.writeAttribute("time_in_run", printDecimal(observation.getTimeInRun()));
+                if (observation.hasSpectralCount())
+                    xmlWriter.writeAttribute("spectral_count", String.valueOf(observation.getSpectralCount()));
+            }
+
+            List<MS2Modification>[] modifications = modState.getModifications();
+            if (modifications != null)
+            {
+                for (int i=0; i<modifications.length; i++)
+                {
+                    if (modifications[i] == null)
+                        continue;
+                    for (MS2Modification modification : modifications[i])
+                    {
+                        startElement(xmlWriter, "aminoacid_mod_instance", 3, true);
+                        xmlWriter.writeAttribute("modification_id",
+                                String.valueOf(mAmtDatabase.getSequenceForAminoacidModification(modification)));
+                        xmlWriter.writeAttribute("position", String.valueOf(i));
+                    }
+                }
+            }
+            endElement(xmlWriter, 2);
+        }
+        endElement(xmlWriter, 1);
+    }
+
+    /**
+     * Start an element on a new line, indented like XmlBeans' pretty-printing
+     */
+    protected void startElement(XMLStreamWriter xmlWriter, String name, int depth, boolean empty)
+            throws XMLStreamException
+    {
+        writeIndent(xmlWriter, depth);
+        if (empty)
+            xmlWriter.writeEmptyElement(name);
+        else
+            xmlWriter.writeStartElement(name);
+    }
+
+    protected void endElement(XMLStreamWriter xmlWriter, int depth) throws XMLStreamException
+    {
+        writeIndent(xmlWriter, depth);
+        xmlWriter.writeEndElement();
+    }
+
+    protected void writeIndent(XMLStreamWriter xmlWriter, int depth) throws XMLStreamException
+    {
+        StringBuilder indent = new StringBuilder("\n");
+        for (int i=0; i<depth; i++)
+            indent.append("  ");
+        xmlWriter.writeCharacters(indent.toString());
+    }
+
+    /**
+     * Format a decimal the way XmlBeans does for an xs:decimal set from BigDecimal.valueOf()
+     */
+    protected static String printDecimal(double value)
+    {
+        return XsTypeConverter.printDecimal(BigDecimal.valueOf(value));
+    }
 }
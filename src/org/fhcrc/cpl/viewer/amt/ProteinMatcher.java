@@ -181,7 +181,7 @@ public class ProteinMatcher
                 !peptidesToExclude.contains(peptide.getChars()))
             {
                 AmtDatabaseFeatureSetGenerator featureGen =
-                        new AmtDatabaseFeatureSetGenerator(null);
+                        new AmtDatabaseFeatureSetGenerator((AmtDatabase) null);
         List<MS2Modification> varModList = new ArrayList<MS2Modification>();
         List<MS2Modification> staticModList = new ArrayList<MS2Modification>();
         if (modifications != null)
@@ -531,6 +531,7 @@ public class AmtDatabaseCreatorCommandLineModule extends
         try
         {
             AmtXmlWriter amtXmlWriter = new AmtXmlWriter(amtDatabase);
+            amtXmlWriter.setStreaming(true);
             amtXmlWriter.write(outAmtXmlFile);
             ApplicationContext.infoMessage("Wrote " +
                     amtDatabase.numEntries() + " entries to amtxml file " +
@@ -27,6 +27,7 @@ import org.fhcrc.cpl.toolbox.commandline.arguments.*;
 import org.apache.log4j.Logger;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Set;
 
 
@@ -62,6 +63,7 @@ public class AmtDatabaseManagerCommandLineModule extends BaseViewerCommandLineMo
     protected static final int REMOVE_PEPTIDES_WITH_RESIDUE_MODE=6;
     protected static final int REMOVE_FASTA_PEPTIDES_MODE=7;
     protected static final int FILTER_OBSERVATIONS_BY_PPROPHET_MODE=8;
+    protected static final int SAVE_BINARY_MODE=9;
 
     protected int matchingDegree = AmtDatabaseManager.DEFAULT_MATCHING_DEGREE_FOR_DB_ALIGNMENT;
 
@@ -79,7 +81,8 @@ public class AmtDatabaseManagerCommandLineModule extends BaseViewerCommandLineMo
             "adjustacrylamide",
             "removepeptideswithresidue",
             "removefastapeptides",
-            "filterobservationsbypprophet"
+            "filterobservationsbypprophet",
+            "savebinary"
     };
 
     protected static final String[] modeExplanations =
@@ -94,6 +97,8 @@ public class AmtDatabaseManagerCommandLineModule extends BaseViewerCommandLineMo
                     "Remove all peptides containing a given residue",
                     "Remove all peptides that occur in a specified FASTA database",
                     "Remove all observations below 'minpprophet' PeptideProphet probability",
+                    "Save the database, unchanged, in binary format to 'out'.  Binary databases are much faster " +
+                            "to load for matching, and only the part needed for each MS1 feature file is loaded",
             };
 
     protected int minObservations = 2;
@@ -126,7 +131,7 @@ public class AmtDatabaseManagerCommandLineModule extends BaseViewerCommandLineMo
                 {
                         new EnumeratedValuesArgumentDefinition("mode",true,modeStrings, modeExplanations),
                         new FileToWriteArgumentDefinition("out", false, null),
-                        createUnnamedFileArgumentDefinition(true, "AMT database file"),
+                        createUnnamedFileArgumentDefinition(true, "AMT database file (amtxml or binary)"),
                         new IntegerArgumentDefinition("minobservations", false,
                                 "Minimum number of observations for features kept in the database",
                                 minObservations),
@@ -186,8 +191,13 @@ public class AmtDatabaseManagerCommandLineModule extends BaseViewerCommandLineMo
         File dbFile = getFileArgumentValue(CommandLineArgumentDefinition.UNNAMED_PARAMETER_VALUE_ARGUMENT);
         try
         {
-            AmtXmlReader amtXmlReader = new AmtXmlReader(dbFile);
-            amtDatabase = amtXmlReader.getDatabase();
+            if (AmtBinaryDatabase.isBinaryAmtDatabase(dbFile))
+                amtDatabase = new AmtBinaryDatabase(dbFile).createAmtDatabase();
+            else
+            {
+                AmtXmlReader amtXmlReader = new AmtXmlReader(dbFile);
+                amtDatabase = amtXmlReader.getDatabase();
+            }
             _log.info("Loaded AMT database: " + amtDatabase);
         }
         catch (Exception e)
@@ -240,6 +250,8 @@ public class AmtDatabaseManagerCommandLineModule extends BaseViewerCommandLineMo
         matchingDegree = getIntegerArgumentValue("alignmentdegree");
 
         outFile = getFileArgumentValue("out");
+        if (mode == SAVE_BINARY_MODE)
+            assertArgumentPresent("out","mode");
 
         showCharts = getBooleanArgumentValue("showcharts");
     }
@@ -375,6 +387,22 @@ public class AmtDatabaseManagerCommandLineModule extends BaseViewerCommandLineMo
                 }
                 ApplicationContext.infoMessage("Removed " + numObsRemoved + " observations.  Entirely removed " +
                         numEntriesRemoved + " peptides");
+                break;
+            }
+            case SAVE_BINARY_MODE:
+            {
+                try
+                {
+                    AmtBinaryDatabase.write(amtDatabase, outFile);
+                    ApplicationContext.infoMessage("Wrote " + amtDatabase.numEntries() +
+                            " entries to binary AMT database file " + outFile.getAbsolutePath());
+                }
+                catch (IOException e)
+                {
+                    throw new CommandLineModuleExecutionException("Error writing binary AMT database file " +
+                            outFile.getAbsolutePath(), e);
+                }
+                return;
             }
         }
         if (outFile != null && amtDatabase != null)
@@ -396,6 +424,7 @@ public class AmtDatabaseManagerCommandLineModule extends BaseViewerCommandLineMo
         try
         {
             AmtXmlWriter amtXmlWriter = new AmtXmlWriter(amtDatabase);
+            amtXmlWriter.setStreaming(true);
             amtXmlWriter.write(outAmtXmlFile);
             ApplicationContext.infoMessage("Wrote " +
                     amtDatabase.numEntries() + " entries to amtxml file " +
@@ -23,6 +23,7 @@ import org.fhcrc.cpl.toolbox.proteomics.feature.matching.FeatureSetMatcher;
 import org.fhcrc.cpl.toolbox.proteomics.feature.extraInfo.MS2ExtraInfoDef;
 import org.fhcrc.cpl.toolbox.proteomics.feature.extraInfo.AmtExtraInfoDef;
 import org.fhcrc.cpl.toolbox.proteomics.MSRun;
+import org.fhcrc.cpl.toolbox.proteomics.MassUtilities;
 import org.fhcrc.cpl.viewer.ms2.Fractionation2DUtilities;
 import org.fhcrc.cpl.toolbox.statistics.BasicStatistics;
 import org.fhcrc.cpl.toolbox.ApplicationContext;
@@ -63,6 +64,12 @@ public class AmtDatabaseMatcherCLM extends BaseViewerCommandLineModuleImpl
     protected File amtDBFile;
 
     protected AmtDatabase amtDB;
+    //if the database file is binary.  Unless the whole database is needed, only the part of it in the mass
+    //range of each MS1 feature set is loaded, by loadAmtDatabaseForMS1Features()
+    protected AmtBinaryDatabase amtBinaryDB;
+
+    //extra room, in Da, around the MS1 mass range when loading part of a binary database, for mass calibration
+    protected static final double BINARY_DB_MASS_RANGE_SLACK_DA = 1;
 
     protected AmtDatabaseMatcher amtDatabaseMatcher;
 
@@ -71,6 +78,7 @@ public class AmtDatabaseMatcherCLM extends BaseViewerCommandLineModuleImpl
     protected FeatureSet ms1FeatureSet;
     protected FeatureSet embeddedMs2FeatureSet;
     protected Feature[] amtDBBaseFeatures;
+    protected DeltaMassArgumentDefinition.DeltaMassWithType massMatchDeltaMassWithType;
 
     protected float looseDeltaMass = 20; 
     protected int deltaMassType = AmtDatabaseMatcher.DEFAULT_2D_MATCH_DELTA_MASS_TYPE;
@@ -168,7 +176,7 @@ public class AmtDatabaseMatcherCLM extends BaseViewerCommandLineModuleImpl
                         new EnumeratedValuesArgumentDefinition("mode",true,modeStrings,
                                 modeExplanations),
                         createUnnamedFileArgumentDefinition(
-                                true, "AMT database for matching"),
+                                true, "AMT database for matching (amtxml, or binary from 'manageamt')"),
                         new FileToWriteArgumentDefinition("out",false,
                                 "Output filepath for matching results (for 'singlems1' mode)"),
                         new DirectoryToWriteArgumentDefinition("outdir",false,
@@ -291,6 +299,13 @@ public class AmtDatabaseMatcherCLM extends BaseViewerCommandLineModuleImpl
                                         "this value.  If you think the mapping is not capturing all of the nonlinear " +
                                         "quirks of the data, try increasing it.",
                                 nonlinearMappingPolynomialDegree),
+                        new BooleanArgumentDefinition("inprocessregression", false,
+                                "Map time to hydrophobicity with in-process modal regression, rather than by " +
+                                        "running R.  Much faster for many runs.  Results match R's within numerical " +
+                                        "tolerance", false),
+                        new BooleanArgumentDefinition("inprocessem", false,
+                                "Fit the match probability model in-process, rather than by running R.  Much " +
+                                        "faster for many runs", false),
                         new BooleanArgumentDefinition("dummymatch", false,
                                 "Do a dummy match against a mass-shifted database, rather than a real match.  " +
                                         "This is only used for visualizing the false match density.",
@@ -479,7 +494,15 @@ public class AmtDatabaseMatcherCLM extends BaseViewerCommandLineModuleImpl
 
         try
         {
-            amtDB = new AmtXmlReader(amtDBFile).getDatabase();
+            if (AmtBinaryDatabase.isBinaryAmtDatabase(amtDBFile))
+            {
+                amtBinaryDB = new AmtBinaryDatabase(amtDBFile);
+                //removing fractions compares each run to the whole database
+                if (removeFractions)
+                    amtDB = amtBinaryDB.createAmtDatabase();
+            }
+            else
+                amtDB = new AmtXmlReader(amtDBFile).getDatabase();
         }
         catch (Exception e)
         {
@@ -489,7 +512,7 @@ public class AmtDatabaseMatcherCLM extends BaseViewerCommandLineModuleImpl
         minRunsToKeep = getIntegerArgumentValue("minfractionstokeep");
         maxRunsToKeep = getIntegerArgumentValue("maxfractionstokeep");
         if (!hasArgumentValue("maxfractionstokeep"))
-            maxRunsToKeep = amtDB.numRuns();
+            maxRunsToKeep = amtDB != null ? amtDB.numRuns() : amtBinaryDB.numRuns();
 
 //        adjustAmtMassesForMassDefect = getBooleanArgumentValue("correctamtmasses");
 
@@ -515,8 +538,7 @@ public class AmtDatabaseMatcherCLM extends BaseViewerCommandLineModuleImpl
             showCharts = true;
         }
 
-        DeltaMassArgumentDefinition.DeltaMassWithType massMatchDeltaMassWithType =
-            getDeltaMassArgumentValue("massmatchdeltamass");
+        massMatchDeltaMassWithType = getDeltaMassArgumentValue("massmatchdeltamass");
 
         amtDatabaseMatcher = new AmtDatabaseMatcher();
         amtDatabaseMatcher.setMassMatchDeltaMass(
@@ -543,6 +565,8 @@ public class AmtDatabaseMatcherCLM extends BaseViewerCommandLineModuleImpl
         amtDatabaseMatcher.setMs1Ms2MassTolerancePPM(getFloatArgumentValue("deltamassms1ms2ppm"));
         amtDatabaseMatcher.setMs1Ms2TimeToleranceSeconds(getFloatArgumentValue("deltatimems1ms2"));
         amtDatabaseMatcher.setNonlinearMappingPolynomialDegree(nonlinearMappingPolynomialDegree);
+        amtDatabaseMatcher.setUseInProcessRegression(getBooleanArgumentValue("inprocessregression"));
+        amtDatabaseMatcher.setUseInProcessEM(getBooleanArgumentValue("inprocessem"));
         amtDatabaseMatcher.setMaxRProbAssignmentMillis(rTimeoutMilliseconds);
 
         amtDatabaseMatcher.setDecoyMatch(dummyMatch);
@@ -551,21 +575,68 @@ public class AmtDatabaseMatcherCLM extends BaseViewerCommandLineModuleImpl
             amtDatabaseMatcher.defineAMTDBStructure(amtDatabaseStructure);
 
 
-        AmtDatabaseFeatureSetGenerator featureGenerator =
-                new AmtDatabaseFeatureSetGenerator(amtDB);
-        amtDBBaseFeatures = featureGenerator.createFeaturesForModifications(
-                ms2ModificationsForMatching);
+        if (amtDB != null)
+        {
+            AmtDatabaseFeatureSetGenerator featureGenerator =
+                    new AmtDatabaseFeatureSetGenerator(amtDB);
+            amtDBBaseFeatures = featureGenerator.createFeaturesForModifications(
+                    ms2ModificationsForMatching);
+        }
 //        if (dummyMatch)
 //            for (Feature feature : amtDBBaseFeatures)
 //                feature.setMass(feature.getMass() + 10);
     }
 
 
+    /**
+     * If matching against part of a binary database, load the entries and features that the MS1 features could
+     * match: those in the mass range of the MS1 features and of any embedded MS2 features (which are matched
+     * to the database to guide the MS1 matching), widened by the mass tolerances and by the decoy mass shift
+     * @param ms1Features
+     * @param embeddedMs2Features may be null
+     */
+    protected void loadAmtDatabaseForMS1Features(FeatureSet ms1Features, FeatureSet embeddedMs2Features)
+    {
+        if (amtBinaryDB == null || removeFractions)
+            return;
+
+        float minMass = Float.MAX_VALUE;
+        float maxMass = 0;
+        for (FeatureSet featureSet : new FeatureSet[] { ms1Features, embeddedMs2Features })
+        {
+            if (featureSet == null)
+                continue;
+            for (Feature feature : featureSet.getFeatures())
+            {
+                minMass = Math.min(minMass, feature.getMass());
+                maxMass = Math.max(maxMass, feature.getMass());
+            }
+        }
+        if (minMass > maxMass)
+            minMass = maxMass;
+        double margin = Math.max(
+                MassUtilities.calculateAbsoluteDeltaMass(maxMass, looseDeltaMass, deltaMassType),
+                MassUtilities.calculateAbsoluteDeltaMass(maxMass, massMatchDeltaMassWithType.getDeltaMass(),
+                        massMatchDeltaMassWithType.getDeltaMassType())) + BINARY_DB_MASS_RANGE_SLACK_DA;
+        double minAmtMass = minMass - margin - AmtDatabaseMatcher.DEFAULT_DECOY_DB_MASS_ADJUSTMENT_DA;
+        double maxAmtMass = maxMass + margin;
+
+        AmtDatabaseFeatureSetGenerator featureGenerator = new AmtDatabaseFeatureSetGenerator(amtBinaryDB);
+        amtDBBaseFeatures = featureGenerator.createFeaturesForModifications(ms2ModificationsForMatching,
+                minAmtMass, maxAmtMass);
+        double[] unmodifiedMassRange = AmtBinaryDatabase.calculateUnmodifiedMassRange(minAmtMass, maxAmtMass,
+                ms2ModificationsForMatching, amtBinaryDB.getMaxSequenceLength());
+        amtDB = amtBinaryDB.createAmtDatabase(unmodifiedMassRange[0], unmodifiedMassRange[1]);
+        _log.debug("Loaded " + amtDB.numEntries() + " of " + amtBinaryDB.numEntries() +
+                " AMT entries, masses " + minAmtMass + " to " + maxAmtMass);
+    }
+
     public void execute() throws CommandLineModuleExecutionException
     {
         try
         {
-            ApplicationContext.infoMessage("AMT Database: " + amtDB.toString());
+            ApplicationContext.infoMessage("AMT Database: " +
+                    (amtDB != null ? amtDB.toString() : amtBinaryDB.toString()));
 
             switch(mode)
             {
@@ -573,6 +644,7 @@ public class AmtDatabaseMatcherCLM extends BaseViewerCommandLineModuleImpl
                     if (embeddedMs2FeatureSet != null)
                         ApplicationContext.setMessage("Using MS2 FeatureSet with " +
                                 embeddedMs2FeatureSet.getFeatures().length + " features");
+                    loadAmtDatabaseForMS1Features(ms1FeatureSet, embeddedMs2FeatureSet);
                     File outputFile = outFile;
                     if (outputFile == null && outDir != null)
                     {
@@ -689,6 +761,7 @@ public class AmtDatabaseMatcherCLM extends BaseViewerCommandLineModuleImpl
                             }
 
                         }
+                        loadAmtDatabaseForMS1Features(thisMs1FeatureSet, currentEmbeddedMs2FeatureSet);
 
                         File currentOutputFile = null;
                         if (outDir != null)
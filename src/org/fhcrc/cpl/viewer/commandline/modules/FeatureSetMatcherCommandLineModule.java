@@ -71,6 +71,7 @@ public class FeatureSetMatcherCommandLineModule extends BaseViewerCommandLineMod
     protected boolean writeUnmatched = true;
     protected boolean stripMultipleMS2 = true;
     protected boolean keepAmbiguousMatches = true;
+    protected int numThreads = 1;
 
     protected FeatureSet[] ms2FeatureSets;
     boolean alignMS2=false;
@@ -156,6 +157,9 @@ public class FeatureSetMatcherCommandLineModule extends BaseViewerCommandLineMod
                             "an AMT database whose peptides should be excluded from protein matching"),
                     new BooleanArgumentDefinition("keepambiguous", false,
                             "Keep ambiguous matches?", keepAmbiguousMatches),
+                    new IntegerArgumentDefinition("numthreads", false,
+                            "Number of threads to split the MS1 features across when matching.  Results are " +
+                            "identical to single-threaded matching", numThreads),
             };
         addArgumentDefinitions(argDefs);
     }
@@ -183,6 +187,9 @@ public class FeatureSetMatcherCommandLineModule extends BaseViewerCommandLineMod
         ms1Features = getFeatureSetArgumentValue("ms1features");
 
         keepAmbiguousMatches = getBooleanArgumentValue("keepambiguous");
+        numThreads = getIntegerArgumentValue("numthreads");
+        if (numThreads < 1)
+            throw new ArgumentValidationException("numthreads must be at least 1");
 
         //under the hood, match based on hydrophobicity
         matchOnHydro = getBooleanArgumentValue("matchonhydro");
@@ -383,6 +390,8 @@ public class FeatureSetMatcherCommandLineModule extends BaseViewerCommandLineMod
         fsm.setMaxElutionDiff(deltaElution);
         fsm.setMinElutionDiff(-deltaElution);        
         fsm.setElutionMode(elutionMode);
+        fsm.setSortedArrayMatching(true);
+        fsm.setNumThreads(numThreads);
 //        fsm.setElutionBucketIncrement(elutionBucketIncrement);
 
 
@@ -24,6 +24,7 @@ import org.fhcrc.cpl.viewer.feature.FeatureExtractor;
 import org.fhcrc.cpl.viewer.feature.extraction.PeakCombiner;
 import org.fhcrc.cpl.viewer.feature.extraction.FeatureFinder;
 import org.fhcrc.cpl.viewer.feature.extraction.FeatureFindingBroker;
+import org.fhcrc.cpl.viewer.feature.extraction.StreamingFeatureFinder;
 import org.fhcrc.cpl.viewer.feature.extraction.WaveletPeakExtractor;
 import org.fhcrc.cpl.viewer.feature.extraction.strategy.FeatureStrategy;
 import org.fhcrc.cpl.viewer.feature.extraction.strategy.BaseFeatureStrategy;
@@ -39,6 +40,7 @@ import java.io.File;
 import java.io.PrintWriter;
 import java.io.IOException;
 import java.io.FileNotFoundException;
+import java.util.List;
 
 
 /**
@@ -97,6 +99,14 @@ public class FindPeptidesCommandLineModule extends BaseViewerCommandLineModuleIm
 
     protected int scanWindowSize = FeatureStrategyWindow.DEFAULT_WINDOW_WIDTH;
 
+    //Number of scan windows to analyze concurrently
+    protected int numThreads = FeatureStrategyWindow.DEFAULT_NUM_THREADS;
+
+    //Should we find features as scans are read, without loading the run or reading its index?
+    protected boolean streaming = false;
+    //In streaming mode, how long to wait for a file that's still being written to grow
+    protected int streamWaitSeconds = 0;
+
     //There was a shift in the way feature strategies were implemented, and it was necessary to leave
     //the "old school" strategies in place.  This code assumes the strategy is "new school" unless told to look
     //among the "old school" strategies.
@@ -192,8 +202,21 @@ public class FindPeptidesCommandLineModule extends BaseViewerCommandLineModuleIm
                             featureFileFormatStrings, featureFileFormat),
                     new IntegerArgumentDefinition("scanwindow", false,
                             "Scan window size in which features are found (windows overlap)"),
+                    new IntegerArgumentDefinition("numthreads", false,
+                            "Number of scan windows to analyze concurrently, also used to build the index for " +
+                            "new files.  Results are identical to single-threaded analysis", numThreads),
+                    new IntegerArgumentDefinition("spectrumcachemb", false,
+                            "Megabytes of decoded spectra to keep in memory for each run.  0 for none",
+                            (int) (MSRun.getDefaultSpectrumCacheBytes() / (1024 * 1024))),
                     new IntegerArgumentDefinition("maxcharge", false,
                             "Maximum charge. Actual default may vary per feature strategy", maxCharge),
+                    new BooleanArgumentDefinition("streaming", false,
+                            "Find features as scans are read, without loading the run or reading its index, so " +
+                            "that files still being copied can be processed.  The whole run is searched, and " +
+                            "no accurate mass adjustment is done", streaming),
+                    new IntegerArgumentDefinition("streamwait", false,
+                            "In streaming mode, number of seconds to wait for a file that's still being written " +
+                            "to grow before deciding it's complete", streamWaitSeconds),
             };
         //add the advanced arguments
         addArgumentDefinitions(advancedArgDefs, true);
@@ -290,6 +313,48 @@ public class FindPeptidesCommandLineModule extends BaseViewerCommandLineModuleIm
         }
         if (hasArgumentValue("scanwindow")) scanWindowSize = getIntegerArgumentValue("scanwindow");
 
+        if (hasArgumentValue("numthreads"))
+        {
+            if (!FeatureStrategyWindow.class.isAssignableFrom(featureStrategyClass))
+                throw new ArgumentValidationException("numthreads was specified, but feature strategy " +
+                        featureStrategyClass.getName() + " is not " +
+                        " a subclass of FeatureStrategyWindow");
+            numThreads = getIntegerArgumentValue("numthreads");
+            if (numThreads < 1)
+                throw new ArgumentValidationException("numthreads must be at least 1");
+        }
+
+        if (hasArgumentValue("spectrumcachemb"))
+        {
+            int spectrumCacheMegabytes = getIntegerArgumentValue("spectrumcachemb");
+            if (spectrumCacheMegabytes < 0)
+                throw new ArgumentValidationException("spectrumcachemb must be at least 0");
+            MSRun.setDefaultSpectrumCacheBytes(spectrumCacheMegabytes * 1024L * 1024);
+        }
+
+        streaming = getBooleanArgumentValue("streaming");
+        if (streaming)
+        {
+            if (!FeatureStrategyWindow.class.isAssignableFrom(featureStrategyClass))
+                throw new ArgumentValidationException("streaming was specified, but feature strategy " +
+                        featureStrategyClass.getName() + " is not " +
+                        " a subclass of FeatureStrategyWindow");
+            //the whole run is searched, and there's no run to adjust masses against
+            assertArgumentAbsent("start");
+            assertArgumentAbsent("count");
+            assertArgumentAbsent("accuratemassscans");
+            //without the run, there's no full m/z range to clip a one-sided range against
+            if (hasArgumentValue("minmz") != hasArgumentValue("maxmz"))
+                throw new ArgumentValidationException("In streaming mode, specify both minmz and maxmz, or neither");
+            if (hasArgumentValue("minmz") && minMz >= maxMz)
+                throw new ArgumentValidationException("Empty m/z range specified");
+        }
+        else
+            assertArgumentAbsent("streamwait");
+        streamWaitSeconds = getIntegerArgumentValue("streamwait");
+        if (streamWaitSeconds < 0)
+            throw new ArgumentValidationException("streamwait can't be negative");
+
         //Set up the default filtering appropriately based on the FeatureStrategy
         if (!FeatureFindingBroker.isOldSchoolStrategy(featureStrategyClass))
         {
@@ -359,11 +424,19 @@ public class FindPeptidesCommandLineModule extends BaseViewerCommandLineModuleIm
     protected void findFeaturesInFile(File mzXmlFile, File outFile)
             throws CommandLineModuleExecutionException
     {
+        if (streaming)
+        {
+            findFeaturesInFileStreaming(mzXmlFile, outFile);
+            return;
+        }
+
         //Try to load the MSRun object from the mzXML file.  An MSRun represents all the scans in the run.
-        //A soft-reference cache is maintained so not all the scans are in memory at once.
+        //A bounded spectrum cache is maintained so not all the scans are in memory at once.
         MSRun run;
         try
         {
+            //if the index has to be built, use the same number of threads as feature finding
+            MSRun.setIndexBuilderThreads(numThreads);
             run = MSRun.load(mzXmlFile.getAbsolutePath());
             if (run == null)
                 throw new CommandLineModuleExecutionException("Error opening run from file " +
@@ -430,7 +503,7 @@ public class FindPeptidesCommandLineModule extends BaseViewerCommandLineModuleIm
                     maxCharge,
                     new FloatRange(thisRunMinMz, thisRunMaxMz),
                     dumpWindowSize, accurateMassAdjustmentScans, featureStrategyClass,
-                    (null != outFile), peakRidgeWalkSmoothed, plotStatistics, scanWindowSize);
+                    (null != outFile), peakRidgeWalkSmoothed, plotStatistics, scanWindowSize, numThreads);
             if (filterFeatures)
                 featureSet = featureSet.filter(featureSelector);
             //Save the found features to the specified file
@@ -443,5 +516,51 @@ public class FindPeptidesCommandLineModule extends BaseViewerCommandLineModuleIm
             throw new CommandLineModuleExecutionException(e);
         }
     }
+
+    /**
+     * Find features as the scans are read from the file, with no MSRun.  The file may still be being written
+     * @param mzXmlFile
+     * @param outFile
+     * @throws CommandLineModuleExecutionException
+     */
+    protected void findFeaturesInFileStreaming(File mzXmlFile, File outFile)
+            throws CommandLineModuleExecutionException
+    {
+        //null means the range comes from the first MS1 scan
+        FloatRange range = hasArgumentValue("minmz") ? new FloatRange(minMz, maxMz) : null;
+
+        StreamingFeatureFinder featureFinder =
+                new StreamingFeatureFinder(mzXmlFile.getAbsolutePath(), maxCharge, range,
+                        featureStrategyClass, plotStatistics, scanWindowSize);
+        featureFinder.setNumThreads(numThreads);
+        featureFinder.setDumpWindowSize(dumpWindowSize);
+        featureFinder.setPeakRidgeWalkSmoothed(peakRidgeWalkSmoothed);
+        featureFinder.setGrowthTimeoutMillis(streamWaitSeconds * 1000L);
+        featureFinder.setWindowListener(new FeatureStrategyWindow.WindowListener()
+        {
+            int numFeatures = 0;
+
+            public void windowAnalyzed(List<Feature> features)
+            {
+                numFeatures += features.size();
+                ApplicationContext.setMessage(numFeatures + " features found so far");
+            }
+        });
+
+        try
+        {
+            FeatureSet featureSet = featureFinder.findPeptides();
+            if (plotStatistics)
+                featureFinder.plotStatistics();
+            if (filterFeatures)
+                featureSet = featureSet.filter(featureSelector);
+            featureSet.save(outFile, dumpWindowSize > 0, featureFileFormat);
+        }
+        catch (Exception e)
+        {
+            ApplicationContext.infoMessage("Error while finding features");
+            throw new CommandLineModuleExecutionException(e);
+        }
+    }
 }
 
@@ -26,6 +26,7 @@ import org.apache.log4j.Logger;
 import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
 
 /**
  * Default feature scorer.
@@ -50,8 +51,8 @@ public class DefaultFeatureScorer implements FeatureScorer
     public static final float SUMSQUARES_SCALED_INTENSITY_WEIGHT = 4; // 1/4 in scaled intesity is bad
 
     protected boolean keepStatistics = false;
-    protected List<Float> unscaledMzDistances = new ArrayList<Float>();
-    protected List<Float> unscaledIntensityDistances = new ArrayList<Float>();
+    protected List<Float> unscaledMzDistances = Collections.synchronizedList(new ArrayList<Float>());
+    protected List<Float> unscaledIntensityDistances = Collections.synchronizedList(new ArrayList<Float>());
 
 
     /**
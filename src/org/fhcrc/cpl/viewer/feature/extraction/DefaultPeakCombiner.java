@@ -48,7 +48,7 @@ public class DefaultPeakCombiner extends BasePeakCombiner
     protected boolean keepStatistics = false;
 
     //track the number of candidates evaluated for each feature
-    public List<Float> numCandidatesList = new ArrayList<Float>();
+    public List<Float> numCandidatesList = Collections.synchronizedList(new ArrayList<Float>());
 //    public List<Float> klScoresList = new ArrayList<Float>();
 
     public DefaultPeakCombiner()
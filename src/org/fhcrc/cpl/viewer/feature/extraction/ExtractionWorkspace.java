@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fhcrc.cpl.viewer.feature.extraction;
+
+import org.fhcrc.cpl.toolbox.datastructure.Pair;
+
+/**
+ * Scratch matrices for feature extraction, reused from window to window so that the big per-window arrays
+ * (resampled spectra, wavelet transform, smoothed wavelets) are allocated once per thread rather than once
+ * per window.
+ *
+ * A workspace belongs to one thread; use getForCurrentThread().  Matrices handed out by a workspace are only
+ * valid until the same kind of matrix is requested again on that thread, i.e., until the next window.  Their
+ * contents are not cleared, so callers must overwrite every element.
+ */
+public class ExtractionWorkspace
+{
+    //kinds of matrix
+    public static final int MATRIX_RESAMPLED = 0;
+    public static final int MATRIX_WAVELETS = 1;
+    public static final int MATRIX_SMOOTHED = 2;
+    protected static final int NUM_MATRICES = 3;
+
+    protected static final ThreadLocal<ExtractionWorkspace> threadWorkspaces =
+            new ThreadLocal<ExtractionWorkspace>()
+            {
+                protected ExtractionWorkspace initialValue()
+                {
+                    return new ExtractionWorkspace();
+                }
+            };
+
+    //pooled rows for each kind of matrix
+    protected float[][][] matrixRows = new float[NUM_MATRICES][][];
+    protected float[] resampleWeights = null;
+    protected Pair<float[][], float[][]> waveletScratch = new Pair<float[][], float[][]>(null, null);
+
+    /**
+     * @return this thread's workspace
+     */
+    public static ExtractionWorkspace getForCurrentThread()
+    {
+        return threadWorkspaces.get();
+    }
+
+    /**
+     * Let go of this thread's workspace, e.g., when feature finding is done
+     */
+    public static void releaseForCurrentThread()
+    {
+        threadWorkspaces.remove();
+    }
+
+    /**
+     * Get a rows x cols matrix of the given kind, reusing rows from earlier calls where possible.  Contents
+     * are undefined
+     * @param kind MATRIX_RESAMPLED, MATRIX_WAVELETS or MATRIX_SMOOTHED
+     * @param rows
+     * @param cols
+     * @return
+     */
+    public float[][] getMatrix(int kind, int rows, int cols)
+    {
+        float[][] pool = matrixRows[kind];
+        if (null == pool || pool.length < rows)
+        {
+            float[][] newPool = new float[rows][];
+            if (null != pool)
+                System.arraycopy(pool, 0, newPool, 0, pool.length);
+            pool = matrixRows[kind] = newPool;
+        }
+        float[][] result = new float[rows][];
+        for (int i = 0; i < rows; i++)
+        {
+            if (null == pool[i] || pool[i].length != cols)
+                pool[i] = new float[cols];
+            result[i] = pool[i];
+        }
+        return result;
+    }
+
+    /**
+     * Scratch array for resampling weights.  Contents are undefined
+     * @param length
+     * @return an array of exactly this length
+     */
+    public float[] getResampleWeights(int length)
+    {
+        if (null == resampleWeights || resampleWeights.length != length)
+            resampleWeights = new float[length];
+        return resampleWeights;
+    }
+
+    /**
+     * Scratch space for Spectrum.WaveletDX().  The array WaveletDX returns belongs to this scratch space, so
+     * copy it before the next call
+     * @return
+     */
+    public Pair<float[][], float[][]> getWaveletScratch()
+    {
+        return waveletScratch;
+    }
+}
@@ -64,6 +64,8 @@ public class FeatureFinder
 
     protected int _scanWindowSize = FeatureStrategyWindow.DEFAULT_WINDOW_WIDTH;
 
+    protected int _numThreads = FeatureStrategyWindow.DEFAULT_NUM_THREADS;
+
 
     public FeatureFinder()
     {
@@ -111,7 +113,7 @@ public class FeatureFinder
      * Return the mz range for the given scan. If computed lowMz and highMz were
      * supplied, use those; otherwise try startMz and endMz.
      */
-    public static FloatRange getMzExtractionRange(MSRun.MSScan scan)
+    public static FloatRange getMzExtractionRange(Scan scan)
     {
         if (scan.getLowMz() >= 0 && scan.getHighMz() >= 0)
             return new FloatRange(scan.getLowMz() - 1, scan.getHighMz() + 1);
@@ -300,6 +302,23 @@ public class FeatureFinder
             _featureStrategy.setPeakRidgeWalkSmoothed(peakRidgeWalkSmoothed);
     }
 
+    public int getNumThreads()
+    {
+        return _numThreads;
+    }
+
+    /**
+     * Set the number of threads used to analyze scan windows concurrently.  Only meaningful for
+     * window-based strategies
+     * @param numThreads
+     */
+    public void setNumThreads(int numThreads)
+    {
+        _numThreads = numThreads;
+        if (_featureStrategy instanceof FeatureStrategyWindow)
+            ((FeatureStrategyWindow) _featureStrategy).setNumThreads(numThreads);
+    }
+
     public void plotStatistics()
     {
         if (_plotStatistics && _featureStrategy != null)
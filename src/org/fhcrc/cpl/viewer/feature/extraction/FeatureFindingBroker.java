@@ -66,6 +66,26 @@ public class FeatureFindingBroker
                                           boolean peakRidgeWalkSmoothed,
                                           boolean plotStatistics, int scanWindowSize)
             throws InterruptedException
+    {
+        return findPeptides(run, startScan, scanCount, maxCharge, mzRange, dumpWindowSize, accurateMassAdjustmentScans,
+                featureStrategyClass, writeStatus, peakRidgeWalkSmoothed, plotStatistics, scanWindowSize,
+                FeatureStrategyWindow.DEFAULT_NUM_THREADS);
+    }
+
+    /**
+     * numThreads controls how many scan windows are analyzed concurrently, for new-school window strategies.
+     * Ignored for other strategies
+     */
+    public static FeatureSet findPeptides(MSRun run, int startScan, int scanCount,
+                                          int maxCharge, FloatRange mzRange,
+                                          int dumpWindowSize,
+                                          int accurateMassAdjustmentScans,
+                                          Class featureStrategyClass,
+                                          boolean writeStatus,
+                                          boolean peakRidgeWalkSmoothed,
+                                          boolean plotStatistics, int scanWindowSize,
+                                          int numThreads)
+            throws InterruptedException
     {
         float minMz = mzRange.min;
         float maxMz = mzRange.max;
@@ -110,6 +130,7 @@ public class FeatureFindingBroker
             if (accurateMassAdjustmentScans > 0)
                 featureFinder.setAccurateMassAdjustmentScans(accurateMassAdjustmentScans);
             featureFinder.setPeakRidgeWalkSmoothed(peakRidgeWalkSmoothed);
+            featureFinder.setNumThreads(numThreads);
             if (writeStatus)
             {
                 featureFinder.setStatusListener(new BaseFeatureStrategy.StatusListener()
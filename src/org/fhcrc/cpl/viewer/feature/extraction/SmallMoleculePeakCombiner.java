@@ -89,7 +89,7 @@ public class SmallMoleculePeakCombiner extends BasePeakCombiner
 //    protected List<Integer> allCandidatePeakCounts = new ArrayList<Integer>();
 
     //track the number of candidates evaluated for each feature
-    public List<Float> numCandidatesList = new ArrayList<Float>();      
+    public List<Float> numCandidatesList = Collections.synchronizedList(new ArrayList<Float>());      
 //    public List<Float> klScoresList = new ArrayList<Float>();
 
     public SmallMoleculePeakCombiner()
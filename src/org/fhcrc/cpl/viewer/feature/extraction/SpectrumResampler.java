@@ -59,17 +59,40 @@ public class SpectrumResampler
      */
     public float[][] resampleSpectra(Scan[] scans)
             throws InterruptedException
+    {
+        return resampleSpectra(scans, null);
+    }
+
+    /**
+     * Resample the spectra, reusing the workspace's arrays if a workspace is supplied.  In that case the
+     * result belongs to the workspace, and is only good until the workspace's next resampling
+     * @param scans
+     * @param workspace may be null
+     * @return resampled spectra
+     * @throws InterruptedException
+     */
+    public float[][] resampleSpectra(Scan[] scans, ExtractionWorkspace workspace)
+            throws InterruptedException
     {
         Thread currentThread = Thread.currentThread();
 
-        float[][] resampledSpectra = new float[scans.length][];
+        float[][] resampledSpectra;
+        float[] weights = null;
+        if (null == workspace)
+            resampledSpectra = new float[scans.length][];
+        else
+        {
+            int length = Spectrum.ResampleLength(_mzRange, getResampleFrequency());
+            resampledSpectra = workspace.getMatrix(ExtractionWorkspace.MATRIX_RESAMPLED, scans.length, length);
+            weights = workspace.getResampleWeights(length);
+        }
         for (int i = 0; i < scans.length; i++)
         {
             float[][] raw = scans[i].getSpectrum();
             if (currentThread.isInterrupted())
                 throw new InterruptedException();
             resampledSpectra[i] =
-                    Spectrum.Resample(raw, _mzRange, getResampleFrequency());
+                    Spectrum.Resample(raw, _mzRange, getResampleFrequency(), resampledSpectra[i], weights);
         }
         int height = resampledSpectra[0].length;
         {
@@ -0,0 +1,483 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fhcrc.cpl.viewer.feature.extraction;
+
+import org.apache.log4j.Logger;
+import org.fhcrc.cpl.toolbox.datastructure.FloatRange;
+import org.fhcrc.cpl.toolbox.proteomics.Scan;
+import org.fhcrc.cpl.toolbox.proteomics.feature.Feature;
+import org.fhcrc.cpl.toolbox.proteomics.feature.FeatureSet;
+import org.fhcrc.cpl.viewer.feature.extraction.strategy.BaseFeatureStrategy;
+import org.fhcrc.cpl.viewer.feature.extraction.strategy.FeatureStrategy;
+import org.fhcrc.cpl.viewer.feature.extraction.strategy.FeatureStrategyWindow;
+import org.systemsbiology.jrap.stax.MSXMLSequentialParser;
+import org.systemsbiology.jrap.stax.ScanHeader;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Feature finding that doesn't wait for an MSRun to be built.  A reader thread pulls scans out of the file with
+ * MSXMLSequentialParser and hands the MS1 scans, with their spectra, to a window-based strategy through a
+ * bounded queue.  The strategy analyzes each window as soon as its scans have arrived, so decoding the file
+ * and finding features overlap.
+ *
+ * The file's index is never read.  With a growth timeout, a file that's still being copied can be analyzed:
+ * the reader waits at the end of the data for more scans, until the end of the scans arrives or the file
+ * stops growing for longer than the timeout.
+ *
+ * Differences from FeatureFinder:
+ * -The whole run is analyzed; there's no scan range
+ * -If no m/z range is given, it comes from the first MS1 scan's header rather than from the whole run.  Results
+ *  match FeatureFinder's when the same m/z range is used
+ * -Accurate mass adjustment needs random access to the run, so it isn't done here
+ * -Only window-based strategies (FeatureStrategyWindow subclasses) can be used
+ */
+public class StreamingFeatureFinder
+{
+    static Logger _log = Logger.getLogger(StreamingFeatureFinder.class);
+
+    //scans that can be decoded ahead of the analysis
+    public static final int DEFAULT_QUEUE_CAPACITY = 2 * FeatureStrategyWindow.DEFAULT_WINDOW_WIDTH;
+
+    //marks the end of the scans in the queue
+    protected static final Object END_OF_SCANS = new Object();
+
+    protected String _fileName;
+    protected int _maxCharge;
+    protected FloatRange _mzRange;
+    protected Class<? extends FeatureStrategy> _featureStrategyClass;
+    protected boolean _plotStatistics = false;
+    protected int _scanWindowSize = FeatureStrategyWindow.DEFAULT_WINDOW_WIDTH;
+    protected int _numThreads = FeatureStrategyWindow.DEFAULT_NUM_THREADS;
+    protected int _dumpWindowSize = 0;
+    protected boolean _peakRidgeWalkSmoothed = false;
+    protected int _queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    protected long _growthTimeoutMillis = 0;
+    protected FeatureStrategyWindow.WindowListener _windowListener = null;
+
+    protected FeatureStrategyWindow _featureStrategy = null;
+
+    /**
+     * @param fileName mzXML or mzML file
+     * @param maxCharge
+     * @param mzRange m/z range to resample into.  If null, use the first MS1 scan's range
+     * @param featureStrategyClass must be a FeatureStrategyWindow subclass
+     * @param plotStatistics
+     * @param scanWindowSize
+     */
+    public StreamingFeatureFinder(String fileName, int maxCharge, FloatRange mzRange,
+                                  Class<? extends FeatureStrategy> featureStrategyClass,
+                                  boolean plotStatistics, int scanWindowSize)
+    {
+        if (!FeatureStrategyWindow.class.isAssignableFrom(featureStrategyClass))
+            throw new IllegalArgumentException("Streaming feature finding requires a window-based strategy, not " +
+                    featureStrategyClass.getName());
+        _fileName = fileName;
+        _maxCharge = maxCharge;
+        _mzRange = mzRange;
+        _featureStrategyClass = featureStrategyClass;
+        _plotStatistics = plotStatistics;
+        _scanWindowSize = scanWindowSize;
+    }
+
+    /**
+     * Read the file and find features.  Features are in the same order as FeatureFinder's
+     * @return
+     * @throws IOException if the file can't be read
+     * @throws InterruptedException
+     */
+    public FeatureSet findPeptides() throws IOException, InterruptedException
+    {
+        final BlockingQueue<Object> scanQueue = new ArrayBlockingQueue<Object>(_queueCapacity);
+        ScanReader scanReader = new ScanReader(scanQueue);
+        scanReader.start();
+        try
+        {
+            //the strategy can't be set up until we know the m/z range
+            final Object firstScan = scanQueue.take();
+            if (END_OF_SCANS == firstScan)
+            {
+                scanReader.checkFailure();
+                _log.info("No MS1 scans in " + _fileName);
+                return new FeatureSet(new Feature[0]);
+            }
+            FloatRange mzRange = _mzRange;
+            if (null == mzRange)
+                mzRange = FeatureFinder.getMzExtractionRange((Scan) firstScan);
+            _log.debug("Streaming feature finding on " + _fileName + ", m/z range " + mzRange);
+
+            _featureStrategy = (FeatureStrategyWindow)
+                    BaseFeatureStrategy.getInstance(null, 0, Integer.MAX_VALUE, _maxCharge, mzRange,
+                            _featureStrategyClass, _plotStatistics);
+            _featureStrategy.setWindowWidth(_scanWindowSize);
+            _featureStrategy.setNumThreads(_numThreads);
+            _featureStrategy.setDumpWindowSize(_dumpWindowSize);
+            _featureStrategy.setPeakRidgeWalkSmoothed(_peakRidgeWalkSmoothed);
+
+            Feature[] features = _featureStrategy.analyzeStream(new FeatureStrategyWindow.ScanSource()
+            {
+                boolean firstTaken = false;
+                boolean ended = false;
+
+                public Scan nextScan() throws InterruptedException
+                {
+                    if (!firstTaken)
+                    {
+                        firstTaken = true;
+                        return (Scan) firstScan;
+                    }
+                    if (ended)
+                        return null;
+                    Object next = scanQueue.take();
+                    if (END_OF_SCANS == next)
+                    {
+                        ended = true;
+                        return null;
+                    }
+                    return (Scan) next;
+                }
+            }, _windowListener);
+
+            //don't return partial results if the file couldn't be read to the end
+            scanReader.checkFailure();
+
+            FeatureSet featureSet = new FeatureSet(features);
+            Arrays.sort(features, new Feature.IntensityDescComparator());
+            return featureSet;
+        }
+        finally
+        {
+            //stop the reader if we're leaving early
+            scanReader.interrupt();
+        }
+    }
+
+    /**
+     * Reads scans from the file and queues up the MS1 scans, followed by END_OF_SCANS
+     */
+    protected class ScanReader extends Thread
+    {
+        protected BlockingQueue<Object> scanQueue;
+        protected volatile Exception failure = null;
+
+        public ScanReader(BlockingQueue<Object> scanQueue)
+        {
+            super("StreamingFeatureFinder scan reader");
+            setDaemon(true);
+            this.scanQueue = scanQueue;
+        }
+
+        public void run()
+        {
+            MSXMLSequentialParser parser = new MSXMLSequentialParser();
+            try
+            {
+                parser.openWithoutIndex(_fileName, _growthTimeoutMillis);
+                while (parser.hasNextScan())
+                {
+                    org.systemsbiology.jrap.stax.Scan scan = parser.getNextScan();
+                    ScanHeader header = scan.getHeader();
+                    //same scans as MSRun's MS1 list
+                    if ("calibration".equals(header.getScanType()) || "zoom".equals(header.getScanType()) ||
+                        header.getMsLevel() != 1 || header.getPeaksCount() <= 0)
+                        continue;
+                    float[][] spectrum = toSpectrum(scan.getMassIntensityList());
+                    if (null == spectrum)
+                        continue;
+                    scanQueue.put(new StreamedScan(header, spectrum));
+                }
+            }
+            catch (InterruptedException e)
+            {
+                //the analysis is over
+                return;
+            }
+            catch (Exception e)
+            {
+                //interrupted while waiting for the file to grow
+                if (isInterrupted())
+                    return;
+                _log.error("Failed to read scans from " + _fileName, e);
+                failure = e;
+            }
+            finally
+            {
+                parser.close();
+            }
+
+            try
+            {
+                scanQueue.put(END_OF_SCANS);
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+
+        public void checkFailure() throws IOException
+        {
+            if (null != failure)
+            {
+                IOException e = new IOException("Failed to read scans from " + _fileName);
+                e.initCause(failure);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Convert JRAP's spectrum to ours, dropping zero m/z values at the ends the same way MSRun does
+     * @param massIntensityList
+     * @return
+     */
+    protected static float[][] toSpectrum(double[][] massIntensityList)
+    {
+        if (null == massIntensityList)
+            return null;
+        double[] mzs = massIntensityList[0];
+        int end = mzs.length;
+        while (end > 0 && mzs[end-1] == 0.0)
+            end--;
+        int start = 0;
+        while (start < end && mzs[start] == 0.0)
+            start++;
+        float[][] spectrum = new float[2][end - start];
+        for (int i = start; i < end; i++)
+        {
+            spectrum[0][i - start] = (float) mzs[i];
+            spectrum[1][i - start] = (float) massIntensityList[1][i];
+        }
+        return spectrum;
+    }
+
+    /**
+     * A scan that carries its own spectrum, with no run behind it
+     */
+    public static class StreamedScan implements Scan
+    {
+        protected ScanHeader _header;
+        protected float[][] _spectrum;
+
+        public StreamedScan(ScanHeader header, float[][] spectrum)
+        {
+            _header = header;
+            _spectrum = spectrum;
+        }
+
+        public float[][] getSpectrum()
+        {
+            return _spectrum;
+        }
+
+        public int getNum()
+        {
+            return _header.getNum();
+        }
+
+        public int getMsLevel()
+        {
+            return _header.getMsLevel();
+        }
+
+        public int getPeaksCount()
+        {
+            return _header.getPeaksCount();
+        }
+
+        public String getPolarity()
+        {
+            return _header.getPolarity();
+        }
+
+        public String getScanType()
+        {
+            return _header.getScanType();
+        }
+
+        public int getCentroided()
+        {
+            return _header.getCentroided();
+        }
+
+        public int getDeisotoped()
+        {
+            return _header.getDeisotoped();
+        }
+
+        public int getChargeDeconvoluted()
+        {
+            return _header.getChargeDeconvoluted();
+        }
+
+        public String getRetentionTime()
+        {
+            return _header.getRetentionTime();
+        }
+
+        public float getStartMz()
+        {
+            return _header.getStartMz();
+        }
+
+        public float getEndMz()
+        {
+            return _header.getEndMz();
+        }
+
+        public float getLowMz()
+        {
+            return _header.getLowMz();
+        }
+
+        public float getHighMz()
+        {
+            return _header.getHighMz();
+        }
+
+        public float getBasePeakMz()
+        {
+            return _header.getBasePeakMz();
+        }
+
+        public float getBasePeakIntensity()
+        {
+            return _header.getBasePeakIntensity();
+        }
+
+        public float getTotIonCurrent()
+        {
+            return _header.getTotIonCurrent();
+        }
+
+        public float getPrecursorMz()
+        {
+            return _header.getPrecursorMz();
+        }
+
+        public int getPrecursorScanNum()
+        {
+            return _header.getPrecursorScanNum();
+        }
+
+        public int getPrecursorCharge()
+        {
+            return _header.getPrecursorCharge();
+        }
+
+        public float getCollisionEnergy()
+        {
+            return _header.getCollisionEnergy();
+        }
+
+        public float getIonisationEnergy()
+        {
+            return _header.getIonisationEnergy();
+        }
+
+        public int getPrecision()
+        {
+            return _header.getPrecision();
+        }
+
+        public double getDoubleRetentionTime()
+        {
+            return _header.getDoubleRetentionTime();
+        }
+    }
+
+    public FeatureStrategyWindow.WindowListener getWindowListener()
+    {
+        return _windowListener;
+    }
+
+    /**
+     * @param windowListener told about each window's features as soon as they're final
+     */
+    public void setWindowListener(FeatureStrategyWindow.WindowListener windowListener)
+    {
+        _windowListener = windowListener;
+    }
+
+    public int getNumThreads()
+    {
+        return _numThreads;
+    }
+
+    public void setNumThreads(int numThreads)
+    {
+        _numThreads = numThreads;
+    }
+
+    public int getDumpWindowSize()
+    {
+        return _dumpWindowSize;
+    }
+
+    public void setDumpWindowSize(int dumpWindowSize)
+    {
+        _dumpWindowSize = dumpWindowSize;
+    }
+
+    public boolean isPeakRidgeWalkSmoothed()
+    {
+        return _peakRidgeWalkSmoothed;
+    }
+
+    public void setPeakRidgeWalkSmoothed(boolean peakRidgeWalkSmoothed)
+    {
+        _peakRidgeWalkSmoothed = peakRidgeWalkSmoothed;
+    }
+
+    public int getQueueCapacity()
+    {
+        return _queueCapacity;
+    }
+
+    /**
+     * @param queueCapacity number of scans the reader may get ahead of the analysis
+     */
+    public void setQueueCapacity(int queueCapacity)
+    {
+        if (queueCapacity < 1)
+            throw new IllegalArgumentException("Queue capacity must be at least 1");
+        _queueCapacity = queueCapacity;
+    }
+
+    public long getGrowthTimeoutMillis()
+    {
+        return _growthTimeoutMillis;
+    }
+
+    /**
+     * @param growthTimeoutMillis how long to wait for a file that's still being written to grow.  0, the
+     * default, if the file is complete
+     */
+    public void setGrowthTimeoutMillis(long growthTimeoutMillis)
+    {
+        if (growthTimeoutMillis < 0)
+            throw new IllegalArgumentException("Growth timeout can't be negative");
+        _growthTimeoutMillis = growthTimeoutMillis;
+    }
+
+    public void plotStatistics()
+    {
+        if (_plotStatistics && _featureStrategy != null)
+            _featureStrategy.plotStatistics();
+    }
+}
@@ -78,6 +78,9 @@ public class WaveletPeakExtractor implements PeakExtractor
     //minimum number of scans
     protected int minPeakScans = DEFAULT_PEAK_LENGTH_REQUIREMENT;
 
+    //if set, wavelet and smoothed matrices come from here rather than being allocated for each window
+    protected ExtractionWorkspace workspace = null;
+
     public Feature[] extractPeakFeatures(Scan[] scans, float[][] spectra,
                                          FloatRange mzRange)
             throws InterruptedException
@@ -108,9 +111,20 @@ public class WaveletPeakExtractor implements PeakExtractor
         float[][] wavelets = extractWavelets(spectra);
 
         //smooth spectra
-        float[][] smoothedSpectra = new float[wavelets.length][];
-        for (int s = 0; s < wavelets.length; s++)
-            smoothedSpectra[s] = wavelets[s].clone();
+        float[][] smoothedSpectra;
+        if (null == workspace)
+        {
+            smoothedSpectra = new float[wavelets.length][];
+            for (int s = 0; s < wavelets.length; s++)
+                smoothedSpectra[s] = wavelets[s].clone();
+        }
+        else
+        {
+            smoothedSpectra = workspace.getMatrix(ExtractionWorkspace.MATRIX_SMOOTHED,
+                    wavelets.length, spectrumHeight);
+            for (int s = 0; s < wavelets.length; s++)
+                System.arraycopy(wavelets[s], 0, smoothedSpectra[s], 0, spectrumHeight);
+        }
         SmootherCreator.getThresholdSmoother().smooth(smoothedSpectra);
 
         //
@@ -413,9 +427,21 @@ public class WaveletPeakExtractor implements PeakExtractor
     {
         int numSpectra = spectra.length;
 
-        float[][] wavelets = new float[numSpectra][];
+        if (null == workspace)
+        {
+            float[][] wavelets = new float[numSpectra][];
+            for (int s = 0; s < spectra.length; s++)
+                wavelets[s] = Spectrum.WaveletDX(spectra[s], null, waveletLevel);
+            return wavelets;
+        }
+
+        //WaveletDX returns a row of its scratch space, so copy it out before the next spectrum
+        int spectrumHeight = spectra[0].length;
+        float[][] wavelets = workspace.getMatrix(ExtractionWorkspace.MATRIX_WAVELETS, numSpectra, spectrumHeight);
+        Pair<float[][], float[][]> scratch = workspace.getWaveletScratch();
         for (int s = 0; s < spectra.length; s++)
-            wavelets[s] = Spectrum.WaveletDX(spectra[s], null, waveletLevel);
+            System.arraycopy(Spectrum.WaveletDX(spectra[s], scratch, waveletLevel), 0,
+                    wavelets[s], 0, spectrumHeight);
         return wavelets;
     }
 
@@ -465,6 +491,21 @@ public class WaveletPeakExtractor implements PeakExtractor
         _peakRidgeWalkSmoothed = peakRidgeWalkSmoothed;
     }
 
+    public ExtractionWorkspace getWorkspace()
+    {
+        return workspace;
+    }
+
+    /**
+     * Reuse this workspace's matrices instead of allocating new ones for each window.  The workspace must
+     * belong to the calling thread
+     * @param workspace null to allocate as usual
+     */
+    public void setWorkspace(ExtractionWorkspace workspace)
+    {
+        this.workspace = workspace;
+    }
+
     public int getWaveletLevel() {
         return waveletLevel;
     }
@@ -19,6 +19,7 @@ package org.fhcrc.cpl.viewer.feature.extraction.strategy;
 import org.fhcrc.cpl.toolbox.proteomics.MSRun;
 import org.fhcrc.cpl.viewer.feature.extraction.SpectrumResampler;
 import org.fhcrc.cpl.viewer.feature.extraction.AccurateMassAdjuster;
+import org.fhcrc.cpl.viewer.feature.extraction.ExtractionWorkspace;
 import org.fhcrc.cpl.viewer.commandline.modules.FindPeptidesCommandLineModule;
 import org.fhcrc.cpl.toolbox.datastructure.FloatRange;
 import org.fhcrc.cpl.toolbox.CPUTimer;
@@ -67,7 +68,9 @@ public abstract class BaseFeatureStrategy implements FeatureStrategy
         _run = run;
         _startScan = startScanIndex;
         _scanCount = scanCount;
-        _endScan = Math.min(startScanIndex + scanCount, run.getScanCount() - 1);
+        //run is null when scans are streamed in rather than read from an indexed run
+        _endScan = null == run ? startScanIndex + scanCount - 1 :
+                Math.min(startScanIndex + scanCount, run.getScanCount() - 1);
         _maxCharge = maxCharge;
         _mzRange = mzRange;
         _keepStatistics = true;
@@ -132,11 +135,21 @@ public abstract class BaseFeatureStrategy implements FeatureStrategy
         SpectrumResampler spectrumResampler = new SpectrumResampler(_mzRange);
         spectrumResampler.setUseMedianSmooth(useMedianSmooth);
         float[][] spectra =
-                spectrumResampler.resampleSpectra(scans);
+                spectrumResampler.resampleSpectra(scans, getExtractionWorkspace());
         assert timerResample.stop();
         return spectra;
     }
 
+    /**
+     * Scratch space for resampling and peak extraction.  By default there is none, and every matrix is newly
+     * allocated.  Strategies that are done with one set of spectra before resampling the next can reuse one
+     * @return null if matrices shouldn't be reused
+     */
+    protected ExtractionWorkspace getExtractionWorkspace()
+    {
+        return null;
+    }
+
     public AccurateMassAdjuster getAccurateMassAdjuster()
     {
         return null;
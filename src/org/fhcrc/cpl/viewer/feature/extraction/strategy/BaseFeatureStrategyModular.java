@@ -62,9 +62,11 @@ public class BaseFeatureStrategyModular extends FeatureStrategyWindow
         if (peakExtractor == null || peakCombiner == null)
             throw new IllegalArgumentException("A peak extractor and peak combiner must both be specified for this strategy");
 
-        WaveletPeakExtractor waveletPeakExtractor = new WaveletPeakExtractor();
-        setPeakExtractor(waveletPeakExtractor);
-        peakExtractor.setPeakRidgeWalkSmoothed(peakRidgeWalkSmoothed);
+        //WaveletPeakExtractor changes its own state while extracting, so each window gets a fresh one.
+        //Kept local so that windows can be analyzed concurrently
+        WaveletPeakExtractor windowPeakExtractor = new WaveletPeakExtractor();
+        windowPeakExtractor.setPeakRidgeWalkSmoothed(peakRidgeWalkSmoothed);
+        windowPeakExtractor.setWorkspace(getExtractionWorkspace());
 
         Thread currentThread = Thread.currentThread();
 
@@ -79,9 +81,9 @@ public class BaseFeatureStrategyModular extends FeatureStrategyWindow
             throw new InterruptedException();
 
         // Extract peaks
-        timerExtractPeaks.start();
+        assert timerExtractPeaks.start();
 
-        Feature[] peaks = peakExtractor.extractPeakFeatures(scans, spectra, _mzRange);
+        Feature[] peaks = windowPeakExtractor.extractPeakFeatures(scans, spectra, _mzRange);
         assert timerExtractPeaks.stop();
 
         if (currentThread.isInterrupted())
@@ -96,7 +98,6 @@ public class BaseFeatureStrategyModular extends FeatureStrategyWindow
         assert timerExtractPeptides.stop();
 
         assert timerAnalyze.stop();
-        CPUTimer.dumpAllTimers();
         
         List<Feature> result = new ArrayList<Feature>();
 
@@ -16,10 +16,12 @@
 
 package org.fhcrc.cpl.viewer.feature.extraction.strategy;
 
+import org.fhcrc.cpl.toolbox.CPUTimer;
 import org.fhcrc.cpl.toolbox.proteomics.Scan;
 import org.fhcrc.cpl.toolbox.proteomics.feature.Feature;
 import org.fhcrc.cpl.toolbox.proteomics.feature.Spectrum;
 import org.fhcrc.cpl.toolbox.datastructure.FloatRange;
+import org.fhcrc.cpl.viewer.feature.extraction.ExtractionWorkspace;
 import org.fhcrc.cpl.viewer.feature.extraction.FeatureFinder;
 import org.fhcrc.cpl.viewer.feature.extraction.SpectrumResampler;
 import org.fhcrc.cpl.toolbox.proteomics.MSRun;
@@ -28,6 +30,9 @@ import org.apache.log4j.Logger;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A set of feature finders that works on 2D subsets of the spectrum space
@@ -60,11 +65,50 @@ public abstract class FeatureStrategyWindow extends BaseFeatureStrategy
     //scans in the run
     protected int _windowWidth = DEFAULT_WINDOW_WIDTH;
 
+    //by default, windows are analyzed one at a time
+    public static final int DEFAULT_NUM_THREADS = 1;
+
+    //number of threads with which to analyze windows concurrently
+    protected int _numThreads = DEFAULT_NUM_THREADS;
+
     public FeatureStrategyWindow()
     {
 
     }
 
+    /**
+     * Supplies scans to analyzeStream(), in scan order, as they become available
+     */
+    public interface ScanSource
+    {
+        /**
+         * Wait for the next scan
+         * @return the next scan, or null if there are no more
+         * @throws InterruptedException
+         */
+        Scan nextScan() throws InterruptedException;
+    }
+
+    /**
+     * Told about each window's features as soon as the window has been stitched in
+     */
+    public interface WindowListener
+    {
+        /**
+         * @param features features within the window proper, i.e., those that will be in the final result
+         */
+        void windowAnalyzed(List<Feature> features);
+    }
+
+    /**
+     * Windows are analyzed one at a time per thread, and nothing holds onto a window's matrices once it's
+     * done, so each thread reuses its own workspace from window to window
+     */
+    protected ExtractionWorkspace getExtractionWorkspace()
+    {
+        return ExtractionWorkspace.getForCurrentThread();
+    }
+
     /**
      * This is where subclasses do the real work
      * @param spectra
@@ -89,6 +133,10 @@ public abstract class FeatureStrategyWindow extends BaseFeatureStrategy
     {
         super.init(run, startScanIndex, scanCount, maxCharge, range, plotStatistics);
 
+        //no run means the scans will be handed to analyzeStream()
+        if (null == run)
+            return;
+
         //Determine the scans to use, with a margin of scans around the edge
         //of what the user specified, if available
         int c2 = Math.max(_windowWidth, scanCount + 2 * _WindowMargin);
@@ -127,6 +175,9 @@ public abstract class FeatureStrategyWindow extends BaseFeatureStrategy
      * Divide the scans into windows, find features in each window, and
      * stitch together.
      *
+     * If more than one thread is configured, windows are analyzed concurrently, but
+     * stitching is always done in window order, so the result is the same as in serial mode
+     *
      * @param scans
      * @return
      */
@@ -134,89 +185,382 @@ public abstract class FeatureStrategyWindow extends BaseFeatureStrategy
             throws InterruptedException
     {
         _log.debug("analyzeWindow " + scans[0].getNum() + "-" + scans[scans.length-1].getNum());
-        Thread currentThread = Thread.currentThread();
-        List<Feature> allFeatures = new ArrayList<Feature>();
+
+        //Lay out the windows up front.  Each entry is {scanNum, startWindowScan, endWindowScan}
+        List<int[]> windowBounds = new ArrayList<int[]>();
         int scanNum = 0;
         int endWindowScan = 0;
+        do
+        {
+            endWindowScan = Math.min(scans.length, scanNum+windowWidth);
+            int startWindowScan = Math.max(0, endWindowScan - windowWidth);
+            windowBounds.add(new int[] {scanNum, startWindowScan, endWindowScan});
+            scanNum += windowWidth - (2 * windowMargin);
+        }
+        while (endWindowScan < scans.length);
 
         if (null != _status)
             _status.progress(0.0F);
 
-        //main loop
-        do
+        List<Feature> allFeatures;
+        if (_numThreads > 1 && windowBounds.size() > 1)
+            allFeatures = analyzeWindowsParallel(scans, windowBounds, windowMargin);
+        else
         {
-            endWindowScan = Math.min(scans.length, scanNum+windowWidth);
-            int startWindowScan = Math.max(0, endWindowScan - windowWidth);
-            Scan[] currentScanWindow = new Scan[endWindowScan-startWindowScan];
-            System.arraycopy(scans, startWindowScan, currentScanWindow,
-                             0, endWindowScan-startWindowScan);
+            try
+            {
+                allFeatures = analyzeWindowsSerial(scans, windowBounds, windowMargin);
+            }
+            finally
+            {
+                //worker threads' workspaces go away with the threads; this thread's has to be let go
+                ExtractionWorkspace.releaseForCurrentThread();
+            }
+        }
+
+        if (null != _status)
+            _status.progress(100.0F);
+        //once for the whole run, after every window's timings are in
+        CPUTimer.dumpAllTimers();
+
+        return allFeatures.toArray(new Feature[allFeatures.size()]);
+    }
 
-            //resample just the spectra in this window
-            float[][] resampledSpectra =
-                    resampleSpectra(currentScanWindow);
+    /**
+     * Analyze the windows one at a time, on the current thread
+     * @param scans
+     * @param windowBounds
+     * @param windowMargin
+     * @return
+     * @throws InterruptedException
+     */
+    protected List<Feature> analyzeWindowsSerial(Scan[] scans, List<int[]> windowBounds, int windowMargin)
+            throws InterruptedException
+    {
+        Thread currentThread = Thread.currentThread();
+        List<Feature> allFeatures = new ArrayList<Feature>();
 
-            //Do the actual work
-            Collection<Feature> byScan =
-                    findPeptidesIn2DWindow(resampledSpectra, currentScanWindow);
+        for (int[] bounds : windowBounds)
+        {
+            Collection<Feature> byScan = analyzeSingleWindow(scans, bounds[1], bounds[2]);
+            addFeaturesWithinWindowProper(scans, bounds, windowMargin, byScan, allFeatures);
 
-            //If we're dumping spectra, dump spectra, in resampled space
-            if (getDumpWindowSize() > 0)
-                dumpWindow(byScan, resampledSpectra);
+            //report progress. This is coarse-grained
+            if (null != _status)
+                _status.progress((bounds[2]-windowMargin)*100.0F/scans.length);
+
+            if (currentThread.isInterrupted())
+                throw new InterruptedException();
+        }
+        return allFeatures;
+    }
 
-            // fix up scan numbers:  translate from resampled space back
-            // to regular space
-            for (Feature f : byScan)
+    /**
+     * Analyze the windows concurrently on a pool of _numThreads threads.  Results are stitched together
+     * in window order once all windows are done
+     * @param scans
+     * @param windowBounds
+     * @param windowMargin
+     * @return
+     * @throws InterruptedException
+     */
+    protected List<Feature> analyzeWindowsParallel(final Scan[] scans, List<int[]> windowBounds, int windowMargin)
+            throws InterruptedException
+    {
+        final int numWindows = windowBounds.size();
+        final AtomicInteger numWindowsDone = new AtomicInteger(0);
+        int numThreads = Math.min(_numThreads, numWindows);
+        _log.debug("analyzeWindowsParallel: " + numWindows + " windows, " + numThreads + " threads");
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<Collection<Feature>>> windowResults = new ArrayList<Future<Collection<Feature>>>(numWindows);
+        try
+        {
+            for (final int[] bounds : windowBounds)
             {
-                Scan featureScan = currentScanWindow[f.scan];
-                f.setTime((float)featureScan.getDoubleRetentionTime());
-                f.scan = featureScan.getNum();
-                f.setScanFirst(currentScanWindow[f.getScanFirst()].getNum());
-                f.setScanLast(currentScanWindow[f.getScanLast()].getNum());
-
-                //dhmay fixing up comprised peak scan numbers
-                if (f.comprised != null)
-                    for (Spectrum.Peak peak : f.comprised)
+                windowResults.add(executor.submit(new Callable<Collection<Feature>>()
+                {
+                    public Collection<Feature> call() throws InterruptedException
                     {
-                        if (peak != null)
-                            peak.scan = _run.getScanNumForIndex(startWindowScan + peak.scan);
+                        Collection<Feature> byScan = analyzeSingleWindow(scans, bounds[1], bounds[2]);
+                        int done = numWindowsDone.incrementAndGet();
+                        //report progress.  Windows finish out of order, so this is by window count
+                        if (null != _status)
+                        {
+                            synchronized (_status)
+                            {
+                                _status.progress(done * 100.0F / numWindows);
+                            }
+                        }
+                        return byScan;
                     }
+                }));
             }
 
-            // only add features found within the window proper
-            // (exclude margins)
-            int s = (scanNum == 0) ? scanNum : scanNum + windowMargin;
-            int e = (endWindowScan == scans.length) ?
-                    endWindowScan : endWindowScan - windowMargin;
-            int fromScanNum = scans[s].getNum();
-            int toScanNum = scans[e-1].getNum();
-            _log.debug("WINDOW  [" + scans[startWindowScan].getNum() + "-" +
-                    scans[endWindowScan-1].getNum() + "] " + fromScanNum
-                    + "-" + toScanNum + "*******");
-            for (Feature feature : byScan)
+            List<Feature> allFeatures = new ArrayList<Feature>();
+            for (int i = 0; i < numWindows; i++)
             {
-                if (feature.scan >= fromScanNum && feature.scan <= toScanNum)
-                    allFeatures.add(feature);
+                Collection<Feature> byScan;
+                try
+                {
+                    byScan = windowResults.get(i).get();
+                }
+                catch (ExecutionException e)
+                {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof InterruptedException)
+                        throw (InterruptedException) cause;
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    if (cause instanceof Error)
+                        throw (Error) cause;
+                    throw new RuntimeException("Failed to analyze scan window", cause);
+                }
+                addFeaturesWithinWindowProper(scans, windowBounds.get(i), windowMargin, byScan, allFeatures);
             }
+            return allFeatures;
+        }
+        finally
+        {
+            //if we got here early because of a failure or interruption, stop the other windows
+            executor.shutdownNow();
+        }
+    }
 
-            //report progress. This is coarse-grained
-            if (null != _status)
-                _status.progress((endWindowScan-windowMargin)*100.0F/scans.length);
-            
-            if (currentThread.isInterrupted())
-                throw new InterruptedException();
+    /**
+     * Resample the spectra for a single window, find features in it, and translate the
+     * features' scan indexes back to scan numbers
+     * @param scans
+     * @param startWindowScan
+     * @param endWindowScan
+     * @return
+     * @throws InterruptedException
+     */
+    protected Collection<Feature> analyzeSingleWindow(Scan[] scans, int startWindowScan, int endWindowScan)
+            throws InterruptedException
+    {
+        Scan[] currentScanWindow = new Scan[endWindowScan-startWindowScan];
+        System.arraycopy(scans, startWindowScan, currentScanWindow,
+                         0, endWindowScan-startWindowScan);
 
-            scanNum += windowWidth - (2 * windowMargin);
+        //resample just the spectra in this window
+        float[][] resampledSpectra =
+                resampleSpectra(currentScanWindow);
+
+        //Do the actual work
+        Collection<Feature> byScan =
+                findPeptidesIn2DWindow(resampledSpectra, currentScanWindow);
+
+        //If we're dumping spectra, dump spectra, in resampled space
+        if (getDumpWindowSize() > 0)
+            dumpWindow(byScan, resampledSpectra);
+
+        // fix up scan numbers:  translate from resampled space back
+        // to regular space
+        for (Feature f : byScan)
+        {
+            Scan featureScan = currentScanWindow[f.scan];
+            f.setTime((float)featureScan.getDoubleRetentionTime());
+            f.scan = featureScan.getNum();
+            f.setScanFirst(currentScanWindow[f.getScanFirst()].getNum());
+            f.setScanLast(currentScanWindow[f.getScanLast()].getNum());
+
+            //dhmay fixing up comprised peak scan numbers
+            if (f.comprised != null)
+                for (Spectrum.Peak peak : f.comprised)
+                {
+                    if (peak != null)
+                        peak.scan = scans[startWindowScan + peak.scan].getNum();
+                }
         }
-        while (endWindowScan < scans.length);
+        return byScan;
+    }
 
+    /**
+     * Only add features found within the window proper (exclude margins)
+     * @param scans
+     * @param bounds {scanNum, startWindowScan, endWindowScan}
+     * @param windowMargin
+     * @param byScan features found in this window
+     * @param allFeatures output list
+     */
+    protected void addFeaturesWithinWindowProper(Scan[] scans, int[] bounds, int windowMargin,
+                                                 Collection<Feature> byScan, List<Feature> allFeatures)
+    {
+        int scanNum = bounds[0];
+        int startWindowScan = bounds[1];
+        int endWindowScan = bounds[2];
+
+        int s = (scanNum == 0) ? scanNum : scanNum + windowMargin;
+        int e = (endWindowScan == scans.length) ?
+                endWindowScan : endWindowScan - windowMargin;
+        int fromScanNum = scans[s].getNum();
+        int toScanNum = scans[e-1].getNum();
+        _log.debug("WINDOW  [" + scans[startWindowScan].getNum() + "-" +
+                scans[endWindowScan-1].getNum() + "] " + fromScanNum
+                + "-" + toScanNum + "*******");
+        for (Feature feature : byScan)
+        {
+            if (feature.scan >= fromScanNum && feature.scan <= toScanNum)
+                allFeatures.add(feature);
+        }
+    }
 
+    /**
+     * Find features in scans that arrive one at a time, e.g., while the file is still being read.  Windows are
+     * laid out exactly as in analyzeWindow(), and each is analyzed as soon as enough scans have arrived to know
+     * its extent; the final windows wait for the end of the stream.  With more than one thread, windows are
+     * analyzed concurrently while more scans arrive.  Either way, windows are stitched in order, so the result
+     * is the same as analyzeWindow() on the same scans.
+     *
+     * Scans are let go once no window still to be laid out can include them, so only a few windows' worth of
+     * scans are held at once
+     * @param scanSource
+     * @param listener told about each window's features as it's stitched in.  May be null
+     * @return
+     * @throws InterruptedException
+     */
+    public Feature[] analyzeStream(ScanSource scanSource, WindowListener listener)
+            throws InterruptedException
+    {
+        int windowWidth = _windowWidth;
+        int windowMargin = _WindowMargin;
 
-        if (null != _status)
-            _status.progress(100.0F);
+        ExecutorService executor = _numThreads > 1 ? Executors.newFixedThreadPool(_numThreads) : null;
+        //windows submitted but not yet stitched, in window order.  Bound this so that we don't read far
+        //ahead of the analysis and hold onto too many scans
+        LinkedList<StreamWindow> pendingWindows = new LinkedList<StreamWindow>();
+        int maxPendingWindows = 2 * _numThreads;
 
+        List<Scan> scanList = new ArrayList<Scan>();
+        List<Feature> allFeatures = new ArrayList<Feature>();
+        int scanNum = 0;
+        try
+        {
+            boolean lastWindowDone = false;
+            while (!lastWindowDone)
+            {
+                Scan scan = scanSource.nextScan();
+                if (null != scan)
+                    scanList.add(scan);
+                else if (scanList.isEmpty())
+                    break;
+
+                //lay out every window whose extent is now known
+                while (true)
+                {
+                    int numScans = scanList.size();
+                    int endWindowScan;
+                    if (null == scan)
+                        endWindowScan = Math.min(numScans, scanNum + windowWidth);
+                    else if (numScans > scanNum + windowWidth)
+                        endWindowScan = scanNum + windowWidth;
+                    else
+                        break;
+                    int startWindowScan = Math.max(0, endWindowScan - windowWidth);
+
+                    //the window, plus everything stitching needs to know about its neighbors.  The last window
+                    //is recognized by ending at the end of the array, so the array can't be longer than the run
+                    Scan[] scans = scanList.toArray(new Scan[numScans]);
+                    StreamWindow window = new StreamWindow(scans,
+                            new int[] {scanNum, startWindowScan, endWindowScan});
+                    if (null == executor)
+                        window.byScan = analyzeSingleWindow(scans, startWindowScan, endWindowScan);
+                    else
+                        window.future = executor.submit(window);
+                    pendingWindows.add(window);
+
+                    //any later window starts after this one does
+                    for (int i = 0; i < startWindowScan; i++)
+                        scanList.set(i, null);
+
+                    if (endWindowScan == numScans && null == scan)
+                    {
+                        lastWindowDone = true;
+                        break;
+                    }
+                    scanNum += windowWidth - (2 * windowMargin);
+                }
+
+                //stitch whatever's done, in order, waiting if too much is outstanding
+                while (!pendingWindows.isEmpty() &&
+                       (pendingWindows.getFirst().isDone() || pendingWindows.size() > maxPendingWindows ||
+                        lastWindowDone))
+                {
+                    StreamWindow window = pendingWindows.removeFirst();
+                    List<Feature> windowFeatures = new ArrayList<Feature>();
+                    addFeaturesWithinWindowProper(window.scans, window.bounds, windowMargin,
+                            window.getFeatures(), windowFeatures);
+                    allFeatures.addAll(windowFeatures);
+                    if (null != listener)
+                        listener.windowAnalyzed(windowFeatures);
+                }
+
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedException();
+            }
+        }
+        finally
+        {
+            if (null != executor)
+                executor.shutdownNow();
+            else
+                ExtractionWorkspace.releaseForCurrentThread();
+        }
+
+        _log.debug("analyzeStream: " + allFeatures.size() + " features");
+        CPUTimer.dumpAllTimers();
         return allFeatures.toArray(new Feature[allFeatures.size()]);
     }
 
+    /**
+     * One window of analyzeStream(), analyzed either on the streaming thread or in the pool
+     */
+    protected class StreamWindow implements Callable<Collection<Feature>>
+    {
+        protected Scan[] scans;
+        protected int[] bounds;
+        protected Future<Collection<Feature>> future = null;
+        protected Collection<Feature> byScan = null;
+
+        public StreamWindow(Scan[] scans, int[] bounds)
+        {
+            this.scans = scans;
+            this.bounds = bounds;
+        }
+
+        public Collection<Feature> call() throws InterruptedException
+        {
+            return analyzeSingleWindow(scans, bounds[1], bounds[2]);
+        }
+
+        public boolean isDone()
+        {
+            return null == future || future.isDone();
+        }
+
+        public Collection<Feature> getFeatures() throws InterruptedException
+        {
+            if (null == future)
+                return byScan;
+            try
+            {
+                return future.get();
+            }
+            catch (ExecutionException e)
+            {
+                Throwable cause = e.getCause();
+                if (cause instanceof InterruptedException)
+                    throw (InterruptedException) cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new RuntimeException("Failed to analyze scan window", cause);
+            }
+        }
+    }
+
     /**
      * Dump a window of spectra in the resampled space
      * @param features
@@ -264,4 +608,21 @@ public abstract class FeatureStrategyWindow extends BaseFeatureStrategy
     {
         this._windowWidth = windowWidth;
     }
+
+    public int getNumThreads()
+    {
+        return _numThreads;
+    }
+
+    /**
+     * Subclasses must make findPeptidesIn2DWindow() safe for concurrent calls
+     * before this is set higher than 1
+     * @param numThreads
+     */
+    public void setNumThreads(int numThreads)
+    {
+        if (numThreads < 1)
+            throw new IllegalArgumentException("Number of threads must be at least 1");
+        this._numThreads = numThreads;
+    }
 }
@@ -141,6 +141,8 @@ public class MRMDialog extends JFrame implements Serializable {
     public TransitionDefinitionHeader transDefHeader = null;
     public float _minPeakCutoff;
     public float _minAreaCutoff;
+    //transitions are extracted and their curves calculated in parallel; results don't depend on this
+    public int _numThreads = Runtime.getRuntime().availableProcessors();
 
     /* todo: these are totally hokey and needs to be re-thought */
     private static enum whichGraph{Precursor,Daughter};
@@ -389,9 +391,9 @@ public class MRMDialog extends JFrame implements Serializable {
           }
           peaksTable.doLayout();
           ((DefaultCellEditor)peaksTable.getDefaultEditor(peaksData.Accept.colClass)).setClickCountToStart(1);
+          createExtractor().calculateElutionCurves(_mrmTransitions);
           int i = 0;
           for(MRMTransition curTrans: _mrmTransitions) {
-             curTrans.setGraphData(makeParentSeries(curTrans));
              int curPrecursorIndex = i;
              curTrans.setTableRow(curPrecursorIndex);
              for(peaksData pd: EnumSet.allOf(peaksData.class)) {
@@ -403,15 +405,8 @@ public class MRMDialog extends JFrame implements Serializable {
              ((PeaksTableModel)(peaksTable.getModel())).data[i][peaksData.Precursor.colno] = curTrans;
              for(MRMDaughter d: curTrans.getDaughters().values()) {
                  i++;
-                 d.setGraphData(d.makeDaughterSeries());
-                 d.setContinDaughterData(d.makeDaughterSeries(d,true));
                  d.setElutionDataTableRow(i);
-                 ElutionCurveStrategy bes = ElutionCurveStrategy.getInstance(curTrans,d,_ecurveclass);
-                 bes.calculateParentElutionCurves(null);
-                 bes.calculateDaughterElutionCurves(null);
-                 bes.calculateBestCurves();
-                 d.calculateQuality();
-                 curTrans.getElutionCurves().put(d, bes);
+                 ElutionCurveStrategy bes = curTrans.getElutionCurves().get(d);
 
                  ((PeaksTableModel)(peaksTable.getModel())).data[i][peaksData.Accept.colno] = new Boolean(!Utils.allYsAre0(d));
                  ((PeaksTableModel)(peaksTable.getModel())).data[i][peaksData.Peptide.colno] ="";
@@ -458,15 +453,11 @@ public class MRMDialog extends JFrame implements Serializable {
                  }  else {
                      ((PeaksTableModel)(peaksTable.getModel())).data[i][peaksData.AUC.colno] = new Float(bestDaughterCurve.getAUC());
                      ((PeaksTableModel)(peaksTable.getModel())).data[i][peaksData.MaxPeak.colno] = new Float(bestDaughterCurve.getHighestPointY());
-                     d.setBestElutionCurve(bestDaughterCurve);
                      ((PeaksTableModel)(peaksTable.getModel())).data[i][peaksData.Quality.colno] = new Float(d.getQuality());
                      if(_minPeakCutoff > 0 && bestDaughterCurve.getHighestPointY() < _minPeakCutoff) ((PeaksTableModel)(peaksTable.getModel())).data[i][peaksData.Accept.colno] = new Boolean(false);
                      if(_minAreaCutoff > 0 && bestDaughterCurve.getAUC() < _minAreaCutoff) ((PeaksTableModel)(peaksTable.getModel())).data[i][peaksData.Accept.colno] = new Boolean(false);
                  }
               }
-              curTrans.setElutionRegionStart(curTrans.calculateMinOfAllBestDaughterCurves());
-              curTrans.setElutionRegionEnd(curTrans.calculateMaxOfAllBestDaughterCurves()); 
-              curTrans.calcMaxYofAllDaughters();
               for(int j=curPrecursorIndex; j<=i; j++){
                 ((PeaksTableModel)(peaksTable.getModel())).data[j][peaksData.CoStart.colno] = new Float(curTrans.getElutionRegionStart());
                 ((PeaksTableModel)(peaksTable.getModel())).data[j][peaksData.CoEnd.colno] = new Float(curTrans.getElutionRegionEnd());
@@ -559,22 +550,8 @@ public class MRMDialog extends JFrame implements Serializable {
              ApplicationContext.errorMessage(TextProvider.getText("ERROR_CREATING_DIALOG"), e);
          }
          this.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-         String _transitionDefFilePath = _mzXMLFile.getAbsolutePath().replaceAll("\\.mzXML$",".transition.tsv");
-         if((new File(_transitionDefFilePath)).exists()){
-            transDefHeader = new TransitionDefinitionHeader(_transitionDefFilePath,new TSVTransitionDefinitionParser());
-            try {
-               transDefHeader.getParser().setTransitionDefFile(_transitionDefFilePath);
-               transDefHeader.doParse();
-               if(transDefHeader==null || transDefHeader.getTransitionDefs() == null || transDefHeader.getTransitionDefs().size()==0) {
-                  transDefHeader = null;
-               } else {
-                  transDefHeader.linkUpToTransitionList(_mrmTransitions,_precursorDiscoveryMzTolerance,_daughterMzTolerance);
-                  transDefHeader.determinePairs();
-               }
-            } catch (Exception e) {
-               System.err.println(e);
-            }
-         }
+         if(_mrmTransitions != null)
+            transDefHeader = createExtractor().readTransitionDefinitions(_mzXMLFile, _mrmTransitions);
          if(transDefHeader != null && transDefHeader.getComment() != null && !transDefHeader.getComment().equals("")) {
              fileNameLabel.setText("<html><body><center>"+_mzXMLFile.getName()+"<br>"+transDefHeader.getComment()+"</center></body></html>");
              fileNameLabel.setHorizontalAlignment(JLabel.CENTER);
@@ -1948,26 +1925,7 @@ System.err.println("derived from "+_mzXMLFile.getParent());
 
     protected XYSeries makeParentSeries(MRMTransition parent)
     {
-
-       float minMz = parent.getPrecursorMz() - _precursorDiscoveryMzTolerance - _precursorChromatogramWindow;
-       float maxMz = parent.getPrecursorMz() + _precursorDiscoveryMzTolerance + _precursorChromatogramWindow;
-       NumberFormat nf = NumberFormat.getNumberInstance();
-       nf.setMaximumFractionDigits(1);
-       nf.setMinimumFractionDigits(1);
-
-       XYSeries result = new XYSeries(parent.getName()+"\u00B1"+nf.format( _precursorDiscoveryMzTolerance + _precursorChromatogramWindow));
-       //precursor scans
-       for (int i=parent.getMinScanOfDaughters(); i<=parent.getMaxScanOfDaughters(); i++)
-       {
-          int scanNum = _run.getIndexForScanNum(i);
-          if (scanNum <= 0) continue;
-          MSRun.MSScan ms1Scan = _run.getScan(scanNum);
-          boolean sim_only = _sim;
-          String scanType = ms1Scan.getScanType();
-          if(!sim_only || (sim_only && scanType.equalsIgnoreCase("SIM")))
-             result.add(ms1Scan.getDoubleRetentionTime(),Utils.getMaxIntensityForScan(ms1Scan, minMz, maxMz));
-       }
-       return result;
+       return createExtractor().makeParentSeries(parent);
     }
 
     public boolean precursorChromatogramEmpty(MRMTransition parent){
@@ -2293,429 +2251,32 @@ System.err.println("derived from "+_mzXMLFile.getParent());
         return retVal;
     }
 
-    private static NumberFormat _transitionNumberFormat =
-       NumberFormat.getNumberInstance();
-
-    static {
-        _transitionNumberFormat.setMaximumFractionDigits(4);
-        _transitionNumberFormat.setMinimumFractionDigits(4);
-    }
-
-    public interface mzXML2TransitionArray {
-        public MRMTransition[] reParse(MSRun run);
-    }
-
     public static boolean isMRM(MSRun.MSScan scan){
-        return (scan != null) && scan.getScanType() != null &&
-               (scan.getScanType().equalsIgnoreCase("MRM") ||
-                scan.getScanType().equalsIgnoreCase("SRM") ||
-                scan.getScanType().equalsIgnoreCase("MultipleReaction"))
-        ;
+        return MRMExtractor.isMRM(scan);
     }
 
-    protected class originalReParser implements mzXML2TransitionArray {
-        public MRMTransition[] reParse(MSRun run) {
-           Vector<MRMTransition> transitions = new Vector<MRMTransition>();
-           Map<Float, MRMDaughter> meanDaughterTransitionMap = new HashMap<Float, MRMDaughter>();
-
-           for (MSRun.MSScan ms2Scan : run.getMS2Scans())
-           {
-               if (isMRM(ms2Scan))
-               {
-                // See if a parent MRMTransition within the mz tolerance exists
-                //    If not.  Create one.
-                float testPrecursor = ms2Scan.getPrecursorMz();
-                MRMTransition curTrans = null;
-                for(MRMTransition testTrans: transitions) {
-                    if(testTrans.getPrecursorMz() >= (testPrecursor-_precursorDiscoveryMzTolerance) &&
-                       testTrans.getPrecursorMz() <= (testPrecursor+_precursorDiscoveryMzTolerance)) {
-                          curTrans = testTrans;
-                          break;
-                    }
-                }
-                if(curTrans == null) {
-                    curTrans = new MRMTransition(testPrecursor,run);
-                    curTrans.setName(_transitionNumberFormat.format(curTrans.getPrecursorMz()));
-                    transitions.add(curTrans);
-                }
-                // See if a daughter mean mz exists yet for that parent
-                //    If not. Create one.  Attach it to parent.
-                float meanDaughter = (ms2Scan.getLowMz() + ms2Scan.getHighMz()) / 2;
-                MRMDaughter curDaughter = null;
-                for(MRMDaughter testDaughter: curTrans.getDaughters().values()) {
-                    if(meanDaughter >= (testDaughter.getMeanMz() - _daughterMzTolerance) &&
-                       meanDaughter <= (testDaughter.getMeanMz() + _daughterMzTolerance)
-                    ) {
-                        curDaughter = testDaughter;
-                        break;
-                    }
-                }
-                if(curDaughter == null)
-                {
-                    curDaughter = new MRMDaughter(
-                            meanDaughter,
-                            ms2Scan.getLowMz(),
-                            ms2Scan.getHighMz(),
-                            ms2Scan.getNum(),
-                            ms2Scan.getNum(),
-                            curTrans
-                     );
-                     curDaughter.setGraphColor(MRMTransition.COLOR_SERIES[curTrans.getDaughters().size() % (MRMTransition.COLOR_SERIES.length)]);
-                     curDaughter.setName(_transitionNumberFormat.format(curDaughter.getPrecursor().getPrecursorMz())+"/"+_transitionNumberFormat.format(curDaughter.getMeanMz()));
-                     meanDaughterTransitionMap.put(curDaughter.getMeanMz(),curDaughter);
-                     curTrans.getDaughters().put(curDaughter.getMeanMz(),curDaughter);
-                     //make sure this line doesn't duplicate initial scan number
-                     curDaughter.addScanVal(ms2Scan.getNum(),new ElutionDataPoint(ms2Scan.getDoubleRetentionTime(),Utils.getMaxIntensityForScan(ms2Scan, curDaughter.getLowMz(), curDaughter.getHighMz())));
-//allDaughters.add(new ReactionClusterable(curTrans.getPrecursorMz(),curDaughter.getMeanMz()));
-                } else {
-                // Add current scan to daughter.
-                  curDaughter.addScanVal(ms2Scan.getNum(),new ElutionDataPoint(ms2Scan.getDoubleRetentionTime(),Utils.getMaxIntensityForScan(ms2Scan, curDaughter.getLowMz(), curDaughter.getHighMz())));
-//allDaughters.add(new ReactionClusterable(curTrans.getPrecursorMz(),curDaughter.getMeanMz()));
-
-                }
-            }
-        }
-        ArrayList<MRMDaughter> mrmTransitionLists = new ArrayList<MRMDaughter>();
-
-        for (MRMDaughter daughter : meanDaughterTransitionMap.values())
-        {
-            mrmTransitionLists.add(daughter);
-        }
-        MRMTransition[] result = transitions.toArray(new MRMTransition[0]);
-        Arrays.sort(result, new MRMTransition.PrecursorMzComparator());
-        return result;
-      }
-    }
-
-    protected class thermoReParser implements mzXML2TransitionArray {
-        protected Range[] parseFilterLine(String fline)
-        {
-           String rangeStrings[] = fline.split("\\[")[1].split(",");
-           rangeStrings[rangeStrings.length-1] = rangeStrings[rangeStrings.length-1].replace("]","");
-           Range retVal[] = new Range[rangeStrings.length];
-           for(int i = 0; i<rangeStrings.length; i++) {
-               String ends[] = rangeStrings[i].split("-");
-               retVal[i] = new Range(Double.parseDouble(ends[0]),Double.parseDouble(ends[1]));
-           }
-           return retVal;
-        }
-
-        public MRMTransition[] reParse(MSRun run) {
-            // New (Post Jan '08) thermo files have "filterLine" attributes
-            // on the <run> element.  These define transitions.  There will
-            // be one "peak" in the <peaks> element for each daughter.
-            // Considerations:  each daughter must (should) be assigned a
-            // distinct time.  So the entire ms2/MRM scan should be divided
-            // into n retention time segments for n daughters.  This means
-            // we have to know the value of the NEXT scan retention time
-            // in order to get some estimate for the length of the ms2
-            // scan.  It also means we'll keep around average times so that
-            // we can process the last scan.
-
-            //for final mean scan time
-            double sumRetentionTimeDeltas = 0.0d;
-            int countMRMScans = 0;
-
-            //places to keep precursors and products
-            Vector<MRMTransition> transitions = new Vector<MRMTransition>();
-            Map<Float, MRMDaughter> meanProductTransitionMap = new HashMap<Float, MRMDaughter>();
-
-            for (MSRun.MSScan ms2Scan : run.getMS2Scans())
-            {
-                if (isMRM(ms2Scan))
-                {
-                    try{
-                       if(ms2Scan.getFilterLine() == null) {
-                          throw new Exception("No filter line in Thermo MRM scan '"+ms2Scan.toString()+"'");
-                       }
-                        float testPrecursor = ms2Scan.getPrecursorMz();
-                        MRMTransition curTrans = null;
-                        // Have we seen a transition with this precursor value yet?
-                        for(MRMTransition testTrans: transitions) {
-                            if(testTrans.getPrecursorMz() >= (testPrecursor-_precursorDiscoveryMzTolerance) &&
-                               testTrans.getPrecursorMz() <= (testPrecursor+_precursorDiscoveryMzTolerance)) {
-                                  curTrans = testTrans;
-                                  break;
-                            }
-                        }
-                        if(curTrans == null) {
-                            curTrans = new MRMTransition(testPrecursor,run);
-                            curTrans.setName(_transitionNumberFormat.format(curTrans.getPrecursorMz()));
-                            transitions.add(curTrans);
-                        }
-                        //Determine length of scan
-                        double scanLen = 0d;
-                        MSRun.MSScan nextScan = _run.getScanByNum(ms2Scan.getNum()+1);
-                        if(nextScan != null) {
-                           scanLen = nextScan.getDoubleRetentionTime()-ms2Scan.getDoubleRetentionTime();
-                           sumRetentionTimeDeltas += scanLen;
-                           countMRMScans++;
-                        } else {
-                           scanLen = sumRetentionTimeDeltas/countMRMScans; //mean daughter scan time
-                        }
-                        //Create a daughter (if necessary) or just a daughter datapoint
-                        //Assume there are as many points in the "spectrum" as there are
-                        //daughters.  Assume they come in the same order as they are described
-                        //in the filterLine.  We can change the assumptions and complicate the
-                        //code if necessary.
-                        Range productRanges[] = parseFilterLine(ms2Scan.getFilterLine());
-                        Vector<MRMDaughter> productRangeDaughters = new Vector<MRMDaughter>();
-                        for(int i = 0; i<productRanges.length; i++){
-                           Range daughterCenter = productRanges[i];
-                           float meanDaughter = (float)daughterCenter.getCentralValue();
-                           MRMDaughter curDaughter = null;
-                           for(MRMDaughter testDaughter: curTrans.getDaughters().values()) {
-                              if(
-                                 meanDaughter >= (testDaughter.getMeanMz() - _daughterMzTolerance) &&
-                                 meanDaughter <= (testDaughter.getMeanMz() + _daughterMzTolerance)
-                              ) {
-                                 curDaughter = testDaughter;
-                                 break;
-                              }
-                           }
-                           if(curDaughter == null){
-                              curDaughter =
-                                 new MRMDaughter(
-                                    meanDaughter,
-                                    (float)daughterCenter.getLowerBound(),
-                                    (float)daughterCenter.getUpperBound(),
-                                    ms2Scan.getNum(),
-                                    ms2Scan.getNum(),
-                                    curTrans
-                                 );
-                              curDaughter.setGraphColor(MRMTransition.COLOR_SERIES[curTrans.getDaughters().size() % (MRMTransition.COLOR_SERIES.length)]);
-                              curDaughter.setName(_transitionNumberFormat.format(curDaughter.getPrecursor().getPrecursorMz())+"/"+_transitionNumberFormat.format(curDaughter.getMeanMz()));
-                              meanProductTransitionMap.put(curDaughter.getMeanMz(),curDaughter);
-                              curTrans.getDaughters().put(curDaughter.getMeanMz(),curDaughter);
-                           }
-                           productRangeDaughters.add(curDaughter);
-                        }
-                        //Now we know a daughter defined by the filterLine is associated with
-                        //with the precursor.  We have to find which spectrum datapoint goes
-                        //with which daughter.
-                        int dcount = -1;
-                        for(MRMDaughter mrmd: productRangeDaughters) {
-                            dcount++;
-                            int spectrumPointCount = 0;
-                            double curMZ = -1d;
-                            double curIntensity = -1d;
-                            for(int j = 0; j<ms2Scan.getSpectrum()[0].length; j++) {
-                               if((ms2Scan.getSpectrum()[0][j] >= (mrmd.getMeanMz()-_daughterMzTolerance)) && (ms2Scan.getSpectrum()[0][j] <= (mrmd.getMeanMz()+_daughterMzTolerance))) {
-                                   curMZ = ms2Scan.getSpectrum()[0][j];
-                                   curIntensity = ms2Scan.getSpectrum()[1][j];
-                                   spectrumPointCount++;
-                               }
-                            }
-                            if(spectrumPointCount == 1) {
-                               mrmd.addScanVal(
-                                 ms2Scan.getNum(),
-                                 new ElutionDataPoint(
-                                     ms2Scan.getDoubleRetentionTime()+((scanLen/productRanges.length)*dcount),
-                                     curIntensity
-                                 )
-                               );
-                            } else {
-                                if(spectrumPointCount > 1) {
-                                    ApplicationContext.infoMessage("More than one spectrum point can belong to same daughter in same scan");
-                                } else {
-                                    if(spectrumPointCount == 0) {
-                                       mrmd.addScanVal(
-                                          ms2Scan.getNum(),
-                                          new ElutionDataPoint(
-                                             ms2Scan.getDoubleRetentionTime()+((scanLen/productRanges.length)*dcount),
-                                             0d
-                                          )
-                                     );
-                                     ApplicationContext.infoMessage("No datapoint found matching daughter "+mrmd+" for scan "+ms2Scan.getNum());
-                                    }
-                                }
-                            }
-                        }
-                    } catch (Exception e) {
-                       ApplicationContext.infoMessage("Can't parse scan "+ms2Scan.getNum()+" in thermo reparser: "+e);
-                    }
-                }
-            }
-            ArrayList<MRMDaughter> mrmTransitionLists = new ArrayList<MRMDaughter>();
-
-            for (MRMDaughter daughter : meanProductTransitionMap.values())
-            {
-                mrmTransitionLists.add(daughter);
-            }
-            MRMTransition[] result = transitions.toArray(new MRMTransition[0]);
-            Arrays.sort(result, new MRMTransition.PrecursorMzComparator());
-            return result;
-         }
-    }
-
-    protected class agilentReParser implements mzXML2TransitionArray {
-       public MRMTransition[] reParse(MSRun run) {
-            // New (Post Sept '09) agilent files translated by TRAPPER.
-            // These files are similar to thermo files in that they store
-            // all the MRM products in one scan.  But they do not have
-            // thermo's FilterLine data to suggest M/Z of the products.
-            // So the daughter M/Zs must be deduced from the scan.  Also
-            // as in the thermo reparser, each product lacks its own
-            // distinct time.  So the entire ms2/MRM scan must be divided
-            // into n retention time segments for n daughters.  This means
-            // we have to know the value of the NEXT scan retention time
-            // in order to get some estimate for the length of the ms2
-            // scan.  It also means we'll keep around average times so that
-            // we can fill in something reasonable for the last scan.
-
-            //for final mean scan time
-            double sumRetentionTimeDeltas = 0.0d;
-            int countMRMScans = 0;
-
-            //places to keep precursors and products
-            Vector<MRMTransition> transitions = new Vector<MRMTransition>();
-            Map<Float, MRMDaughter> meanProductTransitionMap = new HashMap<Float, MRMDaughter>();
-
-            for (MSRun.MSScan ms2Scan : run.getMS2Scans())
-            {
-                if (isMRM(ms2Scan))
-                {
-                    try{
-                        float testPrecursor = ms2Scan.getPrecursorMz();
-                        MRMTransition curTrans = null;
-                        // Have we seen a transition with this precursor value yet?
-                        for(MRMTransition testTrans: transitions) {
-                            if(testTrans.getPrecursorMz() >= (testPrecursor-_precursorDiscoveryMzTolerance) &&
-                               testTrans.getPrecursorMz() <= (testPrecursor+_precursorDiscoveryMzTolerance)) {
-                                  curTrans = testTrans;
-                                  break;
-                            }
-                        }
-                        if(curTrans == null) {
-                            curTrans = new MRMTransition(testPrecursor,run);
-                            curTrans.setName(_transitionNumberFormat.format(curTrans.getPrecursorMz()));
-                            transitions.add(curTrans);
-                        }
-                        //Determine time-span of scan
-                        double scanLen = 0d;
-                        MSRun.MSScan nextScan = _run.getScanByNum(ms2Scan.getNum()+1);
-                        if(nextScan != null) {
-                           scanLen = nextScan.getDoubleRetentionTime()-ms2Scan.getDoubleRetentionTime();
-                           sumRetentionTimeDeltas += scanLen;
-                           countMRMScans++;
-                        } else {
-                           scanLen = sumRetentionTimeDeltas/countMRMScans; //mean daughter scan time
-                        }
-                        //Create a daughter (if necessary) or just a daughter datapoint
-                        Vector<MRMDaughter> productRangeDaughters = new Vector<MRMDaughter>();
-                        for(int i = 0; i<ms2Scan.getPeaksCount(); i++){
-                           float meanDaughter = ms2Scan.getSpectrum()[0][i];
-                           MRMDaughter curDaughter = null;
-                           for(MRMDaughter testDaughter: curTrans.getDaughters().values()) {
-                              if(
-                                 meanDaughter >= (testDaughter.getMeanMz() - _daughterMzTolerance) &&
-                                 meanDaughter <= (testDaughter.getMeanMz() + _daughterMzTolerance)
-                              ) {
-                                 curDaughter = testDaughter;
-                                 break;
-                              }
-                           }
-                           if(curDaughter == null){
-                              curDaughter =
-                                 new MRMDaughter(
-                                    meanDaughter,
-                                    ms2Scan.getSpectrum()[0][i]-_daughterMzTolerance,
-                                    ms2Scan.getSpectrum()[0][i]+_daughterMzTolerance,
-                                    ms2Scan.getNum(),
-                                    ms2Scan.getNum(),
-                                    curTrans
-                                 );
-                              curDaughter.setGraphColor(MRMTransition.COLOR_SERIES[curTrans.getDaughters().size() % (MRMTransition.COLOR_SERIES.length)]);
-                              curDaughter.setName(_transitionNumberFormat.format(curDaughter.getPrecursor().getPrecursorMz())+"/"+_transitionNumberFormat.format(curDaughter.getMeanMz()));
-                              meanProductTransitionMap.put(curDaughter.getMeanMz(),curDaughter);
-                              curTrans.getDaughters().put(curDaughter.getMeanMz(),curDaughter);
-                           }
-                           productRangeDaughters.add(curDaughter);
-                        }
-                        //Now we know a daughter is associated with
-                        //with the precursor.  We have to find which spectrum datapoint goes
-                        //with which daughter.
-                        int dcount = -1;
-                        for(MRMDaughter mrmd: productRangeDaughters) {
-                            dcount++;
-                            int spectrumPointCount = 0;
-                            double curMZ = -1d;
-                            double curIntensity = -1d;
-                            for(int j = 0; j<ms2Scan.getSpectrum()[0].length; j++) {
-                               if((ms2Scan.getSpectrum()[0][j] >= (mrmd.getMeanMz()-_daughterMzTolerance)) && (ms2Scan.getSpectrum()[0][j] <= (mrmd.getMeanMz()+_daughterMzTolerance))) {
-                                   curMZ = ms2Scan.getSpectrum()[0][j];
-                                   curIntensity = ms2Scan.getSpectrum()[1][j];
-                                   spectrumPointCount++;
-                               }
-                            }
-                            if(spectrumPointCount == 1) {
-                               mrmd.addScanVal(
-                                 ms2Scan.getNum(),
-                                 new ElutionDataPoint(
-                                     ms2Scan.getDoubleRetentionTime()+((scanLen/ms2Scan.getSpectrum()[0].length)*dcount),
-                                     curIntensity
-                                 )
-                               );
-                            } else {
-                                if(spectrumPointCount > 1) {
-                                    ApplicationContext.infoMessage("More than one spectrum point can belong to same daughter in same scan");
-                                } else {
-                                    if(spectrumPointCount == 0) {
-                                       mrmd.addScanVal(
-                                          ms2Scan.getNum(),
-                                          new ElutionDataPoint(
-                                             ms2Scan.getDoubleRetentionTime()+((scanLen/ms2Scan.getSpectrum()[0].length)*dcount),
-                                             0d
-                                          )
-                                     );
-                                     ApplicationContext.infoMessage("No datapoint found matching daughter "+mrmd+" for scan "+ms2Scan.getNum());
-                                    }
-                                }
-                            }
-                        }
-                    } catch (Exception e) {
-                       ApplicationContext.infoMessage("Can't parse scan "+ms2Scan.getNum()+" in thermo reparser: "+e);
-                    }
-                }
-            }
-            ArrayList<MRMDaughter> mrmTransitionLists = new ArrayList<MRMDaughter>();
-
-            for (MRMDaughter daughter : meanProductTransitionMap.values())
-            {
-                mrmTransitionLists.add(daughter);
-            }
-            MRMTransition[] result = transitions.toArray(new MRMTransition[0]);
-            Arrays.sort(result, new MRMTransition.PrecursorMzComparator());
-            return result;
-         }
+    /**
+     * An extraction engine with the dialog's current settings
+     */
+    protected MRMExtractor createExtractor()
+    {
+        MRMExtractor extractor = new MRMExtractor(_precursorDiscoveryMzTolerance, _daughterMzTolerance,
+                _precursorChromatogramWindow, _ecurveclass);
+        extractor.setSim(_sim);
+        extractor.setMinPeakCutoff(_minPeakCutoff);
+        extractor.setMinAreaCutoff(_minAreaCutoff);
+        extractor.setNumThreads(_numThreads);
+        return extractor;
     }
 
     /**
-       /**
      * Detect all the transitions and load into an array
      * @param run
      * @return
-     *
-     * There is a lot of legacy code here to be cleaned up later
-     *
      */
     private MRMTransition[] loadMRMTransitions(MSRun run)
     {
-        for (MSRun.MSScan ms2Scan : run.getMS2Scans())
-        {
-            if (isMRM(ms2Scan))
-            {
-                if(ms2Scan.getFilterLine() != null  && ms2Scan.getFilterLine().length() > 0) {
-                    return(new thermoReParser()).reParse(run);
-                } else
-                if(ms2Scan.getScanType().equalsIgnoreCase("MultipleReaction")) {
-                    return(new agilentReParser()).reParse(run);
-                } else
-                    return (new originalReParser()).reParse(run);
-            }
-            break;
-        }
-        return(new originalReParser()).reParse(run);
+        return createExtractor().findTransitions(run);
     }
 
 }
@@ -16,6 +16,7 @@
 package org.fhcrc.cpl.viewer.gui;
 
 import org.fhcrc.cpl.toolbox.proteomics.gui.IntensityPlot;
+import org.fhcrc.cpl.toolbox.proteomics.gui.ImagePyramidRenderer;
 import org.fhcrc.cpl.viewer.util.SharedProperties;
 import org.fhcrc.cpl.toolbox.proteomics.feature.Spectrum;
 import org.fhcrc.cpl.toolbox.proteomics.feature.FeatureSet;
@@ -23,6 +24,7 @@ import org.fhcrc.cpl.toolbox.proteomics.feature.Feature;
 import org.fhcrc.cpl.toolbox.proteomics.feature.extraInfo.IsotopicLabelExtraInfoDef;
 import org.fhcrc.cpl.toolbox.proteomics.feature.extraInfo.FeatureExtraInformationDef;
 import org.fhcrc.cpl.toolbox.proteomics.MSRun;
+import org.fhcrc.cpl.toolbox.proteomics.MSRunImagePyramid;
 import org.fhcrc.cpl.viewer.Application;
 import org.fhcrc.cpl.viewer.gui.WorkbenchFrame;
 import org.fhcrc.cpl.viewer.gui.SavePartialMzxmlDialog;
@@ -126,6 +128,10 @@ public class MSImageComponent
 
     private MSRun _run = null;
 
+    //tiled image of the run, drawn a visible tile at a time.  If there is one, the image panel has no image
+    protected MSRunImagePyramid _imagePyramid = null;
+    protected ImagePyramidRenderer _pyramidRenderer = null;
+
     private ListenerHelper helper = new ListenerHelper(this);
 
     //the current zoom level
@@ -186,7 +192,7 @@ public class MSImageComponent
         if (null == run)
             setImage(null);
         else
-            setImage(run.getImage(getPrefColorScheme()));
+            setImagePyramid(run.getImagePyramid());
     }
 
     /**
@@ -508,7 +514,14 @@ public class MSImageComponent
             prefs.put(MSImageComponent.COLORSCHEME_PROPNAME,
                     (String) ApplicationContext.getProperty(MSImageComponent.COLORSCHEME_PROPNAME));
 
-            if (_run != null)
+            if (_imagePyramid != null)
+            {
+                //tiles are rendered in the new scheme as they're drawn.  The full image is only built for saving
+                if (_run != null)
+                    _run.invalidateImage();
+                setImagePyramid(_imagePyramid);
+            }
+            else if (_run != null)
             {
                 _run.invalidateImage();
                 setImage(_run.getImage(getPrefColorScheme()));
@@ -598,6 +611,7 @@ public class MSImageComponent
 
     public void setImage(Image image)
     {
+        clearImagePyramid();
         imagePanel.setImage(image);
 
         if (null != image)
@@ -605,6 +619,45 @@ public class MSImageComponent
             _imagePanelSize = new Dimension((int)(_zoomFactor * image.getWidth(imagePanel)),
                     (int)(_zoomFactor * image.getHeight(imagePanel)));
         }
+        revalidateImagePanel();
+    }
+
+    /**
+     * Display a run image a tile at a time, at the resolution of the current zoom level, rather than as
+     * one image
+     * @param pyramid
+     */
+    public void setImagePyramid(MSRunImagePyramid pyramid)
+    {
+        clearImagePyramid();
+        imagePanel.setImage(null);
+
+        if (null != pyramid)
+        {
+            _imagePyramid = pyramid;
+            _pyramidRenderer = new ImagePyramidRenderer(pyramid, getPrefColorScheme(), new Runnable()
+            {
+                public void run()
+                {
+                    imagePanel.repaint();
+                }
+            });
+            _imagePanelSize = new Dimension((int)(_zoomFactor * pyramid.getWidth()),
+                    (int)(_zoomFactor * pyramid.getHeight()));
+        }
+        revalidateImagePanel();
+    }
+
+    protected void clearImagePyramid()
+    {
+        if (null != _pyramidRenderer)
+            _pyramidRenderer.dispose();
+        _pyramidRenderer = null;
+        _imagePyramid = null;
+    }
+
+    protected void revalidateImagePanel()
+    {
         if (null != scrollPane)
         {
             rowPanel.revalidate();
@@ -980,6 +1033,8 @@ public class MSImageComponent
          */
         public int getImageHeight()
         {
+            if (null != _imagePyramid)
+                return _imagePyramid.getHeight();
             if (getImage() == null)
                 return super.getHeight();
             return getImage().getHeight(this);
@@ -992,6 +1047,8 @@ public class MSImageComponent
          */
         public int getImageWidth()
         {
+            if (null != _imagePyramid)
+                return _imagePyramid.getWidth();
             if (getImage() == null)
                 return super.getWidth();
             return getImage().getWidth(this);
@@ -1302,7 +1359,10 @@ public class MSImageComponent
             if (scaleWithZoom)
                 ((Graphics2D) (graphics)).scale(_zoomFactor, _zoomFactor);
 
-            super.paint(graphics);
+            if (null == _pyramidRenderer)
+                super.paint(graphics);
+            else if (scaleWithZoom)
+                paintImagePyramid((Graphics2D) graphics);
 
             if (null == _run)
                 return;
@@ -1326,6 +1386,31 @@ public class MSImageComponent
 
         }
 
+        /**
+         * Draw the visible tiles of the run image, and the total ion chromatogram below them.  Tiles that
+         * aren't ready yet are drawn from a coarser level, and the panel is repainted when they are
+         * @param graphics
+         */
+        protected void paintImagePyramid(Graphics2D graphics)
+        {
+            // UNDONE: Smart scrolling is broken w/ multiple monitors (JDK 1.4)
+            if (getParent() instanceof JViewport &&
+                    JViewport.SIMPLE_SCROLL_MODE != ((JViewport) getParent()).getScrollMode())
+            {
+                ((JViewport) getParent()).setScrollMode(JViewport.SIMPLE_SCROLL_MODE);
+                repaint();
+            }
+
+            Rectangle bounds = graphics.getClipBounds();
+            if (null == bounds)
+                bounds = new Rectangle(0, 0, getImageWidth(), getImageHeight());
+            graphics.setColor(Color.WHITE);
+            graphics.fill(bounds);
+            _pyramidRenderer.draw(graphics, bounds, _zoomFactor);
+            if (null != _run)
+                _run.drawTotalIonChromatogram(graphics, getImageHeight(), bounds.x - 1, bounds.x + bounds.width);
+        }
+
         /**
          * draw circles around highlighted features in a given color
          * @param graphics
@@ -1418,11 +1503,9 @@ public class MSImageComponent
      */
     public void saveImage(File f, int maxWidth, int maxHeight, boolean includeTIC)
     {
-        BufferedImage checkedImage = (BufferedImage) imagePanel.getImage();
         String ext = f.getName().substring(f.getName().lastIndexOf('.')+1).toLowerCase();
 
         String formats[] = ImageIO.getWriterFormatNames();
-        setImage(checkedImage);
 
         String format = null;
 
@@ -1439,6 +1522,9 @@ public class MSImageComponent
 
 
         BufferedImage imageBW = (BufferedImage)this.imagePanel.getImage();
+        //a tiled image is only ever drawn a piece at a time, so the whole thing has to be drawn for saving
+        if (null == imageBW && null != _run)
+            imageBW = _run.getImage(getPrefColorScheme());
         int width = imageBW.getWidth();
         int height = imageBW.getHeight();
         Image copy = null;
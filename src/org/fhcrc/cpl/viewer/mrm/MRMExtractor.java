@@ -0,0 +1,728 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fhcrc.cpl.viewer.mrm;
+
+import org.apache.log4j.Logger;
+import org.fhcrc.cpl.toolbox.ApplicationContext;
+import org.fhcrc.cpl.toolbox.proteomics.MSRun;
+import org.fhcrc.cpl.viewer.util.ElutionDataPoint;
+import org.jfree.data.Range;
+import org.jfree.data.xy.XYSeries;
+
+import java.io.*;
+import java.text.NumberFormat;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Headless MRM transition extraction and elution curve calculation, used by MRMDialog and for batch runs.
+ *
+ * How transitions are read depends on the first MS2 scan in the run:
+ *   Thermo: MRM scans have a filterLine listing the product m/z ranges, and one peak per product
+ *   Agilent (translated by TRAPPER): "MultipleReaction" scans with one peak per product, and no filterLine
+ *   anything else: one MRM scan per product, whose m/z range defines the product
+ *
+ * MRM scans are assigned to transitions by precursor m/z in one pass over the scan headers.  Everything after
+ * that -- finding products, product intensities, the precursor chromatogram and the elution curves -- depends
+ * only on a transition's own scans, so transitions are processed in parallel.  Each MRM scan's spectrum is
+ * read once, and product m/z windows are found by binary search.  Like Utils.getMaxIntensityForScan(), this
+ * assumes spectra are sorted by m/z.
+ */
+public class MRMExtractor
+{
+    protected static Logger _log = Logger.getLogger(MRMExtractor.class);
+
+    public static final float DEFAULT_PRECURSOR_DISCOVERY_MZ_TOLERANCE = 0.01f;
+    public static final float DEFAULT_DAUGHTER_MZ_TOLERANCE = 0.1f;
+    public static final float DEFAULT_PRECURSOR_CHROMATOGRAM_WINDOW = 1.0f;
+
+    protected static final int FORMAT_ORIGINAL = 0;
+    protected static final int FORMAT_THERMO = 1;
+    protected static final int FORMAT_AGILENT = 2;
+
+    protected float precursorDiscoveryMzTolerance = DEFAULT_PRECURSOR_DISCOVERY_MZ_TOLERANCE;
+    protected float daughterMzTolerance = DEFAULT_DAUGHTER_MZ_TOLERANCE;
+    protected float precursorChromatogramWindow = DEFAULT_PRECURSOR_CHROMATOGRAM_WINDOW;
+    //use only SIM scans for precursor chromatograms
+    protected boolean sim = false;
+    protected Class elutionCurveStrategyClass = BasicElutionCurveStrategy.class;
+    //products whose best curve is lower or smaller than these aren't accepted.  0 means no cutoff
+    protected float minPeakCutoff = 0f;
+    protected float minAreaCutoff = 0f;
+    protected int numThreads = 1;
+
+    public MRMExtractor()
+    {
+    }
+
+    public MRMExtractor(float precursorDiscoveryMzTolerance, float daughterMzTolerance,
+                        float precursorChromatogramWindow, Class elutionCurveStrategyClass)
+    {
+        this.precursorDiscoveryMzTolerance = precursorDiscoveryMzTolerance;
+        this.daughterMzTolerance = daughterMzTolerance;
+        this.precursorChromatogramWindow = precursorChromatogramWindow;
+        this.elutionCurveStrategyClass = elutionCurveStrategyClass;
+    }
+
+    public static boolean isMRM(MSRun.MSScan scan)
+    {
+        return (scan != null) && scan.getScanType() != null &&
+               (scan.getScanType().equalsIgnoreCase("MRM") ||
+                scan.getScanType().equalsIgnoreCase("SRM") ||
+                scan.getScanType().equalsIgnoreCase("MultipleReaction"));
+    }
+
+    /**
+     * A transition and the MRM scans that belong to it, in file order
+     */
+    protected static class TransitionScans
+    {
+        MRMTransition transition;
+        List<MSRun.MSScan> scans = new ArrayList<MSRun.MSScan>();
+        //Thermo and Agilent only: the time between each scan and the next
+        List<Double> scanLengths = new ArrayList<Double>();
+
+        TransitionScans(MRMTransition transition)
+        {
+            this.transition = transition;
+        }
+    }
+
+    /**
+     * Find all the transitions in a run, with their products and product elution data, and calculate their
+     * elution curves
+     * @param run
+     * @return transitions, sorted by precursor m/z
+     */
+    public MRMTransition[] extract(MSRun run)
+    {
+        return extract(run, true);
+    }
+
+    /**
+     * Find all the transitions in a run, with their products and product elution data
+     * @param run
+     * @return transitions, sorted by precursor m/z
+     */
+    public MRMTransition[] findTransitions(MSRun run)
+    {
+        return extract(run, false);
+    }
+
+    protected MRMTransition[] extract(MSRun run, final boolean calculateCurves)
+    {
+        final int format = detectFormat(run);
+        List<TransitionScans> groups = groupScans(run, format);
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(groups.size());
+        for (final TransitionScans group : groups)
+        {
+            tasks.add(new Callable<Object>()
+            {
+                public Object call()
+                {
+                    readProducts(group, format);
+                    if (calculateCurves)
+                        calculateElutionCurves(group.transition);
+                    return null;
+                }
+            });
+        }
+        runTasks(tasks);
+
+        MRMTransition[] result = new MRMTransition[groups.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = groups.get(i).transition;
+        Arrays.sort(result, new MRMTransition.PrecursorMzComparator());
+        return result;
+    }
+
+    /**
+     * Calculate the precursor chromatogram and elution curves for transitions found by findTransitions().
+     * Products are done in order within each transition, since each product's noise level depends on the
+     * data of the products before it
+     * @param transitions
+     */
+    public void calculateElutionCurves(MRMTransition[] transitions)
+    {
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(transitions.length);
+        for (final MRMTransition transition : transitions)
+        {
+            tasks.add(new Callable<Object>()
+            {
+                public Object call()
+                {
+                    calculateElutionCurves(transition);
+                    return null;
+                }
+            });
+        }
+        runTasks(tasks);
+    }
+
+    protected void calculateElutionCurves(MRMTransition transition)
+    {
+        transition.setGraphData(makeParentSeries(transition));
+        for (MRMDaughter d : transition.getDaughters().values())
+        {
+            d.setGraphData(d.makeDaughterSeries());
+            d.setContinDaughterData(d.makeDaughterSeries(d, true));
+            ElutionCurveStrategy bes = ElutionCurveStrategy.getInstance(transition, d, elutionCurveStrategyClass);
+            bes.calculateParentElutionCurves(null);
+            bes.calculateDaughterElutionCurves(null);
+            bes.calculateBestCurves();
+            d.calculateQuality();
+            transition.getElutionCurves().put(d, bes);
+            ElutionCurve bestDaughterCurve = bes.getBestDaughterCurve();
+            if (bestDaughterCurve != null && bestDaughterCurve.getMinElutionTimeSecs() > 0.0)
+                d.setBestElutionCurve(bestDaughterCurve);
+        }
+        transition.setElutionRegionStart(transition.calculateMinOfAllBestDaughterCurves());
+        transition.setElutionRegionEnd(transition.calculateMaxOfAllBestDaughterCurves());
+        transition.calcMaxYofAllDaughters();
+    }
+
+    /**
+     * Highest MS1 intensity within the chromatogram window around the precursor, over the scans the
+     * products were seen in
+     * @param parent
+     * @return
+     */
+    public XYSeries makeParentSeries(MRMTransition parent)
+    {
+        MSRun run = parent.getRun();
+        float minMz = parent.getPrecursorMz() - precursorDiscoveryMzTolerance - precursorChromatogramWindow;
+        float maxMz = parent.getPrecursorMz() + precursorDiscoveryMzTolerance + precursorChromatogramWindow;
+        NumberFormat nf = NumberFormat.getNumberInstance();
+        nf.setMaximumFractionDigits(1);
+        nf.setMinimumFractionDigits(1);
+
+        XYSeries result = new XYSeries(parent.getName()+"\u00B1"+nf.format(precursorDiscoveryMzTolerance + precursorChromatogramWindow));
+        //precursor scans
+        for (int i=parent.getMinScanOfDaughters(); i<=parent.getMaxScanOfDaughters(); i++)
+        {
+            int scanIndex = run.getIndexForScanNum(i);
+            if (scanIndex <= 0) continue;
+            MSRun.MSScan ms1Scan = run.getScan(scanIndex);
+            if (!sim || "SIM".equalsIgnoreCase(ms1Scan.getScanType()))
+                result.add(ms1Scan.getDoubleRetentionTime(), maxIntensity(ms1Scan.getSpectrum(), minMz, maxMz));
+        }
+        return result;
+    }
+
+    /**
+     * The format is decided by the first MS2 scan, as it always has been
+     */
+    protected int detectFormat(MSRun run)
+    {
+        MSRun.MSScan[] ms2Scans = run.getMS2Scans();
+        if (ms2Scans.length == 0 || !isMRM(ms2Scans[0]))
+            return FORMAT_ORIGINAL;
+        MSRun.MSScan first = ms2Scans[0];
+        if (first.getFilterLine() != null && first.getFilterLine().length() > 0)
+            return FORMAT_THERMO;
+        if (first.getScanType().equalsIgnoreCase("MultipleReaction"))
+            return FORMAT_AGILENT;
+        return FORMAT_ORIGINAL;
+    }
+
+    /**
+     * Assign MRM scans to transitions, creating a transition for each precursor m/z not within tolerance
+     * of one already seen.  Reads scan headers only
+     */
+    protected List<TransitionScans> groupScans(MSRun run, int format)
+    {
+        NumberFormat transitionNumberFormat = createTransitionNumberFormat();
+        List<TransitionScans> groups = new ArrayList<TransitionScans>();
+        //for the last scan, whose length is taken to be the mean so far
+        double sumRetentionTimeDeltas = 0.0d;
+        int countMRMScans = 0;
+        for (MSRun.MSScan ms2Scan : run.getMS2Scans())
+        {
+            if (!isMRM(ms2Scan))
+                continue;
+            if (format == FORMAT_THERMO && ms2Scan.getFilterLine() == null)
+            {
+                ApplicationContext.infoMessage("Can't parse scan " + ms2Scan.getNum() +
+                        " in thermo reparser: No filter line in Thermo MRM scan '" + ms2Scan.toString() + "'");
+                continue;
+            }
+
+            float testPrecursor = ms2Scan.getPrecursorMz();
+            TransitionScans group = null;
+            for (TransitionScans testGroup : groups)
+            {
+                float testMz = testGroup.transition.getPrecursorMz();
+                if (testMz >= (testPrecursor - precursorDiscoveryMzTolerance) &&
+                    testMz <= (testPrecursor + precursorDiscoveryMzTolerance))
+                {
+                    group = testGroup;
+                    break;
+                }
+            }
+            if (group == null)
+            {
+                MRMTransition transition = new MRMTransition(testPrecursor, run);
+                transition.setName(transitionNumberFormat.format(transition.getPrecursorMz()));
+                group = new TransitionScans(transition);
+                groups.add(group);
+            }
+            group.scans.add(ms2Scan);
+
+            if (format != FORMAT_ORIGINAL)
+            {
+                double scanLen;
+                MSRun.MSScan nextScan = run.getScanByNum(ms2Scan.getNum() + 1);
+                if (nextScan != null)
+                {
+                    scanLen = nextScan.getDoubleRetentionTime() - ms2Scan.getDoubleRetentionTime();
+                    sumRetentionTimeDeltas += scanLen;
+                    countMRMScans++;
+                }
+                else
+                    scanLen = sumRetentionTimeDeltas / countMRMScans; //mean daughter scan time
+                group.scanLengths.add(scanLen);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Find the products of one transition and their intensities in each of its scans
+     */
+    protected void readProducts(TransitionScans group, int format)
+    {
+        NumberFormat transitionNumberFormat = createTransitionNumberFormat();
+        MRMTransition curTrans = group.transition;
+        for (int s = 0; s < group.scans.size(); s++)
+        {
+            MSRun.MSScan ms2Scan = group.scans.get(s);
+            switch (format)
+            {
+                case FORMAT_THERMO:
+                    try
+                    {
+                        Range productRanges[] = parseFilterLine(ms2Scan.getFilterLine());
+                        List<MRMDaughter> productRangeDaughters = new ArrayList<MRMDaughter>();
+                        for (Range productRange : productRanges)
+                            productRangeDaughters.add(findOrCreateDaughter(curTrans, ms2Scan,
+                                    (float) productRange.getCentralValue(), (float) productRange.getLowerBound(),
+                                    (float) productRange.getUpperBound(), transitionNumberFormat));
+                        addProductDataPoints(ms2Scan, ms2Scan.getSpectrum(), productRangeDaughters,
+                                group.scanLengths.get(s) / productRanges.length);
+                    }
+                    catch (Exception e)
+                    {
+                        ApplicationContext.infoMessage("Can't parse scan " + ms2Scan.getNum() + " in thermo reparser: " + e);
+                    }
+                    break;
+                case FORMAT_AGILENT:
+                    try
+                    {
+                        float[][] spectrum = ms2Scan.getSpectrum();
+                        List<MRMDaughter> productRangeDaughters = new ArrayList<MRMDaughter>();
+                        for (int i = 0; i < ms2Scan.getPeaksCount(); i++)
+                            productRangeDaughters.add(findOrCreateDaughter(curTrans, ms2Scan, spectrum[0][i],
+                                    spectrum[0][i] - daughterMzTolerance, spectrum[0][i] + daughterMzTolerance,
+                                    transitionNumberFormat));
+                        addProductDataPoints(ms2Scan, spectrum, productRangeDaughters,
+                                group.scanLengths.get(s) / spectrum[0].length);
+                    }
+                    catch (Exception e)
+                    {
+                        ApplicationContext.infoMessage("Can't parse scan " + ms2Scan.getNum() + " in agilent reparser: " + e);
+                    }
+                    break;
+                default:
+                    MRMDaughter curDaughter = findOrCreateDaughter(curTrans, ms2Scan,
+                            (ms2Scan.getLowMz() + ms2Scan.getHighMz()) / 2, ms2Scan.getLowMz(), ms2Scan.getHighMz(),
+                            transitionNumberFormat);
+                    curDaughter.addScanVal(ms2Scan.getNum(), new ElutionDataPoint(ms2Scan.getDoubleRetentionTime(),
+                            maxIntensity(ms2Scan.getSpectrum(), curDaughter.getLowMz(), curDaughter.getHighMz())));
+            }
+        }
+    }
+
+    /**
+     * The product of this transition whose mean m/z is within tolerance of meanDaughter, or a new one
+     */
+    protected MRMDaughter findOrCreateDaughter(MRMTransition curTrans, MSRun.MSScan ms2Scan, float meanDaughter,
+                                               float lowMz, float highMz, NumberFormat transitionNumberFormat)
+    {
+        for (MRMDaughter testDaughter : curTrans.getDaughters().values())
+        {
+            if (meanDaughter >= (testDaughter.getMeanMz() - daughterMzTolerance) &&
+                meanDaughter <= (testDaughter.getMeanMz() + daughterMzTolerance))
+                return testDaughter;
+        }
+        MRMDaughter curDaughter = new MRMDaughter(meanDaughter, lowMz, highMz, ms2Scan.getNum(), ms2Scan.getNum(),
+                curTrans);
+        curDaughter.setGraphColor(MRMTransition.COLOR_SERIES[curTrans.getDaughters().size() % (MRMTransition.COLOR_SERIES.length)]);
+        curDaughter.setName(transitionNumberFormat.format(curTrans.getPrecursorMz()) + "/" +
+                transitionNumberFormat.format(curDaughter.getMeanMz()));
+        curTrans.getDaughters().put(curDaughter.getMeanMz(), curDaughter);
+        return curDaughter;
+    }
+
+    /**
+     * Thermo and Agilent scans hold one peak per product.  Each product gets its own slice of the scan's time,
+     * in the order the products are listed
+     */
+    protected void addProductDataPoints(MSRun.MSScan ms2Scan, float[][] spectrum, List<MRMDaughter> daughters,
+                                        double timePerProduct)
+    {
+        for (int dcount = 0; dcount < daughters.size(); dcount++)
+        {
+            MRMDaughter mrmd = daughters.get(dcount);
+            float lowMz = mrmd.getMeanMz() - daughterMzTolerance;
+            float highMz = mrmd.getMeanMz() + daughterMzTolerance;
+            int spectrumPointCount = 0;
+            double curIntensity = -1d;
+            for (int j = firstIndexAtOrAbove(spectrum[0], lowMz); j < spectrum[0].length && spectrum[0][j] <= highMz; j++)
+            {
+                curIntensity = spectrum[1][j];
+                spectrumPointCount++;
+            }
+            double time = ms2Scan.getDoubleRetentionTime() + timePerProduct * dcount;
+            if (spectrumPointCount == 1)
+                mrmd.addScanVal(ms2Scan.getNum(), new ElutionDataPoint(time, curIntensity));
+            else if (spectrumPointCount > 1)
+                ApplicationContext.infoMessage("More than one spectrum point can belong to same daughter in same scan");
+            else
+            {
+                mrmd.addScanVal(ms2Scan.getNum(), new ElutionDataPoint(time, 0d));
+                ApplicationContext.infoMessage("No datapoint found matching daughter " + mrmd + " for scan " + ms2Scan.getNum());
+            }
+        }
+    }
+
+    protected static Range[] parseFilterLine(String fline)
+    {
+        String rangeStrings[] = fline.split("\\[")[1].split(",");
+        rangeStrings[rangeStrings.length-1] = rangeStrings[rangeStrings.length-1].replace("]","");
+        Range retVal[] = new Range[rangeStrings.length];
+        for (int i = 0; i < rangeStrings.length; i++)
+        {
+            String ends[] = rangeStrings[i].split("-");
+            retVal[i] = new Range(Double.parseDouble(ends[0]), Double.parseDouble(ends[1]));
+        }
+        return retVal;
+    }
+
+    /**
+     * Highest intensity in the spectrum within [minMz, maxMz], or 0
+     */
+    public static double maxIntensity(float[][] spectrum, double minMz, double maxMz)
+    {
+        double maxIntensity = 0;
+        for (int j = firstIndexAtOrAbove(spectrum[0], minMz); j < spectrum[0].length && spectrum[0][j] <= maxMz; j++)
+            maxIntensity = Math.max(maxIntensity, spectrum[1][j]);
+        return maxIntensity;
+    }
+
+    /**
+     * @return the index of the first m/z not below mz, or mzs.length
+     */
+    protected static int firstIndexAtOrAbove(float[] mzs, double mz)
+    {
+        int low = 0;
+        int high = mzs.length;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (mzs[mid] < mz)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    protected static NumberFormat createTransitionNumberFormat()
+    {
+        NumberFormat result = NumberFormat.getNumberInstance();
+        result.setMaximumFractionDigits(4);
+        result.setMinimumFractionDigits(4);
+        return result;
+    }
+
+    /**
+     * Run the tasks on numThreads threads, waiting for all of them
+     */
+    protected void runTasks(List<Callable<Object>> tasks)
+    {
+        if (numThreads <= 1 || tasks.size() <= 1)
+        {
+            for (Callable<Object> task : tasks)
+            {
+                try
+                {
+                    task.call();
+                }
+                catch (RuntimeException e)
+                {
+                    throw e;
+                }
+                catch (Exception e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(numThreads, tasks.size()));
+        try
+        {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>(tasks.size());
+            for (Callable<Object> task : tasks)
+                futures.add(executor.submit(task));
+            for (Future<Object> future : futures)
+                future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while extracting MRM transitions", e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Read the transition definitions for an mzXML file, if there are any, from the .transition.tsv file beside
+     * it, and link them to the transitions found in the file
+     * @param mzXmlFile
+     * @param transitions
+     * @return the definitions, or null if there's no file or it defines no transitions
+     */
+    public TransitionDefinitionHeader readTransitionDefinitions(File mzXmlFile, MRMTransition[] transitions)
+    {
+        String transitionDefFilePath = mzXmlFile.getAbsolutePath().replaceAll("\\.mzXML$",".transition.tsv");
+        if (!(new File(transitionDefFilePath)).exists())
+            return null;
+        TransitionDefinitionHeader transDefHeader =
+                new TransitionDefinitionHeader(transitionDefFilePath, new TSVTransitionDefinitionParser());
+        try
+        {
+            transDefHeader.getParser().setTransitionDefFile(transitionDefFilePath);
+            transDefHeader.doParse();
+            if (transDefHeader.getTransitionDefs() == null || transDefHeader.getTransitionDefs().size() == 0)
+                return null;
+            transDefHeader.linkUpToTransitionList(transitions, precursorDiscoveryMzTolerance, daughterMzTolerance);
+            transDefHeader.determinePairs();
+        }
+        catch (Exception e)
+        {
+            ApplicationContext.infoMessage("Failed to read transition definitions from " + transitionDefFilePath +
+                    ": " + e);
+        }
+        return transDefHeader;
+    }
+
+    /**
+     * Would MRMDialog accept this product by default?  It needs a nonzero data point and a best elution
+     * curve that passes the cutoffs
+     * @param d
+     * @return
+     */
+    public boolean isAccepted(MRMDaughter d)
+    {
+        if (Utils.allYsAre0(d))
+            return false;
+        ElutionCurveStrategy bes = d.getPrecursor().getElutionCurves().get(d);
+        ElutionCurve bestDaughterCurve = bes == null ? null : bes.getBestDaughterCurve();
+        if (bestDaughterCurve == null || bestDaughterCurve.getMinElutionTimeSecs() <= 0.0)
+            return false;
+        if (minPeakCutoff > 0 && bestDaughterCurve.getHighestPointY() < minPeakCutoff)
+            return false;
+        if (minAreaCutoff > 0 && bestDaughterCurve.getAUC() < minAreaCutoff)
+            return false;
+        return true;
+    }
+
+    /**
+     * Write the results as MRMDialog saves its table, with a row for each precursor followed by a row for each
+     * of its products.  The columns MRMDialog only fills in interactively are left empty
+     * @param transitions with elution curves calculated
+     * @param transitionDefs transition definitions linked to the transitions, for peptides and AQUA codes.
+     * May be null
+     * @param outFile
+     * @throws IOException
+     */
+    public void writeResults(MRMTransition[] transitions, TransitionDefinitionHeader transitionDefs, File outFile)
+            throws IOException
+    {
+        NumberFormat mzFormat = createFixedFormat(3);
+        NumberFormat timeFormat = createFixedFormat(1);
+        NumberFormat valueFormat = createFixedFormat(2);
+
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(outFile)));
+        try
+        {
+            out.println("Accept\tPeptide\tPrecursor\tProduct\tStart\tEnd\tWidth\tAUC\tMaxPeak\tMidTime\t" +
+                    "Label\tCode\tLHRatio\tComment");
+            for (MRMTransition curTrans : transitions)
+            {
+                String peptide = "";
+                ElutionCurve bestPrecursorCurve = null;
+                for (MRMDaughter d : curTrans.getDaughters().values())
+                {
+                    TransitionDefinition td = transitionDefs == null || transitionDefs.getDToTD() == null ?
+                            null : transitionDefs.getDToTD().get(d);
+                    if (td != null)
+                        peptide = td.getPeptide();
+                    ElutionCurveStrategy bes = curTrans.getElutionCurves().get(d);
+                    if (bes != null)
+                        bestPrecursorCurve = bes.getBestParentCurve();
+                }
+                //values go through float, as in MRMDialog's table
+                String region = timeFormat.format((float) curTrans.getElutionRegionStart()) + "\t" +
+                        timeFormat.format((float) curTrans.getElutionRegionEnd()) + "\t" +
+                        timeFormat.format((float) (curTrans.getElutionRegionEnd() - curTrans.getElutionRegionStart()));
+                String midTime = valueFormat.format((float) curTrans.getCalcXatMaxYAllDaughters());
+
+                out.println("\t" + peptide + "\t" + mzFormat.format(curTrans.getPrecursorMz()) + "\t\t" + region +
+                        "\t" + formatCurve(bestPrecursorCurve, valueFormat) + "\t" + midTime + "\t\t\t\t");
+                for (MRMDaughter d : curTrans.getDaughters().values())
+                {
+                    TransitionDefinition td = transitionDefs == null || transitionDefs.getDToTD() == null ?
+                            null : transitionDefs.getDToTD().get(d);
+                    ElutionCurveStrategy bes = curTrans.getElutionCurves().get(d);
+                    out.println(isAccepted(d) + "\t" + (td == null ? "" : td.getPeptide()) + "\t" +
+                            mzFormat.format(curTrans.getPrecursorMz()) + "\t" + mzFormat.format(d.getMeanMz()) +
+                            "\t" + region + "\t" +
+                            formatCurve(bes == null ? null : bes.getBestDaughterCurve(), valueFormat) + "\t" +
+                            midTime + "\t\t" + (td == null ? "" : Integer.toString(td.getAQUAcode())) + "\t\t");
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * AUC and highest point, or -1 for both if there's no usable curve
+     */
+    protected static String formatCurve(ElutionCurve curve, NumberFormat valueFormat)
+    {
+        if (curve == null || curve.getMinElutionTimeSecs() <= 0.0)
+            return valueFormat.format(-1) + "\t" + valueFormat.format(-1);
+        return valueFormat.format((float) curve.getAUC()) + "\t" + valueFormat.format((float) curve.getHighestPointY());
+    }
+
+    protected static NumberFormat createFixedFormat(int fractionDigits)
+    {
+        NumberFormat result = NumberFormat.getNumberInstance();
+        result.setGroupingUsed(false);
+        result.setMaximumFractionDigits(fractionDigits);
+        result.setMinimumFractionDigits(fractionDigits);
+        return result;
+    }
+
+    public float getPrecursorDiscoveryMzTolerance()
+    {
+        return precursorDiscoveryMzTolerance;
+    }
+
+    public void setPrecursorDiscoveryMzTolerance(float precursorDiscoveryMzTolerance)
+    {
+        this.precursorDiscoveryMzTolerance = precursorDiscoveryMzTolerance;
+    }
+
+    public float getDaughterMzTolerance()
+    {
+        return daughterMzTolerance;
+    }
+
+    public void setDaughterMzTolerance(float daughterMzTolerance)
+    {
+        this.daughterMzTolerance = daughterMzTolerance;
+    }
+
+    public float getPrecursorChromatogramWindow()
+    {
+        return precursorChromatogramWindow;
+    }
+
+    public void setPrecursorChromatogramWindow(float precursorChromatogramWindow)
+    {
+        this.precursorChromatogramWindow = precursorChromatogramWindow;
+    }
+
+    public boolean isSim()
+    {
+        return sim;
+    }
+
+    public void setSim(boolean sim)
+    {
+        this.sim = sim;
+    }
+
+    public Class getElutionCurveStrategyClass()
+    {
+        return elutionCurveStrategyClass;
+    }
+
+    public void setElutionCurveStrategyClass(Class elutionCurveStrategyClass)
+    {
+        this.elutionCurveStrategyClass = elutionCurveStrategyClass;
+    }
+
+    public float getMinPeakCutoff()
+    {
+        return minPeakCutoff;
+    }
+
+    public void setMinPeakCutoff(float minPeakCutoff)
+    {
+        this.minPeakCutoff = minPeakCutoff;
+    }
+
+    public float getMinAreaCutoff()
+    {
+        return minAreaCutoff;
+    }
+
+    public void setMinAreaCutoff(float minAreaCutoff)
+    {
+        this.minAreaCutoff = minAreaCutoff;
+    }
+
+    public int getNumThreads()
+    {
+        return numThreads;
+    }
+
+    public void setNumThreads(int numThreads)
+    {
+        this.numThreads = numThreads;
+    }
+}
@@ -19,14 +19,20 @@ import org.fhcrc.cpl.viewer.commandline.modules.BaseViewerCommandLineModuleImpl;
 import org.fhcrc.cpl.toolbox.commandline.arguments.*;
 
 import org.fhcrc.cpl.viewer.mrm.BasicElutionCurveStrategy;
+import org.fhcrc.cpl.viewer.mrm.MRMExtractor;
+import org.fhcrc.cpl.viewer.mrm.MRMTransition;
+import org.fhcrc.cpl.viewer.mrm.TransitionDefinitionHeader;
 import org.fhcrc.cpl.viewer.gui.MRMDialog;
 import org.fhcrc.cpl.toolbox.TextProvider;
+import org.fhcrc.cpl.toolbox.ApplicationContext;
+import org.fhcrc.cpl.toolbox.proteomics.MSRun;
 import org.fhcrc.cpl.toolbox.commandline.CommandLineModuleExecutionException;
 import org.fhcrc.cpl.toolbox.commandline.CommandLineModule;
 import org.apache.log4j.Logger;
 
 import javax.swing.*;
 import java.io.File;
+import java.io.IOException;
 import java.awt.*;
 
 
@@ -39,7 +45,10 @@ public class MRMCommandLineModule extends BaseViewerCommandLineModuleImpl
     protected static Logger _log = Logger.getLogger(MRMCommandLineModule.class);
 
     protected File file;
+    protected File[] files;
     protected File outFile;
+    protected File outDir;
+    protected int numThreads = 1;
     protected boolean readSIMs = false;
     protected boolean traceAllFragments = true;
     protected Class peakStrategyClass = BasicElutionCurveStrategy.class;
@@ -73,11 +82,14 @@ public class MRMCommandLineModule extends BaseViewerCommandLineModuleImpl
                        "java command.  Typically the command will look something like:<br><br>\n\n&nbsp;" +
                        "<tt>java -Xmx500m -jar viewerApp_v"+ TextProvider.getText("MRMER_VERSION")+".jar --mrm "+
                        "</tt><br><br>\n\n followed by one or more of the options below, followed by the mzXML " +
-                       "file you wish to analyze.";
+                       "file you wish to analyze.<br>" +
+                       "\n<br>To analyze files without the viewer, specify \"out\" (one mzXML file) or \"outdir\" " +
+                       "(any number of them).  Each file's elution data is written in the same format as " +
+                       "saving it from the viewer, with every product accepted or rejected by the cutoffs.";
         CommandLineArgumentDefinition[] argDefs =
                {
-                    createUnnamedFileArgumentDefinition(true,
-                            "input mzXML file containing SRM/MRM scans"),
+                    createUnnamedSeriesFileArgumentDefinition(true,
+                            "input mzXML file(s) containing SRM/MRM scans.  Only one, unless \"outdir\" is specified"),
                     new BooleanArgumentDefinition("SELECTED_ION_MONITORING",false,
                             "Set \"SELECTED_ION_MONITORING\" to TRUE if MS1 SIM scans are present and you want to use them exclusively for precursor chromatagrams",readSIMs),
                     new BooleanArgumentDefinition("SYNCLH",false,
@@ -95,8 +107,14 @@ public class MRMCommandLineModule extends BaseViewerCommandLineModuleImpl
                     new DecimalArgumentDefinition("PEAK_HEIGHT_CUTOFF",false,
                             "Use \"PEAK_HEIGHT_CUTOFF=nnnnn\" to define minimum peak height (within best curve) to accept",minPeakCutoff),
                     new DecimalArgumentDefinition("SIC_TOLERANCE",false,
-                            "Use \"SIC_TOLERANCE=nnnn\" to set the tolerance around the precursor ion for MS1 single ion chromatograms",SICtolerance)
-//new FileToWriteArgumentDefinition("out",false, null)
+                            "Use \"SIC_TOLERANCE=nnnn\" to set the tolerance around the precursor ion for MS1 single ion chromatograms",SICtolerance),
+                    new FileToWriteArgumentDefinition("out",false,
+                            "Write elution data for a single mzXML file to this file, without starting the viewer"),
+                    new DirectoryToWriteArgumentDefinition("outdir",false,
+                            "Write elution data for each mzXML file to a .peaks.tsv file in this directory, without starting the viewer"),
+                    new IntegerArgumentDefinition("numthreads", false,
+                            "Number of transitions to analyze concurrently when writing elution data without the viewer.  " +
+                            "Results are identical to single-threaded analysis", numThreads)
                };
         ((BaseArgumentDefinitionImpl)argDefs[0]).setDisplayName("mzXML file");
         addArgumentDefinitions(argDefs);
@@ -105,8 +123,21 @@ public class MRMCommandLineModule extends BaseViewerCommandLineModuleImpl
     public void assignArgumentValues()
             throws ArgumentValidationException
     {
-        file = getFileArgumentValue(CommandLineArgumentDefinition.UNNAMED_PARAMETER_VALUE_ARGUMENT);
-//        outFile = getFileArgumentValue("out");
+        files = getUnnamedSeriesFileArgumentValues();
+        outFile = getFileArgumentValue("out");
+        outDir = getFileArgumentValue("outdir");
+        //the viewer takes one file.  Without the viewer, "out" takes one file and "outdir" any number
+        if (files.length > 1)
+        {
+            assertArgumentPresent("outdir");
+            assertArgumentAbsent("out");
+        }
+        else if (hasArgumentValue("out"))
+            assertArgumentAbsent("outdir");
+        file = files[0];
+        numThreads = getIntegerArgumentValue("numthreads");
+        if (numThreads < 1)
+            throw new ArgumentValidationException("numthreads must be at least 1");
         readSIMs = getBooleanArgumentValue("SELECTED_ION_MONITORING");
         traceAllFragments = getBooleanArgumentValue("TRACE_ALL_FRAGMENTS");
         meanPrecursorDiscoveryMzTolerance = getFloatArgumentValue("PRECURSOR_TOLERANCE");
@@ -143,6 +174,11 @@ public class MRMCommandLineModule extends BaseViewerCommandLineModuleImpl
      */
     public void execute() throws CommandLineModuleExecutionException
     {
+        if (outFile != null || outDir != null)
+        {
+            writeElutionData();
+            return;
+        }
         try
         {  
             MRMDialog mrmDialog = new MRMDialog(file,meanPrecursorDiscoveryMzTolerance,meanDaughterMzTolerance,SICtolerance,peakStrategyClass,traceAllFragments,syncLH,minPeakCutoff,minAreaCutoff);
@@ -166,5 +202,41 @@ public class MRMCommandLineModule extends BaseViewerCommandLineModuleImpl
         }
     }
 
+    /**
+     * Analyze each file with the viewer's settings and write its elution data, without the viewer
+     */
+    protected void writeElutionData() throws CommandLineModuleExecutionException
+    {
+        MRMExtractor extractor = new MRMExtractor(meanPrecursorDiscoveryMzTolerance, meanDaughterMzTolerance,
+                SICtolerance, peakStrategyClass);
+        extractor.setSim(readSIMs);
+        extractor.setMinPeakCutoff(minPeakCutoff);
+        extractor.setMinAreaCutoff(minAreaCutoff);
+        extractor.setNumThreads(numThreads);
+        for (File mzXmlFile : files)
+        {
+            File outputFile = outFile;
+            if (outputFile == null)
+                outputFile = new File(outDir, mzXmlFile.getName().replaceAll("\\.mzXML$", "") + ".peaks.tsv");
+            try
+            {
+                ApplicationContext.infoMessage("Processing file " + mzXmlFile.getName());
+                MSRun run = MSRun.load(mzXmlFile.getAbsolutePath());
+                if (run == null)
+                    throw new CommandLineModuleExecutionException("Failed to load file " + mzXmlFile.getAbsolutePath());
+                MRMTransition[] transitions = extractor.extract(run);
+                TransitionDefinitionHeader transitionDefs =
+                        extractor.readTransitionDefinitions(mzXmlFile, transitions);
+                extractor.writeResults(transitions, transitionDefs, outputFile);
+                ApplicationContext.infoMessage("Wrote " + transitions.length + " transitions to " +
+                        outputFile.getAbsolutePath());
+            }
+            catch (IOException e)
+            {
+                throw new CommandLineModuleExecutionException(e);
+            }
+        }
+    }
+
 
 }
@@ -45,6 +45,12 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.events.EndElement;
@@ -99,6 +105,10 @@ public class Q3
     private boolean compatMode = true;   // Replicate behavior of the R code when center scan has too few matches
     private boolean stripExistingQ3 = false; // If there are existing Q3 analysis_results, remove them
 
+    // Parallel quantitation of fractions
+    private int numThreads = 1;
+    private int maxOpenRuns = 0; // 0 means one per thread
+
     /**
      * Construct a new Q3 processor
      *
@@ -240,6 +250,37 @@ public class Q3
         this.compatMode = compatMode;
     }
 
+    /**
+     * Quantitate fractions in parallel.  Fractions are still read from the pepXML file one at a time,
+     * and results are written in fraction order, so output is the same as with one thread
+     *
+     * @param numThreads Number of fractions to quantitate at once
+     */
+    public void setNumThreads(int numThreads)
+    {
+        this.numThreads = numThreads;
+    }
+
+    public int getNumThreads()
+    {
+        return numThreads;
+    }
+
+    /**
+     * Limit the number of mzXML files open at once when quantitating in parallel, to bound memory use
+     *
+     * @param maxOpenRuns Most runs to have loaded at once; 0 means one per thread
+     */
+    public void setMaxOpenRuns(int maxOpenRuns)
+    {
+        this.maxOpenRuns = maxOpenRuns;
+    }
+
+    public int getMaxOpenRuns()
+    {
+        return maxOpenRuns;
+    }
+
     /**
      * Read a pepXML file and apply q3 to each fraction
      *
@@ -364,6 +405,9 @@ public class Q3
     private List<List<Q3Peptide>> quantitate()
         throws XMLStreamException, IOException
     {
+        if (numThreads > 1)
+            return quantitateParallel();
+
         File pepXmlFile = new File(pepXmlFilename);
         PepXmlLoader loader = new PepXmlLoader(pepXmlFile, _log);
 
@@ -400,6 +444,84 @@ public class Q3
         return master;
     }
 
+    /**
+     * As quantitate(), with fractions quantitated on numThreads threads.  Fractions are read from the
+     * pepXML file in order on this thread, since the loader streams the file, and handed off to be
+     * quantitated; at most maxOpenRuns of them have their mzXML loaded at once.  Results are returned
+     * in fraction order
+     */
+    private List<List<Q3Peptide>> quantitateParallel()
+        throws XMLStreamException, IOException
+    {
+        File pepXmlFile = new File(pepXmlFilename);
+        PepXmlLoader loader = new PepXmlLoader(pepXmlFile, _log);
+
+        final Semaphore openRunPermits = new Semaphore(maxOpenRuns > 0 ? maxOpenRuns : numThreads);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<List<Q3Peptide>>> futures = new ArrayList<Future<List<Q3Peptide>>>();
+
+        try
+        {
+            FractionIterator fi = loader.getFractionIterator();
+            int fractionId = 0;
+            while (fi.hasNext())
+            {
+                fractionId++;
+
+                PepXmlFraction fraction = (PepXmlFraction) fi.next();
+
+                final File mzXmlFile = findMzXmlFile(fraction, pepXmlFile);
+
+                if (null == mzXmlFile)
+                    throw new Q3RuntimeException("Could not find mzXML file associated with " + pepXmlFilename + " fraction number " + fractionId);
+
+                final List<Q3Peptide> fractionPeps = readFraction(fraction, mzXmlFile);
+
+                futures.add(executor.submit(new Callable<List<Q3Peptide>>()
+                {
+                    public List<Q3Peptide> call() throws IOException, InterruptedException
+                    {
+                        openRunPermits.acquire();
+                        try
+                        {
+                            quantitateFraction(fractionPeps, mzXmlFile.getPath());
+                        }
+                        finally
+                        {
+                            openRunPermits.release();
+                        }
+                        return fractionPeps;
+                    }
+                }));
+            }
+
+            ArrayList<List<Q3Peptide>> master = new ArrayList<List<Q3Peptide>>();
+            for (Future<List<Q3Peptide>> future : futures)
+                master.add(future.get());
+            return master;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new Q3RuntimeException("Interrupted while quantitating fractions", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new Q3RuntimeException("Failure while quantitating fractions", (Exception) e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+            loader.close();
+        }
+    }
+
     /**
      * Try to locate the mzXML file associated with this fraction.
      */
@@ -736,10 +858,25 @@ public class Q3
     void quantitateFraction(List<Q3Peptide> peptides, String mzXmlFilename)
         throws IOException
     {
-        double cutoff = PEAK_MATCH_THRESHOLD;
-
         MSRun.setShowIndexBuilderProgress(false);
-        MSRun run = MSRun.load(mzXmlFilename, false); // Do NOT save a .inspect file for Q3
+        MSRun run = MSRun.loadScanHeaders(mzXmlFilename); // Only the scans around each peptide are read
+        try
+        {
+            quantitateFraction(peptides, run);
+        }
+        finally
+        {
+            run.close();
+        }
+    }
+
+    /**
+     *
+     */
+    void quantitateFraction(List<Q3Peptide> peptides, MSRun run)
+    {
+        double cutoff = PEAK_MATCH_THRESHOLD;
+        String mzXmlFilename = run.getFile().getPath();
 
         // loadf
         // setup0
@@ -187,6 +187,10 @@ public class QuantEventAssessor
     //Should events be flagged if KL scores for light and heavy are different?
     protected boolean shouldFlagDifferentKL = true;
 
+    //Use the run's XIC index for peak intensities, rather than reading spectra.  Building the index reads the
+    //whole run once, which pays off when many events are assessed in the same run
+    protected boolean useXicIndex = false;
+
 
     //scaffolding for calculating ratios using regression based on one datapoint per-scan, like RelEx.
     //I think that method pretty much doesn't work very well.
@@ -881,11 +885,25 @@ public class QuantEventAssessor
                                        numScansAroundEventToConsider, run.getScanCount()-1);
         lastScanIndex = Math.max(firstScanIndex, lastScanIndex);
 
+        int numPeaks = mzValues.length;
+        float[] result = new float[numPeaks];
+        if (useXicIndex)
+        {
+            //the index finds the same peaks, within the window, as the spectrum search below
+            MSRunXicIndex xicIndex = run.getXicIndex();
+            for (int i=0; i<numPeaks; i++)
+            {
+                float[] maxIntensities = xicIndex.getMaxIntensities(mzValues[i] - mzTolerance,
+                        mzValues[i] + mzTolerance, firstScanIndex, lastScanIndex);
+                for (float maxIntensityThisScan : maxIntensities)
+                    result[i] += maxIntensityThisScan;
+            }
+            return result;
+        }
+
         Scan[] scans = FeatureFinder.getScans(run, firstScanIndex,
                 lastScanIndex - firstScanIndex + 1);
 
-        int numPeaks = mzValues.length;
-        float[] result = new float[numPeaks];
         for (int scanIndex = 0; scanIndex < scans.length; scanIndex++)
         {
             float[][] spectrum = scans[scanIndex].getSpectrum();
@@ -897,10 +915,8 @@ public class QuantEventAssessor
                 int startIndex = Arrays.binarySearch(spectrum[0], peakMzCenter - mzTolerance);
                 startIndex = startIndex < 0 ? -(startIndex+1) : startIndex;
                 int endIndex = Arrays.binarySearch(spectrum[0], peakMzCenter + mzTolerance);
-                endIndex = endIndex < 0 ? -(endIndex+1) : endIndex;
-                //dhmay 20091222, in a hurry -- range check
-                if (endIndex >= spectrum[1].length)
-                    endIndex = spectrum[1].length-1;
+                //the insertion point is the first peak above the window, so stop at the one before it
+                endIndex = endIndex < 0 ? -(endIndex+1) - 1 : endIndex;
 
                 float maxIntensityThisPeak = 0;
                 for (int j=startIndex; j<=endIndex; j++)
@@ -911,6 +927,16 @@ public class QuantEventAssessor
         return result;
     }
 
+    public boolean isUseXicIndex()
+    {
+        return useXicIndex;
+    }
+
+    public void setUseXicIndex(boolean useXicIndex)
+    {
+        this.useXicIndex = useXicIndex;
+    }
+
     public float getPeakPPMTolerance()
     {
         return peakPPMTolerance;
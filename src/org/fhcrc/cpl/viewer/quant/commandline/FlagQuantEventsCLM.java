@@ -166,6 +166,17 @@ List<Integer> badScans = Arrays.asList(new Integer[] {    9603, 6106, 6177, 8008
                         new DecimalArgumentDefinition("peakppm", false,
                                 "Mass tolerance around each theoretical peak (ppm)",
                                 QuantEventAssessor.DEFAULT_PEAK_PPM_TOLERANCE),
+                        new BooleanArgumentDefinition("usexicindex", false,
+                                "Build an extracted ion chromatogram index for each mzXML file and take peak " +
+                                        "intensities from it, rather than from the spectra.  Faster when there are " +
+                                        "many events per file", false),
+                        new BooleanArgumentDefinition("xicindexfile", false,
+                                "Read each mzXML file's extracted ion chromatogram index from a .xic file beside " +
+                                        "it, and save the index there if there isn't one, so that it's only built " +
+                                        "once per file.  Requires usexicindex", false),
+                        new IntegerArgumentDefinition("spectrumcachemb", false,
+                                "Megabytes of decoded spectra to keep in memory for each mzXML file.  0 for none",
+                                (int) (MSRun.getDefaultSpectrumCacheBytes() / (1024 * 1024))),
                         new FileToWriteArgumentDefinition("outnoflagged", false,
                                 "Output pepXML file containing all input features (with and without ratios) " +
                                         "EXCEPT flagged features"),
@@ -218,6 +229,20 @@ List<Integer> badScans = Arrays.asList(new Integer[] {    9603, 6106, 6177, 8008
         quantEventAssessor.setShowCharts(getBooleanArgumentValue("showcharts"));
         quantEventAssessor.setMinFlagRatio(getFloatArgumentValue("minflagratio"));
         quantEventAssessor.setMaxFlagRatio(getFloatArgumentValue("maxflagratio"));
+        quantEventAssessor.setUseXicIndex(getBooleanArgumentValue("usexicindex"));
+        if (getBooleanArgumentValue("xicindexfile"))
+        {
+            if (!getBooleanArgumentValue("usexicindex"))
+                throw new ArgumentValidationException("xicindexfile can only be specified with usexicindex");
+            MSRun.setUseXicIndexFiles(true);
+        }
+        if (hasArgumentValue("spectrumcachemb"))
+        {
+            int spectrumCacheMegabytes = getIntegerArgumentValue("spectrumcachemb");
+            if (spectrumCacheMegabytes < 0)
+                throw new ArgumentValidationException("spectrumcachemb must be at least 0");
+            MSRun.setDefaultSpectrumCacheBytes(spectrumCacheMegabytes * 1024L * 1024);
+        }
         if (hasArgumentValue("minflagratio") || hasArgumentValue("maxflagratio"))
             ApplicationContext.infoMessage("NOTE: only ratios higher than " + quantEventAssessor.getMinFlagRatio() +
                     " or lower than " + quantEventAssessor.getMaxFlagRatio() + " (or both) will be flagged");
@@ -319,7 +344,7 @@ List<Integer> badScans = Arrays.asList(new Integer[] {    9603, 6106, 6177, 8008
                 File mzXmlFile = ViewerCommandModuleUtilities.findCorrespondingMzXmlFile(
                         featureSetFile, mzXmlDir);
                 ApplicationContext.infoMessage("Loading mzXml file " + mzXmlFile.getAbsolutePath());
-                run = MSRun.load(mzXmlFile.getAbsolutePath());
+                run = MSRun.loadScanHeaders(mzXmlFile.getAbsolutePath());
                 ApplicationContext.infoMessage("Loaded.");
             }
             catch (IOException e)
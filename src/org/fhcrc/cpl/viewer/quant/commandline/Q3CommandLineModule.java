@@ -55,6 +55,9 @@ public class Q3CommandLineModule extends BaseViewerCommandLineModuleImpl
     protected float maxFracDeltaMass = -1f;
     protected boolean maxFracDeltaMassIsPPM = true;
 
+    protected int numThreads = 1;
+    protected int maxOpenRuns = 0;
+
     protected FeatureSet inFeatureSet = null;
     protected File[] inFiles = null;
     protected File outFile = null;
@@ -102,6 +105,12 @@ public class Q3CommandLineModule extends BaseViewerCommandLineModuleImpl
                         new DeltaMassArgumentDefinition("m", false, "Mass tolerance"),
                         new DirectoryToWriteArgumentDefinition("outdir", false,
                             "Output Directory (for handling multiple files)"),
+                        new IntegerArgumentDefinition("numthreads", false,
+                                "Number of fractions to quantitate at once.  Output is identical to " +
+                                "single-threaded quantitation", numThreads),
+                        new IntegerArgumentDefinition("maxopenruns", false,
+                                "Maximum number of mzXML files to have loaded at once when quantitating in " +
+                                "parallel (default one per thread)"),
                 };
         addArgumentDefinitions(argDefs);
     }
@@ -167,6 +176,16 @@ public class Q3CommandLineModule extends BaseViewerCommandLineModuleImpl
         {
             // mass tolerance currently not used in Q3
         }
+
+        numThreads = getIntegerArgumentValue("numthreads");
+        if (numThreads < 1)
+            throw new ArgumentValidationException("numthreads must be at least 1");
+        if (hasArgumentValue("maxopenruns"))
+        {
+            maxOpenRuns = getIntegerArgumentValue("maxopenruns");
+            if (maxOpenRuns < 1)
+                throw new ArgumentValidationException("maxopenruns must be at least 1");
+        }
     }
 
 
@@ -251,6 +270,8 @@ public class Q3CommandLineModule extends BaseViewerCommandLineModuleImpl
         q3.setMimicXpress(mimicXpress);
         q3.setNoSentinels(noSentinels);
         q3.setStripExistingQ3(stripExistingQ3);
+        q3.setNumThreads(numThreads);
+        q3.setMaxOpenRuns(maxOpenRuns);
         try
         {
             q3.apply();
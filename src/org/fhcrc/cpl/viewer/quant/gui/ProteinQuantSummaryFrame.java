@@ -982,7 +982,7 @@ public class ProteinQuantSummaryFrame extends JDialog
                         File mzXmlFile  = ViewerCommandModuleUtilities.findCorrespondingMzXmlFile(
                                 new File(fraction + ".pep.xml"), mzXmlDir);
                         ApplicationContext.infoMessage("Loading mzXml file " + mzXmlFile.getAbsolutePath());
-                        run = MSRun.load(mzXmlFile.getAbsolutePath());
+                        run = MSRun.loadScanHeaders(mzXmlFile.getAbsolutePath());
                         ApplicationContext.infoMessage("Loaded.");
                     }
                     catch (IOException e)
@@ -1365,7 +1365,7 @@ if (quantEvent.getAlgorithmicAssessment() == null) System.err.println("NULL ASSE
                             File mzXmlFile  = ViewerCommandModuleUtilities.findCorrespondingMzXmlFile(
                                     featureSetFile, mzXmlDir);
                             ApplicationContext.infoMessage("Loading mzXml file " + mzXmlFile.getAbsolutePath());
-                            run = MSRun.load(mzXmlFile.getAbsolutePath());
+                            run = MSRun.loadScanHeaders(mzXmlFile.getAbsolutePath());
                             ApplicationContext.infoMessage("Loaded.");
                         }
                         catch (IOException e)
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fhcrc.cpl.viewer.test;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestResult;
+import org.fhcrc.cpl.toolbox.proteomics.PeptideGenerator;
+import org.fhcrc.cpl.toolbox.test.BaseCommandTest;
+import org.fhcrc.cpl.viewer.amt.AmtBinaryDatabase;
+import org.fhcrc.cpl.viewer.amt.AmtDatabase;
+import org.fhcrc.cpl.viewer.amt.AmtXmlReader;
+import org.fhcrc.cpl.viewer.amt.AmtXmlWriter;
+
+import java.io.File;
+
+public class AmtBinaryDatabaseTest extends BaseCommandTest implements Test
+{
+    protected void doCleanup()
+    {
+        //no special cleanup for this test yet
+    }
+
+    /**
+     * Strategy is to write a synthetic database as amtxml and in the binary format, read both back,
+     * and check that the binary database holds the same peptides, modifications and observations as
+     * the amtxml one, both whole and for several mass ranges
+     * @param result
+     */
+    protected void doRun(TestResult result)
+    {
+        try
+        {
+            AmtDatabase amtDatabase = AmtDatabaseTestUtilities.createSampleDatabase(300);
+
+            File xmlFile = new File(constructTempFilePath("amtbinarytest.amt.xml"));
+            File binaryFile = new File(constructTempFilePath("amtbinarytest.amtb"));
+            new AmtXmlWriter(amtDatabase).write(xmlFile);
+            AmtBinaryDatabase.write(amtDatabase, binaryFile);
+
+            log("Testing binary database detection...");
+            assertTrue(AmtBinaryDatabase.isBinaryAmtDatabase(binaryFile));
+            assertFalse(AmtBinaryDatabase.isBinaryAmtDatabase(xmlFile));
+
+            AmtDatabase xmlDatabase = new AmtXmlReader(xmlFile).getDatabase();
+            AmtBinaryDatabase binaryDatabase = new AmtBinaryDatabase(binaryFile);
+
+            log("Testing whole database...");
+            assertEquals(xmlDatabase.numEntries(), binaryDatabase.numEntries());
+            assertEquals(xmlDatabase.numRuns(), binaryDatabase.numRuns());
+            AmtDatabaseTestUtilities.assertSameDatabase(xmlDatabase, binaryDatabase.createAmtDatabase());
+
+            log("Testing mass range queries...");
+            //the last range is a single peptide's mass, to check that both ends are inclusive
+            byte[] peptideBytes = xmlDatabase.getPeptides()[0].getBytes();
+            double peptideMass = PeptideGenerator.computeMass(peptideBytes, 0, peptideBytes.length,
+                    PeptideGenerator.AMINO_ACID_MONOISOTOPIC_MASSES);
+            double[][] massRanges = new double[][]
+                    {
+                            { 0, 500 },
+                            { 800, 1200 },
+                            { 1500, 1600 },
+                            { 2000, 100000 },
+                            { peptideMass, peptideMass },
+                    };
+            for (double[] massRange : massRanges)
+            {
+                AmtDatabase rangeDatabase = binaryDatabase.createAmtDatabase(massRange[0], massRange[1]);
+                assertEquals(xmlDatabase.numRuns(), rangeDatabase.numRuns());
+                AmtDatabaseTestUtilities.assertSameEntries(xmlDatabase, rangeDatabase,
+                        AmtDatabaseTestUtilities.getPeptidesInMassRange(xmlDatabase, massRange[0], massRange[1]));
+            }
+        }
+        catch (AssertionFailedError afe)
+        {
+            result.addError(this, afe);
+        }
+        catch (Exception e)
+        {
+            result.addError(this, e);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fhcrc.cpl.viewer.test;
+
+import junit.framework.Assert;
+import org.fhcrc.cpl.toolbox.proteomics.MS2Modification;
+import org.fhcrc.cpl.toolbox.proteomics.ModifiedAminoAcid;
+import org.fhcrc.cpl.toolbox.proteomics.PeptideGenerator;
+import org.fhcrc.cpl.viewer.amt.AmtDatabase;
+import org.fhcrc.cpl.viewer.amt.AmtPeptideEntry;
+import org.fhcrc.cpl.viewer.amt.AmtRunEntry;
+
+import java.util.*;
+
+/**
+ * Utilities for AMT database tests: build a small synthetic database, and compare two databases
+ * field by field
+ */
+public class AmtDatabaseTestUtilities
+{
+    protected static final String AMINO_ACIDS = "ACDEFGHIKLMNPQRSTVWY";
+
+    //values pass through text in amtxml files, so allow for a little rounding
+    protected static final double TOLERANCE = 1e-6;
+
+    /**
+     * Build a database with a few runs, a static and a variable modification, and peptides observed in one
+     * or more runs, some in more than one modification state.  Always builds the same database
+     * @param numPeptides
+     * @return
+     */
+    public static AmtDatabase createSampleDatabase(int numPeptides)
+    {
+        Random random = new Random(1);
+        AmtDatabase amtDatabase = new AmtDatabase();
+
+        MS2Modification staticMod = new MS2Modification();
+        staticMod.setAminoAcid("C");
+        staticMod.setMassDiff(57.021464f);
+        staticMod.setVariable(false);
+        MS2Modification variableMod = new MS2Modification();
+        variableMod.setAminoAcid("M");
+        variableMod.setMassDiff(15.994915f);
+        variableMod.setVariable(true);
+
+        int numRuns = 3;
+        AmtRunEntry[] runs = new AmtRunEntry[numRuns];
+        for (int i=0; i<numRuns; i++)
+        {
+            //whole seconds, since amtxml dates don't keep milliseconds
+            Date timeAdded = new Date(1262304000000L + i * 86400000L);
+            runs[i] = new AmtRunEntry(new double[] { -0.5 + i * 0.1, 0.02 + i * 0.001 },
+                    new MS2Modification[] { staticMod, variableMod }, timeAdded);
+            runs[i].setMzXmlFilename("run" + i + ".mzXML");
+            runs[i].setPepXmlFilename("run" + i + ".pep.xml");
+            runs[i].setMinPeptideProphet(0.5 + i * 0.1);
+            if (i > 0)
+                runs[i].setTimeAnalyzed(new Date(timeAdded.getTime() + 3600000L));
+            amtDatabase.addRunEntry(runs[i]);
+        }
+
+        Set<String> peptides = new HashSet<String>();
+        while (peptides.size() < numPeptides)
+        {
+            StringBuffer peptide = new StringBuffer();
+            int length = 6 + random.nextInt(15);
+            for (int i=0; i<length; i++)
+                peptide.append(AMINO_ACIDS.charAt(random.nextInt(AMINO_ACIDS.length())));
+            peptides.add(peptide.toString());
+        }
+
+        float oxidizedMethionineMass = (float) PeptideGenerator.AMINO_ACID_MONOISOTOPIC_MASSES['M'] +
+                variableMod.getMassDiff();
+        for (String peptide : peptides)
+        {
+            int numObservations = 1 + random.nextInt(4);
+            for (int i=0; i<numObservations; i++)
+            {
+                AmtRunEntry run = runs[random.nextInt(numRuns)];
+                List<ModifiedAminoAcid>[] modifiedAminoAcids = null;
+                int methionineIndex = peptide.indexOf('M');
+                if (methionineIndex >= 0 && random.nextBoolean())
+                {
+                    modifiedAminoAcids = (List<ModifiedAminoAcid>[]) new List[peptide.length()];
+                    modifiedAminoAcids[methionineIndex] = new ArrayList<ModifiedAminoAcid>();
+                    modifiedAminoAcids[methionineIndex].add(new ModifiedAminoAcid('M', oxidizedMethionineMass));
+                }
+                double time = 500 + random.nextInt(3000) + random.nextInt(1000) / 1000.0;
+                Map<String, Integer> spectralCounts = new HashMap<String, Integer>();
+                spectralCounts.put(peptide, 1 + random.nextInt(5));
+                amtDatabase.resolveModsAndAddObservation(peptide, modifiedAminoAcids,
+                        0.5 + random.nextInt(500) / 1000.0, run.convertTimeToHydrophobicity(time),
+                        run, spectralCounts, time);
+            }
+        }
+        return amtDatabase;
+    }
+
+    /**
+     * Assert that two databases have the same modifications, runs, peptides, modification states
+     * and observations, ignoring the order of peptides
+     * @param expected
+     * @param actual
+     */
+    public static void assertSameDatabase(AmtDatabase expected, AmtDatabase actual)
+    {
+        Assert.assertEquals(expected.getHydrophobicityAlgorithmName(), actual.getHydrophobicityAlgorithmName());
+        Assert.assertEquals(expected.getHydrophobicityAlgorithmVersion(),
+                actual.getHydrophobicityAlgorithmVersion(), TOLERANCE);
+
+        MS2Modification[] expectedMods = expected.getAminoacidModifications();
+        MS2Modification[] actualMods = actual.getAminoacidModifications();
+        Assert.assertEquals(expectedMods.length, actualMods.length);
+        for (int i=0; i<expectedMods.length; i++)
+            assertSameModification(expectedMods[i], actualMods[i]);
+
+        Assert.assertEquals(expected.numRuns(), actual.numRuns());
+        //run sequences are one-based
+        for (int i=1; i<=expected.numRuns(); i++)
+            assertSameRun(expected.getRunBySequence(i), actual.getRunBySequence(i));
+
+        assertSameEntries(expected, actual, Arrays.asList(expected.getPeptides()));
+    }
+
+    /**
+     * Assert that actual holds exactly the given peptides, and that they match those in expected
+     * @param expected
+     * @param actual
+     * @param peptides
+     */
+    public static void assertSameEntries(AmtDatabase expected, AmtDatabase actual, Collection<String> peptides)
+    {
+        Assert.assertEquals(peptides.size(), actual.numEntries());
+        for (String peptide : peptides)
+        {
+            AmtPeptideEntry actualEntry = actual.getEntry(peptide);
+            Assert.assertNotNull("Missing peptide " + peptide, actualEntry);
+            assertSameEntry(expected, expected.getEntry(peptide), actual, actualEntry);
+        }
+    }
+
+    protected static void assertSameModification(MS2Modification expected, MS2Modification actual)
+    {
+        Assert.assertEquals(expected.getAminoAcid(), actual.getAminoAcid());
+        Assert.assertEquals(expected.getMassDiff(), actual.getMassDiff(), TOLERANCE);
+        Assert.assertEquals(expected.getVariable(), actual.getVariable());
+    }
+
+    protected static void assertSameRun(AmtRunEntry expected, AmtRunEntry actual)
+    {
+        double[] expectedCoefficients = expected.getTimeHydMapCoefficients();
+        double[] actualCoefficients = actual.getTimeHydMapCoefficients();
+        Assert.assertEquals(expectedCoefficients.length, actualCoefficients.length);
+        for (int i=0; i<expectedCoefficients.length; i++)
+            Assert.assertEquals(expectedCoefficients[i], actualCoefficients[i], TOLERANCE);
+
+        MS2Modification[] expectedMods = expected.getModifications();
+        MS2Modification[] actualMods = actual.getModifications();
+        Assert.assertEquals(expectedMods.length, actualMods.length);
+        for (int i=0; i<expectedMods.length; i++)
+            assertSameModification(expectedMods[i], actualMods[i]);
+
+        Assert.assertEquals(expected.getTimeAdded(), actual.getTimeAdded());
+        Assert.assertEquals(expected.getTimeAnalyzed(), actual.getTimeAnalyzed());
+        Assert.assertEquals(expected.getMzXmlFilename(), actual.getMzXmlFilename());
+        Assert.assertEquals(expected.getPepXmlFilename(), actual.getPepXmlFilename());
+        Assert.assertEquals(expected.getLSID(), actual.getLSID());
+        Assert.assertEquals(expected.getMinPeptideProphet(), actual.getMinPeptideProphet(), TOLERANCE);
+    }
+
+    protected static void assertSameEntry(AmtDatabase expectedDatabase, AmtPeptideEntry expected,
+                                          AmtDatabase actualDatabase, AmtPeptideEntry actual)
+    {
+        String peptide = expected.getPeptideSequence();
+        Assert.assertEquals(peptide, actual.getPeptideSequence());
+        Assert.assertEquals(peptide, expected.getPredictedHydrophobicity(), actual.getPredictedHydrophobicity(),
+                TOLERANCE);
+        Assert.assertEquals(peptide, expected.getMedianObservedHydrophobicity(),
+                actual.getMedianObservedHydrophobicity(), TOLERANCE);
+        Assert.assertEquals(peptide, expected.getMedianPeptideProphet(), actual.getMedianPeptideProphet(),
+                TOLERANCE);
+        Assert.assertEquals(peptide, expected.getNumObservations(), actual.getNumObservations());
+        Assert.assertEquals(peptide, expected.getNumModificationStates(), actual.getNumModificationStates());
+
+        for (AmtPeptideEntry.AmtPeptideModificationStateEntry expectedState : expected.getModificationStateEntries())
+        {
+            String modifiedSequence = expectedState.getModifiedSequence();
+            AmtPeptideEntry.AmtPeptideModificationStateEntry actualState =
+                    actual.getModificationStateEntry(modifiedSequence);
+            Assert.assertNotNull("Missing modification state " + modifiedSequence, actualState);
+            Assert.assertEquals(modifiedSequence, expectedState.getModifiedMass(), actualState.getModifiedMass(),
+                    TOLERANCE);
+
+            List<MS2Modification>[] expectedMods = expectedState.getModifications();
+            List<MS2Modification>[] actualMods = actualState.getModifications();
+            for (int i=0; i<peptide.length(); i++)
+            {
+                List<MS2Modification> expectedModsHere = expectedMods == null ? null : expectedMods[i];
+                List<MS2Modification> actualModsHere = actualMods == null ? null : actualMods[i];
+                int numExpectedModsHere = expectedModsHere == null ? 0 : expectedModsHere.size();
+                int numActualModsHere = actualModsHere == null ? 0 : actualModsHere.size();
+                Assert.assertEquals(modifiedSequence + " position " + i, numExpectedModsHere, numActualModsHere);
+                for (int j=0; j<numExpectedModsHere; j++)
+                    assertSameModification(expectedModsHere.get(j), actualModsHere.get(j));
+            }
+
+            AmtPeptideEntry.AmtPeptideObservation[] expectedObservations = expectedState.getObservations();
+            AmtPeptideEntry.AmtPeptideObservation[] actualObservations = actualState.getObservations();
+            Assert.assertEquals(modifiedSequence, expectedObservations.length, actualObservations.length);
+            for (int i=0; i<expectedObservations.length; i++)
+            {
+                AmtPeptideEntry.AmtPeptideObservation expectedObservation = expectedObservations[i];
+                AmtPeptideEntry.AmtPeptideObservation actualObservation = actualObservations[i];
+                Assert.assertEquals(modifiedSequence, expectedObservation.getObservedHydrophobicity(),
+                        actualObservation.getObservedHydrophobicity(), TOLERANCE);
+                Assert.assertEquals(modifiedSequence, expectedObservation.getPeptideProphet(),
+                        actualObservation.getPeptideProphet(), TOLERANCE);
+                Assert.assertEquals(modifiedSequence, expectedObservation.getTimeInRun(),
+                        actualObservation.getTimeInRun(), TOLERANCE);
+                Assert.assertEquals(modifiedSequence, expectedObservation.getSpectralCount(),
+                        actualObservation.getSpectralCount());
+                Assert.assertEquals(modifiedSequence,
+                        expectedDatabase.getSequenceForRun(expectedObservation.getRunEntry()),
+                        actualDatabase.getSequenceForRun(actualObservation.getRunEntry()));
+            }
+        }
+    }
+
+    /**
+     * @param amtDatabase
+     * @param minMass
+     * @param maxMass
+     * @return the peptides with unmodified masses in [minMass, maxMass]
+     */
+    public static Set<String> getPeptidesInMassRange(AmtDatabase amtDatabase, double minMass, double maxMass)
+    {
+        Set<String> result = new HashSet<String>();
+        for (String peptide : amtDatabase.getPeptides())
+        {
+            byte[] bytes = peptide.getBytes();
+            double mass = PeptideGenerator.computeMass(bytes, 0, bytes.length,
+                    PeptideGenerator.AMINO_ACID_MONOISOTOPIC_MASSES);
+            if (mass >= minMass && mass <= maxMass)
+                result.add(peptide);
+        }
+        return result;
+    }
+}
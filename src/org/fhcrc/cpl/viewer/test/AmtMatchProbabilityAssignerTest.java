@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fhcrc.cpl.viewer.test;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestResult;
+import org.fhcrc.cpl.toolbox.test.BaseCommandTest;
+import org.fhcrc.cpl.viewer.amt.AmtMatchProbabilityAssigner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class AmtMatchProbabilityAssignerTest extends BaseCommandTest implements Test
+{
+    //parameters of the synthetic match errors
+    protected static final int NUM_TRUE = 3000;
+    protected static final int NUM_FALSE = 2000;
+    protected static final double MU_H = 0.01;
+    protected static final double SIGMA_H = 0.02;
+    protected static final double MU_MASS = 2;
+    protected static final double SIGMA_MASS = 3;
+    protected static final float MAX_DELTA_H = 0.1f;
+    protected static final float MAX_DELTA_MASS = 20;
+
+    protected void doCleanup()
+    {
+        //no special cleanup for this test yet
+    }
+
+    /**
+     * Strategy is to generate match errors from the model the EM fits, true matches normal in H and mass
+     * error over false matches uniform in the matching window, and check that the in-process EM recovers
+     * the parameters, separates true from false matches, and passes its own goodness-of-fit checks
+     * @param result
+     */
+    protected void doRun(TestResult result)
+    {
+        try
+        {
+            Random random = new Random(1);
+            List<Float> massErrors = new ArrayList<Float>();
+            List<Float> hErrors = new ArrayList<Float>();
+            for (int i=0; i<NUM_TRUE; i++)
+            {
+                hErrors.add((float) (MU_H + SIGMA_H * random.nextGaussian()));
+                massErrors.add((float) (MU_MASS + SIGMA_MASS * random.nextGaussian()));
+            }
+            for (int i=0; i<NUM_FALSE; i++)
+            {
+                hErrors.add((float) (-MAX_DELTA_H + 2 * MAX_DELTA_H * random.nextDouble()));
+                massErrors.add((float) (-MAX_DELTA_MASS + 2 * MAX_DELTA_MASS * random.nextDouble()));
+            }
+
+            AmtMatchProbabilityAssigner probabilityAssigner =
+                    new AmtMatchProbabilityAssigner(-MAX_DELTA_MASS, MAX_DELTA_MASS, -MAX_DELTA_H, MAX_DELTA_H,
+                            0.1f, 0.1f);
+            probabilityAssigner.setUseInProcessEM(true);
+            float[] probabilities = probabilityAssigner.calculateProbabilitiesEM(massErrors, hErrors, 0.5f, false);
+
+            log("Testing fitted parameters...");
+            assertTrue(probabilityAssigner.isConverged());
+            assertEquals(MU_H, probabilityAssigner.getMuX(), 0.002);
+            assertEquals(MU_MASS, probabilityAssigner.getMuY(), 0.2);
+            assertEquals(SIGMA_H, probabilityAssigner.getSigmaX(), 0.05 * SIGMA_H);
+            assertEquals(SIGMA_MASS, probabilityAssigner.getSigmaY(), 0.05 * SIGMA_MASS);
+
+            log("Testing match probabilities...");
+            assertEquals(NUM_TRUE + NUM_FALSE, probabilities.length);
+            double sumTrue = 0;
+            double sumFalse = 0;
+            for (int i=0; i<probabilities.length; i++)
+            {
+                assertTrue(probabilities[i] >= 0 && probabilities[i] <= 1);
+                if (i < NUM_TRUE)
+                    sumTrue += probabilities[i];
+                else
+                    sumFalse += probabilities[i];
+            }
+            //the fitted proportion of true matches
+            assertEquals((double) NUM_TRUE / (NUM_TRUE + NUM_FALSE),
+                    (sumTrue + sumFalse) / probabilities.length, 0.02);
+            assertTrue(sumTrue / NUM_TRUE > 0.8);
+            assertTrue(sumFalse / NUM_FALSE < 0.25);
+
+            log("Testing goodness of fit...");
+            assertTrue(probabilityAssigner.getKsScoreX() > AmtMatchProbabilityAssigner.KS_CUTOFF_FOR_WARN);
+            assertTrue(probabilityAssigner.getKsScoreY() > AmtMatchProbabilityAssigner.KS_CUTOFF_FOR_WARN);
+            assertTrue(probabilityAssigner.getQuantileCorrX() > 0.99);
+            assertTrue(probabilityAssigner.getQuantileCorrY() > 0.99);
+            assertEquals(1, probabilityAssigner.getQuantileBetaX(), 0.05);
+            assertEquals(1, probabilityAssigner.getQuantileBetaY(), 0.05);
+        }
+        catch (AssertionFailedError afe)
+        {
+            result.addError(this, afe);
+        }
+        catch (Exception e)
+        {
+            result.addError(this, e);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fhcrc.cpl.viewer.test;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestResult;
+import org.fhcrc.cpl.toolbox.test.BaseCommandTest;
+import org.fhcrc.cpl.viewer.amt.AmtDatabase;
+import org.fhcrc.cpl.viewer.amt.AmtXmlReader;
+import org.fhcrc.cpl.viewer.amt.AmtXmlWriter;
+
+import java.io.File;
+
+public class AmtXmlReaderTest extends BaseCommandTest implements Test
+{
+    protected void doCleanup()
+    {
+        //no special cleanup for this test yet
+    }
+
+    /**
+     * Strategy is to write a synthetic database with the XmlBeans writer and with the streaming writer,
+     * read each file with the single-pass and the three-pass readers, and check that all four databases
+     * are the same
+     * @param result
+     */
+    protected void doRun(TestResult result)
+    {
+        try
+        {
+            AmtDatabase amtDatabase = AmtDatabaseTestUtilities.createSampleDatabase(300);
+
+            File xmlBeansFile = new File(constructTempFilePath("amtxmlreadertest.xmlbeans.amt.xml"));
+            AmtXmlWriter writer = new AmtXmlWriter(amtDatabase);
+            writer.write(xmlBeansFile);
+            File streamedFile = new File(constructTempFilePath("amtxmlreadertest.streamed.amt.xml"));
+            writer = new AmtXmlWriter(amtDatabase);
+            writer.setStreaming(true);
+            writer.write(streamedFile);
+
+            AmtDatabase multiPassDatabase = new AmtXmlReader(xmlBeansFile, false).getDatabase();
+            //the three-pass reader doesn't read the amt_database attributes; the single-pass reader does
+            assertNull(multiPassDatabase.getHydrophobicityAlgorithmName());
+            multiPassDatabase.setHydrophobicityAlgorithmName(amtDatabase.getHydrophobicityAlgorithmName());
+            multiPassDatabase.setHydrophobicityAlgorithmVersion(amtDatabase.getHydrophobicityAlgorithmVersion());
+            AmtDatabaseTestUtilities.assertSameDatabase(amtDatabase, multiPassDatabase);
+
+            log("Testing single-pass reader...");
+            AmtDatabaseTestUtilities.assertSameDatabase(multiPassDatabase,
+                    new AmtXmlReader(xmlBeansFile, true).getDatabase());
+
+            log("Testing streamed output...");
+            AmtDatabase streamedMultiPassDatabase = new AmtXmlReader(streamedFile, false).getDatabase();
+            streamedMultiPassDatabase.setHydrophobicityAlgorithmName(amtDatabase.getHydrophobicityAlgorithmName());
+            streamedMultiPassDatabase.setHydrophobicityAlgorithmVersion(
+                    amtDatabase.getHydrophobicityAlgorithmVersion());
+            AmtDatabaseTestUtilities.assertSameDatabase(multiPassDatabase, streamedMultiPassDatabase);
+            AmtDatabaseTestUtilities.assertSameDatabase(multiPassDatabase,
+                    new AmtXmlReader(streamedFile, true).getDatabase());
+        }
+        catch (AssertionFailedError afe)
+        {
+            result.addError(this, afe);
+        }
+        catch (Exception e)
+        {
+            result.addError(this, e);
+        }
+    }
+}
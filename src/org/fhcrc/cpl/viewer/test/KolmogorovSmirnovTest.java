@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fhcrc.cpl.viewer.test;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestResult;
+import org.fhcrc.cpl.toolbox.statistics.BasicStatistics;
+import org.fhcrc.cpl.toolbox.test.BaseCommandTest;
+
+import java.util.Random;
+
+public class KolmogorovSmirnovTest extends BaseCommandTest implements Test
+{
+    //x and the Kolmogorov CDF at x, from 1 - 2 * sum((-1)^(k-1) * exp(-2 k^2 x^2)), which is a different
+    //series from the one kolmogorovCumDensity() uses below 1.  1.224, 1.358 and 1.628 are the usual
+    //critical values for p = .1, .05 and .01
+    protected static final double[][] KOLMOGOROV_CDF =
+            {
+                    { 0.5, 0.03605475633512489 },
+                    { 0.7071067811865476, 0.3006258008689845 },
+                    { 1.0, 0.7300003283226455 },
+                    { 1.224, 0.9000744224936913 },
+                    { 1.358, 0.949973202665553 },
+                    { 1.628, 0.990024477568819 },
+            };
+
+    protected void doCleanup()
+    {
+        //no special cleanup for this test yet
+    }
+
+    /**
+     * Strategy is to check the Kolmogorov distribution against known values, the two-sample p-value
+     * against cases worked by hand and by R's ks.test(exact=FALSE), and the p-value's behavior on samples
+     * from the same and from different distributions
+     * @param result
+     */
+    protected void doRun(TestResult result)
+    {
+        try
+        {
+            log("Testing the Kolmogorov distribution...");
+            assertEquals(0, BasicStatistics.kolmogorovCumDensity(0), 0);
+            for (double[] xAndCdf : KOLMOGOROV_CDF)
+                assertEquals("x=" + xAndCdf[0], xAndCdf[1], BasicStatistics.kolmogorovCumDensity(xAndCdf[0]), 1e-5);
+
+            log("Testing known p-values...");
+            //ks.test(1:5, 6:10, exact=FALSE): D = 1, p-value = 0.01348
+            assertEquals(0.013475889875863678, BasicStatistics.kolmogorovSmirnovPValue(
+                    new double[] { 1, 2, 3, 4, 5 }, new double[] { 6, 7, 8, 9, 10 }), 1e-6);
+            //with ties: the ECDFs differ most, by 1/2, at 2, so the statistic is sqrt(4*4/8) * 1/2
+            assertEquals(1 - 0.3006258008689845, BasicStatistics.kolmogorovSmirnovPValue(
+                    new double[] { 1, 2, 2, 3 }, new double[] { 2, 3, 3, 4 }), 1e-5);
+            //identical samples, in any order
+            assertEquals(1, BasicStatistics.kolmogorovSmirnovPValue(
+                    new double[] { 3, 1, 2 }, new double[] { 1, 2, 3 }), 1e-9);
+
+            log("Testing p-values for same and different distributions...");
+            Random random = new Random(1);
+            int numTests = 200;
+            int numRejected = 0;
+            for (int i=0; i<numTests; i++)
+            {
+                double[] sample1 = new double[300];
+                double[] sample2 = new double[400];
+                for (int j=0; j<sample1.length; j++)
+                    sample1[j] = random.nextGaussian();
+                for (int j=0; j<sample2.length; j++)
+                    sample2[j] = random.nextGaussian();
+                if (BasicStatistics.kolmogorovSmirnovPValue(sample1, sample2) < 0.05)
+                    numRejected++;
+            }
+            //about 5% of same-distribution tests should reject at .05
+            assertTrue("Rejected " + numRejected + " of " + numTests,
+                    numRejected >= 2 && numRejected <= 20);
+
+            double[] sample1 = new double[1000];
+            double[] sample2 = new double[1000];
+            for (int j=0; j<sample1.length; j++)
+            {
+                sample1[j] = random.nextGaussian();
+                sample2[j] = 0.5 + random.nextGaussian();
+            }
+            assertTrue(BasicStatistics.kolmogorovSmirnovPValue(sample1, sample2) < 1e-6);
+        }
+        catch (AssertionFailedError afe)
+        {
+            result.addError(this, afe);
+        }
+        catch (Exception e)
+        {
+            result.addError(this, e);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fhcrc.cpl.viewer.test;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestResult;
+import org.fhcrc.cpl.toolbox.statistics.QuantileRegression;
+import org.fhcrc.cpl.toolbox.statistics.RegressionUtilities;
+import org.fhcrc.cpl.toolbox.test.BaseCommandTest;
+
+import java.util.Random;
+
+public class QuantileRegressionTest extends BaseCommandTest implements Test
+{
+    protected void doCleanup()
+    {
+        //no special cleanup for this test yet
+    }
+
+    /**
+     * Strategy is to check properties that any exact quantile regression has: it ignores outliers off a line
+     * that most points are on, its loss is the minimum over all fits through degree+1 points, and about
+     * tau of the points fall below it.  Then check that modal regression finds the line under one-sided
+     * contamination, where median regression is pulled toward the contamination
+     * @param result
+     */
+    protected void doRun(TestResult result)
+    {
+        try
+        {
+            Random random = new Random(1);
+
+            log("Testing median regression with outliers...");
+            int n = 500;
+            double[] x = new double[n];
+            double[] y = new double[n];
+            for (int i=0; i<n; i++)
+            {
+                x[i] = random.nextDouble() * 100;
+                y[i] = 3 + 0.5 * x[i] + (i % 5 == 0 ? 20 + random.nextDouble() * 50 : 0);
+            }
+            double[] coefficients = QuantileRegression.quantileRegression(x, y, 1, 0.5);
+            assertEquals(3, coefficients[0], 1e-6);
+            assertEquals(0.5, coefficients[1], 1e-8);
+
+            log("Testing against the best fit through degree+1 points...");
+            int smallN = 30;
+            double[] smallX = new double[smallN];
+            double[] smallY = new double[smallN];
+            for (int i=0; i<smallN; i++)
+            {
+                smallX[i] = random.nextDouble() * 100;
+                smallY[i] = 3 + 0.5 * smallX[i] + 0.01 * smallX[i] * smallX[i] + random.nextGaussian() * 5;
+            }
+            for (int degree : new int[] { 1, 2 })
+            {
+                for (double tau : new double[] { 0.1, 0.5, 0.8 })
+                {
+                    double loss = checkLoss(smallX, smallY,
+                            QuantileRegression.quantileRegression(smallX, smallY, degree, tau), tau);
+                    double bestLoss = bestInterpolatingLoss(smallX, smallY, degree, tau);
+                    assertEquals("degree " + degree + ", tau " + tau, bestLoss, loss, 1e-8 * bestLoss);
+                }
+            }
+
+            log("Testing the fraction of points below the fit...");
+            for (int i=0; i<n; i++)
+                y[i] = 3 + 0.5 * x[i] + 0.001 * x[i] * x[i] + random.nextGaussian() * 2;
+            for (int degree : new int[] { 1, 2, 3 })
+            {
+                for (double tau : new double[] { 0.1, 0.25, 0.5, 0.75, 0.9 })
+                {
+                    coefficients = QuantileRegression.quantileRegression(x, y, degree, tau);
+                    int numBelow = 0;
+                    int numOn = 0;
+                    for (int i=0; i<n; i++)
+                    {
+                        double residual = y[i] - RegressionUtilities.mapValueUsingCoefficients(coefficients, x[i]);
+                        if (Math.abs(residual) < 1e-6)
+                            numOn++;
+                        else if (residual < 0)
+                            numBelow++;
+                    }
+                    //at the minimum, at most tau*n points are below the fit and at most (1-tau)*n above
+                    String message = "degree " + degree + ", tau " + tau + ": " + numBelow + " below, " +
+                            numOn + " on";
+                    assertTrue(message, numBelow <= tau * n + 1e-9);
+                    assertTrue(message, numBelow + numOn >= tau * n - 1e-9);
+                }
+            }
+
+            log("Testing modal regression...");
+            for (int i=0; i<n; i++)
+                y[i] = 3 + 0.5 * x[i] + random.nextGaussian() * 0.5 + (i % 4 == 0 ? 5 + random.nextDouble() * 20 : 0);
+            coefficients = QuantileRegression.modalRegression(x, y, 1);
+            assertEquals(3, coefficients[0], 0.2);
+            assertEquals(0.5, coefficients[1], 0.005);
+            double[] medianCoefficients = QuantileRegression.quantileRegression(x, y, 1, 0.5);
+            assertTrue(Math.abs(coefficients[0] - 3) < Math.abs(medianCoefficients[0] - 3));
+
+            double[] values = new double[2000];
+            for (int i=0; i<values.length; i++)
+                values[i] = 7 + random.nextGaussian();
+            assertEquals(7, QuantileRegression.densityMode(values), 0.25);
+        }
+        catch (AssertionFailedError afe)
+        {
+            result.addError(this, afe);
+        }
+        catch (Exception e)
+        {
+            result.addError(this, e);
+        }
+    }
+
+    protected double checkLoss(double[] x, double[] y, double[] coefficients, double tau)
+    {
+        double result = 0;
+        for (int i=0; i<x.length; i++)
+        {
+            double residual = y[i] - RegressionUtilities.mapValueUsingCoefficients(coefficients, x[i]);
+            result += residual >= 0 ? tau * residual : (tau - 1) * residual;
+        }
+        return result;
+    }
+
+    /**
+     * Brute force: the smallest loss of any polynomial through degree+1 of the points.  Some exact quantile
+     * regression solution always is one
+     */
+    protected double bestInterpolatingLoss(double[] x, double[] y, int degree, double tau)
+    {
+        int[] indexes = new int[degree + 1];
+        for (int i=0; i<indexes.length; i++)
+            indexes[i] = i;
+        double result = Double.MAX_VALUE;
+        while (true)
+        {
+            result = Math.min(result, checkLoss(x, y, interpolate(x, y, indexes), tau));
+            //next combination
+            int i = indexes.length - 1;
+            while (i >= 0 && indexes[i] == x.length - indexes.length + i)
+                i--;
+            if (i < 0)
+                return result;
+            indexes[i]++;
+            for (int j=i+1; j<indexes.length; j++)
+                indexes[j] = indexes[j - 1] + 1;
+        }
+    }
+
+    /**
+     * @return coefficients, lowest power first, of the polynomial through the given points, by Lagrange
+     * interpolation
+     */
+    protected double[] interpolate(double[] x, double[] y, int[] indexes)
+    {
+        int p = indexes.length;
+        double[] result = new double[p];
+        for (int i=0; i<p; i++)
+        {
+            //build the basis polynomial for point i
+            double[] basis = new double[] { 1 };
+            double denominator = 1;
+            for (int j=0; j<p; j++)
+            {
+                if (j == i)
+                    continue;
+                double root = x[indexes[j]];
+                double[] next = new double[basis.length + 1];
+                for (int k=0; k<basis.length; k++)
+                {
+                    next[k] -= root * basis[k];
+                    next[k + 1] += basis[k];
+                }
+                basis = next;
+                denominator *= x[indexes[i]] - root;
+            }
+            for (int k=0; k<p; k++)
+                result[k] += y[indexes[i]] * basis[k] / denominator;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fhcrc.cpl.viewer.test;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestResult;
+import org.fhcrc.cpl.toolbox.statistics.BasicStatistics;
+import org.fhcrc.cpl.toolbox.statistics.SmoothingSpline;
+import org.fhcrc.cpl.toolbox.test.BaseCommandTest;
+
+import java.util.Random;
+
+public class SmoothingSplineTest extends BaseCommandTest implements Test
+{
+    protected void doCleanup()
+    {
+        //no special cleanup for this test yet
+    }
+
+    /**
+     * Strategy is to check the limiting cases of the smoothing parameter on noisy, curved data: with 2
+     * degrees of freedom the spline is the least-squares line, and with as many degrees of freedom as points
+     * it interpolates them.  In between, the fit should have the degrees of freedom asked for, and a straight
+     * line should come back unchanged at any smoothing
+     * @param result
+     */
+    protected void doRun(TestResult result)
+    {
+        try
+        {
+            Random random = new Random(1);
+            int n = 40;
+            double[] x = new double[n];
+            double[] y = new double[n];
+            for (int i=0; i<n; i++)
+            {
+                x[i] = random.nextDouble() * 100;
+                y[i] = 3 + 0.5 * x[i] + 5 * Math.sin(x[i] / 10) + random.nextGaussian() * 2;
+            }
+            double yRange = BasicStatistics.max(y) - BasicStatistics.min(y);
+
+            log("Testing that 2 degrees of freedom give the least-squares line...");
+            double[] line = leastSquaresLine(x, y);
+            SmoothingSpline spline = SmoothingSpline.fit(x, y, 2);
+            assertEquals(2, spline.getDegreesOfFreedom(), 0.01);
+            for (int i=0; i<n; i++)
+                assertEquals(line[0] + line[1] * x[i], spline.predict(x[i]), 0.001 * yRange);
+            //extrapolation continues the line
+            assertEquals(line[0] + line[1] * 200, spline.predict(200), 0.002 * yRange);
+
+            log("Testing that n degrees of freedom interpolate...");
+            spline = SmoothingSpline.fit(x, y, n);
+            for (int i=0; i<n; i++)
+                assertEquals(y[i], spline.predict(x[i]), 1e-6 * yRange);
+
+            log("Testing intermediate degrees of freedom...");
+            double previousResidualSumOfSquares = Double.MAX_VALUE;
+            for (double df : new double[] { 3, 5, 10, 20 })
+            {
+                spline = SmoothingSpline.fit(x, y, df);
+                assertEquals(df, spline.getDegreesOfFreedom(), 0.01);
+                //more freedom, closer fit
+                double residualSumOfSquares = 0;
+                for (int i=0; i<n; i++)
+                    residualSumOfSquares += Math.pow(y[i] - spline.predict(x[i]), 2);
+                assertTrue(residualSumOfSquares < previousResidualSumOfSquares);
+                previousResidualSumOfSquares = residualSumOfSquares;
+            }
+
+            log("Testing that a line is unchanged by smoothing...");
+            double[] lineY = new double[n];
+            for (int i=0; i<n; i++)
+                lineY[i] = -7 + 0.25 * x[i];
+            for (double df : new double[] { 2, 5, 20 })
+            {
+                spline = SmoothingSpline.fit(x, lineY, df);
+                for (int i=0; i<n; i++)
+                    assertEquals(lineY[i], spline.predict(x[i]), 1e-6);
+            }
+        }
+        catch (AssertionFailedError afe)
+        {
+            result.addError(this, afe);
+        }
+        catch (Exception e)
+        {
+            result.addError(this, e);
+        }
+    }
+
+    /**
+     * @return intercept and slope
+     */
+    protected double[] leastSquaresLine(double[] x, double[] y)
+    {
+        int n = x.length;
+        double meanX = 0;
+        double meanY = 0;
+        for (int i=0; i<n; i++)
+        {
+            meanX += x[i] / n;
+            meanY += y[i] / n;
+        }
+        double sxy = 0;
+        double sxx = 0;
+        for (int i=0; i<n; i++)
+        {
+            sxy += (x[i] - meanX) * (y[i] - meanY);
+            sxx += (x[i] - meanX) * (x[i] - meanX);
+        }
+        double slope = sxy / sxx;
+        return new double[] { meanY - slope * meanX, slope };
+    }
+}
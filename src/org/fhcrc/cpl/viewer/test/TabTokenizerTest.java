@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fhcrc.cpl.viewer.test;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestResult;
+import org.fhcrc.cpl.toolbox.filehandler.TabTokenizer;
+import org.fhcrc.cpl.toolbox.test.BaseCommandTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+public class TabTokenizerTest extends BaseCommandTest implements Test
+{
+    //plain decimals, which the tokenizer must parse itself
+    protected static final String[] PLAIN_DOUBLES =
+            {
+                    "0", "-0", "1", "-1", "0.0", "12.5", "-12.5", "1714.6346", "0.19630894", "20248.762",
+                    ".5", "-.25", "5.", "007", "1e3", "1E3", "1.2E-4", "-3.5e+2", "2.5e022", "6.02e23",
+                    "9007199254740991", "123456789.123456", "0.000001",
+            };
+
+    //valid for Double.parseDouble(), but left for the caller to convert
+    protected static final String[] DECLINED_DOUBLES =
+            {
+                    "NaN", "Infinity", "-Infinity", "+1", "+.5", "1d", "1f", "0x1p3", "1e400", "1e-400",
+                    "9007199254740993", "12345678901234567890", "1e1000",
+            };
+
+    //not numbers at all
+    protected static final String[] MALFORMED_DOUBLES =
+            {
+                    "-", ".", "-.", "e5", "1e", "1e+", "1e-", "1.2.3", "1..2", "--1", "1-", "abc", "1,5", "1 5",
+                    "0x", "TRUE", "1e5.5",
+            };
+
+    protected static final String[] PLAIN_INTS =
+            {
+                    "0", "-0", "1", "-1", "96", "-2029", "007", "999999999", "-999999999",
+            };
+
+    protected static final String[] DECLINED_INTS =
+            {
+                    "+5", "2147483647", "-2147483648", "1000000000",
+            };
+
+    protected static final String[] MALFORMED_INTS =
+            {
+                    "-", "1.0", "1e3", "1.", ".1", "--1", "1-", "abc", "2147483648", "99999999999", "1 5",
+            };
+
+    protected void doCleanup()
+    {
+        //no special cleanup for this test yet
+    }
+
+    /**
+     * Strategy is to tokenize lines of numbers and check the tokenizer's own parsing against
+     * Double.parseDouble(), Float.parseFloat() and Integer.parseInt().  For any field, a parse method may
+     * decline (NaN or NOT_PARSED), in which case TabLoader converts the String; otherwise the value must be
+     * exactly the JDK's
+     * @param result
+     */
+    protected void doRun(TestResult result)
+    {
+        try
+        {
+            log("Testing plain, declined and malformed doubles...");
+            for (String token : PLAIN_DOUBLES)
+            {
+                TabTokenizer tokenizer = tokenize(token);
+                assertFalse(token, Double.isNaN(tokenizer.parseDouble(0)));
+                assertSameDouble(token, tokenizer);
+            }
+            for (String token : DECLINED_DOUBLES)
+            {
+                Double.parseDouble(token);
+                assertTrue(token, Double.isNaN(tokenize(token).parseDouble(0)));
+            }
+            for (String token : MALFORMED_DOUBLES)
+            {
+                assertTrue(token, Double.isNaN(tokenize(token).parseDouble(0)));
+                assertTrue(token, Float.isNaN(tokenize(token).parseFloat(0)));
+                try
+                {
+                    Double.parseDouble(token);
+                    fail("Double.parseDouble() accepted " + token);
+                }
+                catch (NumberFormatException e)
+                {
+                }
+            }
+
+            log("Testing random doubles...");
+            Random random = new Random(1);
+            int numParsed = 0;
+            int numTokens = 100000;
+            for (int i=0; i<numTokens; i++)
+            {
+                String token = createRandomDecimal(random);
+                TabTokenizer tokenizer = tokenize(token);
+                if (!Double.isNaN(tokenizer.parseDouble(0)))
+                    numParsed++;
+                assertSameDouble(token, tokenizer);
+            }
+            //make sure the fast path is actually taken for most of them
+            assertTrue("Only parsed " + numParsed + " of " + numTokens, numParsed > numTokens / 2);
+
+            log("Testing plain, declined and malformed ints...");
+            for (String token : PLAIN_INTS)
+            {
+                TabTokenizer tokenizer = tokenize(token);
+                assertEquals(token, Integer.parseInt(token), tokenizer.parseInt(0));
+            }
+            for (String token : DECLINED_INTS)
+            {
+                Integer.parseInt(token);
+                assertEquals(token, TabTokenizer.NOT_PARSED, tokenize(token).parseInt(0));
+            }
+            for (String token : MALFORMED_INTS)
+            {
+                assertEquals(token, TabTokenizer.NOT_PARSED, tokenize(token).parseInt(0));
+                try
+                {
+                    Integer.parseInt(token);
+                    fail("Integer.parseInt() accepted " + token);
+                }
+                catch (NumberFormatException e)
+                {
+                }
+            }
+            for (int i=0; i<numTokens; i++)
+            {
+                int value = random.nextInt(2000000000) - 1000000000;
+                TabTokenizer tokenizer = tokenize("" + value);
+                long parsed = tokenizer.parseInt(0);
+                if (parsed != TabTokenizer.NOT_PARSED)
+                    assertEquals("" + value, value, parsed);
+            }
+
+            log("Testing empty fields...");
+            TabTokenizer tokenizer = tokenize("\t \t\\N\t 12.5 \t-7 ");
+            assertEquals(5, tokenizer.getFieldCount());
+            for (int field : new int[] { 0, 1, 2, 5 })
+            {
+                assertTrue(tokenizer.isEmpty(field));
+                assertEquals("", tokenizer.getString(field));
+                assertTrue(Double.isNaN(tokenizer.parseDouble(field)));
+                assertTrue(Float.isNaN(tokenizer.parseFloat(field)));
+                assertEquals(TabTokenizer.NOT_PARSED, tokenizer.parseInt(field));
+                assertEquals(TabTokenizer.NOT_PARSED_BOOLEAN, tokenizer.parseBoolean(field));
+            }
+            assertEquals(12.5, tokenizer.parseDouble(3), 0);
+            assertEquals(-7L, tokenizer.parseInt(4));
+        }
+        catch (AssertionFailedError afe)
+        {
+            result.addError(this, afe);
+        }
+        catch (Exception e)
+        {
+            result.addError(this, e);
+        }
+    }
+
+    /**
+     * @param line
+     * @return a tokenizer positioned on the only line
+     */
+    protected TabTokenizer tokenize(String line) throws IOException
+    {
+        TabTokenizer tokenizer = new TabTokenizer(new ByteArrayInputStream(line.getBytes()), '\t');
+        assertTrue(tokenizer.nextLine());
+        return tokenizer;
+    }
+
+    /**
+     * If the tokenizer parsed the first field as a double or float, check that it's bit for bit what the
+     * JDK gives
+     */
+    protected void assertSameDouble(String token, TabTokenizer tokenizer)
+    {
+        double parsedDouble = tokenizer.parseDouble(0);
+        if (!Double.isNaN(parsedDouble))
+            assertEquals(token, Double.doubleToLongBits(Double.parseDouble(token)),
+                    Double.doubleToLongBits(parsedDouble));
+        float parsedFloat = tokenizer.parseFloat(0);
+        if (!Float.isNaN(parsedFloat))
+            assertEquals(token, Float.floatToIntBits(Float.parseFloat(token)), Float.floatToIntBits(parsedFloat));
+    }
+
+    /**
+     * @return [-]digits[.digits][e[+-]digits], with digits and exponents long enough to hit the limits
+     * of exact parsing
+     */
+    protected String createRandomDecimal(Random random)
+    {
+        StringBuffer result = new StringBuffer();
+        if (random.nextBoolean())
+            result.append('-');
+        int numDigits = 1 + random.nextInt(18);
+        int pointPosition = random.nextInt(numDigits + 2) - 1;
+        for (int i=0; i<numDigits; i++)
+        {
+            if (i == pointPosition)
+                result.append('.');
+            result.append((char) ('0' + random.nextInt(10)));
+        }
+        if (pointPosition == numDigits)
+            result.append('.');
+        if (random.nextInt(3) == 0)
+        {
+            result.append(random.nextBoolean() ? 'e' : 'E');
+            int sign = random.nextInt(3);
+            if (sign == 1)
+                result.append('-');
+            else if (sign == 2)
+                result.append('+');
+            result.append(random.nextInt(40));
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.systemsbiology.jrap.stax;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * A file input stream for a file that may still be being written, e.g. copied from the instrument.  At the end
+ * of the file, a read waits for more data rather than returning end of stream.  If the file doesn't grow for
+ * longer than the growth timeout, the file is taken to be complete and end of stream is returned.
+ *
+ * The reader is expected to know when the document is done (e.g. at the end of the scans) and stop reading
+ * there, so on a complete file the timeout is never waited out.
+ */
+public class GrowingFileInputStream extends FileInputStream
+{
+    //how often to look for more data
+    protected static final long POLL_INTERVAL_MILLIS = 200;
+
+    protected long growthTimeoutMillis;
+
+    /**
+     * @param fileName
+     * @param growthTimeoutMillis how long to wait for the file to grow at the end of the data.  0 to not wait
+     * @throws FileNotFoundException
+     */
+    public GrowingFileInputStream(String fileName, long growthTimeoutMillis) throws FileNotFoundException
+    {
+        super(fileName);
+        this.growthTimeoutMillis = growthTimeoutMillis;
+    }
+
+    public int read() throws IOException
+    {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n < 0 ? -1 : (b[0] & 0xff);
+    }
+
+    public int read(byte[] b) throws IOException
+    {
+        return read(b, 0, b.length);
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+            return 0;
+        long waitedMillis = 0;
+        while (true)
+        {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                return n;
+            if (waitedMillis >= growthTimeoutMillis)
+                return -1;
+            try
+            {
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the file to grow");
+            }
+            waitedMillis += POLL_INTERVAL_MILLIS;
+        }
+    }
+
+    public long getGrowthTimeoutMillis()
+    {
+        return growthTimeoutMillis;
+    }
+}
@@ -41,9 +41,14 @@ import java.util.Map;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
 
 /**
- * 
+ * Reads the scans of an mzXML or mzML file in order.
+ *
+ * open() reads the file's index first, to know how many scans there are.  openWithoutIndex() doesn't touch the
+ * index: scans are found by their start tags as the file is read, and the end of the scans is recognized by the
+ * end of the element that holds them.  With a growth timeout, it can read a file that's still being written.
  */
 public class MSXMLSequentialParser {
 
@@ -65,7 +70,11 @@ public class MSXMLSequentialParser {
     private boolean isML = false;
 
     private int currentScan = 0; // current scan number being read
-    
+
+    /** Set when reading without the index */
+    private PushbackStreamReader pushbackSR = null;
+    private boolean noMoreScans = false;
+
     public MSXMLSequentialParser() {}
 
     public void open(String fileName) throws FileNotFoundException, XMLStreamException {
@@ -99,6 +108,38 @@ public class MSXMLSequentialParser {
         }
     }
 
+    /**
+     * Open the file without reading its index.  The offset index, if any, is never looked at, so reading can start
+     * before the file is complete.  getScanCount() and getMaxScanNumber() aren't available.
+     * @param fileName
+     * @param growthTimeoutMillis how long to wait for the file to grow when we reach the end of the data before
+     * the end of the scans.  0 if the file is known to be complete
+     */
+    public void openWithoutIndex(String fileName, long growthTimeoutMillis)
+            throws FileNotFoundException, XMLStreamException {
+        this.fileName = fileName;
+
+        if(fileName.indexOf("mzXML") != -1)
+            isXML = true;
+        else {
+            isML = true;
+        }
+
+        inputStr = new GrowingFileInputStream(fileName, growthTimeoutMillis);
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        pushbackSR = new PushbackStreamReader(inputFactory.createXMLStreamReader(inputStr));
+        xmlSR = pushbackSR;
+
+        try {
+            readFileHeader(xmlSR);
+        }
+        catch(XMLStreamException e) {
+            if(!(e.getMessage()).equals("HeaderEndFoundException")) {
+                throw e;
+            }
+        }
+    }
+
     public void close() {
         if(this.xmlSR != null) {
             try {xmlSR.close();}
@@ -130,11 +171,34 @@ public class MSXMLSequentialParser {
 
 
     /**
-     * Returns true if there are more scans to be parsed in the file
+     * Returns true if there are more scans to be parsed in the file.  Without the index, this reads ahead to the
+     * next scan's start tag, and may wait for the file to grow
      * @return
+     * @throws XMLStreamException if the file can't be read, or ends before the end of the scans
      */
-    public boolean hasNextScan() {
-        return currentScan != maxScan;
+    public boolean hasNextScan() throws XMLStreamException {
+        if(pushbackSR == null)
+            return currentScan != maxScan;
+
+        if(pushbackSR.isPushedBack())
+            return true;
+        if(noMoreScans)
+            return false;
+        String scanElement = isXML ? "scan" : "spectrum";
+        // mzXML scans may nest, but a nested scan always follows its parent's peaks, which the parser has read
+        String scansEndElement = isXML ? "msRun" : "spectrumList";
+        while(pushbackSR.hasNext()) {
+            int event = pushbackSR.next();
+            if(event == XMLStreamReader.START_ELEMENT && scanElement.equals(pushbackSR.getLocalName())) {
+                pushbackSR.pushBack();
+                return true;
+            }
+            if(event == XMLStreamReader.END_ELEMENT && scansEndElement.equals(pushbackSR.getLocalName())) {
+                noMoreScans = true;
+                return false;
+            }
+        }
+        throw new XMLStreamException("End of " + fileName + " reached before the end of the scans");
     }
     
     /**
@@ -178,6 +242,38 @@ public class MSXMLSequentialParser {
     }
     
 
+    /**
+     * Lets the scan parsers see the start tag that hasNextScan() stopped at: after pushBack(), the next call to
+     * next() returns the current event again rather than advancing
+     */
+    protected static class PushbackStreamReader extends StreamReaderDelegate {
+        private boolean pushedBack = false;
+
+        public PushbackStreamReader(XMLStreamReader reader) {
+            super(reader);
+        }
+
+        public void pushBack() {
+            pushedBack = true;
+        }
+
+        public boolean isPushedBack() {
+            return pushedBack;
+        }
+
+        public int next() throws XMLStreamException {
+            if(pushedBack) {
+                pushedBack = false;
+                return getEventType();
+            }
+            return super.next();
+        }
+
+        public boolean hasNext() throws XMLStreamException {
+            return pushedBack || super.hasNext();
+        }
+    }
+
     /**
      * Get the total number of scans in the mzXMLfile handled by this parser.
      *
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2003-2012 Fred Hutchinson Cancer Research Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.systemsbiology.jrap.stax;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes base64 (and optionally zlib-compressed) peak data with as little copying and allocation as possible.
+ *
+ * Each thread has its own scratch buffers and Inflater, which are reused from call to call.  The encoded
+ * characters are copied once into the scratch buffer, decoded in place, inflated if necessary into a second
+ * scratch buffer, and then written straight into the caller's arrays.
+ *
+ * The ByteBuffers returned by the decode() methods wrap the calling thread's scratch space, so they are only
+ * valid until that thread's next call.
+ */
+public class PeakDecoder
+{
+    /**
+     * Per-thread scratch space
+     */
+    protected static class Workspace
+    {
+        byte[] encoded = new byte[128 * 1024];
+        byte[] inflated = new byte[128 * 1024];
+        Inflater inflater = new Inflater();
+
+        byte[] encodedBuffer(int length)
+        {
+            if (encoded.length < length)
+                encoded = new byte[Math.max(length, encoded.length * 2)];
+            return encoded;
+        }
+
+        byte[] inflatedBuffer(int length)
+        {
+            if (inflated.length < length)
+                inflated = new byte[Math.max(length, inflated.length * 2)];
+            return inflated;
+        }
+    }
+
+    protected static final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>()
+    {
+        protected Workspace initialValue()
+        {
+            return new Workspace();
+        }
+    };
+
+    /**
+     * Decode base64 data read from a buffer, such as a mapped region of the file.  Reads encodedLength bytes
+     * starting at the buffer's position, and advances the position past them
+     * @param source
+     * @param encodedLength
+     * @param zlib is the decoded data zlib-compressed?
+     * @param uncompressedLength expected length after inflating.  Ignored if zlib is false
+     * @return the decoded bytes, big-endian, or null if the data is bad
+     */
+    public static ByteBuffer decode(ByteBuffer source, int encodedLength, boolean zlib, int uncompressedLength)
+    {
+        Workspace workspace = workspaces.get();
+        byte[] encoded = workspace.encodedBuffer(encodedLength);
+        source.get(encoded, 0, encodedLength);
+        return decodeInPlace(workspace, encodedLength, zlib, uncompressedLength);
+    }
+
+    /**
+     * Decode base64 character data, such as the text of a peaks element
+     * @param source
+     * @param zlib is the decoded data zlib-compressed?
+     * @param uncompressedLength expected length after inflating.  Ignored if zlib is false
+     * @return the decoded bytes, big-endian, or null if the data is bad
+     */
+    public static ByteBuffer decode(CharSequence source, boolean zlib, int uncompressedLength)
+    {
+        Workspace workspace = workspaces.get();
+        int encodedLength = source.length();
+        byte[] encoded = workspace.encodedBuffer(encodedLength);
+        for (int i = 0; i < encodedLength; i++)
+            encoded[i] = (byte) source.charAt(i);
+        return decodeInPlace(workspace, encodedLength, zlib, uncompressedLength);
+    }
+
+    /**
+     * Base64 output is always shorter than its input, so we can decode into the same array
+     */
+    protected static ByteBuffer decodeInPlace(Workspace workspace, int encodedLength, boolean zlib,
+                                              int uncompressedLength)
+    {
+        byte[] encoded = workspace.encoded;
+        int decodedLength = Base64.decode(encoded, 0, encodedLength, encoded);
+        if (decodedLength < 0)
+            return null;
+        if (!zlib)
+            return ByteBuffer.wrap(encoded, 0, decodedLength);
+
+        byte[] inflated = workspace.inflatedBuffer(uncompressedLength);
+        Inflater inflater = workspace.inflater;
+        inflater.reset();
+        inflater.setInput(encoded, 0, decodedLength);
+        try
+        {
+            int inflatedLength = 0;
+            while (inflatedLength < uncompressedLength && !inflater.finished())
+            {
+                int n = inflater.inflate(inflated, inflatedLength, uncompressedLength - inflatedLength);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                inflatedLength += n;
+            }
+            return ByteBuffer.wrap(inflated, 0, inflatedLength);
+        }
+        catch (DataFormatException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Copy interleaved (m/z, intensity) pairs into the caller's arrays
+     * @param data decoded data, positioned at the first pair
+     * @param precision 32 or 64
+     * @param byteOrder
+     * @param mzs
+     * @param intensities
+     * @return the number of pairs copied, which is limited by the data and by the size of the arrays
+     */
+    public static int readPairs(ByteBuffer data, int precision, ByteOrder byteOrder, float[] mzs, float[] intensities)
+    {
+        data.order(byteOrder);
+        int count = Math.min(data.remaining() / (precision / 8) / 2, Math.min(mzs.length, intensities.length));
+        if (precision == 64)
+            for (int i = 0; i < count; i++)
+            {
+                mzs[i] = (float) data.getDouble();
+                intensities[i] = (float) data.getDouble();
+            }
+        else
+            for (int i = 0; i < count; i++)
+            {
+                mzs[i] = data.getFloat();
+                intensities[i] = data.getFloat();
+            }
+        return count;
+    }
+
+    /**
+     * Copy interleaved (m/z, intensity) pairs into the caller's arrays
+     * @param data decoded data, positioned at the first pair
+     * @param precision 32 or 64
+     * @param byteOrder
+     * @param mzs
+     * @param intensities
+     * @return the number of pairs copied, which is limited by the data and by the size of the arrays
+     */
+    public static int readPairs(ByteBuffer data, int precision, ByteOrder byteOrder, double[] mzs, double[] intensities)
+    {
+        data.order(byteOrder);
+        int count = Math.min(data.remaining() / (precision / 8) / 2, Math.min(mzs.length, intensities.length));
+        if (precision == 64)
+            for (int i = 0; i < count; i++)
+            {
+                mzs[i] = data.getDouble();
+                intensities[i] = data.getDouble();
+            }
+        else
+            for (int i = 0; i < count; i++)
+            {
+                mzs[i] = data.getFloat();
+                intensities[i] = data.getFloat();
+            }
+        return count;
+    }
+
+    /**
+     * Copy a single array of values, as stored in an mzML binaryDataArray, into the caller's array
+     * @param data decoded data, positioned at the first value
+     * @param precision 32 or 64
+     * @param byteOrder
+     * @param values
+     * @return the number of values copied
+     */
+    public static int readValues(ByteBuffer data, int precision, ByteOrder byteOrder, float[] values)
+    {
+        data.order(byteOrder);
+        int count = Math.min(data.remaining() / (precision / 8), values.length);
+        if (precision == 64)
+            for (int i = 0; i < count; i++)
+                values[i] = (float) data.getDouble();
+        else
+        {
+            data.asFloatBuffer().get(values, 0, count);
+            data.position(data.position() + count * 4);
+        }
+        return count;
+    }
+}
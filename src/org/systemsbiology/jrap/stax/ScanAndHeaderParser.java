@@ -38,6 +38,7 @@ import javax.xml.stream.*;
 import javax.xml.stream.events.*;
 import java.util.*;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.zip.*;
 
 public class ScanAndHeaderParser{
@@ -204,7 +205,7 @@ public class ScanAndHeaderParser{
 				{
 				    
 				    //get peaks, this time use ByteBuffer
-				    getPeaks(peaksBuffer.toString());
+				    getPeaks(peaksBuffer);
 				    inPeaks = false;
 				    peaksBuffer = null;
 				    throw new XMLStreamException("ScanEndFoundException");
@@ -265,61 +266,30 @@ public class ScanAndHeaderParser{
 
     public void getPeaks(String peakData)
     {
-	//support non-zlib
-	byte[] peakArray = peakData.getBytes();
-	byte[] outPeakArray = peakArray;
-	int outpos = Base64.decode(peakArray,0,peakArray.length,outPeakArray);
-
-	double[][] massIntenList = null;
-	int arrayLen = -1;
-	ByteBuffer peakBuffer = null;
-	//check if it's compressed
-	byte[] result=null;
-	if((tmpScanHeader.getCompressionType()).equals("zlib"))
-	    {
-		try{
-		    Inflater decompresser = new Inflater();
-		    decompresser.setInput(outPeakArray, 0, outpos);
-		    int unCompLen = (tmpScanHeader.getPeaksCount())*(tmpScanHeader.getPrecision()/4);
-		    result = new byte[unCompLen];
-		    decompresser.inflate(result);
-		    decompresser.end();
+	getPeaks((CharSequence) peakData);
+    }
 
-		}
-		catch(DataFormatException e)
-		    {
-			e.printStackTrace();
-		    }
+    /**
+     * Decode the peaks straight from the character buffer, using PeakDecoder's per-thread scratch space
+     * rather than a chain of intermediate arrays
+     */
+    public void getPeaks(CharSequence peakData)
+    {
+	int precision = tmpScanHeader.getPrecision();
+	boolean zlib = "zlib".equals(tmpScanHeader.getCompressionType());
+	int unCompLen = (tmpScanHeader.getPeaksCount())*(precision/4);
+	ByteBuffer peakBuffer = PeakDecoder.decode(peakData, zlib, unCompLen);
 
-		arrayLen = result.length/(tmpScanHeader.getPrecision()/8)/2;
-		massIntenList = new double[2][arrayLen];
-		peakBuffer = ByteBuffer.wrap(result);
-		
-	    }
+	double[][] massIntenList;
+	if(peakBuffer == null)
+	    massIntenList = new double[2][0];
 	else
 	    {
-		arrayLen = outpos/(tmpScanHeader.getPrecision()/8)/2;
+		int arrayLen = peakBuffer.remaining()/(precision/8)/2;
 		massIntenList = new double[2][arrayLen];
-		peakBuffer = ByteBuffer.wrap(outPeakArray,0,outpos);
-	    }
-	
-	int i=0;
-	while(peakBuffer.hasRemaining())
-	    {
-		if(tmpScanHeader.getPrecision() == 32)
-		    {
-			massIntenList[0][i]=(double)peakBuffer.getFloat();
-			massIntenList[1][i]=(double)peakBuffer.getFloat();
-		    }
-		else
-		    {
-			massIntenList[0][i] = peakBuffer.getDouble();
-			massIntenList[1][i] = peakBuffer.getDouble();
-		    }
-		i++;
+		PeakDecoder.readPairs(peakBuffer, precision, ByteOrder.BIG_ENDIAN, massIntenList[0], massIntenList[1]);
 	    }
-	    
-		
+
 	tmpScan.setMassIntensityList(massIntenList);
     }
 }
\ No newline at end of file